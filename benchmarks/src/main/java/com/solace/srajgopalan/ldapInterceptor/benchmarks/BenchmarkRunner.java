@@ -0,0 +1,63 @@
+package com.solace.srajgopalan.ldapInterceptor.benchmarks;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmark suites once per thread count, reporting throughput
+ * (ops/s), sampled latency percentiles including p99, and the allocation
+ * rate from the GC profiler.
+ *
+ * With no arguments every suite is run for the thread counts in the
+ * "threads" system property (default 1,4,16). Any arguments are passed
+ * to the standard JMH command line instead, e.g.
+ *
+ *     java -jar benchmarks.jar HandlerBenchmark.bind -p size=10000000 -t 8 -prof gc
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        String include = System.getProperty("include", ".*Benchmark.*");
+
+        for (String threads : System.getProperty("threads", "1,4,16").split(",")) {
+            int threadCount = Integer.parseInt(threads.trim());
+
+            // ops/s and allocation rate
+            run(new OptionsBuilder()
+                    .include(include)
+                    .threads(threadCount)
+                    .mode(Mode.Throughput)
+                    .timeUnit(TimeUnit.SECONDS)
+                    .addProfiler(GCProfiler.class), "throughput-" + threadCount);
+
+            // latency percentiles, including p99
+            run(new OptionsBuilder()
+                    .include(include)
+                    .threads(threadCount)
+                    .mode(Mode.SampleTime)
+                    .timeUnit(TimeUnit.MICROSECONDS), "latency-" + threadCount);
+        }
+    }
+
+    private static void run(ChainedOptionsBuilder options, String name) throws Exception {
+        new Runner(options
+                .result("benchmarks-" + name + ".json")
+                .resultFormat(ResultFormatType.JSON)
+                .build()).run();
+    }
+}
@@ -0,0 +1,142 @@
+package com.solace.srajgopalan.ldapInterceptor.benchmarks;
+
+import com.solace.srajgopalan.ldapInterceptor.AuthBackend;
+import com.solace.srajgopalan.ldapInterceptor.BindCache;
+import com.solace.srajgopalan.ldapInterceptor.CachingAuthBackend;
+import com.solace.srajgopalan.ldapInterceptor.CustomAuthRequestHandler;
+import com.solace.srajgopalan.ldapInterceptor.MockAuthSystem;
+import com.solace.srajgopalan.ldapInterceptor.SearchResponseCache;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * This class generates a directory of synthetic users and builds the
+ * interceptor components the benchmarks run against.
+ *
+ * User i has the DN cn=user{i},ou=users,dc=solace,dc=com, the password
+ * pw{i} and is a member of one of a handful of groups. Generated
+ * directories are kept in the temp directory and reused across runs.
+ */
+final class DirectoryFixture {
+
+    static final String BASE_DN = "dc=solace,dc=com";
+
+    static final String[] GROUPS = {
+            "cn=admin,ou=groups,dc=solace,dc=com",
+            "cn=publishers,ou=groups,dc=solace,dc=com",
+            "cn=subscribers,ou=groups,dc=solace,dc=com",
+            "cn=monitors,ou=groups,dc=solace,dc=com"
+    };
+
+    // The number of distinct requests cycled through by each benchmark
+    static final int REQUEST_COUNT = 4096;
+
+    private DirectoryFixture() {
+    }
+
+    static String userName(int i) {
+        return "user" + i;
+    }
+
+    static String userDN(int i) {
+        return "cn=" + userName(i) + ",ou=users," + BASE_DN;
+    }
+
+    static String password(int i) {
+        return "pw" + i;
+    }
+
+    /**
+     * Return the user file for a directory of the given size, generating it if needed
+     *
+     * @param size The number of users
+     *
+     * @return The JSON user file
+     */
+    static File userFile(int size) throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), "ldap-interceptor-users-" + size + ".json");
+        if (file.length() > 0) {
+            return file;
+        }
+
+        File tmp = File.createTempFile("ldap-interceptor-users", ".json", file.getParentFile());
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8), 1 << 16)) {
+            w.write("[\n");
+            for (int i = 0; i < size; i++) {
+                w.write("{\"dn\":\"");
+                w.write(userDN(i));
+                w.write("\",\"group\":\"");
+                w.write(GROUPS[i % GROUPS.length]);
+                w.write("\",\"password\":\"");
+                w.write(password(i));
+                w.write(i == size - 1 ? "\"}\n" : "\"},\n");
+            }
+            w.write("]\n");
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to create " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Create a request handler template for a benchmark
+     *
+     * @param size The number of users
+     * @param caches Whether the bind and search caches are enabled
+     */
+    static CustomAuthRequestHandler handler(int size, boolean caches) throws Exception {
+        AuthBackend backend = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, userFile(size).toPath());
+        SearchResponseCache searchResponseCache = null;
+        if (caches) {
+            backend = new CachingAuthBackend(backend, new BindCache(60000L, 5000L, 100000));
+            searchResponseCache = new SearchResponseCache(60000L, 100000);
+        }
+        return new CustomAuthRequestHandler(backend, new CustomAuthRequestHandler.Options()
+                .setSearchResponseCache(searchResponseCache)
+                .setDeferResponses(true));
+    }
+
+    /**
+     * Pick the users that the requests of a benchmark are made for.
+     * A hit is an existing user with the right password; a miss is a
+     * user that does not exist.
+     *
+     * @param size The number of users in the directory
+     * @param hitRatio The fraction of requests that should hit
+     *
+     * @return The user index of each request, -1 - i for a miss
+     */
+    static int[] users(int size, double hitRatio) {
+        Random random = new Random(42);
+        int[] users = new int[REQUEST_COUNT];
+        for (int i = 0; i < users.length; i++) {
+            int user = random.nextInt(size);
+            users[i] = random.nextDouble() < hitRatio ? user : -1 - user;
+        }
+        return users;
+    }
+
+    static String userName(int[] users, int i) {
+        int user = users[i];
+        return user >= 0 ? userName(user) : "missing" + (-1 - user);
+    }
+
+    static String userDN(int[] users, int i) {
+        int user = users[i];
+        return user >= 0 ? userDN(user) : "cn=missing" + (-1 - user) + ",ou=users," + BASE_DN;
+    }
+
+    static String password(int[] users, int i) {
+        int user = users[i];
+        return user >= 0 ? password(user) : "wrong";
+    }
+}
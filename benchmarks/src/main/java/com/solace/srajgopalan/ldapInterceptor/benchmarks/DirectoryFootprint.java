@@ -0,0 +1,50 @@
+package com.solace.srajgopalan.ldapInterceptor.benchmarks;
+
+import com.solace.srajgopalan.ldapInterceptor.MockAuthSystem;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the mock authentication system takes to load a
+ * generated directory and how much heap each user occupies once loaded.
+ *
+ *     java -Xmx8g -cp benchmarks.jar com.solace.srajgopalan.ldapInterceptor.benchmarks.DirectoryFootprint 1000000 5000000
+ */
+public final class DirectoryFootprint {
+
+    private DirectoryFootprint() {
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        String[] sizes = args.length > 0 ? args : new String[] {"100000", "1000000"};
+
+        System.out.printf("%12s %12s %12s %14s%n", "users", "load ms", "heap MB", "bytes/user");
+
+        for (String arg : sizes) {
+            int size = Integer.parseInt(arg);
+            // Generate the file before measuring
+            DirectoryFixture.userFile(size);
+
+            long before = usedHeap();
+            long start = System.nanoTime();
+            MockAuthSystem authSystem = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT,
+                    DirectoryFixture.userFile(size).toPath());
+            long loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long heap = usedHeap() - before;
+
+            System.out.printf("%12d %12d %12.1f %14d%n", authSystem.size(), loadMillis,
+                    heap / (1024.0 * 1024.0), heap / Math.max(1, authSystem.size()));
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,116 @@
+package com.solace.srajgopalan.ldapInterceptor.benchmarks;
+
+import com.solace.srajgopalan.ldapInterceptor.CustomAuthRequestHandler;
+import com.unboundid.ldap.protocol.BindRequestProtocolOp;
+import com.unboundid.ldap.protocol.LDAPMessage;
+import com.unboundid.ldap.protocol.SearchRequestProtocolOp;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DereferencePolicy;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls the request handler's processBindRequest and processSearchRequest
+ * directly, without the listener or a client, to measure the cost of the
+ * handler and the backend alone. Search responses are written to a
+ * loopback socket that is drained and discarded.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class HandlerBenchmark {
+
+    private static final List<Control> NO_CONTROLS = Collections.emptyList();
+
+    @State(Scope.Benchmark)
+    public static class Directory {
+
+        @Param({"1000", "100000", "1000000"})
+        public int size;
+
+        @Param({"1.0", "0.5"})
+        public double hitRatio;
+
+        @Param({"true", "false"})
+        public boolean caches;
+
+        BindRequestProtocolOp[] binds;
+        SearchRequestProtocolOp[] searches;
+        LoopbackConnection connection;
+        CustomAuthRequestHandler handler;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            int[] users = DirectoryFixture.users(size, hitRatio);
+            binds = new BindRequestProtocolOp[users.length];
+            searches = new SearchRequestProtocolOp[users.length];
+            for (int i = 0; i < users.length; i++) {
+                binds[i] = new BindRequestProtocolOp(DirectoryFixture.userDN(users, i),
+                        DirectoryFixture.password(users, i));
+                searches[i] = new SearchRequestProtocolOp(DirectoryFixture.BASE_DN, SearchScope.SUB,
+                        DereferencePolicy.NEVER, 0, 0, false,
+                        Filter.createEqualityFilter("cn", DirectoryFixture.userName(users, i)),
+                        Collections.singletonList("memberOf"));
+            }
+
+            connection = new LoopbackConnection(DirectoryFixture.handler(size, caches));
+            handler = connection.handler();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            connection.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        int messageID;
+
+        int next() {
+            next = (next + 1) & (DirectoryFixture.REQUEST_COUNT - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    public LDAPMessage bind(Directory d, Cursor c) {
+        return d.handler.processBindRequest(++c.messageID, d.binds[c.next()], NO_CONTROLS);
+    }
+
+    @Benchmark
+    public LDAPMessage search(Directory d, Cursor c) {
+        return d.handler.processSearchRequest(++c.messageID, d.searches[c.next()], NO_CONTROLS);
+    }
+
+    /**
+     * The bind-then-search sequence of a Solace client login
+     */
+    @Benchmark
+    public void login(Directory d, Cursor c, Blackhole bh) {
+        int i = c.next();
+        bh.consume(d.handler.processBindRequest(++c.messageID, d.binds[i], NO_CONTROLS));
+        bh.consume(d.handler.processSearchRequest(++c.messageID, d.searches[i], NO_CONTROLS));
+    }
+}
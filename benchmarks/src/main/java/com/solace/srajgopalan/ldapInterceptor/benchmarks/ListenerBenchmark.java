@@ -0,0 +1,127 @@
+package com.solace.srajgopalan.ldapInterceptor.benchmarks;
+
+import com.unboundid.ldap.listener.LDAPListener;
+import com.unboundid.ldap.listener.LDAPListenerConfig;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchScope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs binds and searches end to end: an UnboundID client per benchmark
+ * thread talks to an in-process LDAPListener running the interceptor's
+ * request handler on loopback, as Solace would.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ListenerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Interceptor {
+
+        @Param({"1000", "100000", "1000000"})
+        public int size;
+
+        @Param({"1.0", "0.5"})
+        public double hitRatio;
+
+        @Param({"true", "false"})
+        public boolean caches;
+
+        int[] users;
+        LDAPListener listener;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            users = DirectoryFixture.users(size, hitRatio);
+
+            LDAPListenerConfig config = new LDAPListenerConfig(0, DirectoryFixture.handler(size, caches));
+            config.setListenAddress(InetAddress.getLoopbackAddress());
+            listener = new LDAPListener(config);
+            listener.startListening();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            listener.shutDown(true);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        LDAPConnection connection;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(Interceptor interceptor) throws LDAPException {
+            connection = new LDAPConnection(InetAddress.getLoopbackAddress().getHostAddress(),
+                    interceptor.listener.getListenPort());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            connection.close();
+        }
+
+        int next() {
+            next = (next + 1) & (DirectoryFixture.REQUEST_COUNT - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    public ResultCode bind(Interceptor interceptor, Client client) {
+        return bind(interceptor, client, client.next());
+    }
+
+    @Benchmark
+    public int search(Interceptor interceptor, Client client) throws LDAPException {
+        return search(interceptor, client, client.next());
+    }
+
+    /**
+     * The bind-then-search sequence of a Solace client login
+     */
+    @Benchmark
+    public int login(Interceptor interceptor, Client client) throws LDAPException {
+        int i = client.next();
+        bind(interceptor, client, i);
+        return search(interceptor, client, i);
+    }
+
+    private static ResultCode bind(Interceptor interceptor, Client client, int i) {
+        try {
+            return client.connection.bind(DirectoryFixture.userDN(interceptor.users, i),
+                    DirectoryFixture.password(interceptor.users, i)).getResultCode();
+        } catch (LDAPException e) {
+            return e.getResultCode();
+        }
+    }
+
+    private static int search(Interceptor interceptor, Client client, int i) throws LDAPException {
+        SearchResult result = client.connection.search(new SearchRequest(DirectoryFixture.BASE_DN,
+                SearchScope.SUB, "(cn=" + DirectoryFixture.userName(interceptor.users, i) + ")", "memberOf"));
+        return result.getEntryCount();
+    }
+}
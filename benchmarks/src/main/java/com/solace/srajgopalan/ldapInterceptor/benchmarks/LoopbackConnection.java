@@ -0,0 +1,144 @@
+package com.solace.srajgopalan.ldapInterceptor.benchmarks;
+
+import com.solace.srajgopalan.ldapInterceptor.CustomAuthRequestHandler;
+import com.unboundid.ldap.listener.LDAPListener;
+import com.unboundid.ldap.listener.LDAPListenerClientConnection;
+import com.unboundid.ldap.listener.LDAPListenerConfig;
+import com.unboundid.ldap.listener.LDAPListenerRequestHandler;
+import com.unboundid.ldap.protocol.AddRequestProtocolOp;
+import com.unboundid.ldap.protocol.BindRequestProtocolOp;
+import com.unboundid.ldap.protocol.CompareRequestProtocolOp;
+import com.unboundid.ldap.protocol.DeleteRequestProtocolOp;
+import com.unboundid.ldap.protocol.ExtendedRequestProtocolOp;
+import com.unboundid.ldap.protocol.LDAPMessage;
+import com.unboundid.ldap.protocol.ModifyDNRequestProtocolOp;
+import com.unboundid.ldap.protocol.ModifyRequestProtocolOp;
+import com.unboundid.ldap.protocol.SearchRequestProtocolOp;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.LDAPException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class gives a benchmark a request handler bound to a real client
+ * connection, so that its process*Request methods can be called
+ * directly while the responses they write go to a loopback socket.
+ * Everything written to the socket is read and discarded.
+ */
+final class LoopbackConnection implements Closeable {
+
+    private final LDAPListener listener;
+    private final Socket socket;
+    private final Thread drainer;
+    private final CustomAuthRequestHandler handler;
+
+    LoopbackConnection(final CustomAuthRequestHandler template) throws Exception {
+        final CompletableFuture<CustomAuthRequestHandler> connected = new CompletableFuture<>();
+
+        LDAPListenerConfig config = new LDAPListenerConfig(0, new CapturingHandler(template, connected));
+        config.setListenAddress(InetAddress.getLoopbackAddress());
+        listener = new LDAPListener(config);
+        listener.startListening();
+
+        socket = new Socket(InetAddress.getLoopbackAddress(), listener.getListenPort());
+        handler = connected.get(10L, TimeUnit.SECONDS);
+
+        drainer = new Thread(() -> {
+            byte[] buffer = new byte[65536];
+            try (InputStream in = socket.getInputStream()) {
+                while (in.read(buffer) >= 0) {
+                    // discard the responses
+                }
+            } catch (IOException e) {
+                // the connection was closed
+            }
+        }, "LoopbackConnection-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * @return The request handler bound to the loopback connection
+     */
+    CustomAuthRequestHandler handler() {
+        return handler;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        listener.shutDown(true);
+    }
+
+    /*
+     * Hands out the connection's request handler when the loopback
+     * socket is accepted. Requests themselves are never read from the
+     * socket; the benchmark calls the handler directly.
+     */
+    private static final class CapturingHandler extends LDAPListenerRequestHandler {
+
+        private final CustomAuthRequestHandler template;
+        private final CompletableFuture<CustomAuthRequestHandler> connected;
+
+        CapturingHandler(CustomAuthRequestHandler template,
+                         CompletableFuture<CustomAuthRequestHandler> connected) {
+            this.template = template;
+            this.connected = connected;
+        }
+
+        @Override
+        public LDAPListenerRequestHandler newInstance(LDAPListenerClientConnection connection)
+                throws LDAPException {
+            CustomAuthRequestHandler handler = template.newInstance(connection);
+            connected.complete(handler);
+            return handler;
+        }
+
+        @Override
+        public LDAPMessage processAddRequest(int messageID, AddRequestProtocolOp request, List<Control> controls) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LDAPMessage processBindRequest(int messageID, BindRequestProtocolOp request, List<Control> controls) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LDAPMessage processCompareRequest(int messageID, CompareRequestProtocolOp request, List<Control> controls) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LDAPMessage processDeleteRequest(int messageID, DeleteRequestProtocolOp request, List<Control> controls) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LDAPMessage processExtendedRequest(int messageID, ExtendedRequestProtocolOp request, List<Control> controls) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LDAPMessage processModifyRequest(int messageID, ModifyRequestProtocolOp request, List<Control> controls) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LDAPMessage processModifyDNRequest(int messageID, ModifyDNRequestProtocolOp request, List<Control> controls) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LDAPMessage processSearchRequest(int messageID, SearchRequestProtocolOp request, List<Control> controls) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
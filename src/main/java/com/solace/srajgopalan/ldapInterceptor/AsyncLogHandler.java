@@ -0,0 +1,122 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * This class is a log handler that hands records to a background
+ * thread through a bounded queue, which then publishes them to the
+ * wrapped handler, e.g. a ConsoleHandler.
+ *
+ * Threads that log never wait for the console: when the queue is full
+ * the record is dropped and counted instead, so logging can never
+ * become a serialization point for request processing.
+ */
+public final class AsyncLogHandler extends Handler {
+
+    // The handler that records are published to
+    private final Handler target;
+
+    // Records waiting to be published
+    private final BlockingQueue<LogRecord> queue;
+
+    // The number of records dropped because the queue was full
+    private final LongAdder dropped = new LongAdder();
+
+    // The thread publishing records to the target handler
+    private final Thread publisher;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a new asynchronous log handler and starts its publisher thread
+     *
+     * @param target The handler to publish records to
+     * @param capacity The maximum number of records waiting to be published
+     */
+    public AsyncLogHandler(final Handler target, final int capacity) {
+        this.target = target;
+        this.queue = new ArrayBlockingQueue<LogRecord>(capacity);
+        this.publisher = new Thread(this::publishRecords, "AsyncLogHandler");
+        this.publisher.setDaemon(true);
+        this.publisher.start();
+    }
+
+    /**
+     * Queue a record for publishing, or drop it if the queue is full
+     *
+     * @param record The log record
+     */
+    @Override
+    public void publish(final LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        if (!queue.offer(record)) {
+            dropped.increment();
+        }
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    /**
+     * Publish the records still queued and close the wrapped handler
+     */
+    @Override
+    public void close() {
+        closed = true;
+        publisher.interrupt();
+        try {
+            publisher.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        LogRecord record;
+        while ((record = queue.poll()) != null) {
+            target.publish(record);
+        }
+        long droppedRecords = dropped.sum();
+        if (droppedRecords > 0) {
+            target.publish(new LogRecord(Level.WARNING,
+                    droppedRecords + " log records were dropped because the log queue was full"));
+        }
+        target.flush();
+        target.close();
+    }
+
+    /**
+     * @return The number of records dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void publishRecords() {
+        while (!closed) {
+            try {
+                LogRecord record = queue.poll(1L, TimeUnit.SECONDS);
+                if (record == null) {
+                    continue;
+                }
+                target.publish(record);
+                if (queue.isEmpty()) {
+                    target.flush();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                reportError(null, e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+}
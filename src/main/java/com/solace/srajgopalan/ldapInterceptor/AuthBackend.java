@@ -0,0 +1,125 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This interface describes the backend authentication system
+ * that the interceptor validates binds and searches against,
+ * e.g. a corporate IDAM system or the mock file based system.
+ *
+ * Both operations return a future so that a slow backend never
+ * holds an LDAP connection thread while it waits; the request
+ * handler completes the LDAP response from the future's callback.
+ * Implementations that answer from memory may simply return an
+ * already completed future.
+ *
+ * Implementations are selected at startup with the "backend"
+ * configuration property, see {@link AuthBackendFactory}, and are
+ * closed when the interceptor shuts down.
+ */
+public interface AuthBackend extends Closeable {
+
+    /**
+     * Validate the credentials for a supplied user
+     *
+     * @param dn The bind DN of the user to validate
+     * @param password The password for the user to be validated
+     *
+     * @return A future completed with true if the credentials are valid,
+     *         false if they are not, or completed exceptionally if the
+     *         backend could not be reached
+     */
+    CompletableFuture<Boolean> authenticate(String dn, String password);
+
+    /**
+     * Search the backend for the user entries matching a filter
+     *
+     * @param baseDN The base DN of the search request
+     * @param filter The filter of the search request
+     *
+     * @return A future completed with the matching entries, or completed
+     *         exceptionally if the backend could not be reached
+     */
+    CompletableFuture<List<Entry>> search(String baseDN, Filter filter);
+
+    /**
+     * Search the backend for the user entries matching a filter, within
+     * the size and time limits of the search request. A backend that can
+     * stop early should; the default implementation searches without
+     * limits and leaves them to the request handler.
+     *
+     * @param baseDN The base DN of the search request
+     * @param filter The filter of the search request
+     * @param maxEntries The number of entries after which the backend may
+     *                   stop looking, or 0 for no limit
+     * @param timeLimitMillis How long the backend may search before failing
+     *                        with TIME_LIMIT_EXCEEDED, or 0 for no limit
+     *
+     * @return A future completed with the matching entries, at most
+     *         maxEntries of them if it is not 0, or completed exceptionally
+     *         if the backend could not be reached or ran out of time
+     */
+    default CompletableFuture<List<Entry>> search(String baseDN, Filter filter, int maxEntries, long timeLimitMillis) {
+        return search(baseDN, filter);
+    }
+
+    /**
+     * Open a cursor over the user entries matching a filter, so they can
+     * be sent to the client as they are found. A backend that can find
+     * entries one at a time should; the default implementation completes
+     * the search first and walks its entries.
+     *
+     * @param baseDN The base DN of the search request
+     * @param filter The filter of the search request
+     * @param timeLimitMillis How long the cursor may look for entries,
+     *                        or 0 for no limit
+     *
+     * @return A future completed with the cursor, which the caller must
+     *         close, or completed exceptionally if the backend could not
+     *         be reached
+     */
+    default CompletableFuture<SearchCursor> stream(String baseDN, Filter filter, long timeLimitMillis) {
+        return search(baseDN, filter, 0, timeLimitMillis).thenApply(SearchCursor::of);
+    }
+
+    /**
+     * Open a cursor over the user entries matching a filter within the
+     * scope of a search. A backend that can search a scope itself should;
+     * the default implementation passes a subtree search on unchanged, as
+     * a backend may hold its whole directory under any base DN, and drops
+     * the entries outside a base or one-level search as the cursor finds
+     * them.
+     *
+     * @param baseDN The base DN of the search request
+     * @param scope The scope of the search request
+     * @param filter The filter of the search request
+     * @param timeLimitMillis How long the cursor may look for entries,
+     *                        or 0 for no limit
+     *
+     * @return A future completed with the cursor, which the caller must
+     *         close, or completed exceptionally if the backend could not
+     *         be reached
+     */
+    default CompletableFuture<SearchCursor> stream(String baseDN, SearchScope scope, Filter filter,
+                                                   long timeLimitMillis) {
+        if (scope == SearchScope.SUB) {
+            return stream(baseDN, filter, timeLimitMillis);
+        }
+        return stream(baseDN, filter, timeLimitMillis).thenApply(cursor -> SearchCursor.within(cursor, baseDN, scope));
+    }
+
+    /**
+     * Release any threads or connections held by the backend. The
+     * default implementation does nothing.
+     */
+    @Override
+    default void close() {
+    }
+
+}
@@ -0,0 +1,264 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.lang.reflect.Constructor;
+import java.nio.file.Paths;
+
+/**
+ * This class creates the {@link AuthBackend} selected by the
+ * "backend" configuration property:
+ *
+ *   - mock (default): the file based {@link MockAuthSystem}, mapping the
+ *     snapshot given by "snapshotFile" (see {@link DirectorySnapshot}),
+ *     checking its checksum first if snapshotFile.verify=true, or else
+ *     reading the user file given by "userFile", or UserEntries.json from
+ *     the classpath. A user file is reloaded when it changes unless
+ *     userFile.watch=false. Groups are nested as defined by the group
+ *     file given by "groupFile", if any, which is reloaded when it changes
+ *     unless groupFile.watch=false. Hashed passwords are verified by a pool of
+ *     passwordVerify.threads threads (default one per core) with room for
+ *     passwordVerify.queueSize waiting binds (default 1024).
+ *   - ldap: an {@link UpstreamAuthBackend} proxying to the upstream LDAP
+ *     servers given by "upstream.servers"
+ *   - any other value is taken as the fully qualified name of an
+ *     AuthBackend implementation, which must provide either a public
+ *     constructor accepting an {@link InterceptorConfig} or a public
+ *     no-argument constructor
+ *
+ * How backend calls are executed is selected by "execution", see
+ * {@link Execution}. It defaults to the connection thread, or to the
+ * pool for the ldap backend, whose calls block on the upstream.
+ *
+ * Unless disabled with coalescing.enabled=false, concurrent identical
+ * calls share a single backend call, see {@link CoalescingAuthBackend}.
+ *
+ * Unless disabled with bindCache.enabled=false, the backend is wrapped
+ * in a {@link CachingAuthBackend} configured by:
+ *
+ *   - bindCache.positiveTtlMillis: how long successful binds are cached (default 60000)
+ *   - bindCache.negativeTtlMillis: how long failed binds are cached (default 5000)
+ *   - bindCache.maxEntries: the maximum number of cached binds (default 100000)
+ */
+public final class AuthBackendFactory {
+
+    /**
+     * The name of the built-in mock backend
+     */
+    public static final String MOCK_BACKEND = "mock";
+
+    /**
+     * The name of the built-in upstream LDAP backend
+     */
+    public static final String LDAP_BACKEND = "ldap";
+
+    /**
+     * Where backend calls are made
+     */
+    public enum Execution {
+        /**
+         * On the LDAP connection thread; suits backends that answer from
+         * memory or return their own futures
+         */
+        CONNECTION,
+
+        /**
+         * On a fixed pool of execution.threads threads (default 64) with
+         * room for execution.queueSize waiting calls (default 1024)
+         */
+        POOL,
+
+        /**
+         * On a virtual thread per call (Java 21 and later)
+         */
+        VIRTUAL
+    }
+
+    private AuthBackendFactory() {
+    }
+
+    /**
+     * Create the backend authentication system described by the configuration
+     *
+     * @param config The interceptor configuration
+     *
+     * @return The backend to validate binds and searches against
+     *
+     * @throws Exception If the backend cannot be created
+     */
+    public static AuthBackend create(InterceptorConfig config) throws Exception {
+        return create(config, null);
+    }
+
+    /**
+     * Create the backend authentication system described by the configuration,
+     * recording the latency of backend calls and the bind cache hit ratio
+     *
+     * @param config The interceptor configuration
+     * @param metrics The metrics to record into, or null
+     *
+     * @return The backend to validate binds and searches against
+     *
+     * @throws Exception If the backend cannot be created
+     */
+    public static AuthBackend create(InterceptorConfig config, InterceptorMetrics metrics) throws Exception {
+        return create(config, metrics, new DirectoryChangeListener[0]);
+    }
+
+    /**
+     * Create the backend authentication system described by the configuration,
+     * telling the given listeners which users changed whenever the backend
+     * reloads its user records
+     *
+     * @param config The interceptor configuration
+     * @param metrics The metrics to record into, or null
+     * @param listeners The listeners to notify of changed users, e.g. to
+     *                  invalidate cached search results
+     *
+     * @return The backend to validate binds and searches against
+     *
+     * @throws Exception If the backend cannot be created
+     */
+    public static AuthBackend create(InterceptorConfig config, InterceptorMetrics metrics,
+                                     DirectoryChangeListener... listeners) throws Exception {
+
+        AuthBackend backend = createBackend(config);
+
+        MockAuthSystem mockAuthSystem = null;
+        if (backend instanceof MockAuthSystem) {
+            mockAuthSystem = (MockAuthSystem) backend;
+            for (DirectoryChangeListener listener : listeners) {
+                mockAuthSystem.addChangeListener(listener);
+            }
+        }
+
+        if (metrics != null) {
+            backend = new MeteredAuthBackend(backend, metrics);
+        }
+
+        Execution defaultExecution = config.getString("backend", MOCK_BACKEND).equalsIgnoreCase(LDAP_BACKEND)
+                ? Execution.POOL : Execution.CONNECTION;
+        switch (config.getEnum("execution", Execution.class, defaultExecution)) {
+            case POOL:
+                backend = new ExecutorAuthBackend(backend, ExecutorAuthBackend.newBoundedPool(
+                        config.getInt("execution.threads", 64),
+                        config.getInt("execution.queueSize", 1024)));
+                break;
+            case VIRTUAL:
+                backend = new ExecutorAuthBackend(backend, ExecutorAuthBackend.newVirtualThreadExecutor());
+                break;
+            default:
+                break;
+        }
+
+        CircuitBreakerAuthBackend circuitBreaker = null;
+        if (config.getBoolean("circuitBreaker.enabled", true)) {
+            circuitBreaker = new CircuitBreakerAuthBackend(backend,
+                    config.getLong("circuitBreaker.timeoutMillis", 5000L),
+                    config.getInt("circuitBreaker.failureThreshold", 5),
+                    config.getLong("circuitBreaker.openMillis", 5000L));
+            if (metrics != null) {
+                metrics.setCircuitBreaker(circuitBreaker);
+            }
+            backend = circuitBreaker;
+        }
+
+        if (config.getBoolean("coalescing.enabled", true)) {
+            CoalescingAuthBackend coalescingAuthBackend = new CoalescingAuthBackend(backend,
+                    config.getInt("searchCache.maxSearchEntries", 1000));
+            if (metrics != null) {
+                metrics.setCoalescingAuthBackend(coalescingAuthBackend);
+            }
+            if (mockAuthSystem != null) {
+                mockAuthSystem.addChangeListener(coalescingAuthBackend);
+            }
+            backend = coalescingAuthBackend;
+        }
+
+        if (config.getBoolean("bindCache.enabled", true)) {
+            BindCache bindCache = new BindCache(
+                    config.getLong("bindCache.positiveTtlMillis", 60000L),
+                    config.getLong("bindCache.negativeTtlMillis", 5000L),
+                    config.getLong("bindCache.staleTtlMillis", 0L),
+                    config.getInt("bindCache.maxEntries", 100000));
+            if (metrics != null) {
+                metrics.setBindCache(bindCache);
+            }
+            if (mockAuthSystem != null) {
+                mockAuthSystem.addChangeListener(bindCache::invalidateAll);
+            }
+            backend = new CachingAuthBackend(backend, bindCache, circuitBreaker);
+        }
+
+        return backend;
+    }
+
+    /*
+     * Create the backend authentication system itself, without any caching
+     */
+    private static AuthBackend createBackend(InterceptorConfig config) throws Exception {
+
+        String backend = config.getString("backend", MOCK_BACKEND);
+
+        if (backend.equalsIgnoreCase(MOCK_BACKEND)) {
+            MockAuthSystem.MatchMode matchMode = config.getEnum("searchMatchMode",
+                    MockAuthSystem.MatchMode.class, MockAuthSystem.MatchMode.EXACT);
+
+            String snapshotFile = config.getString("snapshotFile", null);
+            if (snapshotFile != null) {
+                MockAuthSystem mockAuthSystem = MockAuthSystem.fromSnapshot(matchMode, Paths.get(snapshotFile),
+                        config.getBoolean("snapshotFile.verify", false));
+                configureMockAuthSystem(mockAuthSystem, config);
+                return mockAuthSystem;
+            }
+
+            String userFile = config.getString("userFile", null);
+            if (userFile == null) {
+                MockAuthSystem mockAuthSystem = new MockAuthSystem(matchMode);
+                configureMockAuthSystem(mockAuthSystem, config);
+                return mockAuthSystem;
+            }
+
+            MockAuthSystem mockAuthSystem = new MockAuthSystem(matchMode, Paths.get(userFile));
+            configureMockAuthSystem(mockAuthSystem, config);
+            if (config.getBoolean("userFile.watch", true)) {
+                mockAuthSystem.startWatching(config.getLong("userFile.settleMillis", 500L));
+            }
+            return mockAuthSystem;
+        }
+
+        if (backend.equalsIgnoreCase(LDAP_BACKEND)) {
+            return new UpstreamAuthBackend(config);
+        }
+
+        Class<? extends AuthBackend> backendClass =
+                Class.forName(backend).asSubclass(AuthBackend.class);
+
+        try {
+            Constructor<? extends AuthBackend> c = backendClass.getConstructor(InterceptorConfig.class);
+            return c.newInstance(config);
+        } catch (NoSuchMethodException e) {
+            return backendClass.getConstructor().newInstance();
+        }
+    }
+
+    /*
+     * Size the pool that verifies hashed passwords, choose how searches
+     * that cannot use an index walk the records, and read the nesting of
+     * groups from the group file
+     */
+    private static void configureMockAuthSystem(MockAuthSystem mockAuthSystem, InterceptorConfig config)
+            throws Exception {
+        mockAuthSystem.setCredentialVerifier(new CredentialVerifier(
+                config.getInt("passwordVerify.threads", Runtime.getRuntime().availableProcessors()),
+                config.getInt("passwordVerify.queueSize", 1024)));
+        mockAuthSystem.setParallelScan(config.getBoolean("searchScan.parallel", false));
+
+        String groupFile = config.getString("groupFile", null);
+        if (groupFile != null) {
+            mockAuthSystem.reloadGroups(Paths.get(groupFile));
+            if (config.getBoolean("groupFile.watch", true)) {
+                mockAuthSystem.startWatchingGroups(Paths.get(groupFile),
+                        config.getLong("groupFile.settleMillis", 500L));
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class caches the outcome of recent binds so that clients
+ * re-binding the same credentials, e.g. during a reconnect storm,
+ * are answered without another call to the backend.
+ *
+ * Entries are keyed on the normalized bind DN plus a salted SHA-256
+ * hash of the password; the plaintext password is never stored. The
+ * salt is random per cache instance, so keys are not reusable across
+ * restarts. Successful and failed binds are cached with separate
+ * time-to-live values, and the cache is bounded in size: when it
+ * grows past its maximum, expired entries are dropped first and then
+ * arbitrary entries until it is back under the limit.
+ *
+ * Expired entries can be kept for a further stale period, during which
+ * they are not answered by {@link #get} but may still be answered by
+ * {@link #getStale} when the backend cannot be reached.
+ *
+ * A bind that read the directory before it changed may complete after
+ * the change has invalidated the cache. Each invalidation therefore
+ * starts a new generation, and an outcome is only cached if no
+ * invalidation happened since the generation read before its backend
+ * call, see {@link #put(String, String, boolean, long)}.
+ */
+public final class BindCache {
+
+    // The outcome of a bind and when it stops being valid
+    private static final class Outcome {
+        final boolean valid;
+        final long expiresAtNanos;
+
+        Outcome(boolean valid, long expiresAtNanos) {
+            this.valid = valid;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final ConcurrentHashMap<CredentialKey, Outcome> outcomes = new ConcurrentHashMap<CredentialKey, Outcome>();
+    private final byte[] salt = CredentialKey.newSalt();
+    private final long positiveTtlNanos;
+    private final long negativeTtlNanos;
+    private final long staleTtlNanos;
+    private final int maxEntries;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+
+    /**
+     * Creates a new bind cache
+     *
+     * @param positiveTtlMillis How long a successful bind is cached
+     * @param negativeTtlMillis How long a failed bind is cached, 0 to not cache failures
+     * @param maxEntries The maximum number of cached binds
+     */
+    public BindCache(long positiveTtlMillis, long negativeTtlMillis, int maxEntries) {
+        this(positiveTtlMillis, negativeTtlMillis, 0L, maxEntries);
+    }
+
+    /**
+     * Creates a new bind cache that keeps expired binds for a stale period
+     *
+     * @param positiveTtlMillis How long a successful bind is cached
+     * @param negativeTtlMillis How long a failed bind is cached, 0 to not cache failures
+     * @param staleTtlMillis How long an expired bind may still be answered by getStale
+     * @param maxEntries The maximum number of cached binds
+     */
+    public BindCache(long positiveTtlMillis, long negativeTtlMillis, long staleTtlMillis, int maxEntries) {
+        this.positiveTtlNanos = positiveTtlMillis * 1000000L;
+        this.negativeTtlNanos = negativeTtlMillis * 1000000L;
+        this.staleTtlNanos = staleTtlMillis * 1000000L;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Look up the cached outcome of a bind
+     *
+     * @param dn The bind DN
+     * @param password The bind password
+     *
+     * @return true or false if the outcome is cached, null otherwise
+     */
+    public Boolean get(String dn, String password) {
+        CredentialKey key = CredentialKey.of(salt, dn, password);
+        Outcome outcome = outcomes.get(key);
+        if (outcome != null) {
+            long now = System.nanoTime();
+            if (now - outcome.expiresAtNanos < 0) {
+                hits.increment();
+                return outcome.valid;
+            }
+            if (now - outcome.expiresAtNanos >= staleTtlNanos) {
+                outcomes.remove(key, outcome);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Look up the outcome of a bind that may have expired but is still
+     * within the stale period, e.g. to answer while the backend is down
+     *
+     * @param dn The bind DN
+     * @param password The bind password
+     *
+     * @return true or false if a fresh or stale outcome is cached, null otherwise
+     */
+    public Boolean getStale(String dn, String password) {
+        Outcome outcome = outcomes.get(CredentialKey.of(salt, dn, password));
+        if (outcome != null && System.nanoTime() - outcome.expiresAtNanos < staleTtlNanos) {
+            staleHits.increment();
+            return outcome.valid;
+        }
+        return null;
+    }
+
+    /**
+     * Cache the outcome of a bind
+     *
+     * @param dn The bind DN
+     * @param password The bind password
+     * @param valid Whether the credentials were valid
+     */
+    public void put(String dn, String password, boolean valid) {
+        long ttl = valid ? positiveTtlNanos : negativeTtlNanos;
+        if (ttl <= 0) {
+            return;
+        }
+        outcomes.put(CredentialKey.of(salt, dn, password), new Outcome(valid, System.nanoTime() + ttl));
+        if (outcomes.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Cache the outcome of a bind unless the cache has been invalidated
+     * since the backend call began, in which case the backend may have
+     * answered from records that have since changed
+     *
+     * @param dn The bind DN
+     * @param password The bind password
+     * @param valid Whether the credentials were valid
+     * @param generation The {@link #generation()} read before the backend call
+     */
+    public void put(String dn, String password, boolean valid, long generation) {
+        long ttl = valid ? positiveTtlNanos : negativeTtlNanos;
+        if (ttl <= 0 || generation != this.generation.get()) {
+            return;
+        }
+        CredentialKey key = CredentialKey.of(salt, dn, password);
+        Outcome outcome = new Outcome(valid, System.nanoTime() + ttl);
+        outcomes.put(key, outcome);
+        // An invalidation between the check above and the put may have
+        // missed this outcome; it bumps the generation before it removes
+        if (generation != this.generation.get()) {
+            outcomes.remove(key, outcome);
+            return;
+        }
+        if (outcomes.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * @return The current generation, to be read before a backend call
+     *         whose outcome is then cached with
+     *         {@link #put(String, String, boolean, long)}
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Drop every cached bind for a DN, e.g. after its password changed
+     *
+     * @param dn The DN to invalidate
+     */
+    public void invalidate(String dn) {
+        generation.incrementAndGet();
+        final String normalized = DirectoryNames.normalize(dn);
+        outcomes.keySet().removeIf(k -> k.dn.equals(normalized));
+    }
+
+    /**
+     * Drop every cached bind for a set of DNs in a single pass
+     *
+     * @param normalizedDNs The normalized DNs to invalidate
+     */
+    public void invalidateAll(Collection<String> normalizedDNs) {
+        if (!normalizedDNs.isEmpty()) {
+            generation.incrementAndGet();
+            outcomes.keySet().removeIf(k -> normalizedDNs.contains(k.dn));
+        }
+    }
+
+    /**
+     * Drop every cached bind
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        outcomes.clear();
+    }
+
+    /**
+     * @return The number of cached binds
+     */
+    public int size() {
+        return outcomes.size();
+    }
+
+    /**
+     * @return The number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of lookups not answered from the cache
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of binds answered from possibly stale outcomes
+     */
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    /*
+     * Bring the cache back under its maximum size, removing expired
+     * entries first. Only one thread evicts at a time; others carry on.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            outcomes.values().removeIf(o -> now - o.expiresAtNanos >= staleTtlNanos);
+
+            // Then the stale ones, and arbitrary entries as a last resort
+            int target = maxEntries - maxEntries / 10;
+            if (outcomes.size() > target) {
+                outcomes.values().removeIf(o -> now - o.expiresAtNanos >= 0);
+            }
+
+            Iterator<Map.Entry<CredentialKey, Outcome>> it = outcomes.entrySet().iterator();
+            while (outcomes.size() > target && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BindCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() +
+                ", positiveTtlMillis=" + positiveTtlNanos / 1000000L +
+                ", negativeTtlMillis=" + negativeTtlNanos / 1000000L +
+                ", staleTtlMillis=" + staleTtlNanos / 1000000L +
+                ", maxEntries=" + maxEntries + '}';
+    }
+}
@@ -0,0 +1,74 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.ResultCode;
+
+import java.net.InetAddress;
+
+/**
+ * This class limits how fast binds are attempted from each client address
+ * and for each bind DN, so that a client retrying in a tight loop cannot
+ * overload the backend for everyone else.
+ *
+ * It is consulted before the bind cache and the backend, so a refused bind
+ * costs neither a backend call nor a password hash. A client over its
+ * limit is told the server is BUSY; binds for a DN over its limit, which
+ * usually means a password is being guessed, are refused with
+ * UNWILLING_TO_PERFORM. A refused bind is charged to neither limit: the
+ * DN is not checked for a client over its limit, and the client's token
+ * is given back when the DN is over its limit.
+ */
+public final class BindRateLimiter {
+
+    private final RateLimiter<InetAddress> clients;
+    private final RateLimiter<String> dns;
+
+    /**
+     * @param clients The limiter keyed on client address, or null for no limit
+     * @param dns The limiter keyed on normalized bind DN, or null for no limit
+     */
+    public BindRateLimiter(RateLimiter<InetAddress> clients, RateLimiter<String> dns) {
+        this.clients = clients;
+        this.dns = dns;
+    }
+
+    /**
+     * Take a token for a bind attempt
+     *
+     * @param client The address of the client, or null if unknown
+     * @param dn The bind DN
+     *
+     * @return null if the bind may go ahead, otherwise the result code to refuse it with
+     */
+    public ResultCode tryAcquire(InetAddress client, String dn) {
+        if (clients != null && client != null && !clients.tryAcquire(client)) {
+            return ResultCode.BUSY;
+        }
+        // Anonymous binds have no DN to limit
+        if (dns != null && dn != null && !dn.isEmpty() && !dns.tryAcquire(DirectoryNames.normalize(dn))) {
+            if (clients != null && client != null) {
+                clients.release(client);
+            }
+            return ResultCode.UNWILLING_TO_PERFORM;
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of binds refused because their client was over its limit
+     */
+    public long getClientRefusedCount() {
+        return clients == null ? 0 : clients.getRefusedCount();
+    }
+
+    /**
+     * @return The number of binds refused because their DN was over its limit
+     */
+    public long getDnRefusedCount() {
+        return dns == null ? 0 : dns.getRefusedCount();
+    }
+
+    @Override
+    public String toString() {
+        return "BindRateLimiter{clients=" + clients + ", dns=" + dns + '}';
+    }
+}
@@ -0,0 +1,141 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * This class wraps an {@link AuthBackend} with a {@link BindCache},
+ * answering repeated binds of the same credentials from the cache and
+ * only calling the wrapped backend on a miss. Searches are passed
+ * through unchanged.
+ *
+ * If the cache keeps stale outcomes, they are used when the backend is
+ * in trouble: while the circuit breaker is open a stale outcome is
+ * answered at once and revalidated in the background, and a bind whose
+ * backend call fails is answered from a stale outcome if there is one.
+ */
+public final class CachingAuthBackend implements AuthBackend {
+
+    private final AuthBackend backend;
+    private final BindCache bindCache;
+    private final CircuitBreakerAuthBackend circuitBreaker;
+
+    /**
+     * @param backend The backend to call on a cache miss
+     * @param bindCache The cache of recent bind outcomes
+     */
+    public CachingAuthBackend(AuthBackend backend, BindCache bindCache) {
+        this(backend, bindCache, null);
+    }
+
+    /**
+     * @param backend The backend to call on a cache miss
+     * @param bindCache The cache of recent bind outcomes
+     * @param circuitBreaker The breaker guarding the backend, or null
+     */
+    public CachingAuthBackend(AuthBackend backend, BindCache bindCache, CircuitBreakerAuthBackend circuitBreaker) {
+        this.backend = backend;
+        this.bindCache = bindCache;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> authenticate(final String dn, final String password) {
+
+        Boolean cached = bindCache.get(dn, password);
+        if (cached != null) {
+            return CompletedFutures.of(cached);
+        }
+
+        // Outcomes of calls that began before an invalidation are not cached
+        final long generation = bindCache.generation();
+
+        if (circuitBreaker != null && circuitBreaker.isOpen()) {
+            Boolean stale = bindCache.getStale(dn, password);
+            if (stale != null) {
+                // Refreshed once the backend answers, which may be the
+                // probe that closes the breaker again
+                backend.authenticate(dn, password).thenAccept(valid -> bindCache.put(dn, password, valid, generation));
+                return CompletedFutures.of(stale);
+            }
+        }
+
+        CompletableFuture<Boolean> result = backend.authenticate(dn, password);
+        result.thenAccept(valid -> bindCache.put(dn, password, valid, generation));
+        if (result.isDone() && !result.isCompletedExceptionally()) {
+            return result;
+        }
+        return result.exceptionally(failure -> {
+            Boolean stale = bindCache.getStale(dn, password);
+            if (stale == null) {
+                throw failure instanceof CompletionException
+                        ? (CompletionException) failure : new CompletionException(failure);
+            }
+            return stale;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+        return backend.search(baseDN, filter);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(String baseDN, Filter filter, int maxEntries, long timeLimitMillis) {
+        return backend.search(baseDN, filter, maxEntries, timeLimitMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(String baseDN, Filter filter, long timeLimitMillis) {
+        return backend.stream(baseDN, filter, timeLimitMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(String baseDN, SearchScope scope, Filter filter,
+                                                  long timeLimitMillis) {
+        return backend.stream(baseDN, scope, filter, timeLimitMillis);
+    }
+
+    /**
+     * @return The cache of recent bind outcomes, e.g. to invalidate
+     *         entries when the backend's user store changes
+     */
+    public BindCache getBindCache() {
+        return bindCache;
+    }
+
+    /**
+     * Close the wrapped backend
+     */
+    @Override
+    public void close() {
+        backend.close();
+    }
+
+    /**
+     * @return The wrapped backend
+     */
+    public AuthBackend getBackend() {
+        return backend;
+    }
+}
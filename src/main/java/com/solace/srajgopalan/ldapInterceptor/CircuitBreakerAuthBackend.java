@@ -0,0 +1,321 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * This class wraps an {@link AuthBackend} with a circuit breaker, so that
+ * when the backend fails or slows down, requests fail fast instead of
+ * piling up behind it.
+ *
+ * Every call is given a timeout. A call that fails, times out or takes
+ * longer than the timeout to return counts as a failure. Requests the
+ * backend declines, such as BUSY answers from a full worker pool or
+ * UNWILLING_TO_PERFORM for an unsupported filter, do not; of the other
+ * LDAP result codes only UNAVAILABLE, OTHER and those that close a
+ * connection count. After failureThreshold consecutive failures the
+ * breaker opens and every call fails at once with UNAVAILABLE.
+ * Once it has been open for openMillis, the next call is let through as a
+ * probe: if it succeeds the breaker closes, otherwise it opens again.
+ *
+ * A backend that answers on the calling thread cannot be interrupted, so
+ * for such backends the timeout only decides whether a call was too slow.
+ * With execution=pool or execution=virtual every call can time out; a
+ * cursor the backend opens after its call has timed out is closed.
+ */
+public final class CircuitBreakerAuthBackend implements AuthBackend {
+
+    /**
+     * The states of the breaker
+     */
+    public enum Phase {
+        /**
+         * Calls go to the backend
+         */
+        CLOSED,
+
+        /**
+         * Calls fail at once
+         */
+        OPEN,
+
+        /**
+         * A single probe call is in flight; other calls fail at once
+         */
+        HALF_OPEN
+    }
+
+    // The phase of the breaker and when it was entered
+    private static final class State {
+        final Phase phase;
+        final long sinceNanos;
+
+        State(Phase phase, long sinceNanos) {
+            this.phase = phase;
+            this.sinceNanos = sinceNanos;
+        }
+    }
+
+    private static final State CLOSED = new State(Phase.CLOSED, 0L);
+
+    private final AuthBackend backend;
+    private final long timeoutNanos;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private final AtomicReference<State> state = new AtomicReference<State>(CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * @param backend The backend to protect
+     * @param timeoutMillis How long a call may take before it fails
+     * @param failureThreshold The consecutive failures that open the breaker
+     * @param openMillis How long the breaker stays open before a probe
+     */
+    public CircuitBreakerAuthBackend(AuthBackend backend, long timeoutMillis, int failureThreshold, long openMillis) {
+        this.backend = backend;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "CircuitBreaker-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> authenticate(final String dn, final String password) {
+        return call(() -> backend.authenticate(dn, password));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(final String baseDN, final Filter filter) {
+        return search(baseDN, filter, 0, 0L);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(final String baseDN, final Filter filter,
+                                                 final int maxEntries, final long timeLimitMillis) {
+        return call(() -> backend.search(baseDN, filter, maxEntries, timeLimitMillis));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only opening the cursor is subject to the timeout, not walking it.
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(final String baseDN, final Filter filter,
+                                                 final long timeLimitMillis) {
+        return stream(baseDN, SearchScope.SUB, filter, timeLimitMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only opening the cursor is subject to the timeout, not walking it.
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(final String baseDN, final SearchScope scope,
+                                                 final Filter filter, final long timeLimitMillis) {
+        return call(() -> backend.stream(baseDN, scope, filter, timeLimitMillis));
+    }
+
+    private <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> backendCall) {
+        final long start = System.nanoTime();
+        final boolean probe;
+        State current = state.get();
+        if (current.phase == Phase.CLOSED) {
+            probe = false;
+        } else if (current.phase == Phase.OPEN && start - current.sinceNanos >= openNanos
+                && state.compareAndSet(current, new State(Phase.HALF_OPEN, start))) {
+            probe = true;
+        } else {
+            rejected.increment();
+            CompletableFuture<T> unavailable = new CompletableFuture<T>();
+            unavailable.completeExceptionally(new LDAPException(ResultCode.UNAVAILABLE,
+                    "The backend is unavailable, try again later"));
+            return unavailable;
+        }
+
+        CompletableFuture<T> result;
+        try {
+            result = backendCall.get();
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<T>();
+            result.completeExceptionally(e);
+        }
+
+        if (result.isDone()) {
+            // Answered on this thread; too slow counts against the backend
+            // even though the answer is still used
+            boolean failed = isFailure(result) || System.nanoTime() - start > timeoutNanos;
+            record(probe, failed);
+            return result;
+        }
+
+        // Whichever of the answer and the timeout comes first is recorded
+        // before the caller sees it
+        final AtomicBoolean settled = new AtomicBoolean();
+        final CompletableFuture<T> timed = new CompletableFuture<T>();
+        final ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (settled.compareAndSet(false, true)) {
+                timeouts.increment();
+                record(probe, true);
+                timed.completeExceptionally(new LDAPException(ResultCode.UNAVAILABLE,
+                        "The backend did not answer in time"));
+            }
+        }, timeoutNanos, TimeUnit.NANOSECONDS);
+
+        result.whenComplete((value, failure) -> {
+            timeout.cancel(false);
+            if (settled.compareAndSet(false, true)) {
+                record(probe, failure != null && isFailure(failure));
+                if (failure != null) {
+                    timed.completeExceptionally(failure);
+                } else {
+                    timed.complete(value);
+                }
+            } else if (value instanceof SearchCursor) {
+                // Nobody is left to walk a cursor opened after the timeout
+                ((SearchCursor) value).close();
+            }
+        });
+        return timed;
+    }
+
+    /*
+     * Whether a completed call counts as a failure of the backend
+     */
+    private static boolean isFailure(CompletableFuture<?> result) {
+        if (!result.isCompletedExceptionally()) {
+            return false;
+        }
+        try {
+            result.join();
+            return false;
+        } catch (CompletionException e) {
+            return isFailure(e);
+        }
+    }
+
+    private static boolean isFailure(Throwable failure) {
+        while ((failure instanceof CompletionException || failure instanceof ExecutionException)
+                && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        if (!(failure instanceof LDAPException)) {
+            return true;
+        }
+        // Requests the backend declined, such as an unsupported filter or
+        // a full worker pool, say nothing about its health
+        ResultCode resultCode = ((LDAPException) failure).getResultCode();
+        if (resultCode == ResultCode.BUSY || resultCode == ResultCode.UNWILLING_TO_PERFORM) {
+            return false;
+        }
+        return resultCode == ResultCode.UNAVAILABLE || resultCode == ResultCode.OTHER
+                || !ResultCode.isConnectionUsable(resultCode);
+    }
+
+    private void record(boolean probe, boolean failed) {
+        if (probe) {
+            // The probe decides whether the breaker closes or opens again
+            if (failed) {
+                state.set(new State(Phase.OPEN, System.nanoTime()));
+            } else {
+                consecutiveFailures.set(0);
+                state.set(CLOSED);
+            }
+        } else if (!failed) {
+            consecutiveFailures.set(0);
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            // Only a closed breaker opens; calls that were in flight when it
+            // opened must not extend the open period
+            if (state.compareAndSet(CLOSED, new State(Phase.OPEN, System.nanoTime()))) {
+                consecutiveFailures.set(0);
+            }
+        }
+    }
+
+    /**
+     * @return The current state of the breaker
+     */
+    public Phase getPhase() {
+        return state.get().phase;
+    }
+
+    /**
+     * @return Whether calls are currently failing at once, so callers may
+     *         answer from stale data instead
+     */
+    public boolean isOpen() {
+        return state.get().phase != Phase.CLOSED;
+    }
+
+    /**
+     * @return The number of calls failed at once while the breaker was open
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return The number of calls that did not complete in time
+     */
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Stop the timer and close the wrapped backend
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        backend.close();
+    }
+
+    /**
+     * @return The wrapped backend
+     */
+    public AuthBackend getBackend() {
+        return backend;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreakerAuthBackend{phase=" + getPhase() + ", rejected=" + getRejectedCount() +
+                ", timeouts=" + getTimeoutCount() + '}';
+    }
+}
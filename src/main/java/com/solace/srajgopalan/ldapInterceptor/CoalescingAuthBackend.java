@@ -0,0 +1,342 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class wraps an {@link AuthBackend} so that concurrent identical
+ * calls share a single backend call. While an authenticate call for a
+ * DN and password is in flight, further calls with the same credentials
+ * are given the same future instead of calling the backend again; the
+ * same applies to searches with the same base DN and filter.
+ *
+ * When a router restarts, thousands of clients may bind with the same
+ * service account at the same instant, before the first of them has
+ * reached the {@link BindCache}. Coalescing turns that storm into one
+ * backend call per distinct lookup. It sits below the caches, so only
+ * cache misses are coalesced.
+ *
+ * Credentials are keyed like the bind cache, on the normalized DN and a
+ * salted hash of the password. The entries of a coalesced search are
+ * shared by every caller and must not be modified.
+ *
+ * A streamed search is walked by its own caller, as a cursor cannot be
+ * shared. While it is being walked, identical streamed searches made at
+ * the same time share a single completed search instead, each walking
+ * its entries with a cursor of its own. That search asks the backend for
+ * at most maxCoalescedEntries entries plus one, so a shared result never
+ * holds more than that; if there are more, each caller streams on its
+ * own. A cursor parked between the pages of a paged search no longer
+ * counts as being walked. Only subtree searches are coalesced; base and
+ * one-level searches, typically of a single entry, go to the backend.
+ *
+ * When the directory changes, calls already in flight may answer from
+ * the records as they were, so calls made after the change no longer
+ * share them.
+ */
+public final class CoalescingAuthBackend implements AuthBackend, DirectoryChangeListener {
+
+    private final AuthBackend backend;
+    private final int maxCoalescedEntries;
+    private final byte[] salt = CredentialKey.newSalt();
+
+    private final ConcurrentHashMap<CredentialKey, CompletableFuture<Boolean>> authentications =
+            new ConcurrentHashMap<CredentialKey, CompletableFuture<Boolean>>();
+    private final ConcurrentHashMap<String, CompletableFuture<List<Entry>>> searches =
+            new ConcurrentHashMap<String, CompletableFuture<List<Entry>>>();
+    private final Set<String> streams = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder coalescedAuthentications = new LongAdder();
+    private final LongAdder coalescedSearches = new LongAdder();
+
+    /**
+     * @param backend The backend to call once per distinct in-flight lookup
+     */
+    public CoalescingAuthBackend(AuthBackend backend) {
+        this(backend, 1000);
+    }
+
+    /**
+     * @param backend The backend to call once per distinct in-flight lookup
+     * @param maxCoalescedEntries The most entries of a streamed search that
+     *                            identical streamed searches may share
+     */
+    public CoalescingAuthBackend(AuthBackend backend, int maxCoalescedEntries) {
+        this.backend = backend;
+        this.maxCoalescedEntries = maxCoalescedEntries;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> authenticate(final String dn, final String password) {
+
+        final CredentialKey key = CredentialKey.of(salt, dn, password);
+        final CompletableFuture<Boolean> shared = new CompletableFuture<Boolean>();
+
+        CompletableFuture<Boolean> inFlight = authentications.putIfAbsent(key, shared);
+        if (inFlight != null) {
+            coalescedAuthentications.increment();
+            return inFlight;
+        }
+
+        CompletableFuture<Boolean> result;
+        try {
+            result = backend.authenticate(dn, password);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<Boolean>();
+            result.completeExceptionally(e);
+        }
+
+        result.whenComplete((valid, failure) -> {
+            // Complete before removing, so callers arriving meanwhile
+            // still share this outcome rather than calling the backend
+            if (failure != null) {
+                shared.completeExceptionally(failure);
+            } else {
+                shared.complete(valid);
+            }
+            authentications.remove(key, shared);
+        });
+
+        return shared;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(final String baseDN, final Filter filter) {
+        return search(baseDN, filter, 0, 0L);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only searches with the same limits share a backend call.
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(final String baseDN, final Filter filter,
+                                                 final int maxEntries, final long timeLimitMillis) {
+
+        final String key = key(baseDN, filter, maxEntries, timeLimitMillis);
+        final CompletableFuture<List<Entry>> shared = new CompletableFuture<List<Entry>>();
+
+        CompletableFuture<List<Entry>> inFlight = searches.putIfAbsent(key, shared);
+        if (inFlight != null) {
+            coalescedSearches.increment();
+            return inFlight;
+        }
+
+        CompletableFuture<List<Entry>> result;
+        try {
+            result = backend.search(baseDN, filter, maxEntries, timeLimitMillis);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<List<Entry>>();
+            result.completeExceptionally(e);
+        }
+
+        result.whenComplete((entries, failure) -> {
+            if (failure != null) {
+                shared.completeExceptionally(failure);
+            } else {
+                shared.complete(entries);
+            }
+            searches.remove(key, shared);
+        });
+
+        return shared;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A cursor can only be walked by one caller. The first of identical
+     * streamed searches streams from the backend; those made while its
+     * cursor is being walked share one completed search of at most
+     * maxCoalescedEntries entries, each with its own cursor over the
+     * shared entries, or stream on their own if there are more.
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(final String baseDN, final SearchScope scope,
+                                                 final Filter filter, final long timeLimitMillis) {
+
+        if (scope != SearchScope.SUB) {
+            try {
+                return backend.stream(baseDN, scope, filter, timeLimitMillis);
+            } catch (RuntimeException e) {
+                CompletableFuture<SearchCursor> failed = new CompletableFuture<SearchCursor>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+        return stream(baseDN, filter, timeLimitMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A cursor can only be walked by one caller. The first of identical
+     * streamed searches streams from the backend; those made while its
+     * cursor is being walked share one completed search of at most
+     * maxCoalescedEntries entries, each with its own cursor over the
+     * shared entries, or stream on their own if there are more.
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(final String baseDN, final Filter filter,
+                                                 final long timeLimitMillis) {
+
+        final String key = key(baseDN, filter, 0, timeLimitMillis);
+        if (!streams.add(key)) {
+            return search(baseDN, filter, maxCoalescedEntries + 1, timeLimitMillis).thenCompose(entries ->
+                    entries.size() <= maxCoalescedEntries
+                            ? CompletableFuture.completedFuture(SearchCursor.of(entries))
+                            : streamAlone(baseDN, filter, timeLimitMillis));
+        }
+
+        CompletableFuture<SearchCursor> result;
+        try {
+            result = backend.stream(baseDN, filter, timeLimitMillis);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<SearchCursor>();
+            result.completeExceptionally(e);
+        }
+
+        return result.handle((cursor, failure) -> {
+            if (failure != null) {
+                streams.remove(key);
+                throw failure instanceof CompletionException
+                        ? (CompletionException) failure : new CompletionException(failure);
+            }
+            return new StreamingCursor(cursor, key);
+        });
+    }
+
+    /*
+     * Stream from the backend without coalescing, for a search with too
+     * many entries to share
+     */
+    private CompletableFuture<SearchCursor> streamAlone(String baseDN, Filter filter, long timeLimitMillis) {
+        try {
+            return backend.stream(baseDN, filter, timeLimitMillis);
+        } catch (RuntimeException e) {
+            CompletableFuture<SearchCursor> failed = new CompletableFuture<SearchCursor>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /*
+     * The cursor of the streamed search that identical streamed searches
+     * are coalesced behind, until it is parked or closed
+     */
+    private final class StreamingCursor implements SearchCursor {
+        private final SearchCursor cursor;
+        private final String key;
+        // Closed or parked from other threads, e.g. by PagedSearches.expire
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        StreamingCursor(SearchCursor cursor, String key) {
+            this.cursor = cursor;
+            this.key = key;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        @Override
+        public Entry next() {
+            return cursor.next();
+        }
+
+        @Override
+        public void setTimeLimit(long timeLimitMillis) {
+            cursor.setTimeLimit(timeLimitMillis);
+        }
+
+        @Override
+        public void park() {
+            release();
+            cursor.park();
+        }
+
+        @Override
+        public void close() {
+            release();
+            cursor.close();
+        }
+
+        // Removes the key once, so a newer identical search keeps its own
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                streams.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Stop sharing the calls in flight with later callers. Their callers
+     * still get their outcomes.
+     *
+     * @param normalizedDNs The DNs that changed, unused
+     */
+    @Override
+    public void directoryChanged(Collection<String> normalizedDNs) {
+        authentications.clear();
+        searches.clear();
+    }
+
+    private static String key(String baseDN, Filter filter, int maxEntries, long timeLimitMillis) {
+        return DirectoryNames.normalize(baseDN) + '\u0000' + filter.toNormalizedString()
+                + '\u0000' + maxEntries + '\u0000' + timeLimitMillis;
+    }
+
+    /**
+     * @return The number of authenticate calls that shared an in-flight backend call
+     */
+    public long getCoalescedAuthentications() {
+        return coalescedAuthentications.sum();
+    }
+
+    /**
+     * @return The number of searches that shared an in-flight backend call
+     */
+    public long getCoalescedSearches() {
+        return coalescedSearches.sum();
+    }
+
+    /**
+     * @return The number of distinct backend calls in flight
+     */
+    public int getInFlight() {
+        return authentications.size() + searches.size() + streams.size();
+    }
+
+    /**
+     * Close the wrapped backend
+     */
+    @Override
+    public void close() {
+        backend.close();
+    }
+
+    /**
+     * @return The wrapped backend
+     */
+    public AuthBackend getBackend() {
+        return backend;
+    }
+}
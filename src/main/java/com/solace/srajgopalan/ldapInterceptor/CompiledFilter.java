@@ -0,0 +1,696 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.util.StaticUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * This class compiles an LDAP search filter into a predicate over the
+ * user records of a {@link Directory}, and plans how to find the records
+ * it may match.
+ *
+ * Each record is seen as an entry with the attributes returned to a
+ * search: objectClass, the attribute of the leading RDN (cn or uid) and
+ * memberOf. The predicate reads them from the record directly, without
+ * building an LDAP entry. Equality on cn, uid and memberOf is answered
+ * from the hash indexes, substrings with a leading part on cn and uid
+ * from the sorted index, AND from its most selective indexed part and OR
+ * from the union of its parts if every part is indexed. Any other filter
+ * walks every record, in parallel if asked. Extensible match filters are
+ * refused rather than silently matching nothing.
+ *
+ * A compiled filter does not depend on a snapshot, so it stays valid
+ * across reloads of the user file.
+ */
+final class CompiledFilter {
+
+    /*
+     * The object classes of every user record
+     */
+    static final String[] OBJECT_CLASSES = {"top", "inetOrgPerson"};
+
+    // Directories smaller than this are never scanned in parallel
+    private static final int PARALLEL_SCAN_THRESHOLD = 10000;
+
+    private final Node root;
+
+    private CompiledFilter(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Compile a search filter
+     *
+     * @param filter The filter
+     *
+     * @return The compiled filter
+     *
+     * @throws LDAPException With UNWILLING_TO_PERFORM if the filter holds
+     *         an extensible match, which is not supported
+     */
+    static CompiledFilter compile(Filter filter) throws LDAPException {
+        return new CompiledFilter(node(filter));
+    }
+
+    /**
+     * Find the entries of the records that match the filter, stopping
+     * early at a number of entries or a deadline
+     *
+     * @param d The directory snapshot
+     * @param parallelScan Whether a filter that cannot use an index may
+     *                     walk the records on several threads
+     * @param maxEntries The number of entries to stop at, or 0 for no limit
+     * @param timeLimitMillis How long the search may take, or 0 for no limit
+     *
+     * @return The matching entries
+     *
+     * @throws LDAPException With TIME_LIMIT_EXCEEDED if the search ran out of time
+     */
+    List<Entry> select(final Directory d, boolean parallelScan, int maxEntries, long timeLimitMillis)
+            throws LDAPException {
+
+        final long deadline = timeLimitMillis > 0
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeLimitMillis) : 0L;
+        final int limit = maxEntries > 0 ? maxEntries : Integer.MAX_VALUE;
+
+        Collection<MockAuthSystemEntry> candidates = root instanceof Indexed ? ((Indexed) root).lookup(d) : null;
+
+        if (candidates == null && parallelScan && d.size() >= PARALLEL_SCAN_THRESHOLD) {
+            try {
+                return d.records().parallelStream()
+                        .unordered()
+                        .filter(m -> {
+                            checkDeadline(deadline);
+                            return root.matches(d, new Candidate(d, m));
+                        })
+                        .limit(limit)
+                        .map(d::entry)
+                        .collect(Collectors.toList());
+            } catch (CompletionException e) {
+                throw searchFailure(e);
+            }
+        }
+
+        if (candidates == null) {
+            candidates = d.records();
+        } else if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> entries = new ArrayList<Entry>(Math.min(candidates.size(), Math.min(limit, 1024)));
+        Cursor cursor = new Cursor(d, candidates, deadline);
+        try {
+            while (entries.size() < limit && cursor.hasNext()) {
+                entries.add(cursor.next());
+            }
+        } catch (CompletionException e) {
+            throw searchFailure(e);
+        }
+        return entries;
+    }
+
+    /**
+     * Open a cursor over the entries of the records that match the
+     * filter, which finds them one at a time as they are read. A filter
+     * that cannot use an index is instead scanned in parallel first, if
+     * asked and the directory is large enough, and the cursor walks the
+     * entries it found.
+     *
+     * @param d The directory snapshot, which the cursor keeps walking
+     *          even if the user file is reloaded meanwhile
+     * @param parallelScan Whether a filter that cannot use an index may
+     *                     walk the records on several threads
+     * @param timeLimitMillis How long the cursor may look for entries,
+     *                        or 0 for no limit
+     *
+     * @return The cursor
+     *
+     * @throws LDAPException With TIME_LIMIT_EXCEEDED if a parallel scan
+     *         ran out of time
+     */
+    SearchCursor cursor(Directory d, boolean parallelScan, long timeLimitMillis) throws LDAPException {
+        if (!(root instanceof Indexed) && parallelScan && d.size() >= PARALLEL_SCAN_THRESHOLD) {
+            return SearchCursor.of(select(d, true, 0, timeLimitMillis));
+        }
+        Collection<MockAuthSystemEntry> candidates = root instanceof Indexed ? ((Indexed) root).lookup(d) : d.records();
+        Cursor cursor = new Cursor(d, candidates, 0L);
+        cursor.setTimeLimit(timeLimitMillis);
+        return cursor;
+    }
+
+    /*
+     * Walks the candidate records of a directory snapshot, matching
+     * each against the filter
+     */
+    private final class Cursor implements SearchCursor {
+        private final Directory d;
+        private final Iterator<MockAuthSystemEntry> records;
+        private MockAuthSystemEntry next;
+        private long deadline;
+        private int checked;
+
+        Cursor(Directory d, Collection<MockAuthSystemEntry> candidates, long deadline) {
+            this.d = d;
+            this.records = candidates.iterator();
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && records.hasNext()) {
+                MockAuthSystemEntry m = records.next();
+                // Reading the clock for every record would cost more than most matches
+                if (deadline != 0L && (++checked & 0xff) == 0 && System.nanoTime() - deadline > 0) {
+                    throw new CompletionException(timeLimitExceeded());
+                }
+                if (root.matches(d, new Candidate(d, m))) {
+                    next = m;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            MockAuthSystemEntry m = next;
+            next = null;
+            return d.entry(m);
+        }
+
+        @Override
+        public void setTimeLimit(long timeLimitMillis) {
+            deadline = timeLimitMillis > 0
+                    ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeLimitMillis) : 0L;
+            checked = 0;
+        }
+    }
+
+    private static void checkDeadline(long deadline) {
+        if (deadline != 0L && System.nanoTime() - deadline > 0) {
+            throw new CompletionException(timeLimitExceeded());
+        }
+    }
+
+    /*
+     * The LDAP failure a search was stopped with. The fork/join pool may
+     * wrap the exception thrown by a parallel scan again, so the causes
+     * are followed; any other failure is rethrown as is.
+     */
+    private static LDAPException searchFailure(CompletionException e) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof LDAPException) {
+                return (LDAPException) cause;
+            }
+        }
+        throw e;
+    }
+
+    private static LDAPException timeLimitExceeded() {
+        return new LDAPException(ResultCode.TIME_LIMIT_EXCEEDED,
+                "The search did not complete within its time limit");
+    }
+
+    /**
+     * @return Whether the filter is answered from an index rather than by
+     *         walking every record
+     */
+    boolean isIndexed() {
+        return root instanceof Indexed;
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    /*
+     * A user record being matched, with its leading RDN split on first use
+     * and its groups those of the directory it was read from
+     */
+    private static final class Candidate {
+        final Directory directory;
+        final MockAuthSystemEntry record;
+        private String[] rdn;
+
+        Candidate(Directory directory, MockAuthSystemEntry record) {
+            this.directory = directory;
+            this.record = record;
+        }
+
+        /**
+         * @param attribute A lower-cased attribute name
+         *
+         * @return The values of the attribute, or an empty array
+         */
+        String[] values(String attribute) {
+            switch (attribute) {
+                case "objectclass":
+                    return OBJECT_CLASSES;
+                case "memberof":
+                    return directory.memberOf(record);
+                default:
+                    if (rdn == null) {
+                        rdn = DirectoryNames.leadingRdn(record.getDn());
+                        if (rdn == null) {
+                            rdn = StaticUtils.NO_STRINGS;
+                        }
+                    }
+                    return rdn.length == 2 && rdn[0].equals(attribute)
+                            ? new String[] {rdn[1]} : StaticUtils.NO_STRINGS;
+            }
+        }
+    }
+
+    /*
+     * A compiled part of a filter
+     */
+    private abstract static class Node {
+
+        abstract boolean matches(Directory d, Candidate c);
+    }
+
+    /*
+     * A compiled part of a filter whose candidate records can be found
+     * from an index. Whether a part is indexed depends only on the filter,
+     * so it is decided when the filter is compiled.
+     */
+    private interface Indexed {
+
+        /**
+         * @return An upper bound on the number of records the index
+         *         returns for this part
+         */
+        int estimate(Directory d);
+
+        /**
+         * @return The records that may match, from the index
+         */
+        Collection<MockAuthSystemEntry> lookup(Directory d);
+    }
+
+    private static Node node(Filter filter) throws LDAPException {
+        switch (filter.getFilterType()) {
+            case Filter.FILTER_TYPE_AND: {
+                Node[] parts = nodes(filter.getComponents());
+                for (Node part : parts) {
+                    if (part instanceof Indexed) {
+                        return new IndexedAnd(parts, filter);
+                    }
+                }
+                return new And(parts, filter);
+            }
+            case Filter.FILTER_TYPE_OR: {
+                Node[] parts = nodes(filter.getComponents());
+                for (Node part : parts) {
+                    if (!(part instanceof Indexed)) {
+                        return new Or(parts, filter);
+                    }
+                }
+                return new IndexedOr(parts, filter);
+            }
+            case Filter.FILTER_TYPE_NOT:
+                return new Not(node(filter.getNOTComponent()));
+            case Filter.FILTER_TYPE_EQUALITY:
+            case Filter.FILTER_TYPE_APPROXIMATE_MATCH: {
+                String attribute = attribute(filter);
+                return isRdnAttribute(attribute) || attribute.equals("memberof")
+                        ? new IndexedEquality(attribute, filter.getAssertionValue(), filter)
+                        : new Equality(attribute, filter.getAssertionValue(), filter);
+            }
+            case Filter.FILTER_TYPE_SUBSTRING: {
+                String attribute = attribute(filter);
+                String initial = filter.getSubInitialString();
+                return initial != null && !initial.isEmpty() && isRdnAttribute(attribute)
+                        ? new IndexedSubstring(attribute, filter)
+                        : new Substring(attribute, filter);
+            }
+            case Filter.FILTER_TYPE_PRESENCE:
+                return new Presence(attribute(filter), filter);
+            case Filter.FILTER_TYPE_GREATER_OR_EQUAL:
+                return new Ordering(attribute(filter), filter.getAssertionValue(), true, filter);
+            case Filter.FILTER_TYPE_LESS_OR_EQUAL:
+                return new Ordering(attribute(filter), filter.getAssertionValue(), false, filter);
+            default:
+                throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+                        "Extensible match filters are not supported: " + filter);
+        }
+    }
+
+    private static Node[] nodes(Filter[] filters) throws LDAPException {
+        Node[] nodes = new Node[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            nodes[i] = node(filters[i]);
+        }
+        return nodes;
+    }
+
+    /*
+     * The lower-cased attribute name without options
+     */
+    private static String attribute(Filter filter) {
+        String name = filter.getAttributeName();
+        int semicolon = name.indexOf(';');
+        return StaticUtils.toLowerCase(semicolon < 0 ? name : name.substring(0, semicolon));
+    }
+
+    private static boolean isRdnAttribute(String attribute) {
+        return attribute.equals("cn") || attribute.equals("uid");
+    }
+
+    /*
+     * Normalize an attribute value for comparison: DNs for memberOf and
+     * case-insensitive strings otherwise
+     */
+    private static String normalize(Directory d, String attribute, String value) {
+        if (attribute.equals("memberof")) {
+            return d == null ? DirectoryNames.normalize(value) : d.normalizedGroup(value);
+        }
+        return StaticUtils.toLowerCase(value);
+    }
+
+    private static class And extends Node {
+        final Node[] parts;
+        private final Filter filter;
+
+        And(Node[] parts, Filter filter) {
+            this.parts = parts;
+            this.filter = filter;
+        }
+
+        @Override
+        boolean matches(Directory d, Candidate c) {
+            for (Node part : parts) {
+                if (!part.matches(d, c)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "and" + filter;
+        }
+    }
+
+    /*
+     * An AND with at least one indexed part, answered from the index of
+     * its most selective indexed part
+     */
+    private static final class IndexedAnd extends And implements Indexed {
+
+        IndexedAnd(Node[] parts, Filter filter) {
+            super(parts, filter);
+        }
+
+        @Override
+        public int estimate(Directory d) {
+            return ((Indexed) best(d)).estimate(d);
+        }
+
+        @Override
+        public Collection<MockAuthSystemEntry> lookup(Directory d) {
+            return ((Indexed) best(d)).lookup(d);
+        }
+
+        private Node best(Directory d) {
+            Node best = null;
+            int bestEstimate = 0;
+            for (Node part : parts) {
+                if (part instanceof Indexed) {
+                    int estimate = ((Indexed) part).estimate(d);
+                    if (best == null || estimate < bestEstimate) {
+                        best = part;
+                        bestEstimate = estimate;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+    private static class Or extends Node {
+        final Node[] parts;
+        private final Filter filter;
+
+        Or(Node[] parts, Filter filter) {
+            this.parts = parts;
+            this.filter = filter;
+        }
+
+        @Override
+        boolean matches(Directory d, Candidate c) {
+            for (Node part : parts) {
+                if (part.matches(d, c)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "or" + filter;
+        }
+    }
+
+    /*
+     * An OR whose parts are all indexed, answered from the union of
+     * their indexes
+     */
+    private static final class IndexedOr extends Or implements Indexed {
+
+        IndexedOr(Node[] parts, Filter filter) {
+            super(parts, filter);
+        }
+
+        @Override
+        public int estimate(Directory d) {
+            int total = 0;
+            for (Node part : parts) {
+                total += ((Indexed) part).estimate(d);
+            }
+            return total;
+        }
+
+        @Override
+        public Collection<MockAuthSystemEntry> lookup(Directory d) {
+            // A record may be found through several parts. Records of a
+            // mapped directory are equal when they are the same user
+            Set<MockAuthSystemEntry> union = new HashSet<MockAuthSystemEntry>();
+            for (Node part : parts) {
+                union.addAll(((Indexed) part).lookup(d));
+            }
+            return union;
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node part;
+
+        Not(Node part) {
+            this.part = part;
+        }
+
+        @Override
+        boolean matches(Directory d, Candidate c) {
+            return !part.matches(d, c);
+        }
+
+        @Override
+        public String toString() {
+            return "not(" + part + ")";
+        }
+    }
+
+    private static class Equality extends Node {
+        final String attribute;
+        final String value;
+        final String lowerCaseValue;
+        private final Filter filter;
+
+        Equality(String attribute, String value, Filter filter) {
+            this.attribute = attribute;
+            this.value = normalize(null, attribute, value);
+            this.lowerCaseValue = StaticUtils.toLowerCase(value);
+            this.filter = filter;
+        }
+
+        @Override
+        boolean matches(Directory d, Candidate c) {
+            for (String v : c.values(attribute)) {
+                if (value.equals(normalize(d, attribute, v))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return (this instanceof Indexed ? "index" : "scan") + filter;
+        }
+    }
+
+    /*
+     * Equality on cn, uid or memberOf, answered from the hash indexes
+     */
+    private static final class IndexedEquality extends Equality implements Indexed {
+
+        IndexedEquality(String attribute, String value, Filter filter) {
+            super(attribute, value, filter);
+        }
+
+        @Override
+        public int estimate(Directory d) {
+            return isRdnAttribute(attribute) ? d.countCn(lowerCaseValue) : d.countGroup(value);
+        }
+
+        @Override
+        public Collection<MockAuthSystemEntry> lookup(Directory d) {
+            MockAuthSystemEntry[] entries = isRdnAttribute(attribute) ? d.byCn(lowerCaseValue) : d.byGroup(value);
+            return entries == null ? Collections.<MockAuthSystemEntry>emptyList() : Arrays.asList(entries);
+        }
+    }
+
+    private static class Substring extends Node {
+        private final String attribute;
+        final String initial;
+        private final String[] any;
+        private final String last;
+        private final Filter filter;
+
+        Substring(String attribute, Filter filter) {
+            this.attribute = attribute;
+            this.initial = filter.getSubInitialString() == null ? null : StaticUtils.toLowerCase(filter.getSubInitialString());
+            this.any = filter.getSubAnyStrings().clone();
+            for (int i = 0; i < any.length; i++) {
+                any[i] = StaticUtils.toLowerCase(any[i]);
+            }
+            this.last = filter.getSubFinalString() == null ? null : StaticUtils.toLowerCase(filter.getSubFinalString());
+            this.filter = filter;
+        }
+
+        @Override
+        boolean matches(Directory d, Candidate c) {
+            for (String v : c.values(attribute)) {
+                if (matches(StaticUtils.toLowerCase(v))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matches(String v) {
+            int position = 0;
+            if (initial != null) {
+                if (!v.startsWith(initial)) {
+                    return false;
+                }
+                position = initial.length();
+            }
+            for (String s : any) {
+                int i = v.indexOf(s, position);
+                if (i < 0) {
+                    return false;
+                }
+                position = i + s.length();
+            }
+            return last == null || (v.endsWith(last) && v.length() - last.length() >= position);
+        }
+
+        @Override
+        public String toString() {
+            return (this instanceof Indexed ? "prefix" : "scan") + filter;
+        }
+    }
+
+    /*
+     * A substring with a leading part on cn or uid, answered from the
+     * sorted index
+     */
+    private static final class IndexedSubstring extends Substring implements Indexed {
+
+        IndexedSubstring(String attribute, Filter filter) {
+            super(attribute, filter);
+        }
+
+        @Override
+        public int estimate(Directory d) {
+            return d.countCnPrefix(initial);
+        }
+
+        @Override
+        public Collection<MockAuthSystemEntry> lookup(Directory d) {
+            return d.byCnPrefix(initial);
+        }
+    }
+
+    private static final class Presence extends Node {
+        private final String attribute;
+        private final Filter filter;
+
+        Presence(String attribute, Filter filter) {
+            this.attribute = attribute;
+            this.filter = filter;
+        }
+
+        @Override
+        boolean matches(Directory d, Candidate c) {
+            return c.values(attribute).length > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "scan" + filter;
+        }
+    }
+
+    private static final class Ordering extends Node {
+        private final String attribute;
+        private final String value;
+        private final boolean greater;
+        private final Filter filter;
+
+        Ordering(String attribute, String value, boolean greater, Filter filter) {
+            this.attribute = attribute;
+            this.value = normalize(null, attribute, value);
+            this.greater = greater;
+            this.filter = filter;
+        }
+
+        @Override
+        boolean matches(Directory d, Candidate c) {
+            for (String v : c.values(attribute)) {
+                int order = normalize(d, attribute, v).compareTo(value);
+                if (greater ? order >= 0 : order <= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "scan" + filter;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Shared futures for authenticate calls answered at once, e.g. from the
+ * bind cache. A completed future only changes if a caller obtrudes a
+ * value, which nothing in the interceptor does, so one instance per
+ * outcome serves every bind without an allocation.
+ */
+final class CompletedFutures {
+
+    private static final CompletableFuture<Boolean> VALID = CompletableFuture.completedFuture(Boolean.TRUE);
+    private static final CompletableFuture<Boolean> INVALID = CompletableFuture.completedFuture(Boolean.FALSE);
+
+    private CompletedFutures() {
+    }
+
+    /**
+     * @param valid Whether the credentials are valid
+     *
+     * @return A completed future with the outcome
+     */
+    static CompletableFuture<Boolean> of(boolean valid) {
+        return valid ? VALID : INVALID;
+    }
+}
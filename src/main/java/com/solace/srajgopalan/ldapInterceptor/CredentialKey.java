@@ -0,0 +1,78 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * A map key identifying a set of bind credentials: the normalized bind DN
+ * plus a salted SHA-256 hash of the password, so the plaintext password
+ * is never kept. The salt belongs to the map the keys are used in, so
+ * keys are not comparable across maps or restarts.
+ */
+final class CredentialKey {
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    final String dn;
+    private final byte[] credentialHash;
+    private final int hashCode;
+
+    private CredentialKey(String dn, byte[] credentialHash) {
+        this.dn = dn;
+        this.credentialHash = credentialHash;
+        this.hashCode = 31 * dn.hashCode() + Arrays.hashCode(credentialHash);
+    }
+
+    /**
+     * @return A new random salt for the keys of one map
+     */
+    static byte[] newSalt() {
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * @param salt The salt of the map the key is used in
+     * @param dn The bind DN
+     * @param password The bind password
+     *
+     * @return The key for the credentials
+     */
+    static CredentialKey of(byte[] salt, String dn, String password) {
+        String normalized = DirectoryNames.normalize(dn);
+        MessageDigest digest = DIGESTS.get();
+        digest.update(salt);
+        digest.update(password.getBytes(StandardCharsets.UTF_8));
+        return new CredentialKey(normalized, digest.digest());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CredentialKey)) {
+            return false;
+        }
+        CredentialKey k = (CredentialKey) o;
+        return dn.equals(k.dn) && MessageDigest.isEqual(credentialHash, k.credentialHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
@@ -0,0 +1,106 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class verifies passwords against hashed credentials on a fixed
+ * pool of worker threads, so the deliberately slow hashing schemes of
+ * {@link PasswordHash} never run on LDAP connection threads.
+ *
+ * The pool is sized to the number of cores and fed from a bounded queue.
+ * When the queue is full, e.g. during a credential-stuffing burst, the
+ * verification fails at once with {@link ResultCode#BUSY} instead of
+ * queueing without limit, so a burst of binds can use all of the hashing
+ * capacity but cannot delay searches or exhaust memory.
+ */
+public final class CredentialVerifier implements Closeable {
+
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param threads The number of verification threads
+     * @param queueSize The number of verifications that may wait for a thread
+     */
+    public CredentialVerifier(int threads, int queueSize) {
+
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, "CredentialVerifier-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Verify a password on the worker pool
+     *
+     * @param stored The stored, hashed credential
+     * @param password The password to check
+     *
+     * @return A future completed with whether the password matches, or
+     *         completed exceptionally with an LDAPException with result
+     *         code BUSY if too many verifications are waiting
+     */
+    public CompletableFuture<Boolean> verify(final String stored, final String password) {
+
+        final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+        final long queued = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                try {
+                    // Recorded as a flight recorder event when one is enabled
+                    Object event = RequestEvents.startPasswordVerify(queued);
+                    boolean matches = PasswordHash.matches(stored, password);
+                    RequestEvents.passwordVerified(event, matches);
+                    result.complete(matches);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            result.completeExceptionally(new LDAPException(ResultCode.BUSY,
+                    "Too many binds are waiting for password verification"));
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of verifications waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return The number of verifications rejected because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -1,21 +1,31 @@
 package com.solace.srajgopalan.ldapInterceptor;
 
 
+import com.unboundid.asn1.ASN1OctetString;
 import com.unboundid.ldap.listener.LDAPListenerClientConnection;
 import com.unboundid.ldap.listener.LDAPListenerRequestHandler;
 import com.unboundid.ldap.protocol.*;
 import com.unboundid.ldap.sdk.*;
-import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
 import com.unboundid.util.Debug;
 import com.unboundid.util.NotMutable;
 import com.unboundid.util.ThreadSafety;
 import com.unboundid.util.ThreadSafetyLevel;
 
 import java.io.Serializable;
+import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class provides a simple LDAP listener request handler
@@ -35,52 +45,333 @@ public final class CustomAuthRequestHandler
    */
   private static final long serialVersionUID = 6199105854736880833L;
 
+  /*
+   * Request tracing is logged at FINE and is off unless the level of this
+   * logger is lowered, which can be done at runtime through the standard
+   * java.util.logging:type=Logging MBean
+   */
+  private static final Logger LOG =
+      Logger.getLogger(CustomAuthRequestHandler.class.getPackage().getName());
+
+  /*
+   * The most search result entries written to the socket at once while
+   * they are streamed from a cursor
+   */
+  private static final int SEARCH_BATCH_SIZE = 64;
+
+
+  /*
+   * The canned responses to the requests the interceptor does not
+   * implement. Protocol ops are immutable, so each is shared by every
+   * request on every connection rather than built per request.
+   */
+  private static final AddResponseProtocolOp ADD_RESPONSE =
+       new AddResponseProtocolOp(ResultCode.SUCCESS.intValue(), null, "", null);
+  private static final CompareResponseProtocolOp COMPARE_RESPONSE =
+       new CompareResponseProtocolOp(ResultCode.SUCCESS.intValue(), null, "", null);
+  private static final DeleteResponseProtocolOp DELETE_RESPONSE =
+       new DeleteResponseProtocolOp(ResultCode.SUCCESS.intValue(), null, "", null);
+  private static final ExtendedResponseProtocolOp EXTENDED_RESPONSE =
+       new ExtendedResponseProtocolOp(ResultCode.SUCCESS.intValue(), null, "", null, null, null);
+  private static final ModifyResponseProtocolOp MODIFY_RESPONSE =
+       new ModifyResponseProtocolOp(ResultCode.SUCCESS.intValue(), null, "", null);
+  private static final ModifyDNResponseProtocolOp MODIFY_DN_RESPONSE =
+       new ModifyDNResponseProtocolOp(ResultCode.SUCCESS.intValue(), null, "", null);
 
-  // The protocol ops that will be used in responses.
-  private AddResponseProtocolOp addResponseProtocolOp;
-  private BindResponseProtocolOp bindResponseProtocolOp;
-  private CompareResponseProtocolOp compareResponseProtocolOp;
-  private DeleteResponseProtocolOp deleteResponseProtocolOp;
-  private ExtendedResponseProtocolOp extendedResponseProtocolOp;
-  private ModifyResponseProtocolOp modifyResponseProtocolOp;
-  private ModifyDNResponseProtocolOp modifyDNResponseProtocolOp;
-  private List<SearchResultEntryProtocolOp> searchEntryProtocolOps;
-  private List<SearchResultReferenceProtocolOp> searchReferenceProtocolOps;
-  private SearchResultDoneProtocolOp searchResultDoneProtocolOp;
+  /*
+   * The responses to binds and searches whose result needs no details,
+   * likewise shared
+   */
+  private static final BindResponseProtocolOp BIND_SUCCESS =
+       bindResponse(ResultCode.SUCCESS, "This is a sample bind message");
+  private static final BindResponseProtocolOp BIND_INVALID_CREDENTIALS =
+       bindResponse(ResultCode.INVALID_CREDENTIALS, "This is a sample bind message");
+  private static final BindResponseProtocolOp BIND_FAILED =
+       bindResponse(ResultCode.OTHER, "Unable to validate the bind with the backend");
+  private static final BindResponseProtocolOp BIND_NOT_SIMPLE =
+       bindResponse(ResultCode.AUTH_METHOD_NOT_SUPPORTED, "Only simple binds are supported");
+  private static final BindResponseProtocolOp BIND_CLIENT_RATE_LIMITED =
+       bindResponse(ResultCode.BUSY, "Too many bind attempts, try again later");
+  private static final BindResponseProtocolOp BIND_DN_RATE_LIMITED =
+       bindResponse(ResultCode.UNWILLING_TO_PERFORM, "Too many bind attempts, try again later");
+  private static final String IN_FLIGHT_LIMITED =
+       "Too many requests in flight on this connection, try again later";
+  private static final BindResponseProtocolOp BIND_IN_FLIGHT_LIMITED =
+       bindResponse(ResultCode.BUSY, IN_FLIGHT_LIMITED);
+  private static final SearchResultDoneProtocolOp SEARCH_SUCCESS =
+       new SearchResultDoneProtocolOp(ResultCode.SUCCESS.intValue(), null,
+            "This is a sample search message", null);
+  private static final SearchResultDoneProtocolOp SEARCH_SIZE_LIMIT_EXCEEDED =
+       new SearchResultDoneProtocolOp(ResultCode.SIZE_LIMIT_EXCEEDED.intValue(), null,
+            "The search matched more entries than its size limit", null);
 
   // The connection that will be used to communicate with the client.
   private final LDAPListenerClientConnection clientConnection;
-  
+
   /*
-   * Instantiate the mock file-based authentication system
-   * Remove the reference when interfacing with any other
-   * authentication system
+   * The backend authentication system that binds and searches
+   * are validated against, shared by all connections
    */
-  
-   //The mock authentication database
-   private static MockAuthSystem mockAuthSystem;
-
-   static {
-       //Initialize our mock file based authentication system ONCE
-       // for all listeners
-
-       try {
-           mockAuthSystem = new MockAuthSystem();
-       } catch (Exception e) {
-           System.out.println("Unable to initialise our file based authentication system!");
-           e.printStackTrace();
-           System.exit(-1);
-       }
-   }
-  
+  private final AuthBackend authBackend;
+
+  /*
+   * The pre-encoded entries of recent searches, or null when
+   * search responses are not cached
+   */
+  private final SearchResponseCache searchResponseCache;
+
+  /*
+   * Whether a response whose backend call has not completed yet is
+   * sent later from the completion callback (true), or waited for on
+   * the connection thread (false). Waiting is required when this
+   * handler is wrapped by a handler that inspects the returned
+   * message, such as LDAPDebuggerRequestHandler.
+   */
+  private final boolean deferResponses;
+
+  /*
+   * Whether search result entries are sent through the connection, which
+   * passes them to its search entry transformers, such as those
+   * LDAPDebuggerRequestHandler installs to log them (true), or batched
+   * into single socket writes that bypass the transformers (false)
+   */
+  private final boolean transformEntries;
+
+  /*
+   * The request counters and latency histograms, shared by all connections
+   */
+  private final InterceptorMetrics metrics;
+
+  /*
+   * The limits on how fast binds are attempted per client and per DN,
+   * or null when binds are not limited
+   */
+  private final BindRateLimiter bindRateLimiter;
+
+  /*
+   * The server's limits on the size and duration of searches
+   */
+  private final SearchLimits searchLimits;
+
+  /*
+   * The cursors of paged searches between their pages, shared by all
+   * connections, or null when the paged results control is not supported
+   */
+  private final PagedSearches pagedSearches;
+
+  /*
+   * The most operations of a connection whose responses may be
+   * outstanding at once, or 0 for no limit
+   */
+  private final int maxInFlight;
+
+  /*
+   * How long a request waits for one of the operations in flight to
+   * complete when the connection is at its limit, before it is refused
+   * with BUSY
+   */
+  private final long maxInFlightWaitMillis;
+
+  // The address of the client, or null before a connection is accepted
+  private final InetAddress clientAddress;
+
+  /*
+   * The permits of the operations of this connection in flight, or null
+   * when their number is not limited or responses are not deferred
+   */
+  private final Semaphore inFlight;
+
+  /*
+   * Records the phase timings of binds and searches as flight recorder
+   * events, or null when they are not recorded
+   */
+  private final RequestEvents requestEvents;
+
+  /**
+   * The optional settings of a request handler. Every setting has a
+   * default, so only those that differ need to be set, e.g.
+   *
+   *     new CustomAuthRequestHandler(authBackend, new CustomAuthRequestHandler.Options()
+   *             .setSearchResponseCache(searchResponseCache)
+   *             .setDeferResponses(true));
+   *
+   * The handler copies the settings when it is created, so the options
+   * may be changed and reused afterwards.
+   */
+  public static final class Options
+  {
+    private SearchResponseCache searchResponseCache;
+    private InterceptorMetrics metrics;
+    private BindRateLimiter bindRateLimiter;
+    private SearchLimits searchLimits = SearchLimits.NONE;
+    private PagedSearches pagedSearches;
+    private int maxInFlight;
+    private long maxInFlightWaitMillis = 1000L;
+    private RequestEvents requestEvents;
+    private boolean deferResponses;
+    private boolean transformEntries;
+
+    /**
+     * @param  searchResponseCache  The cache of pre-encoded search results,
+     *                              or null to encode every search response
+     *                              (the default).
+     *
+     * @return  These options.
+     */
+    public Options setSearchResponseCache(final SearchResponseCache searchResponseCache)
+    {
+      this.searchResponseCache = searchResponseCache;
+      return this;
+    }
+
+    /**
+     * @param  metrics  The metrics to record requests in, or null for
+     *                  metrics of the handler's own (the default).
+     *
+     * @return  These options.
+     */
+    public Options setMetrics(final InterceptorMetrics metrics)
+    {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * @param  bindRateLimiter  The limits on the rate of binds, or null
+     *                          to not limit binds (the default).
+     *
+     * @return  These options.
+     */
+    public Options setBindRateLimiter(final BindRateLimiter bindRateLimiter)
+    {
+      this.bindRateLimiter = bindRateLimiter;
+      return this;
+    }
+
+    /**
+     * @param  searchLimits  The server's limits on the size and duration
+     *                       of searches (by default none).
+     *
+     * @return  These options.
+     */
+    public Options setSearchLimits(final SearchLimits searchLimits)
+    {
+      this.searchLimits = searchLimits;
+      return this;
+    }
+
+    /**
+     * @param  pagedSearches  The cursors of paged searches between their
+     *                        pages, or null to not support the paged
+     *                        results control (the default).
+     *
+     * @return  These options.
+     */
+    public Options setPagedSearches(final PagedSearches pagedSearches)
+    {
+      this.pagedSearches = pagedSearches;
+      return this;
+    }
+
+    /**
+     * @param  maxInFlight  The most binds and searches of a connection
+     *                      whose deferred responses may be outstanding at
+     *                      once, or 0 for no limit (the default). The
+     *                      connection stops reading requests while at the
+     *                      limit.
+     *
+     * @return  These options.
+     */
+    public Options setMaxInFlight(final int maxInFlight)
+    {
+      this.maxInFlight = maxInFlight;
+      return this;
+    }
+
+    /**
+     * @param  maxInFlightWaitMillis  How long a request read while the
+     *                                connection is at its limit of
+     *                                operations in flight waits for one of
+     *                                them to complete before it is answered
+     *                                with BUSY (by default 1000).
+     *
+     * @return  These options.
+     */
+    public Options setMaxInFlightWaitMillis(final long maxInFlightWaitMillis)
+    {
+      this.maxInFlightWaitMillis = maxInFlightWaitMillis;
+      return this;
+    }
+
+    /**
+     * @param  requestEvents  Records binds and searches as flight recorder
+     *                        events, or null to record none (the default).
+     *
+     * @return  These options.
+     */
+    public Options setRequestEvents(final RequestEvents requestEvents)
+    {
+      this.requestEvents = requestEvents;
+      return this;
+    }
+
+    /**
+     * @param  deferResponses  Whether responses to backend calls that have
+     *                         not completed yet are sent from the completion
+     *                         callback instead of being waited for on the
+     *                         connection thread (by default they are waited
+     *                         for).
+     *
+     * @return  These options.
+     */
+    public Options setDeferResponses(final boolean deferResponses)
+    {
+      this.deferResponses = deferResponses;
+      return this;
+    }
+
+    /**
+     * @param  transformEntries  Whether search result entries must pass
+     *                           through the search entry transformers of
+     *                           the connection, e.g. to be logged by
+     *                           LDAPDebuggerRequestHandler. Such entries
+     *                           are sent one at a time instead of being
+     *                           batched into single socket writes (by
+     *                           default they are batched).
+     *
+     * @return  These options.
+     */
+    public Options setTransformEntries(final boolean transformEntries)
+    {
+      this.transformEntries = transformEntries;
+      return this;
+    }
+  }
+
   /**
-   * Creates a new instance of this LDAP response request handler 
-   * @throws LDIFException 
+   * Creates a new instance of this LDAP response request handler
+   *
+   * @param  authBackend  The backend authentication system.
+   * @param  options      The optional settings of the handler.
    */
-  public CustomAuthRequestHandler() 
+  public CustomAuthRequestHandler(final AuthBackend authBackend,
+                                  final Options options)
   {
 
+      this.authBackend = authBackend;
+      this.searchResponseCache = options.searchResponseCache;
+      this.metrics = options.metrics != null ? options.metrics : new InterceptorMetrics();
+      this.bindRateLimiter = options.bindRateLimiter;
+      this.searchLimits = options.searchLimits;
+      this.pagedSearches = options.pagedSearches;
+      this.maxInFlight = options.maxInFlight;
+      this.maxInFlightWaitMillis = options.maxInFlightWaitMillis;
+      this.requestEvents = options.requestEvents;
+      this.deferResponses = options.deferResponses;
+      this.transformEntries = options.transformEntries;
       clientConnection = null;
+      clientAddress = null;
+      inFlight = null;
 
   }
 
@@ -94,18 +385,22 @@ public final class CustomAuthRequestHandler
   private CustomAuthRequestHandler(final CustomAuthRequestHandler h,
                final LDAPListenerClientConnection c)  {
 
-    addResponseProtocolOp      = h.addResponseProtocolOp;
-    bindResponseProtocolOp     = h.bindResponseProtocolOp;
-    compareResponseProtocolOp  = h.compareResponseProtocolOp;
-    deleteResponseProtocolOp   = h.deleteResponseProtocolOp;
-    extendedResponseProtocolOp = h.extendedResponseProtocolOp;
-    modifyResponseProtocolOp   = h.modifyResponseProtocolOp;
-    modifyDNResponseProtocolOp = h.modifyDNResponseProtocolOp;
-    searchEntryProtocolOps     = h.searchEntryProtocolOps;
-    searchReferenceProtocolOps = h.searchReferenceProtocolOps;
-    searchResultDoneProtocolOp = h.searchResultDoneProtocolOp;
+    authBackend                = h.authBackend;
+    searchResponseCache        = h.searchResponseCache;
+    deferResponses             = h.deferResponses;
+    transformEntries           = h.transformEntries;
+    metrics                    = h.metrics;
+    bindRateLimiter            = h.bindRateLimiter;
+    searchLimits               = h.searchLimits;
+    pagedSearches              = h.pagedSearches;
+    maxInFlight                = h.maxInFlight;
+    maxInFlightWaitMillis      = h.maxInFlightWaitMillis;
+    requestEvents              = h.requestEvents;
 
     clientConnection = c;
+    clientAddress    = c.getSocket().getInetAddress();
+    inFlight         = deferResponses && maxInFlight > 0
+                           ? new Semaphore(maxInFlight) : null;
 
   }
 
@@ -117,10 +412,25 @@ public final class CustomAuthRequestHandler
               final LDAPListenerClientConnection connection)
          throws LDAPException
   {
+      metrics.connectionOpened();
       return new CustomAuthRequestHandler(this, connection);
 
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void closeInstance()
+  {
+      if (clientConnection != null) {
+          metrics.connectionClosed();
+          if (pagedSearches != null) {
+              pagedSearches.closeAll(clientConnection.getConnectionID());
+          }
+      }
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -129,21 +439,15 @@ public final class CustomAuthRequestHandler
                                        final AddRequestProtocolOp request,
                                        final List<Control> controls)
   {
+    final long start = System.nanoTime();
 		
 	/*
 	 *  Implement the LDAP Add method
 	 *  Here a canned success response is returned
 	 */
     
-    ResultCode rc = ResultCode.SUCCESS;
-	String diagnosticMessage = "";
-	List<String> referralURLs = null;
-	String matchedDN = null;
-	
-	addResponseProtocolOp = new AddResponseProtocolOp(rc.intValue(), matchedDN,
-	         diagnosticMessage, referralURLs);
-	  
-    return new LDAPMessage(messageID, addResponseProtocolOp,
+    metrics.recordRequest(InterceptorMetrics.Operation.ADD, start);
+    return new LDAPMessage(messageID, ADD_RESPONSE,
          Collections.<Control>emptyList());
   }
 
@@ -155,18 +459,48 @@ public final class CustomAuthRequestHandler
                                         final BindRequestProtocolOp request,
                                         final List<Control> controls)
   {
+	final long start = System.nanoTime();
 	    
-	  System.out.println("In processBindRequest - This contains the custom code to validate the bind request with the backend");
+	  // This contains the custom code to validate the bind request with the backend
 	  	   
 	/* 
 	 * You can extract the username and password from the request token as below:
 	 */
 	
-	String username = request.getBindDN().toString();
-	String password = request.getSimplePassword().toString();
+	String username = request.getBindDN();
+	ASN1OctetString simplePassword = request.getSimplePassword();
+
+	final RequestEvents.Trace trace =
+			requestEvents == null ? null : requestEvents.startBind(start, username);
+
+	if (simplePassword == null) {
+		// SASL binds are not supported by the backend
+		metrics.recordBind(ResultCode.AUTH_METHOD_NOT_SUPPORTED, start);
+		commit(trace, ResultCode.AUTH_METHOD_NOT_SUPPORTED, 0);
+		return new LDAPMessage(messageID, BIND_NOT_SIMPLE,
+				Collections.<Control>emptyList());
+	}
+
+	if (LOG.isLoggable(Level.FINE)) {
+		LOG.fine("Bind request " + messageID + " for DN: " + username);
+	}
 
-	System.out.println("The bind DN is:"+username);
-	System.out.println("The bind password is:"+password);
+	if (bindRateLimiter != null) {
+		// Refuse a client or DN over its limit before any backend work
+		ResultCode refused = bindRateLimiter.tryAcquire(clientAddress, username);
+		if (refused != null) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Bind request " + messageID + ": " + refused + ", rate limited");
+			}
+			metrics.recordBind(refused, start);
+			commit(trace, refused, 0);
+			return new LDAPMessage(messageID,
+					refused == ResultCode.BUSY ? BIND_CLIENT_RATE_LIMITED : BIND_DN_RATE_LIMITED,
+					Collections.<Control>emptyList());
+		}
+	}
+
+	String password = simplePassword.stringValue();
 	
 	/*
 	  *  INSERT CUSTOM CODE HERE
@@ -176,38 +510,139 @@ public final class CustomAuthRequestHandler
 	  *  and return the response as an LDAP message
 	  *  
 	  *  In the example we validate the bind against
-	  *  a Mock file based backend
+	  *  the configured AuthBackend
 	  */
-	
-	ResultCode rc = ResultCode.SUCCESS;
-	
-	try {	
-		Boolean isValid = mockAuthSystem.validateUser(username, password);
-		
-		if(isValid) {
-			System.out.println("The user is valid");
-			rc = ResultCode.SUCCESS;
-		}else {
-			System.out.println("The user is invalid");
-			rc = ResultCode.INVALID_CREDENTIALS;
+
+	if (!acquireInFlight()) {
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Bind request " + messageID + ": BUSY, too many requests in flight");
 		}
+		metrics.recordBind(ResultCode.BUSY, start);
+		commit(trace, ResultCode.BUSY, 0);
+		return new LDAPMessage(messageID, BIND_IN_FLIGHT_LIMITED,
+				Collections.<Control>emptyList());
+	}
+	if (trace != null) {
+		trace.admitted();
+	}
+	CompletableFuture<Boolean> result;
+	try {
+		result = authBackend.authenticate(username, password);
 	}
 	catch (Exception e) {
-			System.out.println("Caught Exception:"+e.getCause() + e.getLocalizedMessage());
+		result = failedFuture(e);
 	}
-	
-	String diagnosticMessage = "This is a sample bind message";
-	List<String> referralURLs = null;
-	String matchedDN = null;
-	
-	bindResponseProtocolOp = new BindResponseProtocolOp(rc.intValue(), matchedDN,
-	         diagnosticMessage, referralURLs, null);
-	
+
+	if (result.isDone() || !deferResponses) {
+		LDAPMessage response;
+		try {
+			Boolean isValid = result.get();
+			answered(trace);
+			response = recordBind(composeBindResponse(messageID, isValid, null), start);
+		}
+		catch (Exception e) {
+			answered(trace);
+			response = recordBind(composeBindResponse(messageID, null, e), start);
+		}
+		finally {
+			releaseInFlight();
+		}
+		commit(trace, ResultCode.valueOf(response.getBindResponseProtocolOp().getResultCode()), 0);
+		return response;
+	}
+
+	// Send the response once the backend answers, freeing this thread
+	// to read the next request from the connection. Responses go out in
+	// the order their backend calls complete, tagged with their message ID
+	metrics.requestDeferred();
+	result.whenComplete((isValid, failure) -> {
+		try {
+			answered(trace);
+			LDAPMessage response = recordBind(composeBindResponse(messageID, isValid, failure), start);
+			sendResponse(response, trace);
+			commit(trace, ResultCode.valueOf(response.getBindResponseProtocolOp().getResultCode()), 0);
+		}
+		finally {
+			completeDeferred();
+		}
+	});
+
+	return null;
+  }
+
+  /**
+   * Record a completed bind in the metrics
+   *
+   * @param  response  The bind response message.
+   * @param  start     The System.nanoTime() at which the request was received.
+   *
+   * @return  The bind response message.
+   */
+  private LDAPMessage recordBind(final LDAPMessage response, final long start)
+  {
+    metrics.recordBind(ResultCode.valueOf(
+            response.getBindResponseProtocolOp().getResultCode()), start);
+    return response;
+  }
+
+  /**
+   * Compose the bind response for the outcome of a backend call
+   *
+   * @param  messageID  The message ID of the bind request.
+   * @param  isValid    Whether the credentials are valid, or null on failure.
+   * @param  failure    The reason the backend call failed, or null.
+   *
+   * @return  The bind response message.
+   */
+  private static LDAPMessage composeBindResponse(final int messageID,
+                                                 final Boolean isValid,
+                                                 final Throwable failure)
+  {
+	BindResponseProtocolOp bindResponseProtocolOp;
+
+	LDAPException backendResult = backendResult(failure);
+	if (backendResult != null) {
+		// The backend declined the request, e.g. BUSY when it is overloaded
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Bind request " + messageID + ": " + backendResult.getResultCode());
+		}
+		bindResponseProtocolOp = bindResponse(backendResult.getResultCode(),
+				backendResult.getMessage());
+	}
+	else if (failure != null || isValid == null) {
+		LOG.log(Level.WARNING, "Unable to validate bind request " + messageID, failure);
+		bindResponseProtocolOp = BIND_FAILED;
+	}
+	else if (isValid) {
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Bind request " + messageID + ": the user is valid");
+		}
+		bindResponseProtocolOp = BIND_SUCCESS;
+	}
+	else {
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Bind request " + messageID + ": the user is invalid");
+		}
+		bindResponseProtocolOp = BIND_INVALID_CREDENTIALS;
+	}
+
     return new LDAPMessage(messageID, bindResponseProtocolOp,
          Collections.<Control>emptyList());
       
   }
 
+  /**
+   * @param  rc                 The result of the bind.
+   * @param  diagnosticMessage  The diagnostic message.
+   *
+   * @return  A bind response with no matched DN, referrals or SASL credentials.
+   */
+  private static BindResponseProtocolOp bindResponse(final ResultCode rc,
+                                                     final String diagnosticMessage)
+  {
+    return new BindResponseProtocolOp(rc.intValue(), null, diagnosticMessage, null, null);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -216,20 +651,14 @@ public final class CustomAuthRequestHandler
                           final CompareRequestProtocolOp request,
                           final List<Control> controls)
   {
+    final long start = System.nanoTime();
 	  /*
 		 *  Implement the LDAP Compare method
 		 *  Here a canned success response is returned
 		 */
 	    
-	    ResultCode rc = ResultCode.SUCCESS;
-		String diagnosticMessage = "";
-		List<String> referralURLs = null;
-		String matchedDN = null;
-		
-		compareResponseProtocolOp = new CompareResponseProtocolOp(rc.intValue(), matchedDN,
-		         diagnosticMessage, referralURLs);
-	  
-	  return new LDAPMessage(messageID, compareResponseProtocolOp,
+	  metrics.recordRequest(InterceptorMetrics.Operation.COMPARE, start);
+    return new LDAPMessage(messageID, COMPARE_RESPONSE,
          Collections.<Control>emptyList());
   }
 
@@ -241,21 +670,15 @@ public final class CustomAuthRequestHandler
                                           final DeleteRequestProtocolOp request,
                                           final List<Control> controls)
   {
+    final long start = System.nanoTime();
 
 	/*
 	 *  Implement the LDAP Delete method
 	 *  Here a canned success response is returned
 	 */
     
-    ResultCode rc = ResultCode.SUCCESS;
-	String diagnosticMessage = "";
-	List<String> referralURLs = null;
-	String matchedDN = null;
-	
-	deleteResponseProtocolOp = new DeleteResponseProtocolOp(rc.intValue(), matchedDN,
-	         diagnosticMessage, referralURLs);
-	
-	return new LDAPMessage(messageID, deleteResponseProtocolOp,
+	metrics.recordRequest(InterceptorMetrics.Operation.DELETE, start);
+    return new LDAPMessage(messageID, DELETE_RESPONSE,
        Collections.<Control>emptyList());
   }
 
@@ -267,21 +690,15 @@ public final class CustomAuthRequestHandler
                           final ExtendedRequestProtocolOp request,
                           final List<Control> controls)
   {
+    final long start = System.nanoTime();
 	
 		/*
 		 *  Implement the Extended LDAP Delete method
 		 *  Here a canned success response is returned
 		 */
 	    
-	    ResultCode rc = ResultCode.SUCCESS;
-		String diagnosticMessage = "";
-		List<String> referralURLs = null;
-		String matchedDN = null;
-		
-		extendedResponseProtocolOp = new ExtendedResponseProtocolOp(rc.intValue(), matchedDN,
-		         diagnosticMessage, referralURLs,null,null);
-  	  
-    return new LDAPMessage(messageID, extendedResponseProtocolOp,
+    metrics.recordRequest(InterceptorMetrics.Operation.EXTENDED, start);
+    return new LDAPMessage(messageID, EXTENDED_RESPONSE,
          Collections.<Control>emptyList());
   }
 
@@ -293,21 +710,15 @@ public final class CustomAuthRequestHandler
                                           final ModifyRequestProtocolOp request,
                                           final List<Control> controls)
   {
+    final long start = System.nanoTime();
 
 	/*
 	 *  Implement the LDAP Modify method
 	 *  Here a canned success response is returned
 	 */
     
-    ResultCode rc = ResultCode.SUCCESS;
-	String diagnosticMessage = "";
-	List<String> referralURLs = null;
-	String matchedDN = null;
-	
-	modifyResponseProtocolOp = new ModifyResponseProtocolOp(rc.intValue(), matchedDN,
-	         diagnosticMessage, referralURLs);
-		
-    return new LDAPMessage(messageID, modifyResponseProtocolOp,
+    metrics.recordRequest(InterceptorMetrics.Operation.MODIFY, start);
+    return new LDAPMessage(messageID, MODIFY_RESPONSE,
          Collections.<Control>emptyList());
   }
 
@@ -319,35 +730,34 @@ public final class CustomAuthRequestHandler
                           final ModifyDNRequestProtocolOp request,
                           final List<Control> controls)
   {
+    final long start = System.nanoTime();
 
 	/*
 	 *  Implement the LDAP Modify DN Request method
 	 *  Here a canned success response is returned
 	 */
     
-    ResultCode rc = ResultCode.SUCCESS;
-	String diagnosticMessage = "";
-	List<String> referralURLs = null;
-	String matchedDN = null;
-	
-	modifyDNResponseProtocolOp = new ModifyDNResponseProtocolOp(rc.intValue(), matchedDN,
-	         diagnosticMessage, referralURLs);
-	  
-    return new LDAPMessage(messageID, modifyDNResponseProtocolOp,
+    metrics.recordRequest(InterceptorMetrics.Operation.MODIFY_DN, start);
+    return new LDAPMessage(messageID, MODIFY_DN_RESPONSE,
          Collections.<Control>emptyList());
   }
 
   /**
    * {@inheritDoc}
    */
-  @SuppressWarnings("unused")
-@Override()
+  @Override()
   public LDAPMessage processSearchRequest(final int messageID,
                                           final SearchRequestProtocolOp request,
                                           final List<Control> controls)
   {  
-	  System.out.println("Inside processSearchRequest - this searches the backend authentication system " +
-              "for user credentials");
+	  final long start = System.nanoTime();
+	  final RequestEvents.Trace trace = requestEvents == null ? null
+			  : requestEvents.startSearch(start, request.getBaseDN(), request.getFilter());
+	  // This searches the backend authentication system for user credentials
+	  if (LOG.isLoggable(Level.FINE)) {
+		  LOG.fine("Search request " + messageID + " with base " + request.getBaseDN() +
+				  " and filter " + request.getFilter());
+	  }
 	  
 	/*
 	 * This is the LDAP search operation which is used to 
@@ -361,99 +771,566 @@ public final class CustomAuthRequestHandler
 	 * for the username - return group membership
 	 * attributes, used for LDAP Authorization in Solace
 	 * 
-	 * In this example a search entry is performed on
-	 * the mock authentication backend
+	 * In this example the search is performed on
+	 * the configured AuthBackend, unless the entries
+	 * of the same search are still cached
+	 *
+	 * Only the requested attributes are returned, and the
+	 * search is held to the lower of its own size and time
+	 * limits and the server's
 	 */
-	  
-	 try { 
-	
-	 //Extract the token from the request
-	 String userToken = request.getFilter().getAssertionValue(); 
-	 String baseDN = request.getBaseDN();
-	 
-	 String DN = "cn="+userToken+","+baseDN;
-
-	 //Invoke IDAM and perform search
-	 //and get a result of search entries
-     // Here we just use the mock list of user entries
-	
-	List<Entry> searchEntries = mockAuthSystem.searchMockAuthSystem(userToken);
-	
-	 
-    if ((searchEntries == null) || searchEntries.isEmpty())
-    {
-        System.out.println("The search is empty..");
-    	searchEntryProtocolOps = Collections.emptyList();
+
+	final SearchProjection projection =
+			SearchProjection.of(request.getAttributes(), request.typesOnly());
+	final int sizeLimit = searchLimits.sizeLimit(request.getSizeLimit());
+	final long timeLimitMillis =
+			TimeUnit.SECONDS.toMillis(searchLimits.timeLimitSeconds(request.getTimeLimit()));
+
+	SimplePagedResultsControl paging;
+	try {
+		paging = pagedResultsControl(controls);
+	}
+	catch (LDAPException e) {
+		recordSearch(e.getResultCode(), 0, start, trace);
+		return composeSearchResultDone(messageID, e.getResultCode(), e.getMessage(), null);
+	}
+	if (paging != null) {
+		return processPagedSearch(messageID, request, paging, projection,
+				sizeLimit, timeLimitMillis, start, trace);
+	}
+
+	if (searchResponseCache != null) {
+		PreEncodedSearchResultEntry[] cached = searchResponseCache.get(
+				request.getBaseDN(), request.getScope().intValue(), request.getFilter(), projection);
+		if (cached != null) {
+			ResultCode rc = ResultCode.SUCCESS;
+			int count = cached.length;
+			if (sizeLimit > 0 && count > sizeLimit) {
+				rc = ResultCode.SIZE_LIMIT_EXCEEDED;
+				count = sizeLimit;
+			}
+			if (trace != null) {
+				trace.cached();
+			}
+			sendSearchResultEntries(messageID, cached, count, trace);
+			recordSearch(rc, count, start, trace);
+			return composeSearchResultDone(messageID, rc, null, null);
+		}
+	}
+
+	// Read before the backend is called: the entries are only cached if
+	// the directory has not changed since
+	final long cacheGeneration =
+			searchResponseCache == null ? 0L : searchResponseCache.generation();
+
+	// The entries are sent as the cursor finds them, a batch at a time,
+	// rather than collected before the first is sent
+	return whenOpened(request, timeLimitMillis, trace,
+			(cursor, failure) -> completeSearch(messageID, request, projection,
+					sizeLimit, cursor, failure, cacheGeneration, start, trace));
+  }
+
+  /**
+   * Process a search request with the Simple Paged Results control,
+   * sending the next page of its entries
+   *
+   * @param  messageID        The message ID of the search request.
+   * @param  request          The search request.
+   * @param  paging           The paged results control of the request.
+   * @param  projection       The attributes to return of each entry.
+   * @param  sizeLimit        The most entries to return over every page,
+   *                          or 0 for no limit.
+   * @param  timeLimitMillis  How long the page may take, or 0 for no limit.
+   * @param  start            The System.nanoTime() at which the request was received.
+   * @param  trace            The phase timings of the search, or null.
+   *
+   * @return  The search result done message, or null if it is sent once
+   *          the backend has answered.
+   */
+  private LDAPMessage processPagedSearch(final int messageID,
+                                         final SearchRequestProtocolOp request,
+                                         final SimplePagedResultsControl paging,
+                                         final SearchProjection projection,
+                                         final int sizeLimit,
+                                         final long timeLimitMillis,
+                                         final long start,
+                                         final RequestEvents.Trace trace)
+  {
+    final String searchKey = request.getScope().intValue() + ":"
+            + DirectoryNames.normalize(request.getBaseDN()) + ":"
+            + request.getFilter().toNormalizedString() + ":" + projection.getKey();
+    final int pageSize = paging.getSize();
+
+    if (paging.getCookie().getValueLength() == 0) {
+        if (pageSize == 0) {
+            recordSearch(ResultCode.SUCCESS, 0, start, trace);
+            return composeSearchResultDone(messageID, ResultCode.SUCCESS, null,
+                    pagedResultsResponse(new ASN1OctetString()));
+        }
+
+        // The first page opens the cursor the later pages continue
+        return whenOpened(request, timeLimitMillis, trace,
+                (cursor, failure) -> {
+                    LDAPMessage failed = searchFailed(messageID, failure, start, trace);
+                    if (failed != null) {
+                        return failed;
+                    }
+                    return sendPage(messageID, new PagedSearches.PagedSearch(
+                            clientConnection.getConnectionID(), searchKey,
+                            cursor == null ? SearchCursor.of(Collections.<Entry>emptyList()) : cursor,
+                            sizeLimit > 0 ? sizeLimit : Integer.MAX_VALUE),
+                            projection, pageSize, start, trace);
+                });
     }
-    else
-    {
-      
-      final ArrayList<SearchResultEntryProtocolOp> l =
-           new ArrayList<SearchResultEntryProtocolOp>(searchEntries.size());
-      
-      for (final Entry e : searchEntries)
-      {
-        l.add(new SearchResultEntryProtocolOp(e));
-      }
-      
-      searchEntryProtocolOps = Collections.unmodifiableList(l);
+
+    PagedSearches.PagedSearch search =
+            pagedSearches.take(paging.getCookie(), clientConnection.getConnectionID());
+    String refused = null;
+    if (search == null) {
+        refused = "The paged search is unknown or has expired";
+    }
+    else if (!search.searchKey.equals(searchKey)) {
+        search.cursor.close();
+        refused = "The paged results cookie belongs to a different search";
+    }
+    if (refused != null) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Search request " + messageID + ": " + refused);
+        }
+        recordSearch(ResultCode.UNWILLING_TO_PERFORM, 0, start, trace);
+        return composeSearchResultDone(messageID, ResultCode.UNWILLING_TO_PERFORM, refused, null);
+    }
+
+    if (pageSize == 0) {
+        // The client abandons the rest of the search
+        search.cursor.close();
+        recordSearch(ResultCode.SUCCESS, 0, start, trace);
+        return composeSearchResultDone(messageID, ResultCode.SUCCESS, null,
+                pagedResultsResponse(new ASN1OctetString()));
+    }
+
+    search.cursor.setTimeLimit(timeLimitMillis);
+    answered(trace);
+    return sendPage(messageID, search, projection, pageSize, start, trace);
+  }
+
+  /**
+   * Send the next page of a paged search, and keep its cursor open for
+   * the page after unless this is the last
+   *
+   * @param  messageID   The message ID of the search request.
+   * @param  search      The paged search.
+   * @param  projection  The attributes to return of each entry.
+   * @param  pageSize    The most entries to send.
+   * @param  start       The System.nanoTime() at which the request was received.
+   * @param  trace       The phase timings of the search, or null.
+   *
+   * @return  The search result done message, with the cookie of the next
+   *          page or an empty cookie after the last.
+   */
+  private LDAPMessage sendPage(final int messageID,
+                               final PagedSearches.PagedSearch search,
+                               final SearchProjection projection,
+                               final int pageSize,
+                               final long start,
+                               final RequestEvents.Trace trace)
+  {
+    StreamedEntries page = sendEntries(messageID, search.cursor, projection,
+            Math.min(pageSize, search.remaining), 0, trace);
+    if (search.remaining != Integer.MAX_VALUE) {
+        search.remaining -= page.sent;
+    }
+
+    ResultCode rc = page.resultCode;
+    String diagnosticMessage = page.diagnosticMessage;
+    ASN1OctetString cookie = null;
+    if (rc == ResultCode.SUCCESS && page.more) {
+        if (search.remaining == 0) {
+            rc = ResultCode.SIZE_LIMIT_EXCEEDED;
+        }
+        else {
+            // Closes the cursor itself if it cannot be kept
+            cookie = pagedSearches.park(search);
+            if (cookie == null) {
+                rc = ResultCode.ADMIN_LIMIT_EXCEEDED;
+                diagnosticMessage = "Too many paged searches are open, try again later";
+            }
+        }
+    }
+    if (cookie == null) {
+        if (rc != ResultCode.ADMIN_LIMIT_EXCEEDED) {
+            search.cursor.close();
+        }
+        cookie = new ASN1OctetString();
+    }
+
+    recordSearch(rc, page.sent, start, trace);
+    return composeSearchResultDone(messageID, rc, diagnosticMessage, pagedResultsResponse(cookie));
+  }
+
+  /**
+   * Open a cursor over the entries matching a search
+   *
+   * @param  request          The search request.
+   * @param  timeLimitMillis  How long the cursor may look for entries,
+   *                          or 0 for no limit.
+   *
+   * @return  A future completed with the cursor.
+   */
+  private CompletableFuture<SearchCursor> openCursor(final SearchRequestProtocolOp request,
+                                                     final long timeLimitMillis)
+  {
+    try {
+        return authBackend.stream(request.getBaseDN(), request.getScope(), request.getFilter(), timeLimitMillis);
+    }
+    catch (Exception e) {
+        return failedFuture(e);
+    }
+  }
+
+  /**
+   * Open a cursor for a search and complete the search once it is open:
+   * at once if it is, or if responses are not deferred, otherwise from
+   * the backend's callback
+   *
+   * @param  request          The search request.
+   * @param  timeLimitMillis  How long the cursor may look for entries, and
+   *                          how long to wait for it when responses are not
+   *                          deferred, or 0 for no limit.
+   * @param  trace            The phase timings of the search, or null.
+   * @param  complete         Sends the entries from the cursor, or the
+   *                          failure, and composes the search result done.
+   *
+   * @return  The search result done message, or null if it is sent once
+   *          the backend has answered.
+   */
+  private LDAPMessage whenOpened(final SearchRequestProtocolOp request,
+                                 final long timeLimitMillis,
+                                 final RequestEvents.Trace trace,
+                                 final BiFunction<SearchCursor, Throwable, LDAPMessage> complete)
+  {
+	if (!acquireInFlight()) {
+		return complete.apply(null, new LDAPException(ResultCode.BUSY, IN_FLIGHT_LIMITED));
+	}
+	if (trace != null) {
+		trace.admitted();
+	}
+	final CompletableFuture<SearchCursor> result = openCursor(request, timeLimitMillis);
+
+	if (result.isDone() || !deferResponses) {
+		try {
+			SearchCursor cursor;
+			try {
+				cursor = timeLimitMillis > 0
+						? result.get(timeLimitMillis, TimeUnit.MILLISECONDS)
+						: result.get();
+			}
+			catch (TimeoutException e) {
+				// Close the cursor once it opens, as nobody will read it
+				result.thenAccept(SearchCursor::close);
+				answered(trace);
+				return complete.apply(null, new LDAPException(ResultCode.TIME_LIMIT_EXCEEDED,
+						"The search did not complete within its time limit"));
+			}
+			catch (Exception e) {
+				answered(trace);
+				return complete.apply(null, e);
+			}
+			answered(trace);
+			return complete.apply(cursor, null);
+		}
+		finally {
+			releaseInFlight();
+		}
+	}
+
+	// Send the entries and the result once the backend answers,
+	// freeing this thread to read the next request from the connection.
+	// The entries of searches in flight on the same connection may be
+	// interleaved, each tagged with the message ID of its search
+	metrics.requestDeferred();
+	result.whenComplete((cursor, failure) -> {
+		try {
+			answered(trace);
+			sendResponse(complete.apply(cursor, failure), trace);
+		}
+		finally {
+			completeDeferred();
+		}
+	});
+
+	return null;
+  }
+
+  /**
+   * Send the search result entries from a cursor opened by the backend
+   * and compose the search result done message
+   *
+   * @param  messageID   The message ID of the search request.
+   * @param  request     The search request.
+   * @param  projection  The attributes to return of each entry.
+   * @param  sizeLimit   The most entries to return, or 0 for no limit.
+   * @param  cursor      The cursor over the matching entries, or null on failure.
+   * @param  failure     The reason the backend call failed, or null.
+   * @param  cacheGeneration  The generation of the search response cache
+   *                          read before the backend was called.
+   * @param  start       The System.nanoTime() at which the request was received.
+   * @param  trace       The phase timings of the search, or null.
+   *
+   * @return  The search result done message.
+   */
+  private LDAPMessage completeSearch(final int messageID,
+                                     final SearchRequestProtocolOp request,
+                                     final SearchProjection projection,
+                                     final int sizeLimit,
+                                     final SearchCursor cursor,
+                                     final Throwable failure,
+                                     final long cacheGeneration,
+                                     final long start,
+                                     final RequestEvents.Trace trace)
+  {
+    LDAPMessage failed = searchFailed(messageID, failure, start, trace);
+    if (failed != null) {
+        return failed;
+    }
+    if (cursor == null) {
+        recordSearch(ResultCode.SUCCESS, 0, start, trace);
+        return composeSearchResultDone(messageID, ResultCode.SUCCESS, null, null);
     }
 
     /*
-     * Compose Search references here
-     * Only valid when you want to refer
-     * the LDAP search to another LDAP server
-     * 
-     * here it is set to null as there 
-     * are no references
-     * 
+     * Search references would only be returned to refer the search
+     * to another LDAP server, which the interceptor never does
      */
-    
-    Collection<SearchResultReference> searchReferences = null;
-    
-	if ((searchReferences == null) || searchReferences.isEmpty())
-    {
-      searchReferenceProtocolOps = Collections.emptyList();
+
+    StreamedEntries streamed;
+    try {
+        // Entries are kept pre-encoded for the cache unless there are too many
+        streamed = sendEntries(messageID, cursor, projection,
+                sizeLimit > 0 ? sizeLimit : Integer.MAX_VALUE,
+                searchResponseCache == null ? 0 : searchResponseCache.getMaxSearchEntries(), trace);
+    }
+    finally {
+        cursor.close();
     }
-    else
-    {
-      final ArrayList<SearchResultReferenceProtocolOp> l =
-           new ArrayList<SearchResultReferenceProtocolOp>(
-                searchReferences.size());
-      for (final SearchResultReference r : searchReferences)
-      {
-        l.add(new SearchResultReferenceProtocolOp(r));
-      }
 
-      searchReferenceProtocolOps = Collections.unmodifiableList(l);
+    ResultCode rc = streamed.resultCode;
+    if (rc == ResultCode.SUCCESS && streamed.more) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Search request " + messageID + " exceeds its size limit of " + sizeLimit);
+        }
+        rc = ResultCode.SIZE_LIMIT_EXCEEDED;
     }
-	
-	//Response Composed, now send the search entry and references back
-       
-    for (final SearchResultEntryProtocolOp e : searchEntryProtocolOps)
-    {
-      try
-      {
-        clientConnection.sendSearchResultEntry(messageID, e);
-      }
-      catch (final Exception ex)
-      {
-        Debug.debugException(ex);
-      }
+    else if (rc == ResultCode.SUCCESS && streamed.encoded != null) {
+        searchResponseCache.put(request.getBaseDN(), request.getScope().intValue(),
+                request.getFilter(), projection, streamed.encoded, cacheGeneration);
     }
 
-    for (final SearchResultReferenceProtocolOp r : searchReferenceProtocolOps)
-    {
-      try
-      {
-        clientConnection.sendSearchResultReference(messageID, r);
-      }
-      catch (final Exception ex)
-      {
-        Debug.debugException(ex);
-      }
+    if (streamed.sent == 0 && LOG.isLoggable(Level.FINE)) {
+        LOG.fine("Search request " + messageID + " is empty");
     }
-	
+    recordSearch(rc, streamed.sent, start, trace);
+    return composeSearchResultDone(messageID, rc, streamed.diagnosticMessage, null);
+  }
+
+  /**
+   * Compose the search result done message for a search whose backend
+   * call failed
+   *
+   * @param  messageID  The message ID of the search request.
+   * @param  failure    The reason the backend call failed, or null.
+   * @param  start      The System.nanoTime() at which the request was received.
+   * @param  trace      The phase timings of the search, or null.
+   *
+   * @return  The search result done message, or null if the call did not fail.
+   */
+  private LDAPMessage searchFailed(final int messageID,
+                                   final Throwable failure,
+                                   final long start,
+                                   final RequestEvents.Trace trace)
+  {
+    LDAPException backendResult = backendResult(failure);
+    if (backendResult != null) {
+        recordSearch(backendResult.getResultCode(), 0, start, trace);
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Search request " + messageID + ": " + backendResult.getResultCode());
+        }
+        return composeSearchResultDone(messageID, backendResult.getResultCode(),
+                backendResult.getMessage(), null);
+    }
+
+    if (failure != null) {
+        recordSearch(ResultCode.OTHER, 0, start, trace);
+        LOG.log(Level.WARNING, "Unable to process search request " + messageID, failure);
+        return composeSearchResultDone(messageID, ResultCode.OTHER,
+                "Unable to search the backend", null);
+    }
+    return null;
+  }
+
+  /*
+   * The outcome of sending entries from a cursor
+   */
+  private static final class StreamedEntries
+  {
+    // The number of entries sent
+    int sent;
+
+    // Whether the cursor has more entries than were sent
+    boolean more;
+
+    // SUCCESS, or why the cursor or the connection failed
+    ResultCode resultCode = ResultCode.SUCCESS;
+    String diagnosticMessage;
+
+    // The pre-encoded entries sent, or null if they were not kept
+    PreEncodedSearchResultEntry[] encoded;
+  }
+
+  /**
+   * Send entries from a cursor to the client as they are found, in
+   * batches of up to SEARCH_BATCH_SIZE entries per socket write, so only
+   * one batch is held in memory at a time
+   *
+   * @param  messageID   The message ID of the search request.
+   * @param  cursor      The cursor over the matching entries.
+   * @param  projection  The attributes to return of each entry.
+   * @param  count       The most entries to send.
+   * @param  keep        The most entries to keep pre-encoded for the
+   *                     search response cache, or 0 to keep none.
+   * @param  trace       The phase timings of the search, or null.
+   *
+   * @return  The outcome.
+   */
+  private StreamedEntries sendEntries(final int messageID,
+                                      final SearchCursor cursor,
+                                      final SearchProjection projection,
+                                      final int count,
+                                      final int keep,
+                                      final RequestEvents.Trace trace)
+  {
+    final StreamedEntries streamed = new StreamedEntries();
+    final ProtocolOp[] batch = new ProtocolOp[Math.max(1, Math.min(count, SEARCH_BATCH_SIZE))];
+    ArrayList<PreEncodedSearchResultEntry> kept =
+            keep > 0 ? new ArrayList<PreEncodedSearchResultEntry>() : null;
+    int batched = 0;
+
+    try {
+        try {
+            while (streamed.sent + batched < count && cursor.hasNext()) {
+                Entry entry = projection.apply(cursor.next());
+                if (kept != null) {
+                    PreEncodedSearchResultEntry encoded = new PreEncodedSearchResultEntry(entry);
+                    kept.add(encoded);
+                    if (kept.size() > keep) {
+                        kept = null;
+                    }
+                    batch[batched++] = encoded;
+                }
+                else {
+                    batch[batched++] = new SearchResultEntryProtocolOp(entry);
+                }
+
+                if (batched == batch.length) {
+                    sendBatch(messageID, batch, batched, trace);
+                    streamed.sent += batched;
+                    batched = 0;
+                }
+            }
+            streamed.more = streamed.sent + batched == count && cursor.hasNext();
+        }
+        catch (RuntimeException e) {
+            // The entries found before the cursor failed are still sent
+            LDAPException result = backendResult(e);
+            if (result != null) {
+                streamed.resultCode = result.getResultCode();
+                streamed.diagnosticMessage = result.getMessage();
+            }
+            else {
+                LOG.log(Level.WARNING, "Unable to read search request " + messageID
+                        + " from the backend", e);
+                streamed.resultCode = ResultCode.OTHER;
+                streamed.diagnosticMessage = "Unable to search the backend";
+            }
+        }
+        sendBatch(messageID, batch, batched, trace);
+        streamed.sent += batched;
+    }
+    catch (LDAPException e) {
+        // The client has gone, so nothing more can be sent to it
+        Debug.debugException(e);
+        streamed.resultCode = e.getResultCode();
+        streamed.diagnosticMessage = e.getMessage();
+    }
+
+    if (kept != null && streamed.resultCode == ResultCode.SUCCESS) {
+        streamed.encoded = kept.toArray(new PreEncodedSearchResultEntry[kept.size()]);
+    }
+    return streamed;
+  }
+
+  /**
+   * Find the Simple Paged Results control of a search request
+   *
+   * @param  controls  The controls of the request.
+   *
+   * @return  The control, or null if the request has none or paged
+   *          searches are disabled and it is not critical.
+   *
+   * @throws  LDAPException  If the control cannot be decoded, or paged
+   *                         searches are disabled and it is critical.
+   */
+  private SimplePagedResultsControl pagedResultsControl(final List<Control> controls)
+          throws LDAPException
+  {
+    for (final Control c : controls) {
+        if (!SimplePagedResultsControl.PAGED_RESULTS_OID.equals(c.getOID())) {
+            continue;
+        }
+        if (pagedSearches == null) {
+            if (c.isCritical()) {
+                throw new LDAPException(ResultCode.UNAVAILABLE_CRITICAL_EXTENSION,
+                        "Paged searches are not enabled");
+            }
+            return null;
+        }
+        try {
+            return new SimplePagedResultsControl(c.getOID(), c.isCritical(), c.getValue());
+        }
+        catch (LDAPException e) {
+            throw new LDAPException(ResultCode.PROTOCOL_ERROR, e.getMessage(), e);
+        }
+    }
+    return null;
+  }
+
+  /**
+   * @param  cookie  The cookie of the next page, or an empty cookie after the last.
+   *
+   * @return  The response controls of a page of a paged search.
+   */
+  private static List<Control> pagedResultsResponse(final ASN1OctetString cookie)
+  {
+    return Collections.<Control>singletonList(new SimplePagedResultsControl(0, cookie, false));
+  }
+
+  /**
+   * Compose the search result done message for a search whose entries
+   * have been sent
+   *
+   * @param  messageID          The message ID of the search request.
+   * @param  rc                 The result of the search.
+   * @param  diagnosticMessage  The diagnostic message, or null for the
+   *                            default of the result.
+   * @param  responseControls   The response controls, or null for none.
+   *
+   * @return  The search result done message.
+   */
+  private static LDAPMessage composeSearchResultDone(final int messageID,
+                                                     final ResultCode rc,
+                                                     final String diagnosticMessage,
+                                                     final List<Control> responseControls)
+  {
 	/*
 	 *  Compose the search result here
 	 *  based on the above search entry
@@ -462,20 +1339,246 @@ public final class CustomAuthRequestHandler
 	 *  based on the above canned result
 	 */
      
-    ResultCode rc = ResultCode.SUCCESS;
-	String diagnosticMessage = "This is a sample search message";
-	List<String> referralURLs = null;
-	String matchedDN = null;
-	
-    searchResultDoneProtocolOp = new SearchResultDoneProtocolOp(rc.intValue(), matchedDN,
-            diagnosticMessage, referralURLs);
-    
-	 } catch (Exception e) {
-		 e.printStackTrace();
-	 }
+	SearchResultDoneProtocolOp searchResultDoneProtocolOp;
+	if (diagnosticMessage == null && rc == ResultCode.SUCCESS) {
+		searchResultDoneProtocolOp = SEARCH_SUCCESS;
+	}
+	else if (diagnosticMessage == null && rc == ResultCode.SIZE_LIMIT_EXCEEDED) {
+		searchResultDoneProtocolOp = SEARCH_SIZE_LIMIT_EXCEEDED;
+	}
+	else {
+		searchResultDoneProtocolOp = new SearchResultDoneProtocolOp(rc.intValue(), null,
+				diagnosticMessage, null);
+	}
     
     return new LDAPMessage(messageID, searchResultDoneProtocolOp,
-    		Collections.<Control>emptyList());
+    		responseControls == null ? Collections.<Control>emptyList() : responseControls);
+  }
+
+  /**
+   * Send pre-encoded search result entries to the client
+   *
+   * @param  messageID  The message ID of the search request.
+   * @param  entries    The pre-encoded entries.
+   * @param  count      The number of entries to send.
+   * @param  trace      The phase timings of the search, or null.
+   */
+  private void sendSearchResultEntries(final int messageID,
+                                       final PreEncodedSearchResultEntry[] entries,
+                                       final int count,
+                                       final RequestEvents.Trace trace)
+  {
+    try
+    {
+      sendBatch(messageID, entries, count, trace);
+    }
+    catch (final Exception ex)
+    {
+      Debug.debugException(ex);
+    }
+  }
+
+  /**
+   * Take a permit for a bind or search on this connection, waiting on
+   * the connection thread while the connection has its maximum number of
+   * operations in flight. The connection reads no further requests
+   * meanwhile, which pushes back on the client through TCP flow control.
+   * The wait is bounded, so a backend that stops answering cannot stall
+   * the connection for good.
+   *
+   * @return  Whether a permit was taken; if not, the request is to be
+   *          answered with BUSY.
+   */
+  private boolean acquireInFlight()
+  {
+    if (inFlight == null || inFlight.tryAcquire()) {
+        return true;
+    }
+    metrics.inFlightLimitReached();
+    try {
+        return inFlight.tryAcquire(maxInFlightWaitMillis, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+    }
+  }
+
+  /**
+   * Return the permit of a bind or search whose response has been sent
+   */
+  private void releaseInFlight()
+  {
+    if (inFlight != null) {
+        inFlight.release();
+    }
+  }
+
+  /**
+   * Account for a deferred response that has been sent, or failed to be
+   */
+  private void completeDeferred()
+  {
+    metrics.deferredRequestCompleted();
+    releaseInFlight();
+  }
+
+  /**
+   * Send a response that completed after its request handler method
+   * returned
+   *
+   * @param  response  The response message.
+   * @param  trace     The phase timings of the request, or null.
+   */
+  private void sendResponse(final LDAPMessage response,
+                            final RequestEvents.Trace trace)
+  {
+    final long writeStart = trace == null ? 0L : System.nanoTime();
+    try
+    {
+      ResponseWriter.send(clientConnection, response);
+    }
+    catch (final Exception ex)
+    {
+      Debug.debugException(ex);
+    }
+    if (trace != null) {
+        trace.wrote(writeStart);
+    }
+  }
+
+  /**
+   * Write search result entries to the client, timing the write
+   *
+   * @param  messageID  The message ID of the search request.
+   * @param  entries    The search result entries.
+   * @param  count      The number of entries to send.
+   * @param  trace      The phase timings of the search, or null.
+   *
+   * @throws  LDAPException  If the entries cannot be written.
+   */
+  private void sendBatch(final int messageID,
+                         final ProtocolOp[] entries,
+                         final int count,
+                         final RequestEvents.Trace trace)
+         throws LDAPException
+  {
+    final long writeStart = trace == null ? 0L : System.nanoTime();
+    try {
+        if (transformEntries) {
+            for (int i = 0; i < count; i++) {
+                clientConnection.sendSearchResultEntry(messageID, searchResultEntry(entries[i]));
+            }
+        }
+        else {
+            ResponseWriter.send(clientConnection, messageID, entries, count);
+        }
+    }
+    finally {
+        if (trace != null) {
+            trace.wrote(writeStart);
+        }
+    }
+  }
+
+  /**
+   * Get a search result entry as the protocol op the connection's search
+   * entry transformers take
+   *
+   * @param  entry  A SearchResultEntryProtocolOp, or a pre-encoded one.
+   *
+   * @return  The search result entry protocol op.
+   *
+   * @throws  LDAPException  If a pre-encoded entry cannot be decoded.
+   */
+  private static SearchResultEntryProtocolOp searchResultEntry(final ProtocolOp entry)
+         throws LDAPException
+  {
+    if (entry instanceof SearchResultEntryProtocolOp) {
+        return (SearchResultEntryProtocolOp) entry;
+    }
+    return SearchResultEntryProtocolOp.decodeProtocolOp(entry.encodeProtocolOp());
+  }
+
+  /**
+   * Record a completed search in the metrics, and as a flight recorder
+   * event if it is traced
+   *
+   * @param  rc       The result of the search.
+   * @param  entries  The number of entries returned.
+   * @param  start    The System.nanoTime() at which the request was received.
+   * @param  trace    The phase timings of the search, or null.
+   */
+  private void recordSearch(final ResultCode rc,
+                            final int entries,
+                            final long start,
+                            final RequestEvents.Trace trace)
+  {
+    metrics.recordSearch(rc, entries, start);
+    commit(trace, rc, entries);
+  }
+
+  /**
+   * Stamp the time the backend answered a traced request
+   *
+   * @param  trace  The phase timings of the request, or null.
+   */
+  private static void answered(final RequestEvents.Trace trace)
+  {
+    if (trace != null) {
+        trace.answered();
+    }
+  }
+
+  /**
+   * Record a traced request as a flight recorder event
+   *
+   * @param  trace    The phase timings of the request, or null.
+   * @param  rc       The result of the request.
+   * @param  entries  The number of entries returned.
+   */
+  private static void commit(final RequestEvents.Trace trace,
+                             final ResultCode rc,
+                             final int entries)
+  {
+    if (trace != null) {
+        trace.commit(rc, entries);
+    }
+  }
+
+  /**
+   * Find the LDAP result a backend failed a request with, e.g. BUSY when
+   * it is overloaded, looking through the wrappers added by futures
+   *
+   * @param  failure  The reason a backend call failed, or null.
+   *
+   * @return  The LDAPException the backend failed with, or null if the
+   *          failure is not one.
+   */
+  private static LDAPException backendResult(Throwable failure)
+  {
+    while (failure != null) {
+        if (failure instanceof LDAPException) {
+            return (LDAPException) failure;
+        }
+        if (!(failure instanceof CompletionException) && !(failure instanceof ExecutionException)) {
+            return null;
+        }
+        failure = failure.getCause();
+    }
+    return null;
+  }
+
+  /**
+   * @param  t  The failure.
+   *
+   * @return  A future that has completed exceptionally with the failure.
+   */
+  private static <T> CompletableFuture<T> failedFuture(final Throwable t)
+  {
+    final CompletableFuture<T> f = new CompletableFuture<T>();
+    f.completeExceptionally(t);
+    return f;
   }
   
-}
\ No newline at end of file
+}
@@ -0,0 +1,184 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the user records of the {@link MockAuthSystem}
+ * and their indexes, as read by binds and by {@link CompiledFilter}.
+ *
+ * Records are indexed by normalized DN for binds, and for searches by the
+ * lower-cased value of the leading RDN (the CN or UID), by normalized group
+ * DN, and in order of the RDN values for prefix searches.
+ *
+ * A {@link HeapDirectory} holds the records and indexes on the heap, as
+ * read from a user file; a {@link MappedDirectory} reads them from a
+ * binary snapshot mapped into memory.
+ *
+ * Groups nested in other groups are resolved by the {@link GroupIndex}
+ * of the snapshot: the members of a group include the members of the
+ * groups nested in it, and the memberOf attribute of a record includes
+ * the groups its groups are nested in.
+ */
+abstract class Directory implements Cloneable {
+
+    /*
+       How groups are nested, replaced when the group file changes
+     */
+    private GroupIndex groups = GroupIndex.EMPTY;
+
+    /**
+     * @return The user records, in the order they were read
+     */
+    abstract List<MockAuthSystemEntry> records();
+
+    /**
+     * @return The number of user records
+     */
+    abstract int size();
+
+    /**
+     * @return The normalized DN of every user record
+     */
+    abstract Iterable<String> normalizedDns();
+
+    /**
+     * @param normalizedDN The normalized user DN
+     *
+     * @return The user record with that DN, or null if there is none
+     */
+    abstract MockAuthSystemEntry byDn(String normalizedDN);
+
+    /**
+     * @param cn The lower-cased value of the leading RDN
+     *
+     * @return The records with that value, or null if there are none
+     */
+    abstract MockAuthSystemEntry[] byCn(String cn);
+
+    /**
+     * @param cn The lower-cased value of the leading RDN
+     *
+     * @return The number of records with that value
+     */
+    abstract int countCn(String cn);
+
+    /**
+     * @param normalizedGroup The normalized group DN
+     *
+     * @return The direct members of the group, or null if there are none
+     */
+    abstract MockAuthSystemEntry[] directMembers(String normalizedGroup);
+
+    /**
+     * @param normalizedGroup The normalized group DN
+     *
+     * @return The number of direct members of the group
+     */
+    abstract int countDirectMembers(String normalizedGroup);
+
+    /**
+     * @param prefix A lower-cased prefix
+     *
+     * @return The number of distinct leading RDN values that start with the prefix
+     */
+    abstract int countCnPrefix(String prefix);
+
+    /**
+     * @param prefix A lower-cased prefix
+     *
+     * @return The records whose leading RDN value starts with the prefix
+     */
+    abstract List<MockAuthSystemEntry> byCnPrefix(String prefix);
+
+    /**
+     * @param group A group DN as held by the records
+     *
+     * @return The normalized group DN
+     */
+    abstract String normalizedGroup(String group);
+
+    /**
+     * @return How the groups of this snapshot are nested
+     */
+    final GroupIndex groups() {
+        return groups;
+    }
+
+    /**
+     * @param groups How groups are nested
+     *
+     * @return A snapshot of the same records with the given nesting
+     */
+    final Directory withGroups(GroupIndex groups) {
+        try {
+            Directory d = (Directory) clone();
+            d.groups = groups;
+            return d;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param normalizedGroup The normalized group DN
+     *
+     * @return The members of the group and of the groups nested in it,
+     *         or null if there are none
+     */
+    final MockAuthSystemEntry[] byGroup(String normalizedGroup) {
+        String[] nested = groups.descendants(normalizedGroup);
+        if (nested == null) {
+            return directMembers(normalizedGroup);
+        }
+        // A record may be in several of the groups
+        Set<MockAuthSystemEntry> members = new LinkedHashSet<MockAuthSystemEntry>();
+        for (String group : nested) {
+            MockAuthSystemEntry[] entries = directMembers(group);
+            if (entries != null) {
+                members.addAll(Arrays.asList(entries));
+            }
+        }
+        return members.isEmpty() ? null : members.toArray(new MockAuthSystemEntry[0]);
+    }
+
+    /**
+     * @param normalizedGroup The normalized group DN
+     *
+     * @return An upper bound on the number of members of the group and
+     *         of the groups nested in it
+     */
+    final int countGroup(String normalizedGroup) {
+        String[] nested = groups.descendants(normalizedGroup);
+        if (nested == null) {
+            return countDirectMembers(normalizedGroup);
+        }
+        int count = 0;
+        for (String group : nested) {
+            count += countDirectMembers(group);
+        }
+        return count;
+    }
+
+    /**
+     * @param m A user record of this snapshot
+     *
+     * @return The groups of the record and the groups they are nested in
+     */
+    final String[] memberOf(MockAuthSystemEntry m) {
+        return groups.memberOf(m.getGroups());
+    }
+
+    /**
+     * @param m A user record of this snapshot
+     *
+     * @return A new LDAP entry for the record, with its effective memberOf
+     */
+    final Entry entry(MockAuthSystemEntry m) {
+        return m.getEntry(memberOf(m));
+    }
+}
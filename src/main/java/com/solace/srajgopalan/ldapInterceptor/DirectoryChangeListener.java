@@ -0,0 +1,22 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.util.Collection;
+
+/**
+ * This interface is notified when the user records of a backend change,
+ * e.g. when {@link MockAuthSystem} reloads its user file, so that caches
+ * of bind outcomes and search results can drop what is stale.
+ */
+public interface DirectoryChangeListener {
+
+    /**
+     * Called after the changed records have become visible to binds and
+     * searches
+     *
+     * @param normalizedDNs The normalized DNs of the users that were added,
+     *                      removed or modified. It is empty when only the
+     *                      nesting of groups changed, which changes the
+     *                      members of a group but no user record.
+     */
+    void directoryChanged(Collection<String> normalizedDNs);
+}
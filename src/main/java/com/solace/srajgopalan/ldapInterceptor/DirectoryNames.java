@@ -0,0 +1,114 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * Helpers for comparing and splitting distinguished names
+ */
+final class DirectoryNames {
+
+    private DirectoryNames() {
+    }
+
+    /**
+     * Normalize a DN so that equivalent DNs map to the same index or cache key
+     *
+     * @param dn The DN string to normalize
+     *
+     * @return The normalized DN, or the lower-cased DN if it cannot be parsed
+     */
+    static String normalize(String dn) {
+        String simple = normalizeSimple(dn);
+        if (simple != null) {
+            return simple;
+        }
+        try {
+            return DN.normalize(dn);
+        } catch (LDAPException e) {
+            return StaticUtils.toLowerCase(dn.trim());
+        }
+    }
+
+    /**
+     * Normalize a DN without parsing it, if it is one of the usual form
+     * of bind DNs: single-valued RDNs of letters, digits, '-', '.' and '_'
+     * separated by commas, with no spaces, escapes or quotes. Such a DN
+     * normalizes to its lower-cased self, and one already in lower case
+     * is returned as is, so no allocation is needed.
+     *
+     * @param dn The DN string to normalize
+     *
+     * @return The normalized DN, or null if the DN is not of the usual form
+     */
+    private static String normalizeSimple(String dn) {
+        int n = dn.length();
+        int start = 0;
+        boolean inValue = false;
+        boolean upperCase = false;
+        for (int i = 0; i < n; i++) {
+            char c = dn.charAt(i);
+            if (c == '=') {
+                if (inValue || i == start) {
+                    return null;
+                }
+                inValue = true;
+                start = i + 1;
+            } else if (c == ',') {
+                if (!inValue || i == start) {
+                    return null;
+                }
+                inValue = false;
+                start = i + 1;
+            } else if (c >= 'A' && c <= 'Z') {
+                upperCase = true;
+            } else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_')) {
+                return null;
+            }
+        }
+        if (!inValue || start == n) {
+            return null;
+        }
+        return upperCase ? StaticUtils.toLowerCase(dn) : dn;
+    }
+
+    /**
+     * Split the leading RDN of a DN into its attribute name and value
+     * without parsing the rest of the DN. RDNs with escapes, quotes or
+     * several values are parsed in full.
+     *
+     * @param dn The DN string
+     *
+     * @return The lower-cased attribute name and the value, or null if the
+     *         DN has no leading RDN
+     */
+    static String[] leadingRdn(String dn) {
+        int comma = dn.indexOf(',');
+        int end = comma < 0 ? dn.length() : comma;
+        int equals = dn.indexOf('=');
+        boolean simple = equals > 0 && equals < end;
+        for (int i = 0; simple && i < end; i++) {
+            char c = dn.charAt(i);
+            simple = c != '\\' && c != '"' && c != '+';
+        }
+        if (simple) {
+            return new String[] {
+                    StaticUtils.toLowerCase(dn.substring(0, equals).trim()),
+                    dn.substring(equals + 1, end).trim()};
+        }
+
+        try {
+            RDN rdn = new DN(dn).getRDN();
+            if (rdn == null) {
+                return null;
+            }
+            return new String[] {
+                    StaticUtils.toLowerCase(rdn.getAttributeNames()[0]),
+                    rdn.getAttributeValues()[0]};
+        } catch (LDAPException e) {
+            return null;
+        }
+    }
+}
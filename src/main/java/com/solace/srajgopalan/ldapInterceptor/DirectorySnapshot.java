@@ -0,0 +1,468 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.util.StaticUtils;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class compiles a user file in the format of UserEntries.json into
+ * a binary directory snapshot. A {@link MappedDirectory} maps the snapshot
+ * into memory read-only and answers binds and searches from it directly,
+ * so a large directory is ready as soon as it is mapped, without parsing
+ * or indexing at startup, and the pages of the snapshot are shared by
+ * every interceptor on the host that maps it.
+ *
+ * A snapshot is a header of {@value #HEADER_SIZE} bytes followed by
+ * these sections:
+ *
+ *   - records: for each user, the string offsets of its DN, normalized
+ *     DN, lower-cased leading RDN value and password, the position of
+ *     its groups in the group lists section, and the number of the next
+ *     user with the same RDN value
+ *   - groups: for each normalized group DN, its string offset and the
+ *     range of its direct members in the members section
+ *   - members: the user numbers of the direct members of each group
+ *   - group lists: each distinct list of the groups of a user, as the
+ *     number of groups followed by the string offset of each group DN
+ *   - DN table: user numbers keyed on normalized DN
+ *   - RDN table: the first user with each leading RDN value, keyed on the value
+ *   - RDN order: the first user with each leading RDN value, in order
+ *     of the value, for prefix searches
+ *   - group table: group numbers keyed on normalized group DN
+ *   - strings: each a length followed by its UTF-8 bytes, with group DNs
+ *     and DNs that are already normalized stored once
+ *
+ * Numbers are big-endian ints. The tables use open addressing with
+ * linear probing on {@link #hash(byte[])} of the key, a power of two
+ * slots, and hold the number plus one, 0 for an empty slot. The header
+ * holds the version of the layout, the size of each section and a CRC-32
+ * of the sections.
+ *
+ * A snapshot is compiled, and its checksum verified, with
+ *
+ *     java -cp ldap-interceptor.jar com.solace.srajgopalan.ldapInterceptor.DirectorySnapshot compile UserEntries.json users.snapshot
+ *     java -cp ldap-interceptor.jar com.solace.srajgopalan.ldapInterceptor.DirectorySnapshot verify users.snapshot
+ */
+public final class DirectorySnapshot {
+
+    /*
+     * "LDSN", the first four bytes of every snapshot
+     */
+    static final int MAGIC = 0x4c44534e;
+
+    /*
+     * The version of the layout, changed whenever it changes
+     */
+    static final int VERSION = 2;
+
+    static final int HEADER_SIZE = 64;
+
+    // The fields of the header, as byte offsets
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_RECORDS = 8;
+    static final int HEADER_GROUPS = 12;
+    static final int HEADER_MEMBERS = 16;
+    static final int HEADER_DN_SLOTS = 20;
+    static final int HEADER_CN_SLOTS = 24;
+    static final int HEADER_CN_KEYS = 28;
+    static final int HEADER_GROUP_SLOTS = 32;
+    static final int HEADER_STRINGS_LENGTH = 36;
+    static final int HEADER_CHECKSUM = 40;
+    static final int HEADER_GROUP_LISTS = 48;
+
+    // The int fields of a record
+    static final int RECORD_FIELDS = 6;
+    static final int RECORD_DN = 0;
+    static final int RECORD_NORMALIZED_DN = 1;
+    static final int RECORD_CN = 2;
+    static final int RECORD_PASSWORD = 3;
+    static final int RECORD_GROUPS = 4;
+    static final int RECORD_NEXT_CN = 5;
+
+    // The int fields of a group
+    static final int GROUP_FIELDS = 3;
+    static final int GROUP_NORMALIZED_DN = 0;
+    static final int GROUP_FIRST_MEMBER = 1;
+    static final int GROUP_MEMBER_COUNT = 2;
+
+    /*
+     * The offset or number of something that is not there, e.g. the
+     * group of a user without one
+     */
+    static final int NONE = -1;
+
+    private DirectorySnapshot() {
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length == 3 && args[0].equals("compile")) {
+            long start = System.nanoTime();
+            int users = compile(Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8), Paths.get(args[2]));
+            System.out.println("Compiled " + users + " users into " + args[2] + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } else if (args.length == 2 && args[0].equals("verify")) {
+            MappedDirectory d = MappedDirectory.open(Paths.get(args[1]), true);
+            System.out.println(args[1] + ": " + d.size() + " users, checksum verified");
+        } else {
+            System.out.println("Usage: DirectorySnapshot compile <user file> <snapshot>");
+            System.out.println("       DirectorySnapshot verify <snapshot>");
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Compile the user entries into a snapshot. The snapshot is written
+     * next to its destination and then moved into place, so a running
+     * interceptor never maps a partly written snapshot.
+     *
+     * @param userEntries The JSON array of user entries, closed on return
+     * @param snapshot The path of the snapshot to write
+     *
+     * @return The number of users in the snapshot
+     *
+     * @throws IOException If the snapshot cannot be written, or its
+     *         strings would exceed 2 GB
+     */
+    public static int compile(Reader userEntries, Path snapshot) throws IOException, ParseException {
+
+        final List<MockAuthSystemEntry> users = new ArrayList<MockAuthSystemEntry>();
+        try {
+            new JSONParser().parse(userEntries, new UserEntriesHandler(users::add));
+        } finally {
+            userEntries.close();
+        }
+
+        Path directory = snapshot.toAbsolutePath().getParent();
+        Path stringsFile = Files.createTempFile(directory, snapshot.getFileName().toString(), ".strings");
+        Path snapshotFile = Files.createTempFile(directory, snapshot.getFileName().toString(), ".tmp");
+
+        try {
+            int count = users.size();
+            int[] records = new int[count * RECORD_FIELDS];
+            int[] groupListOf = new int[count];
+
+            // The last user with a DN wins, as it does in a HeapDirectory
+            Map<String, Integer> dnIds = new HashMap<String, Integer>(count * 2);
+            Map<String, Integer> cnHeads = new HashMap<String, Integer>(count * 2);
+            Map<String, Integer> cnTails = new HashMap<String, Integer>(count * 2);
+            Map<String, Integer> groupOffsets = new HashMap<String, Integer>();
+            Map<String, Integer> normalizedGroupNumbers = new HashMap<String, Integer>();
+            List<Integer> normalizedGroupOffsets = new ArrayList<Integer>();
+
+            // Each distinct list of groups, its position in the group lists
+            // section and the numbers of its distinct normalized groups
+            Map<List<String>, Integer> groupListNumbers = new HashMap<List<String>, Integer>();
+            List<Integer> groupListPositions = new ArrayList<Integer>();
+            List<int[]> groupListGroups = new ArrayList<int[]>();
+            List<Integer> groupLists = new ArrayList<Integer>();
+
+            StringHeap strings = new StringHeap(stringsFile);
+            try {
+                for (int i = 0; i < count; i++) {
+                    MockAuthSystemEntry m = users.set(i, null);
+                    int r = i * RECORD_FIELDS;
+
+                    String dn = m.getDn();
+                    String normalizedDN = DirectoryNames.normalize(dn);
+                    records[r + RECORD_DN] = strings.add(dn);
+                    records[r + RECORD_NORMALIZED_DN] = normalizedDN.equals(dn)
+                            ? records[r + RECORD_DN] : strings.add(normalizedDN);
+                    dnIds.put(normalizedDN, i);
+
+                    String[] rdn = DirectoryNames.leadingRdn(dn);
+                    records[r + RECORD_CN] = NONE;
+                    records[r + RECORD_NEXT_CN] = NONE;
+                    if (rdn != null) {
+                        String cn = StaticUtils.toLowerCase(rdn[1]);
+                        records[r + RECORD_CN] = strings.add(cn);
+                        Integer tail = cnTails.put(cn, i);
+                        if (tail == null) {
+                            cnHeads.put(cn, i);
+                        } else {
+                            records[tail * RECORD_FIELDS + RECORD_NEXT_CN] = i;
+                        }
+                    }
+
+                    records[r + RECORD_PASSWORD] = strings.add(m.getUserPassword());
+
+                    String[] groups = m.getGroups();
+                    records[r + RECORD_GROUPS] = NONE;
+                    groupListOf[i] = NONE;
+                    if (groups.length > 0) {
+                        List<String> key = Arrays.asList(groups);
+                        Integer list = groupListNumbers.get(key);
+                        if (list == null) {
+                            list = groupListPositions.size();
+                            groupListNumbers.put(key, list);
+                            groupListPositions.add(groupLists.size());
+                            groupLists.add(groups.length);
+
+                            Set<Integer> numbers = new LinkedHashSet<Integer>();
+                            for (String group : groups) {
+                                Integer offset = groupOffsets.get(group);
+                                if (offset == null) {
+                                    offset = strings.add(group);
+                                    groupOffsets.put(group, offset);
+                                }
+                                groupLists.add(offset);
+
+                                String normalizedGroup = DirectoryNames.normalize(group);
+                                Integer number = normalizedGroupNumbers.get(normalizedGroup);
+                                if (number == null) {
+                                    number = normalizedGroupOffsets.size();
+                                    normalizedGroupNumbers.put(normalizedGroup, number);
+                                    normalizedGroupOffsets.add(strings.add(normalizedGroup));
+                                }
+                                numbers.add(number);
+                            }
+                            int[] listGroups = new int[numbers.size()];
+                            int n = 0;
+                            for (Integer number : numbers) {
+                                listGroups[n++] = number;
+                            }
+                            groupListGroups.add(listGroups);
+                        }
+                        records[r + RECORD_GROUPS] = groupListPositions.get(list);
+                        groupListOf[i] = list;
+                    }
+                }
+            } finally {
+                strings.close();
+            }
+            cnTails = null;
+
+            // The direct members of each group, in the order of the users
+            int groupCount = normalizedGroupOffsets.size();
+            int[] groups = new int[groupCount * GROUP_FIELDS];
+            int memberCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (groupListOf[i] != NONE) {
+                    for (int g : groupListGroups.get(groupListOf[i])) {
+                        groups[g * GROUP_FIELDS + GROUP_MEMBER_COUNT]++;
+                        memberCount++;
+                    }
+                }
+            }
+            int first = 0;
+            for (int g = 0; g < groupCount; g++) {
+                groups[g * GROUP_FIELDS + GROUP_NORMALIZED_DN] = normalizedGroupOffsets.get(g);
+                groups[g * GROUP_FIELDS + GROUP_FIRST_MEMBER] = first;
+                first += groups[g * GROUP_FIELDS + GROUP_MEMBER_COUNT];
+            }
+            int[] members = new int[memberCount];
+            int[] filled = new int[groupCount];
+            for (int i = 0; i < count; i++) {
+                if (groupListOf[i] != NONE) {
+                    for (int g : groupListGroups.get(groupListOf[i])) {
+                        members[groups[g * GROUP_FIELDS + GROUP_FIRST_MEMBER] + filled[g]++] = i;
+                    }
+                }
+            }
+            int[] lists = new int[groupLists.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = groupLists.get(i);
+            }
+
+            int[] dnTable = table(dnIds);
+            dnIds = null;
+            int[] cnTable = table(cnHeads);
+            int[] groupTable = table(normalizedGroupNumbers);
+
+            String[] cns = cnHeads.keySet().toArray(new String[0]);
+            Arrays.sort(cns);
+            int[] cnOrder = new int[cns.length];
+            for (int i = 0; i < cns.length; i++) {
+                cnOrder[i] = cnHeads.get(cns[i]);
+            }
+
+            try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.WRITE);
+                 FileChannel stringChannel = FileChannel.open(stringsFile, StandardOpenOption.READ)) {
+
+                Output out = new Output(channel);
+                out.putInts(records);
+                out.putInts(groups);
+                out.putInts(members);
+                out.putInts(lists);
+                out.putInts(dnTable);
+                out.putInts(cnTable);
+                out.putInts(cnOrder);
+                out.putInts(groupTable);
+                out.copy(stringChannel);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(HEADER_MAGIC, MAGIC);
+                header.putInt(HEADER_VERSION, VERSION);
+                header.putInt(HEADER_RECORDS, count);
+                header.putInt(HEADER_GROUPS, groupCount);
+                header.putInt(HEADER_MEMBERS, memberCount);
+                header.putInt(HEADER_DN_SLOTS, dnTable.length);
+                header.putInt(HEADER_CN_SLOTS, cnTable.length);
+                header.putInt(HEADER_CN_KEYS, cnOrder.length);
+                header.putInt(HEADER_GROUP_SLOTS, groupTable.length);
+                header.putInt(HEADER_STRINGS_LENGTH, strings.length());
+                header.putInt(HEADER_GROUP_LISTS, lists.length);
+                header.putLong(HEADER_CHECKSUM, out.checksum());
+                long position = 0;
+                while (header.hasRemaining()) {
+                    position += channel.write(header, position);
+                }
+                channel.force(true);
+            }
+
+            try {
+                Files.move(snapshotFile, snapshot, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(snapshotFile, snapshot, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return count;
+        } finally {
+            Files.deleteIfExists(stringsFile);
+            Files.deleteIfExists(snapshotFile);
+        }
+    }
+
+    /**
+     * The hash of a key of the DN, RDN and group tables
+     *
+     * @param key The UTF-8 bytes of the key
+     *
+     * @return The 32-bit FNV-1a hash of the key, with its high bits folded
+     *         into the low bits that select the slot
+     */
+    static int hash(byte[] key) {
+        int h = 0x811c9dc5;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Build an open addressing table of the numbers keyed on the strings,
+     * at most half full
+     */
+    private static int[] table(Map<String, Integer> keys) {
+        int slots = 2;
+        while (slots < keys.size() * 2) {
+            slots <<= 1;
+        }
+        int mask = slots - 1;
+        int[] table = new int[slots];
+        for (Map.Entry<String, Integer> e : keys.entrySet()) {
+            int i = hash(e.getKey().getBytes(StandardCharsets.UTF_8)) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = e.getValue() + 1;
+        }
+        return table;
+    }
+
+    /*
+     * Writes the strings section to a file of its own, as the offsets of
+     * the strings are needed before the sections that precede it
+     */
+    private static final class StringHeap implements Closeable {
+        private final DataOutputStream out;
+        private long length;
+
+        StringHeap(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        }
+
+        /**
+         * @return The offset of the string in the section
+         */
+        int add(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (length + 4 + bytes.length > Integer.MAX_VALUE) {
+                throw new IOException("The strings of the directory exceed the 2 GB a snapshot can hold");
+            }
+            int offset = (int) length;
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            length += 4 + bytes.length;
+            return offset;
+        }
+
+        int length() {
+            return (int) length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /*
+     * Writes the sections after the header, keeping their checksum
+     */
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private final CRC32 checksum = new CRC32();
+
+        Output(FileChannel channel) throws IOException {
+            this.channel = channel;
+            channel.position(HEADER_SIZE);
+        }
+
+        void putInts(int[] values) throws IOException {
+            for (int value : values) {
+                if (buffer.remaining() < 4) {
+                    flush();
+                }
+                buffer.putInt(value);
+            }
+        }
+
+        void copy(FileChannel from) throws IOException {
+            while (from.read(buffer) >= 0) {
+                flush();
+            }
+            flush();
+        }
+
+        long checksum() throws IOException {
+            flush();
+            return checksum.getValue();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            checksum.update(buffer.array(), 0, buffer.limit());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * This class wraps an {@link AuthBackend} whose calls may block, e.g. an
+ * implementation that calls a remote system synchronously, and makes
+ * every call on an executor so the LDAP connection thread is free to read
+ * the next request while the backend works.
+ *
+ * Two executors are provided:
+ *
+ *   - a fixed pool of platform threads with a bounded queue, which answers
+ *     BUSY when the queue is full
+ *   - a virtual thread per call, on Java 21 and later, so a blocked
+ *     backend call costs a few hundred bytes rather than a thread stack
+ */
+public final class ExecutorAuthBackend implements AuthBackend {
+
+    private final AuthBackend backend;
+    private final ExecutorService executor;
+
+    /**
+     * @param backend The backend to call
+     * @param executor The executor to make the calls on, closed with this backend
+     */
+    public ExecutorAuthBackend(AuthBackend backend, ExecutorService executor) {
+        this.backend = backend;
+        this.executor = executor;
+    }
+
+    /**
+     * Create a fixed pool of daemon threads with a bounded queue
+     *
+     * @param threads The number of threads
+     * @param queueSize The number of calls that may wait for a thread
+     *
+     * @return The executor
+     */
+    public static ExecutorService newBoundedPool(int threads, int queueSize) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), r -> {
+                    Thread t = new Thread(r, "AuthBackend-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Create an executor that starts a virtual thread per call
+     *
+     * @return The executor
+     *
+     * @throws UnsupportedOperationException If the JVM has no virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        // Looked up reflectively, as the interceptor is built for Java 8
+        try {
+            return (ExecutorService) java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads require Java 21 or later, running on " + System.getProperty("java.version"), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> authenticate(final String dn, final String password) {
+        return submit(() -> backend.authenticate(dn, password));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(final String baseDN, final Filter filter) {
+        return search(baseDN, filter, 0, 0L);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(final String baseDN, final Filter filter,
+                                                 final int maxEntries, final long timeLimitMillis) {
+        return submit(() -> backend.search(baseDN, filter, maxEntries, timeLimitMillis));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(final String baseDN, final Filter filter,
+                                                 final long timeLimitMillis) {
+        return stream(baseDN, SearchScope.SUB, filter, timeLimitMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(final String baseDN, final SearchScope scope,
+                                                 final Filter filter, final long timeLimitMillis) {
+        return submit(() -> backend.stream(baseDN, scope, filter, timeLimitMillis));
+    }
+
+    private <T> CompletableFuture<T> submit(final Supplier<CompletableFuture<T>> call) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        try {
+            executor.execute(() -> {
+                try {
+                    call.get().whenComplete((value, failure) -> {
+                        if (failure != null) {
+                            result.completeExceptionally(failure);
+                        } else {
+                            result.complete(value);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new LDAPException(ResultCode.BUSY,
+                    "Too many requests are waiting for the backend"));
+        }
+        return result;
+    }
+
+    /**
+     * Stop the executor and close the wrapped backend
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        backend.close();
+    }
+
+    /**
+     * @return The wrapped backend
+     */
+    public AuthBackend getBackend() {
+        return backend;
+    }
+}
@@ -0,0 +1,296 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This class resolves nested group membership. Groups may be members of
+ * other groups, as defined by a group file in the format of
+ * UserEntries.json whose entries are groups, e.g.
+ *
+ *     {
+ *       "dn": "cn=publishers,ou=groups,dc=solace,dc=com",
+ *       "group": ["cn=clients,ou=groups,dc=solace,dc=com"]
+ *     }
+ *
+ * The index holds the transitive closure of the nesting: for each group,
+ * the groups it is nested in and the groups nested in it, directly or
+ * not. The effective memberOf of a user and the effective members of a
+ * group are then read without following the nesting on each request.
+ * Cycles are allowed; each group of a cycle is nested in the others.
+ *
+ * An index is immutable. {@link #update} builds the index of new group
+ * definitions, recomputing only the closures of the groups whose nesting
+ * changed and of the groups nested in or above them, and sharing the rest.
+ */
+final class GroupIndex {
+
+    /**
+     * The index of a directory without a group file, in which no group
+     * is nested in another
+     */
+    static final GroupIndex EMPTY = new GroupIndex(
+            Collections.<String, String>emptyMap(),
+            Collections.<String, Set<String>>emptyMap(),
+            Collections.<String, Set<String>>emptyMap(),
+            Collections.<String, String[]>emptyMap(),
+            Collections.<String, String[]>emptyMap(),
+            Collections.<String>emptySet());
+
+    // The most distinct sets of direct groups whose effective groups are kept
+    private static final int MAX_CACHED_SETS = 100000;
+
+    /*
+       The DN of each group as given, keyed on its normalized DN
+     */
+    private final Map<String, String> names;
+
+    /*
+       The normalized DNs of the groups each group is directly nested in
+     */
+    private final Map<String, Set<String>> parents;
+
+    /*
+       The normalized DNs of the groups directly nested in each group
+     */
+    private final Map<String, Set<String>> children;
+
+    /*
+       The DNs of the groups each nested group is in, directly or not,
+       keyed on its normalized DN
+     */
+    private final Map<String, String[]> ancestors;
+
+    /*
+       The normalized DNs of each group holding nested groups and of the
+       groups nested in it, directly or not
+     */
+    private final Map<String, String[]> descendants;
+
+    /*
+       The normalized DNs of the groups whose ancestors changed in the
+       update that built this index
+     */
+    private final Set<String> changed;
+
+    /*
+       The effective groups of each set of direct groups seen so far
+     */
+    private final ConcurrentMap<List<String>, String[]> effectiveGroups =
+            new ConcurrentHashMap<List<String>, String[]>();
+
+    private GroupIndex(Map<String, String> names, Map<String, Set<String>> parents,
+                       Map<String, Set<String>> children, Map<String, String[]> ancestors,
+                       Map<String, String[]> descendants, Set<String> changed) {
+        this.names = names;
+        this.parents = parents;
+        this.children = children;
+        this.ancestors = ancestors;
+        this.descendants = descendants;
+        this.changed = changed;
+    }
+
+    /**
+     * Build the index of new group definitions from this one
+     *
+     * @param definitions The groups, each with the DN of the group and the
+     *                    DNs of the groups it is directly nested in
+     *
+     * @return The new index
+     */
+    GroupIndex update(Collection<MockAuthSystemEntry> definitions) {
+
+        Map<String, String> names = new HashMap<String, String>();
+        Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+        for (MockAuthSystemEntry definition : definitions) {
+            String dn = definition.getDn();
+            String group = DirectoryNames.normalize(dn);
+            names.put(group, dn);
+            Set<String> groupParents = parents.get(group);
+            if (groupParents == null) {
+                groupParents = new LinkedHashSet<String>();
+                parents.put(group, groupParents);
+            }
+            for (String parent : definition.getGroups()) {
+                String normalizedParent = DirectoryNames.normalize(parent);
+                if (!names.containsKey(normalizedParent)) {
+                    names.put(normalizedParent, parent);
+                }
+                if (!normalizedParent.equals(group)) {
+                    groupParents.add(normalizedParent);
+                }
+            }
+        }
+
+        Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, Set<String>> e : parents.entrySet()) {
+            for (String parent : e.getValue()) {
+                Set<String> parentChildren = children.get(parent);
+                if (parentChildren == null) {
+                    parentChildren = new LinkedHashSet<String>();
+                    children.put(parent, parentChildren);
+                }
+                parentChildren.add(e.getKey());
+            }
+        }
+
+        // The groups whose parents or DN changed
+        Set<String> moved = new HashSet<String>();
+        Set<String> all = new HashSet<String>(this.names.keySet());
+        all.addAll(names.keySet());
+        for (String group : all) {
+            if (!edges(this.parents, group).equals(edges(parents, group))
+                    || !String.valueOf(this.names.get(group)).equals(String.valueOf(names.get(group)))) {
+                moved.add(group);
+            }
+        }
+
+        // The ancestors of the moved groups, and of the groups nested in
+        // them, may have changed, and so may the descendants of the groups
+        // they were or are nested in
+        Set<String> below = new HashSet<String>();
+        Set<String> above = new HashSet<String>();
+        for (String group : moved) {
+            below.addAll(reachable(group, this.children));
+            below.addAll(reachable(group, children));
+            above.addAll(reachable(group, this.parents));
+            above.addAll(reachable(group, parents));
+        }
+
+        Map<String, String[]> ancestors = new HashMap<String, String[]>(this.ancestors);
+        Set<String> changed = new HashSet<String>();
+        for (String group : below) {
+            Set<String> reached = reachable(group, parents);
+            reached.remove(group);
+            String[] groupAncestors = new String[reached.size()];
+            int i = 0;
+            for (String ancestor : reached) {
+                groupAncestors[i++] = names.get(ancestor);
+            }
+            String[] old = groupAncestors.length == 0
+                    ? ancestors.remove(group) : ancestors.put(group, groupAncestors);
+            if (!Arrays.equals(old == null ? MockAuthSystemEntry.NO_GROUPS : old, groupAncestors)) {
+                changed.add(group);
+            }
+        }
+
+        Map<String, String[]> descendants = new HashMap<String, String[]>(this.descendants);
+        for (String group : above) {
+            Set<String> reached = reachable(group, children);
+            if (reached.size() == 1) {
+                descendants.remove(group);
+            } else {
+                descendants.put(group, reached.toArray(new String[0]));
+            }
+        }
+
+        return new GroupIndex(names, parents, children, ancestors, descendants,
+                Collections.unmodifiableSet(changed));
+    }
+
+    /**
+     * The effective groups of a record: its direct groups followed by the
+     * groups they are nested in, without repeats. The result for each set
+     * of direct groups is kept, so it is resolved once.
+     *
+     * @param direct The groups the record is a direct member of
+     *
+     * @return The effective groups, which must not be modified
+     */
+    String[] memberOf(String[] direct) {
+        if (direct.length == 0 || ancestors.isEmpty()) {
+            return direct;
+        }
+        List<String> key = Arrays.asList(direct);
+        String[] memberOf = effectiveGroups.get(key);
+        if (memberOf == null) {
+            memberOf = resolve(direct);
+            if (effectiveGroups.size() < MAX_CACHED_SETS) {
+                effectiveGroups.putIfAbsent(key, memberOf);
+            }
+        }
+        return memberOf;
+    }
+
+    /**
+     * @param normalizedGroup The normalized group DN
+     *
+     * @return The normalized DNs of the group and of the groups nested in
+     *         it, directly or not, or null if no group is nested in it
+     */
+    String[] descendants(String normalizedGroup) {
+        return descendants.get(normalizedGroup);
+    }
+
+    /**
+     * @return The normalized DNs of the groups whose ancestors changed in
+     *         the update that built this index, so whose members'
+     *         effective groups changed
+     */
+    Set<String> changed() {
+        return changed;
+    }
+
+    /**
+     * @return The number of groups defined or referred to
+     */
+    int size() {
+        return names.size();
+    }
+
+    private String[] resolve(String[] direct) {
+        Set<String> seen = new HashSet<String>();
+        List<String> memberOf = new ArrayList<String>();
+        for (String group : direct) {
+            if (seen.add(DirectoryNames.normalize(group))) {
+                memberOf.add(group);
+            }
+        }
+        for (String group : direct) {
+            String[] groupAncestors = ancestors.get(DirectoryNames.normalize(group));
+            if (groupAncestors != null) {
+                for (String ancestor : groupAncestors) {
+                    if (seen.add(DirectoryNames.normalize(ancestor))) {
+                        memberOf.add(ancestor);
+                    }
+                }
+            }
+        }
+        return memberOf.size() == direct.length ? direct : memberOf.toArray(new String[0]);
+    }
+
+    private static Set<String> edges(Map<String, Set<String>> edges, String group) {
+        Set<String> groups = edges.get(group);
+        return groups == null ? Collections.<String>emptySet() : groups;
+    }
+
+    /*
+     * The group and every group reached from it by following the edges
+     */
+    private static Set<String> reachable(String group, Map<String, Set<String>> edges) {
+        Set<String> reached = new LinkedHashSet<String>();
+        Deque<String> pending = new ArrayDeque<String>();
+        reached.add(group);
+        pending.add(group);
+        while (!pending.isEmpty()) {
+            for (String next : edges(edges, pending.remove())) {
+                if (reached.add(next)) {
+                    pending.add(next);
+                }
+            }
+        }
+        return reached;
+    }
+}
@@ -0,0 +1,206 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.util.StaticUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link Directory} held on the heap. It is built by adding records one
+ * at a time and is then finished, after which it is only read.
+ *
+ * The prefix index is a sorted array of the RDN values.
+ */
+final class HeapDirectory extends Directory {
+
+    /*
+       The list of user records
+     */
+    private final ArrayList<MockAuthSystemEntry> userList = new ArrayList<MockAuthSystemEntry>();
+
+    /*
+       The user records keyed on normalized DN
+     */
+    private final Map<String, MockAuthSystemEntry> dnIndex = new HashMap<String, MockAuthSystemEntry>();
+
+    /*
+       The user records keyed on the lower-cased value of the leading RDN
+     */
+    private final Map<String, MockAuthSystemEntry[]> cnIndex = new HashMap<String, MockAuthSystemEntry[]>();
+
+    /*
+       The direct members of each group keyed on normalized group DN
+     */
+    private Map<String, MockAuthSystemEntry[]> groupIndex;
+
+    /*
+       The normalized DN of each group, keyed on the group DN as it is
+       shared between the records of its members
+     */
+    private final Map<String, String> normalizedGroups = new HashMap<String, String>();
+
+    /*
+       The keys of the CN index in order, for prefix searches
+     */
+    private String[] sortedCns;
+
+    // The members of each group while the snapshot is built
+    private Map<String, List<MockAuthSystemEntry>> groupMembers = new HashMap<String, List<MockAuthSystemEntry>>();
+
+    /**
+     * Add a user record to the indexes
+     *
+     * @param m The user record to index
+     */
+    void add(MockAuthSystemEntry m) {
+
+        userList.add(m);
+
+        String dn = m.getDn();
+        String normalizedDN;
+        String cn = null;
+
+        // Parse the DN once for both index keys
+        try {
+            DN parsed = new DN(dn);
+            normalizedDN = parsed.toNormalizedString();
+            RDN rdn = parsed.getRDN();
+            if (rdn != null) {
+                cn = StaticUtils.toLowerCase(rdn.getAttributeValues()[0]);
+            }
+        } catch (LDAPException e) {
+            normalizedDN = DirectoryNames.normalize(dn);
+        }
+
+        dnIndex.put(normalizedDN, m);
+
+        if (cn != null) {
+            MockAuthSystemEntry[] entries = cnIndex.get(cn);
+            if (entries == null) {
+                entries = new MockAuthSystemEntry[] {m};
+            } else {
+                entries = Arrays.copyOf(entries, entries.length + 1);
+                entries[entries.length - 1] = m;
+            }
+            cnIndex.put(cn, entries);
+        }
+
+        for (String group : m.getGroups()) {
+            String normalizedGroup = normalizedGroups.get(group);
+            if (normalizedGroup == null) {
+                normalizedGroup = DirectoryNames.normalize(group);
+                normalizedGroups.put(group, normalizedGroup);
+            }
+            List<MockAuthSystemEntry> members = groupMembers.get(normalizedGroup);
+            if (members == null) {
+                members = new ArrayList<MockAuthSystemEntry>();
+                groupMembers.put(normalizedGroup, members);
+            }
+            // Two of the record's group DNs may be the same group
+            if (members.isEmpty() || members.get(members.size() - 1) != m) {
+                members.add(m);
+            }
+        }
+    }
+
+    /**
+     * Complete the indexes once every record has been added
+     *
+     * @return This snapshot
+     */
+    HeapDirectory finish() {
+
+        userList.trimToSize();
+
+        groupIndex = new HashMap<String, MockAuthSystemEntry[]>(groupMembers.size() * 2);
+        for (Map.Entry<String, List<MockAuthSystemEntry>> e : groupMembers.entrySet()) {
+            groupIndex.put(e.getKey(), e.getValue().toArray(new MockAuthSystemEntry[0]));
+        }
+        groupMembers = null;
+
+        sortedCns = cnIndex.keySet().toArray(new String[0]);
+        Arrays.sort(sortedCns);
+        return this;
+    }
+
+    @Override
+    List<MockAuthSystemEntry> records() {
+        return userList;
+    }
+
+    @Override
+    int size() {
+        return userList.size();
+    }
+
+    @Override
+    Iterable<String> normalizedDns() {
+        return dnIndex.keySet();
+    }
+
+    @Override
+    MockAuthSystemEntry byDn(String normalizedDN) {
+        return dnIndex.get(normalizedDN);
+    }
+
+    @Override
+    MockAuthSystemEntry[] byCn(String cn) {
+        return cnIndex.get(cn);
+    }
+
+    @Override
+    int countCn(String cn) {
+        MockAuthSystemEntry[] entries = cnIndex.get(cn);
+        return entries == null ? 0 : entries.length;
+    }
+
+    @Override
+    MockAuthSystemEntry[] directMembers(String normalizedGroup) {
+        return groupIndex.get(normalizedGroup);
+    }
+
+    @Override
+    int countDirectMembers(String normalizedGroup) {
+        MockAuthSystemEntry[] entries = groupIndex.get(normalizedGroup);
+        return entries == null ? 0 : entries.length;
+    }
+
+    @Override
+    int countCnPrefix(String prefix) {
+        return prefixEnd(prefix) - prefixStart(prefix);
+    }
+
+    @Override
+    List<MockAuthSystemEntry> byCnPrefix(String prefix) {
+        int end = prefixEnd(prefix);
+        List<MockAuthSystemEntry> entries = new ArrayList<MockAuthSystemEntry>();
+        for (int i = prefixStart(prefix); i < end; i++) {
+            entries.addAll(Arrays.asList(cnIndex.get(sortedCns[i])));
+        }
+        return entries;
+    }
+
+    @Override
+    String normalizedGroup(String group) {
+        String normalized = normalizedGroups.get(group);
+        return normalized != null ? normalized : DirectoryNames.normalize(group);
+    }
+
+    private int prefixStart(String prefix) {
+        int i = Arrays.binarySearch(sortedCns, prefix);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private int prefixEnd(String prefix) {
+        // Every value starting with the prefix sorts before the prefix
+        // followed by the highest character
+        int i = Arrays.binarySearch(sortedCns, prefix + Character.MAX_VALUE);
+        return i >= 0 ? i : -i - 1;
+    }
+}
@@ -7,11 +7,41 @@ import com.unboundid.ldap.listener.LDAPListenerConfig;
 import com.unboundid.ldap.listener.LDAPListenerRequestHandler;
 import com.unboundid.util.MinimalLogFormatter;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.ServerSocketFactory;
 
 public class Interceptor {
+
+    /**
+     * How requests are logged
+     */
+    public enum Mode {
+        /**
+         * Every request and response is traced through LDAPDebuggerRequestHandler
+         */
+        DEBUG,
+
+        /**
+         * No debugger wrapper; only warnings are logged unless the log
+         * level is lowered at runtime
+         */
+        PRODUCTION
+    }
+
     LDAPDebuggerShutdownListener shutdownListener;
 
 	public static void main(String[] args) throws Exception {
@@ -19,56 +49,334 @@ public class Interceptor {
 		Interceptor ic = new Interceptor();
 		
 		
-		if (args == null || args.length != 1) {
+		if (args == null || args.length < 1) {
 		
-			System.out.println("Usage: Interceptor [port]");
+			System.out.println("Usage: Interceptor [port] [name=value ...]");
+			System.out.println();
+			System.out.println("Settings:");
+			System.out.println("  mode=debug|production             Trace every request, or run without the debugger (default debug)");
+			System.out.println("  log.level=<level>                 The initial log level (default FINE, WARNING in production)");
+			System.out.println("  log.queueSize=n                   Log records queued before dropping (default 8192)");
+			System.out.println("  backend=mock|ldap|<AuthBackend class> The backend authentication system (default mock)");
+			System.out.println("  searchMatchMode=EXACT|SUBSTRING   How the mock backend matches search tokens");
+			System.out.println("  searchScan.parallel=true|false    Walk the records on several threads for unindexed filters (default false)");
+			System.out.println("  searchLimits.sizeLimit=n          The most entries a search may return, 0 for no limit (default 0)");
+			System.out.println("  searchLimits.timeLimitSeconds=n   The longest a search may take, 0 for no limit (default 0)");
+			System.out.println("  pagedSearch.enabled=true|false    Support the Simple Paged Results control (default true)");
+			System.out.println("  pagedSearch.maxOpen=n             Paged searches kept open between pages (default 1000)");
+			System.out.println("  pagedSearch.idleTimeoutMillis=n   How long a paged search waits for its next page (default 60000)");
+			System.out.println("  userFile=<path>                   The mock backend's user file (default UserEntries.json on the classpath)");
+			System.out.println("  userFile.watch=true|false         Reload the user file when it changes (default true)");
+			System.out.println("  userFile.settleMillis=n           How long the user file must be unchanged before a reload (default 500)");
+			System.out.println("  groupFile=<path>                  Nest groups in other groups as defined by a group file (default none)");
+			System.out.println("  groupFile.watch=true|false        Reload the group file when it changes (default true)");
+			System.out.println("  groupFile.settleMillis=n          How long the group file must be unchanged before a reload (default 500)");
+			System.out.println("  snapshotFile=<path>               Map a compiled directory snapshot instead of reading a user file (default none)");
+			System.out.println("  snapshotFile.verify=true|false    Check the snapshot's checksum at startup, reading all of it (default false)");
+			System.out.println("  passwordVerify.threads=n          Threads verifying hashed passwords (default one per core)");
+			System.out.println("  passwordVerify.queueSize=n        Binds that may wait for verification before BUSY (default 1024)");
+			System.out.println("  upstream.servers=host[:port],...  The upstream LDAP servers of the ldap backend");
+			System.out.println("  upstream.serverSelection=round_robin|fewest_connections How connections are spread over the servers (default round_robin)");
+			System.out.println("  upstream.ssl=true|false           Connect to the upstream servers over SSL (default false)");
+			System.out.println("  upstream.bindDN=<dn>              The identity of the search connections (default anonymous)");
+			System.out.println("  upstream.bindPassword=<password>  The password of upstream.bindDN");
+			System.out.println("  upstream.baseDN=<dn>              Search the upstream under this base instead of the request's (default none)");
+			System.out.println("  upstream.attributes=a,b,...       The attributes asked of the upstream (default *,memberOf)");
+			System.out.println("  upstream.searchPool.initialConnections=n Search connections opened at startup (default 1)");
+			System.out.println("  upstream.searchPool.maxConnections=n     The most search connections (default 10)");
+			System.out.println("  upstream.bindPool.initialConnections=n   Bind connections opened at startup (default 1)");
+			System.out.println("  upstream.bindPool.maxConnections=n       The most bind connections (default 10)");
+			System.out.println("  upstream.pool.maxWaitMillis=n     How long a call waits for a pooled connection (default 1000)");
+			System.out.println("  upstream.connectTimeoutMillis=n   How long connecting to an upstream server may take (default 5000)");
+			System.out.println("  upstream.responseTimeoutMillis=n  How long an upstream operation may take (default 5000)");
+			System.out.println("  upstream.healthCheck.intervalMillis=n     How often pooled connections are checked (default 10000)");
+			System.out.println("  upstream.healthCheck.entryDN=<dn>         The entry read to check a connection (default the root DSE)");
+			System.out.println("  upstream.healthCheck.maxResponseMillis=n  How long the check may take (default 2000)");
+			System.out.println("  execution=connection|pool|virtual Where backend calls run: the connection thread, a bounded pool or virtual threads (default connection, pool for backend=ldap)");
+			System.out.println("  execution.threads=n               Threads of the pool execution model (default 64)");
+			System.out.println("  execution.queueSize=n             Backend calls that may wait for a pool thread before BUSY (default 1024)");
+			System.out.println("  listen=[address:]port,...         Further endpoints to listen on, besides the port (default none)");
+			System.out.println("  listener.count=n                  Listeners per endpoint, sharing its port through SO_REUSEPORT (default 1)");
+			System.out.println("  connection.maxInFlight=n          Binds and searches of a connection in flight at once in production mode, 0 for no limit (default 64)");
+			System.out.println("  connection.maxInFlightWaitMillis=n  How long a request at the in flight limit waits before BUSY (default 1000)");
+			System.out.println("  listener.maxConnections=n         The maximum number of client connections per listener, 0 for no limit (default 0)");
+			System.out.println("  listener.backlog=n                The TCP accept backlog (default 128)");
+			System.out.println("  listener.tcpNoDelay=true|false    Disable Nagle's algorithm on client connections (default true)");
+			System.out.println("  listener.keepAlive=true|false     Enable TCP keepalive on client connections (default true)");
+			System.out.println("  listener.receiveBufferSize=n      Socket receive buffer size in bytes, 0 for the OS default (default 0)");
+			System.out.println("  listener.sendBufferSize=n         Socket send buffer size in bytes, 0 for the OS default (default 0)");
+			System.out.println("  bindRateLimit.client.rate=n       Binds per second allowed from each client address, 0 for no limit (default 0)");
+			System.out.println("  bindRateLimit.client.burst=n      Binds a client address may make at once (default 20)");
+			System.out.println("  bindRateLimit.dn.rate=n           Binds per second allowed for each DN, 0 for no limit (default 0)");
+			System.out.println("  bindRateLimit.dn.burst=n          Binds for a DN allowed at once (default 5)");
+			System.out.println("  bindRateLimit.maxKeys=n           Client addresses and DNs the limits track (default 100000)");
+			System.out.println("  circuitBreaker.enabled=true|false Fail backend calls at once while the backend is failing (default true)");
+			System.out.println("  circuitBreaker.timeoutMillis=n    How long a backend call may take (default 5000)");
+			System.out.println("  circuitBreaker.failureThreshold=n Consecutive failures that open the breaker (default 5)");
+			System.out.println("  circuitBreaker.openMillis=n       How long the breaker stays open before a probe (default 5000)");
+			System.out.println("  coalescing.enabled=true|false     Share in-flight backend calls between identical requests (default true)");
+			System.out.println("  bindCache.enabled=true|false      Cache bind outcomes (default true)");
+			System.out.println("  bindCache.positiveTtlMillis=n     How long successful binds are cached (default 60000)");
+			System.out.println("  bindCache.negativeTtlMillis=n     How long failed binds are cached (default 5000)");
+			System.out.println("  bindCache.staleTtlMillis=n        How long expired binds may answer while the backend is down (default 0)");
+			System.out.println("  bindCache.maxEntries=n            The maximum number of cached binds (default 100000)");
+			System.out.println("  searchCache.enabled=true|false    Cache pre-encoded search results (default true)");
+			System.out.println("  searchCache.ttlMillis=n           How long search results are cached (default 60000)");
+			System.out.println("  searchCache.maxEntries=n          The maximum number of cached searches (default 100000)");
+			System.out.println("  searchCache.maxSearchEntries=n    The most entries a search may return and still be cached (default 1000)");
+			System.out.println("  metrics.jmx=true|false            Register the metrics MBean (default true)");
+			System.out.println("  metrics.httpPort=n                Serve Prometheus metrics at /metrics on this port (default off)");
+			System.out.println("  metrics.httpAddress=<address>     The address the metrics endpoint listens on (default 127.0.0.1)");
+			System.out.println("  jfr.enabled=true|false            Record binds and searches as flight recorder events, when the JVM has JFR (default true)");
+			System.out.println("  jfr.sampleRate=f                  The fraction of binds and searches recorded, 0 to 1 (default 1)");
+			System.out.println("  jfr.bind.thresholdMillis=n        Record only binds slower than this (default 0)");
+			System.out.println("  jfr.search.thresholdMillis=n      Record only searches slower than this (default 0)");
+			System.out.println("  jfr.dnSalt=<salt>                 The salt of the DN and filter hashes in events (default random per run)");
 			System.out.println();
             System.exit(-1);
 		}
 		
-		ic.runInterceptor(Integer.parseInt( args[0] ));
+		ic.runInterceptor(Integer.parseInt( args[0] ), InterceptorConfig.fromArgs(args, 1));
 		
 	}
 
 	public void runInterceptor(int port) throws Exception {
+		runInterceptor(port, InterceptorConfig.fromArgs(new String[0], 0));
+	}
+
+	public void runInterceptor(int port, InterceptorConfig config) throws Exception {
+		// In production mode requests are not traced by the debugger
+		// handler and only warnings are logged, unless the level of the
+		// interceptor's logger is lowered at runtime
+		boolean production = config.getEnum("mode", Mode.class, Mode.DEBUG) == Mode.PRODUCTION;
+
+		final Handler consoleHandler = new ConsoleHandler();
+		consoleHandler.setLevel(Level.ALL);
+		consoleHandler.setFormatter(new MinimalLogFormatter(
+				MinimalLogFormatter.DEFAULT_TIMESTAMP_FORMAT, false, false, true));
+
+		// Log records are written to the console by a background thread,
+		// and dropped rather than waited for if it falls behind
+		final AsyncLogHandler logHandler =
+				new AsyncLogHandler(consoleHandler, config.getInt("log.queueSize", 8192));
+		logHandler.setLevel(Level.ALL);
+
+		Logger logger = Logger.getLogger(Interceptor.class.getPackage().getName());
+		logger.setUseParentHandlers(false);
+		logger.addHandler(logHandler);
+		logger.setLevel(Level.parse(config.getString("log.level", production ? "WARNING" : "FINE")));
+
+		// Request counts and latencies, shared by every connection
+		InterceptorMetrics metrics = new InterceptorMetrics();
+
+		SearchResponseCache searchResponseCache = null;
+		List<DirectoryChangeListener> changeListeners = new ArrayList<DirectoryChangeListener>();
+		if (config.getBoolean("searchCache.enabled", true)) {
+			searchResponseCache = new SearchResponseCache(
+					config.getLong("searchCache.ttlMillis", 60000L),
+					config.getInt("searchCache.maxEntries", 100000),
+					config.getInt("searchCache.maxSearchEntries", 1000));
+			metrics.setSearchResponseCache(searchResponseCache);
+			changeListeners.add(searchResponseCache);
+		}
+
+		// Create the backend authentication system that binds
+		// and searches are validated against. Cached searches are
+		// dropped whenever the backend reloads its users
+		AuthBackend authBackend = AuthBackendFactory.create(config, metrics,
+				changeListeners.toArray(new DirectoryChangeListener[0]));
+
+		List<Closeable> resources = new ArrayList<Closeable>();
+		resources.add(authBackend);
+
+		if (config.getBoolean("metrics.jmx", true)) {
+			final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName metricsName = new ObjectName(InterceptorMetrics.OBJECT_NAME);
+			mbeanServer.registerMBean(metrics, metricsName);
+			resources.add(() -> {
+				try {
+					mbeanServer.unregisterMBean(metricsName);
+				} catch (JMException e) {
+					// Already unregistered
+				}
+			});
+		}
+
+		int metricsPort = config.getInt("metrics.httpPort", -1);
+		if (metricsPort >= 0) {
+			MetricsHttpServer metricsServer = new MetricsHttpServer(
+					config.getString("metrics.httpAddress", "127.0.0.1"), metricsPort, metrics);
+			resources.add(metricsServer);
+			System.out.println("Serving metrics on port " + metricsServer.getPort());
+		}
+
 		// Create an instance of our Custom Authentication
 		// Request Handler
 
-		// This will handle all the LDAP server requests from Solace
+		// This will handle all the LDAP server requests from Solace.
+		// The debugger handler logs the message returned by each
+		// request and each search result entry, so responses are only
+		// deferred to the backend callbacks, and search entries only
+		// batched into single socket writes, in production mode
 		
 		CustomAuthRequestHandler customAuthRequestHandler =
-				new CustomAuthRequestHandler();
-		
-		final Handler logHandler;
-		logHandler = new ConsoleHandler();
-		logHandler.setLevel(Level.ALL);
-		logHandler.setFormatter(new MinimalLogFormatter(
-				MinimalLogFormatter.DEFAULT_TIMESTAMP_FORMAT, false, false, true));
+				new CustomAuthRequestHandler(authBackend, new CustomAuthRequestHandler.Options()
+						.setSearchResponseCache(searchResponseCache)
+						.setMetrics(metrics)
+						.setBindRateLimiter(createBindRateLimiter(config, metrics))
+						.setSearchLimits(new SearchLimits(config.getInt("searchLimits.sizeLimit", 0),
+								config.getInt("searchLimits.timeLimitSeconds", 0)))
+						.setPagedSearches(createPagedSearches(config, metrics))
+						.setMaxInFlight(config.getInt("connection.maxInFlight", 64))
+						.setMaxInFlightWaitMillis(config.getLong("connection.maxInFlightWaitMillis", 1000L))
+						.setRequestEvents(RequestEvents.create(config))
+						.setDeferResponses(production)
+						.setTransformEntries(!production));
 
-		// Create the debugger request handler that will be used to write the
-		// debug output.
-		LDAPListenerRequestHandler requestHandler =
-			 new LDAPDebuggerRequestHandler(logHandler, customAuthRequestHandler);
-
-		// LDAP listen port
-		int listenPort = port;
+		LDAPListenerRequestHandler requestHandler = customAuthRequestHandler;
+		if (!production) {
+			// Create the debugger request handler that will be used to write the
+			// debug output.
+			requestHandler = new LDAPDebuggerRequestHandler(logHandler, customAuthRequestHandler);
+		}
 
-		// Create and start an LDAP listener
-		LDAPListenerConfig listenerConfig = new LDAPListenerConfig(listenPort,
-				requestHandler);
-		LDAPListener listener = new LDAPListener(listenerConfig);
-		listener.startListening();
-		System.out.println("Intercepting...");
+		// Create and start the LDAP listeners. They share the request
+		// handler, and so the backend, caches and metrics. Several
+		// listeners on one endpoint share its port through SO_REUSEPORT
+		int listenersPerEndpoint = config.getInt("listener.count", 1);
+		List<LDAPListener> listeners = new ArrayList<LDAPListener>();
+		try {
+			for (InetSocketAddress endpoint : endpoints(port, config.getString("listen", ""))) {
+				int listenPort = endpoint.getPort();
+				for (int i = 0; i < listenersPerEndpoint; i++) {
+					LDAPListenerConfig listenerConfig = new LDAPListenerConfig(listenPort,
+							requestHandler);
+					listenerConfig.setListenAddress(endpoint.getAddress());
+					configureListener(listenerConfig, config, listenersPerEndpoint > 1);
+					LDAPListener listener = new LDAPListener(listenerConfig);
+					listener.startListening();
+					listeners.add(listener);
+					// The listeners after the first share the port it was given
+					listenPort = listener.getListenPort();
+				}
+				System.out.println("Listening on " + endpoint.getAddress().getHostAddress() + ":" + listenPort +
+						(listenersPerEndpoint > 1 ? " with " + listenersPerEndpoint + " listeners" : ""));
+			}
+		} catch (IOException | RuntimeException e) {
+			for (LDAPListener listener : listeners) {
+				listener.shutDown(true);
+			}
+			for (Closeable resource : resources) {
+				resource.close();
+			}
+			throw e;
+		}
+		System.out.println("Intercepting" + (production ? " in production mode..." : "..."));
 
 	    // Note that at this point, the listener will continue running in a
 	    // separate thread, so we can return from this thread without exiting the
 	    // program.  However, we'll want to register a shutdown hook so that we can
 	    // close the logger.
 
-	    shutdownListener = new LDAPDebuggerShutdownListener(listener, logHandler);
+	    shutdownListener = new LDAPDebuggerShutdownListener(listeners, logHandler,
+	            resources.toArray(new Closeable[0]));
 	    Runtime.getRuntime().addShutdownHook(shutdownListener);
 
 	}
+	/**
+	 * Create the limits on the rate of binds per client address and per
+	 * bind DN. A limit with a rate of 0 is off.
+	 *
+	 * @param config The interceptor configuration
+	 * @param metrics The metrics to report refused binds in
+	 * @return The bind rate limiter, or null if neither limit is on
+	 */
+	static BindRateLimiter createBindRateLimiter(InterceptorConfig config, InterceptorMetrics metrics) {
+		int maxKeys = config.getInt("bindRateLimit.maxKeys", 100000);
+		double clientRate = config.getDouble("bindRateLimit.client.rate", 0);
+		double dnRate = config.getDouble("bindRateLimit.dn.rate", 0);
+		if (clientRate <= 0 && dnRate <= 0) {
+			return null;
+		}
+		BindRateLimiter limiter = new BindRateLimiter(
+				clientRate > 0 ? new RateLimiter<InetAddress>(clientRate,
+						config.getInt("bindRateLimit.client.burst", 20), maxKeys) : null,
+				dnRate > 0 ? new RateLimiter<String>(dnRate,
+						config.getInt("bindRateLimit.dn.burst", 5), maxKeys) : null);
+		metrics.setBindRateLimiter(limiter);
+		return limiter;
+	}
+
+	/**
+	 * Create the registry of paged searches kept open between pages
+	 *
+	 * @param config The interceptor configuration
+	 * @param metrics The metrics to report open paged searches in
+	 * @return The paged searches, or null if paged searches are disabled
+	 */
+	static PagedSearches createPagedSearches(InterceptorConfig config, InterceptorMetrics metrics) {
+		if (!config.getBoolean("pagedSearch.enabled", true)) {
+			return null;
+		}
+		PagedSearches pagedSearches = new PagedSearches(
+				config.getInt("pagedSearch.maxOpen", 1000),
+				config.getLong("pagedSearch.idleTimeoutMillis", 60000L));
+		metrics.setPagedSearches(pagedSearches);
+		return pagedSearches;
+	}
+
+	/**
+	 * Parse the endpoints to listen on: the port given on the command line
+	 * on every address, followed by the comma separated [address:]port
+	 * entries of the listen setting.
+	 *
+	 * @param port The command line port
+	 * @param listen The listen setting, or an empty string
+	 * @return The endpoints, with the wildcard address for every address
+	 */
+	static List<InetSocketAddress> endpoints(int port, String listen) throws UnknownHostException {
+		List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+		endpoints.add(new InetSocketAddress((InetAddress) null, port));
+		for (String entry : listen.split(",")) {
+			entry = entry.trim();
+			if (entry.isEmpty()) {
+				continue;
+			}
+			int colon = entry.lastIndexOf(':');
+			int endpointPort = Integer.parseInt(entry.substring(colon + 1));
+			InetAddress address = null;
+			if (colon > 0) {
+				String host = entry.substring(0, colon);
+				if (host.startsWith("[") && host.endsWith("]")) {
+					host = host.substring(1, host.length() - 1);
+				}
+				address = InetAddress.getByName(host);
+			}
+			endpoints.add(new InetSocketAddress(address, endpointPort));
+		}
+		return endpoints;
+	}
+
+	/**
+	 * Apply the connection limit and socket options of the configuration
+	 * to a listener. Every client connection is served by a thread of its
+	 * own, so listener.maxConnections also bounds the number of threads.
+	 * The limit applies to each listener.
+	 *
+	 * @param listenerConfig The listener configuration to update
+	 * @param config The interceptor configuration
+	 * @param reusePort Whether the listener shares its port with others
+	 */
+	static void configureListener(LDAPListenerConfig listenerConfig, InterceptorConfig config, boolean reusePort) {
+		listenerConfig.setMaxConnections(config.getInt("listener.maxConnections", 0));
+		listenerConfig.setServerSocketFactory(new ListenerSocketFactory(
+				ServerSocketFactory.getDefault(), config.getInt("listener.backlog", 128), reusePort));
+		listenerConfig.setUseTCPNoDelay(config.getBoolean("listener.tcpNoDelay", true));
+		listenerConfig.setUseKeepAlive(config.getBoolean("listener.keepAlive", true));
+		listenerConfig.setReceiveBufferSize(config.getInt("listener.receiveBufferSize", 0));
+		listenerConfig.setSendBufferSize(config.getInt("listener.sendBufferSize", 0));
+	}
+
 	  /**
 	   * Indicates that the associated listener should shut down.
 	   */
@@ -0,0 +1,109 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * This class holds the startup configuration of the interceptor.
+ *
+ * Each setting is a name=value pair. Values are taken from the
+ * command line arguments following the port, e.g.
+ *
+ *     Interceptor 10389 backend=mock searchMatchMode=SUBSTRING
+ *
+ * and otherwise from JVM system properties prefixed with
+ * "ldapInterceptor.", e.g. -DldapInterceptor.backend=mock
+ */
+public final class InterceptorConfig {
+
+    /**
+     * The prefix of system properties read by this class
+     */
+    public static final String PROPERTY_PREFIX = "ldapInterceptor.";
+
+    // The settings given on the command line
+    private final Properties properties;
+
+    /**
+     * Creates a configuration from the supplied settings, falling back to
+     * system properties for any setting that is not present
+     *
+     * @param properties The settings, keyed by name without the prefix
+     */
+    public InterceptorConfig(final Properties properties) {
+        this.properties = new Properties();
+        this.properties.putAll(properties);
+    }
+
+    /**
+     * Creates a configuration from name=value command line arguments
+     *
+     * @param args The command line arguments
+     * @param first The index of the first name=value argument
+     *
+     * @return The configuration
+     *
+     * @throws IllegalArgumentException If an argument is not of the form name=value
+     */
+    public static InterceptorConfig fromArgs(final String[] args, final int first) {
+        Properties p = new Properties();
+        for (int i = first; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected name=value but got: " + args[i]);
+            }
+            p.setProperty(args[i].substring(0, eq).trim(), args[i].substring(eq + 1).trim());
+        }
+        return new InterceptorConfig(p);
+    }
+
+    /**
+     * @param name The setting name
+     * @param defaultValue The value to use if the setting is not present
+     *
+     * @return The value of the setting
+     */
+    public String getString(final String name, final String defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            value = System.getProperty(PROPERTY_PREFIX + name);
+        }
+        return value == null ? defaultValue : value;
+    }
+
+    public int getInt(final String name, final int defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public long getLong(final String name, final long defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public double getDouble(final String name, final double defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public boolean getBoolean(final String name, final boolean defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public <E extends Enum<E>> E getEnum(final String name, final Class<E> type, final E defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue
+                : Enum.valueOf(type, value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("InterceptorConfig{");
+        for (Map.Entry<Object, Object> e : properties.entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append(' ');
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,563 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.ResultCode;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class holds the counters and latency histograms of the
+ * interceptor: the outcome and latency of every request type handled
+ * by {@link CustomAuthRequestHandler}, the latency of backend calls,
+ * the hit ratios of the caches and the number of client connections.
+ *
+ * Counters are LongAdders and histograms are {@link LatencyHistogram}s,
+ * both striped and lock-free, so recording never becomes a point of
+ * contention between connections. The metrics are exposed as an MBean
+ * and, optionally, in the Prometheus text format by {@link MetricsHttpServer}.
+ */
+public final class InterceptorMetrics implements InterceptorMetricsMBean {
+
+    /**
+     * The request types handled by the interceptor
+     */
+    public enum Operation {
+        ADD, BIND, COMPARE, DELETE, EXTENDED, MODIFY, MODIFY_DN, SEARCH;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The name the metrics MBean is registered under
+     */
+    public static final String OBJECT_NAME = "com.solace.srajgopalan.ldapInterceptor:type=Metrics";
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final LongAdder[] requests = new LongAdder[OPERATIONS.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+
+    private final LongAdder bindSuccess = new LongAdder();
+    private final LongAdder bindInvalid = new LongAdder();
+    private final LongAdder bindError = new LongAdder();
+    private final LongAdder bindRejected = new LongAdder();
+
+    private final LongAdder searchHit = new LongAdder();
+    private final LongAdder searchEmpty = new LongAdder();
+    private final LongAdder searchError = new LongAdder();
+    private final LongAdder searchLimited = new LongAdder();
+    private final LongAdder searchEntries = new LongAdder();
+
+    private final LongAdder backendAuthenticateErrors = new LongAdder();
+    private final LatencyHistogram backendAuthenticateLatency = new LatencyHistogram();
+    private final LongAdder backendSearchErrors = new LongAdder();
+    private final LatencyHistogram backendSearchLatency = new LatencyHistogram();
+
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder requestsInFlight = new LongAdder();
+    private final LongAdder inFlightLimitReached = new LongAdder();
+
+    private volatile BindCache bindCache;
+    private volatile SearchResponseCache searchResponseCache;
+    private volatile CoalescingAuthBackend coalescingAuthBackend;
+    private volatile BindRateLimiter bindRateLimiter;
+    private volatile CircuitBreakerAuthBackend circuitBreaker;
+    private volatile PagedSearches pagedSearches;
+
+    public InterceptorMetrics() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            requests[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record a request other than a bind or search
+     *
+     * @param operation The request type
+     * @param startNanos The System.nanoTime() at which the request was received
+     */
+    public void recordRequest(Operation operation, long startNanos) {
+        requests[operation.ordinal()].increment();
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record a completed bind
+     *
+     * @param resultCode The result code sent to the client
+     * @param startNanos The System.nanoTime() at which the request was received
+     */
+    public void recordBind(ResultCode resultCode, long startNanos) {
+        recordRequest(Operation.BIND, startNanos);
+        if (resultCode == ResultCode.SUCCESS) {
+            bindSuccess.increment();
+        } else if (resultCode == ResultCode.INVALID_CREDENTIALS) {
+            bindInvalid.increment();
+        } else if (resultCode == ResultCode.BUSY || resultCode == ResultCode.UNWILLING_TO_PERFORM) {
+            bindRejected.increment();
+        } else {
+            bindError.increment();
+        }
+    }
+
+    /**
+     * Record a completed search
+     *
+     * @param resultCode The result code sent to the client
+     * @param entries The number of entries returned
+     * @param startNanos The System.nanoTime() at which the request was received
+     */
+    public void recordSearch(ResultCode resultCode, int entries, long startNanos) {
+        recordRequest(Operation.SEARCH, startNanos);
+        searchEntries.add(entries);
+        if (resultCode == ResultCode.SIZE_LIMIT_EXCEEDED || resultCode == ResultCode.TIME_LIMIT_EXCEEDED) {
+            searchLimited.increment();
+        } else if (resultCode != ResultCode.SUCCESS) {
+            searchError.increment();
+        } else if (entries > 0) {
+            searchHit.increment();
+        } else {
+            searchEmpty.increment();
+        }
+    }
+
+    /**
+     * Record a completed backend authenticate call
+     *
+     * @param startNanos The System.nanoTime() at which the call was made
+     * @param failed Whether the call completed exceptionally
+     */
+    public void recordBackendAuthenticate(long startNanos, boolean failed) {
+        backendAuthenticateLatency.record(System.nanoTime() - startNanos);
+        if (failed) {
+            backendAuthenticateErrors.increment();
+        }
+    }
+
+    /**
+     * Record a completed backend search call
+     *
+     * @param startNanos The System.nanoTime() at which the call was made
+     * @param failed Whether the call completed exceptionally
+     */
+    public void recordBackendSearch(long startNanos, boolean failed) {
+        backendSearchLatency.record(System.nanoTime() - startNanos);
+        if (failed) {
+            backendSearchErrors.increment();
+        }
+    }
+
+    public void connectionOpened() {
+        activeConnections.increment();
+        totalConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Record a bind or search whose response is sent once its backend
+     * call completes, while its connection goes on reading requests
+     */
+    public void requestDeferred() {
+        requestsInFlight.increment();
+    }
+
+    /**
+     * Record that the response of a deferred request has been sent
+     */
+    public void deferredRequestCompleted() {
+        requestsInFlight.decrement();
+    }
+
+    /**
+     * Record a connection that stopped reading requests because it had
+     * its maximum number of operations in flight
+     */
+    public void inFlightLimitReached() {
+        inFlightLimitReached.increment();
+    }
+
+    /**
+     * @param bindCache The bind cache whose hit ratio is reported
+     */
+    public void setBindCache(BindCache bindCache) {
+        this.bindCache = bindCache;
+    }
+
+    /**
+     * @param searchResponseCache The search cache whose hit ratio is reported
+     */
+    public void setSearchResponseCache(SearchResponseCache searchResponseCache) {
+        this.searchResponseCache = searchResponseCache;
+    }
+
+    /**
+     * @param coalescingAuthBackend The backend whose shared calls are reported
+     */
+    public void setCoalescingAuthBackend(CoalescingAuthBackend coalescingAuthBackend) {
+        this.coalescingAuthBackend = coalescingAuthBackend;
+    }
+
+    /**
+     * @param circuitBreaker The breaker whose state and rejections are reported
+     */
+    public void setCircuitBreaker(CircuitBreakerAuthBackend circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @param bindRateLimiter The limiter whose refused binds are reported
+     */
+    public void setBindRateLimiter(BindRateLimiter bindRateLimiter) {
+        this.bindRateLimiter = bindRateLimiter;
+    }
+
+    /**
+     * @param pagedSearches The open paged searches to report
+     */
+    public void setPagedSearches(PagedSearches pagedSearches) {
+        this.pagedSearches = pagedSearches;
+    }
+
+    @Override
+    public long getBindSuccessCount() {
+        return bindSuccess.sum();
+    }
+
+    @Override
+    public long getBindInvalidCount() {
+        return bindInvalid.sum();
+    }
+
+    @Override
+    public long getBindErrorCount() {
+        return bindError.sum();
+    }
+
+    @Override
+    public long getBindRejectedCount() {
+        return bindRejected.sum();
+    }
+
+    @Override
+    public long getSearchHitCount() {
+        return searchHit.sum();
+    }
+
+    @Override
+    public long getSearchEmptyCount() {
+        return searchEmpty.sum();
+    }
+
+    @Override
+    public long getSearchErrorCount() {
+        return searchError.sum();
+    }
+
+    @Override
+    public long getSearchLimitedCount() {
+        return searchLimited.sum();
+    }
+
+    @Override
+    public long getSearchEntriesReturned() {
+        return searchEntries.sum();
+    }
+
+    @Override
+    public long getOtherRequestCount() {
+        long count = 0;
+        for (Operation operation : OPERATIONS) {
+            if (operation != Operation.BIND && operation != Operation.SEARCH) {
+                count += requests[operation.ordinal()].sum();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getBindLatencyP50Micros() {
+        return micros(latencies[Operation.BIND.ordinal()].getValueAtPercentile(50.0));
+    }
+
+    @Override
+    public long getBindLatencyP99Micros() {
+        return micros(latencies[Operation.BIND.ordinal()].getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getSearchLatencyP50Micros() {
+        return micros(latencies[Operation.SEARCH.ordinal()].getValueAtPercentile(50.0));
+    }
+
+    @Override
+    public long getSearchLatencyP99Micros() {
+        return micros(latencies[Operation.SEARCH.ordinal()].getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getBackendAuthenticateCount() {
+        return backendAuthenticateLatency.getCount();
+    }
+
+    @Override
+    public long getBackendAuthenticateErrorCount() {
+        return backendAuthenticateErrors.sum();
+    }
+
+    @Override
+    public long getBackendAuthenticateLatencyP99Micros() {
+        return micros(backendAuthenticateLatency.getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getBackendSearchCount() {
+        return backendSearchLatency.getCount();
+    }
+
+    @Override
+    public long getBackendSearchErrorCount() {
+        return backendSearchErrors.sum();
+    }
+
+    @Override
+    public long getBackendSearchLatencyP99Micros() {
+        return micros(backendSearchLatency.getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getCoalescedAuthenticateCount() {
+        CoalescingAuthBackend backend = coalescingAuthBackend;
+        return backend == null ? 0 : backend.getCoalescedAuthentications();
+    }
+
+    @Override
+    public long getCoalescedSearchCount() {
+        CoalescingAuthBackend backend = coalescingAuthBackend;
+        return backend == null ? 0 : backend.getCoalescedSearches();
+    }
+
+    @Override
+    public long getBindRateLimitedClientCount() {
+        BindRateLimiter limiter = bindRateLimiter;
+        return limiter == null ? 0 : limiter.getClientRefusedCount();
+    }
+
+    @Override
+    public long getBindRateLimitedDnCount() {
+        BindRateLimiter limiter = bindRateLimiter;
+        return limiter == null ? 0 : limiter.getDnRefusedCount();
+    }
+
+    @Override
+    public int getPagedSearchesOpen() {
+        PagedSearches searches = pagedSearches;
+        return searches == null ? 0 : searches.getOpenCount();
+    }
+
+    @Override
+    public long getPagedSearchesExpiredCount() {
+        PagedSearches searches = pagedSearches;
+        return searches == null ? 0 : searches.getExpiredCount();
+    }
+
+    @Override
+    public long getPagedSearchesRefusedCount() {
+        PagedSearches searches = pagedSearches;
+        return searches == null ? 0 : searches.getRefusedCount();
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        CircuitBreakerAuthBackend breaker = circuitBreaker;
+        return breaker == null ? "DISABLED" : breaker.getPhase().name();
+    }
+
+    @Override
+    public long getCircuitBreakerRejectedCount() {
+        CircuitBreakerAuthBackend breaker = circuitBreaker;
+        return breaker == null ? 0 : breaker.getRejectedCount();
+    }
+
+    @Override
+    public long getBackendTimeoutCount() {
+        CircuitBreakerAuthBackend breaker = circuitBreaker;
+        return breaker == null ? 0 : breaker.getTimeoutCount();
+    }
+
+    @Override
+    public long getBindCacheStaleHitCount() {
+        BindCache cache = bindCache;
+        return cache == null ? 0 : cache.getStaleHits();
+    }
+
+    @Override
+    public double getBindCacheHitRatio() {
+        BindCache cache = bindCache;
+        return cache == null ? 0.0 : ratio(cache.getHits(), cache.getMisses());
+    }
+
+    @Override
+    public double getSearchCacheHitRatio() {
+        SearchResponseCache cache = searchResponseCache;
+        return cache == null ? 0.0 : ratio(cache.getHits(), cache.getMisses());
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    @Override
+    public long getRequestsInFlight() {
+        return requestsInFlight.sum();
+    }
+
+    @Override
+    public long getInFlightLimitReachedCount() {
+        return inFlightLimitReached.sum();
+    }
+
+    @Override
+    public void resetLatencies() {
+        for (LatencyHistogram h : latencies) {
+            h.reset();
+        }
+        backendAuthenticateLatency.reset();
+        backendSearchLatency.reset();
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format
+     *
+     * @param out The writer to write to
+     */
+    public void writePrometheus(PrintWriter out) {
+
+        out.println("# HELP ldap_interceptor_requests_total Requests handled, by operation.");
+        out.println("# TYPE ldap_interceptor_requests_total counter");
+        for (Operation operation : OPERATIONS) {
+            out.printf("ldap_interceptor_requests_total{operation=\"%s\"} %d%n",
+                    operation.label, requests[operation.ordinal()].sum());
+        }
+
+        out.println("# HELP ldap_interceptor_binds_total Binds completed, by result.");
+        out.println("# TYPE ldap_interceptor_binds_total counter");
+        out.printf("ldap_interceptor_binds_total{result=\"success\"} %d%n", getBindSuccessCount());
+        out.printf("ldap_interceptor_binds_total{result=\"invalid\"} %d%n", getBindInvalidCount());
+        out.printf("ldap_interceptor_binds_total{result=\"rejected\"} %d%n", getBindRejectedCount());
+        out.printf("ldap_interceptor_binds_total{result=\"error\"} %d%n", getBindErrorCount());
+
+        out.println("# HELP ldap_interceptor_searches_total Searches completed, by result.");
+        out.println("# TYPE ldap_interceptor_searches_total counter");
+        out.printf("ldap_interceptor_searches_total{result=\"hit\"} %d%n", getSearchHitCount());
+        out.printf("ldap_interceptor_searches_total{result=\"empty\"} %d%n", getSearchEmptyCount());
+        out.printf("ldap_interceptor_searches_total{result=\"error\"} %d%n", getSearchErrorCount());
+        out.printf("ldap_interceptor_searches_total{result=\"limited\"} %d%n", getSearchLimitedCount());
+
+        out.println("# HELP ldap_interceptor_search_entries_total Search result entries returned.");
+        out.println("# TYPE ldap_interceptor_search_entries_total counter");
+        out.printf("ldap_interceptor_search_entries_total %d%n", getSearchEntriesReturned());
+
+        out.println("# HELP ldap_interceptor_request_latency_seconds Request latency, by operation.");
+        out.println("# TYPE ldap_interceptor_request_latency_seconds summary");
+        for (Operation operation : OPERATIONS) {
+            writeSummary(out, "ldap_interceptor_request_latency_seconds",
+                    "operation=\"" + operation.label + "\"", latencies[operation.ordinal()]);
+        }
+
+        out.println("# HELP ldap_interceptor_backend_latency_seconds Backend call latency, by call.");
+        out.println("# TYPE ldap_interceptor_backend_latency_seconds summary");
+        writeSummary(out, "ldap_interceptor_backend_latency_seconds", "call=\"authenticate\"", backendAuthenticateLatency);
+        writeSummary(out, "ldap_interceptor_backend_latency_seconds", "call=\"search\"", backendSearchLatency);
+
+        out.println("# HELP ldap_interceptor_backend_errors_total Backend calls that failed, by call.");
+        out.println("# TYPE ldap_interceptor_backend_errors_total counter");
+        out.printf("ldap_interceptor_backend_errors_total{call=\"authenticate\"} %d%n", getBackendAuthenticateErrorCount());
+        out.printf("ldap_interceptor_backend_errors_total{call=\"search\"} %d%n", getBackendSearchErrorCount());
+
+        out.println("# HELP ldap_interceptor_backend_coalesced_total Backend calls shared with an identical call in flight, by call.");
+        out.println("# TYPE ldap_interceptor_backend_coalesced_total counter");
+        out.printf("ldap_interceptor_backend_coalesced_total{call=\"authenticate\"} %d%n", getCoalescedAuthenticateCount());
+        out.printf("ldap_interceptor_backend_coalesced_total{call=\"search\"} %d%n", getCoalescedSearchCount());
+
+        CircuitBreakerAuthBackend breaker = circuitBreaker;
+        out.println("# HELP ldap_interceptor_backend_circuit_open Whether the backend circuit breaker is open or probing.");
+        out.println("# TYPE ldap_interceptor_backend_circuit_open gauge");
+        out.printf("ldap_interceptor_backend_circuit_open %d%n", breaker != null && breaker.isOpen() ? 1 : 0);
+
+        out.println("# HELP ldap_interceptor_backend_unavailable_total Backend calls failed by the circuit breaker, by reason.");
+        out.println("# TYPE ldap_interceptor_backend_unavailable_total counter");
+        out.printf("ldap_interceptor_backend_unavailable_total{reason=\"open\"} %d%n", getCircuitBreakerRejectedCount());
+        out.printf("ldap_interceptor_backend_unavailable_total{reason=\"timeout\"} %d%n", getBackendTimeoutCount());
+
+        out.println("# HELP ldap_interceptor_bind_cache_stale_total Binds answered from a stale cached outcome.");
+        out.println("# TYPE ldap_interceptor_bind_cache_stale_total counter");
+        out.printf("ldap_interceptor_bind_cache_stale_total %d%n", getBindCacheStaleHitCount());
+
+        out.println("# HELP ldap_interceptor_binds_rate_limited_total Binds refused for exceeding a rate limit, by limit.");
+        out.println("# TYPE ldap_interceptor_binds_rate_limited_total counter");
+        out.printf("ldap_interceptor_binds_rate_limited_total{limit=\"client\"} %d%n", getBindRateLimitedClientCount());
+        out.printf("ldap_interceptor_binds_rate_limited_total{limit=\"dn\"} %d%n", getBindRateLimitedDnCount());
+
+        out.println("# HELP ldap_interceptor_paged_searches_open Paged searches waiting for their next page.");
+        out.println("# TYPE ldap_interceptor_paged_searches_open gauge");
+        out.printf("ldap_interceptor_paged_searches_open %d%n", getPagedSearchesOpen());
+
+        out.println("# HELP ldap_interceptor_paged_searches_closed_total Paged searches closed before their last page, by reason.");
+        out.println("# TYPE ldap_interceptor_paged_searches_closed_total counter");
+        out.printf("ldap_interceptor_paged_searches_closed_total{reason=\"expired\"} %d%n", getPagedSearchesExpiredCount());
+        out.printf("ldap_interceptor_paged_searches_closed_total{reason=\"refused\"} %d%n", getPagedSearchesRefusedCount());
+
+        out.println("# HELP ldap_interceptor_cache_hit_ratio Fraction of lookups answered from a cache.");
+        out.println("# TYPE ldap_interceptor_cache_hit_ratio gauge");
+        out.printf(Locale.ROOT, "ldap_interceptor_cache_hit_ratio{cache=\"bind\"} %.6f%n", getBindCacheHitRatio());
+        out.printf(Locale.ROOT, "ldap_interceptor_cache_hit_ratio{cache=\"search\"} %.6f%n", getSearchCacheHitRatio());
+
+        out.println("# HELP ldap_interceptor_connections_active Open client connections.");
+        out.println("# TYPE ldap_interceptor_connections_active gauge");
+        out.printf("ldap_interceptor_connections_active %d%n", getActiveConnections());
+
+        out.println("# HELP ldap_interceptor_connections_total Client connections accepted.");
+        out.println("# TYPE ldap_interceptor_connections_total counter");
+        out.printf("ldap_interceptor_connections_total %d%n", getTotalConnections());
+
+        out.println("# HELP ldap_interceptor_requests_in_flight Binds and searches whose response waits for the backend.");
+        out.println("# TYPE ldap_interceptor_requests_in_flight gauge");
+        out.printf("ldap_interceptor_requests_in_flight %d%n", getRequestsInFlight());
+
+        out.println("# HELP ldap_interceptor_in_flight_limit_reached_total Times a connection stopped reading at its in-flight limit.");
+        out.println("# TYPE ldap_interceptor_in_flight_limit_reached_total counter");
+        out.printf("ldap_interceptor_in_flight_limit_reached_total %d%n", getInFlightLimitReachedCount());
+    }
+
+    private static void writeSummary(PrintWriter out, String name, String labels, LatencyHistogram h) {
+        long[] values = h.getValuesAtPercentiles(50.0, 90.0, 99.0, 99.9);
+        String[] quantiles = {"0.5", "0.9", "0.99", "0.999"};
+        for (int i = 0; i < values.length; i++) {
+            out.printf(Locale.ROOT, "%s{%s,quantile=\"%s\"} %.9f%n", name, labels, quantiles[i], values[i] / 1e9);
+        }
+        out.printf(Locale.ROOT, "%s_sum{%s} %.9f%n", name, labels, h.getTotalNanos() / 1e9);
+        out.printf("%s_count{%s} %d%n", name, labels, h.getCount());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+}
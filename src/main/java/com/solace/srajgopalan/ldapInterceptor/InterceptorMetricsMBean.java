@@ -0,0 +1,89 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+/**
+ * The management interface of {@link InterceptorMetrics}, registered as
+ * com.solace.srajgopalan.ldapInterceptor:type=Metrics.
+ *
+ * Latencies are in microseconds.
+ */
+public interface InterceptorMetricsMBean {
+
+    long getBindSuccessCount();
+
+    long getBindInvalidCount();
+
+    long getBindErrorCount();
+
+    long getBindRejectedCount();
+
+    long getSearchHitCount();
+
+    long getSearchEmptyCount();
+
+    long getSearchErrorCount();
+
+    long getSearchLimitedCount();
+
+    long getSearchEntriesReturned();
+
+    long getOtherRequestCount();
+
+    long getBindLatencyP50Micros();
+
+    long getBindLatencyP99Micros();
+
+    long getSearchLatencyP50Micros();
+
+    long getSearchLatencyP99Micros();
+
+    long getBackendAuthenticateCount();
+
+    long getBackendAuthenticateErrorCount();
+
+    long getBackendAuthenticateLatencyP99Micros();
+
+    long getBackendSearchCount();
+
+    long getBackendSearchErrorCount();
+
+    long getBackendSearchLatencyP99Micros();
+
+    long getCoalescedAuthenticateCount();
+
+    long getCoalescedSearchCount();
+
+    long getBindRateLimitedClientCount();
+
+    long getBindRateLimitedDnCount();
+
+    int getPagedSearchesOpen();
+
+    long getPagedSearchesExpiredCount();
+
+    long getPagedSearchesRefusedCount();
+
+    String getCircuitBreakerState();
+
+    long getCircuitBreakerRejectedCount();
+
+    long getBackendTimeoutCount();
+
+    long getBindCacheStaleHitCount();
+
+    double getBindCacheHitRatio();
+
+    double getSearchCacheHitRatio();
+
+    long getActiveConnections();
+
+    long getTotalConnections();
+
+    long getRequestsInFlight();
+
+    long getInFlightLimitReachedCount();
+
+    /**
+     * Clear the latency histograms, e.g. before measuring a test run
+     */
+    void resetLatencies();
+}
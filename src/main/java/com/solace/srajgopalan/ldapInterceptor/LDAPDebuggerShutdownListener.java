@@ -26,6 +26,10 @@ import com.unboundid.util.NotMutable;
 import com.unboundid.util.ThreadSafety;
 import com.unboundid.util.ThreadSafetyLevel;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Handler;
 
 /**
@@ -41,34 +45,60 @@ public class LDAPDebuggerShutdownListener
     // The log handler that will be closed.
     private final Handler logHandler;
 
-    // The LDAP listener that will be closed.
-    private final LDAPListener listener;
+    // The LDAP listeners that will be closed.
+    private final List<LDAPListener> listeners;
+
+    // Other resources, such as the metrics endpoint, that will be closed.
+    private final Closeable[] resources;
 
 
 
     /**
-     * Creates a new shutdown listener that will shut down the LDAP listener and
+     * Creates a new shutdown listener that will shut down the LDAP listeners and
      * close the log handler when the JVM is shutting down.
      *
-     * @param  listener    The LDAP listener to be shut down.
+     * @param  listeners   The LDAP listeners to be shut down.
      * @param  logHandler  The log handler to be closed.
+     * @param  resources   Other resources to be closed after the listeners.
      */
-    LDAPDebuggerShutdownListener(final LDAPListener listener,
-                                 final Handler logHandler)
+    LDAPDebuggerShutdownListener(final List<LDAPListener> listeners,
+                                 final Handler logHandler,
+                                 final Closeable... resources)
     {
-        this.listener   = listener;
+        this.listeners  = new ArrayList<LDAPListener>(listeners);
         this.logHandler = logHandler;
+        this.resources  = resources;
     }
 
 
 
     /**
-     * Starts this thread to shut down the listener and close the log handler.
+     * Starts this thread to shut down the listeners and close the log handler.
      */
     @Override()
     public void run()
     {
-        listener.shutDown(true);
+        // Stop accepting on every listener before closing connections, so
+        // clients are not moved to a listener that is about to close
+        for (final LDAPListener listener : listeners)
+        {
+            listener.shutDown(false);
+        }
+        for (final LDAPListener listener : listeners)
+        {
+            listener.shutDown(true);
+        }
+        for (final Closeable resource : resources)
+        {
+            try
+            {
+                resource.close();
+            }
+            catch (final IOException e)
+            {
+                // Nothing more can be done while shutting down
+            }
+        }
         logHandler.close();
     }
 }
@@ -0,0 +1,201 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records latencies into a fixed set of log-linear buckets,
+ * in the style of an HDR histogram: values below 128ns are recorded
+ * exactly and larger values with 64 buckets per power of two, so every
+ * recorded value is reported within about 1.5% of its true value.
+ *
+ * Recording is lock-free and allocation-free, so the histogram can be
+ * shared by every thread on a hot path. Bucket counts are striped by
+ * thread so that threads recording similar latencies at the same time
+ * do not contend on the same counter. Values above about 18 minutes are
+ * recorded in the highest bucket.
+ */
+public final class LatencyHistogram {
+
+    // Values below this are recorded exactly
+    private static final int LINEAR_BUCKETS = 128;
+
+    // Buckets per power of two above LINEAR_BUCKETS
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+
+    // Covers values up to 2^40ns
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + 34 * SUB_BUCKETS;
+
+    private static final int MAX_STRIPES = 8;
+
+    // The bucket counts of each stripe, one stripe after the other
+    private final AtomicLongArray counts;
+    private final int stripeMask;
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Creates a histogram striped for the number of available processors
+     */
+    public LatencyHistogram() {
+        int stripes = Integer.highestOneBit(
+                Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+        this.counts = new AtomicLongArray(stripes * BUCKET_COUNT);
+        this.stripeMask = stripes - 1;
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param nanos The latency in nanoseconds; negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        counts.incrementAndGet(stripe * BUCKET_COUNT + bucketOf(nanos));
+        totalCount.increment();
+        totalNanos.add(nanos);
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * @return The number of recorded latencies
+     */
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * @return The sum of all recorded latencies in nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * @return The largest recorded latency in nanoseconds
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return The mean recorded latency in nanoseconds, or 0 if none were recorded
+     */
+    public double getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0.0 : (double) getTotalNanos() / count;
+    }
+
+    /**
+     * Return the latency at a percentile, as the highest value equivalent to
+     * the bucket that holds it
+     *
+     * @param percentile The percentile, from 0.0 to 100.0
+     *
+     * @return The latency in nanoseconds, or 0 if none were recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        return getValuesAtPercentiles(percentile)[0];
+    }
+
+    /**
+     * Return the latencies at several percentiles from one consistent
+     * view of the bucket counts
+     *
+     * @param percentiles The percentiles, from 0.0 to 100.0, in ascending order
+     *
+     * @return The latency in nanoseconds at each percentile, 0 if none were recorded
+     */
+    public long[] getValuesAtPercentiles(double... percentiles) {
+        long[] values = new long[percentiles.length];
+        long[] snapshot = snapshot();
+        long count = 0;
+        for (long c : snapshot) {
+            count += c;
+        }
+        if (count == 0) {
+            return values;
+        }
+
+        long max = getMaxNanos();
+        int bucket = 0;
+        long seen = snapshot[0];
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1L, (long) Math.ceil(percentiles[p] / 100.0 * count));
+            while (seen < rank && bucket < snapshot.length - 1) {
+                seen += snapshot[++bucket];
+            }
+            values[p] = Math.min(highestEquivalentValue(bucket), max);
+        }
+        return values;
+    }
+
+    /**
+     * Clear every recorded latency. Latencies recorded concurrently with
+     * a reset may be partially kept.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+
+    /**
+     * Print the percentile distribution of the recorded latencies
+     *
+     * @param out The stream to print to
+     * @param unitNanos The number of nanoseconds per unit printed, e.g. 1000000 for milliseconds
+     */
+    public void outputPercentileDistribution(PrintStream out, double unitNanos) {
+        out.printf("%12s %10s %14s%n", "Value", "Percentile", "TotalCount");
+        double[] percentiles = {0, 10, 25, 50, 75, 90, 95, 99, 99.5, 99.9, 99.95, 99.99, 100};
+        long[] values = getValuesAtPercentiles(percentiles);
+        long count = getCount();
+        for (int i = 0; i < percentiles.length; i++) {
+            out.printf("%12.3f %10.4f %14d%n",
+                    values[i] / unitNanos, percentiles[i] / 100.0, (long) Math.ceil(percentiles[i] / 100.0 * count));
+        }
+        out.printf("#[Mean    = %12.3f, Max     = %12.3f]%n", getMeanNanos() / unitNanos, getMaxNanos() / unitNanos);
+        out.printf("#[Count   = %12d]%n", count);
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < counts.length(); i++) {
+            snapshot[i % BUCKET_COUNT] += counts.get(i);
+        }
+        return snapshot;
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int bucket = LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    static long highestEquivalentValue(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,121 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import javax.net.ServerSocketFactory;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.util.Set;
+
+/**
+ * This class creates the listening sockets of the interceptor with a
+ * configurable accept backlog. LDAPListener always asks for a backlog of
+ * 128, which is too short to absorb a reconnect storm of thousands of
+ * Solace clients.
+ *
+ * It can also set SO_REUSEPORT before the socket is bound, so several
+ * listeners can accept on the same port and the kernel spreads incoming
+ * connections across them.
+ */
+final class ListenerSocketFactory extends ServerSocketFactory {
+
+    // StandardSocketOptions.SO_REUSEPORT and ServerSocket.setOption were
+    // added in Java 9, after the version the interceptor is built for
+    private static final SocketOption<?> SO_REUSEPORT = lookupReusePort();
+
+    private final ServerSocketFactory delegate;
+    private final int backlog;
+    private final boolean reusePort;
+
+    /**
+     * @param delegate The factory that creates the sockets
+     * @param backlog The accept backlog to use instead of the requested one
+     */
+    ListenerSocketFactory(ServerSocketFactory delegate, int backlog) {
+        this(delegate, backlog, false);
+    }
+
+    /**
+     * @param delegate The factory that creates the sockets
+     * @param backlog The accept backlog to use instead of the requested one
+     * @param reusePort Whether to set SO_REUSEPORT on the sockets
+     *
+     * @throws UnsupportedOperationException If reusePort is requested and
+     *         the platform does not support SO_REUSEPORT
+     */
+    ListenerSocketFactory(ServerSocketFactory delegate, int backlog, boolean reusePort) {
+        if (reusePort && !isReusePortSupported()) {
+            throw new UnsupportedOperationException("SO_REUSEPORT is not supported on " +
+                    System.getProperty("os.name") + " with Java " + System.getProperty("java.version"));
+        }
+        this.delegate = delegate;
+        this.backlog = backlog;
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * @return Whether listening sockets can share a port through SO_REUSEPORT
+     */
+    static boolean isReusePortSupported() {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+        try (ServerSocket socket = ServerSocketFactory.getDefault().createServerSocket()) {
+            Set<?> supported = (Set<?>) ServerSocket.class.getMethod("supportedOptions").invoke(socket);
+            return supported.contains(SO_REUSEPORT);
+        } catch (IOException | ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public ServerSocket createServerSocket() throws IOException {
+        return delegate.createServerSocket();
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        return createServerSocket(port, backlog, null);
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port, int requestedBacklog) throws IOException {
+        return createServerSocket(port, backlog, null);
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port, int requestedBacklog, InetAddress address) throws IOException {
+        ServerSocket socket = delegate.createServerSocket();
+        try {
+            socket.setReuseAddress(true);
+            if (reusePort) {
+                setReusePort(socket);
+            }
+            socket.bind(new InetSocketAddress(address, port), backlog);
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static void setReusePort(ServerSocket socket) throws IOException {
+        try {
+            Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+            setOption.invoke(socket, SO_REUSEPORT, Boolean.TRUE);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unable to set SO_REUSEPORT", e);
+        }
+    }
+
+    private static SocketOption<?> lookupReusePort() {
+        try {
+            return (SocketOption<?>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
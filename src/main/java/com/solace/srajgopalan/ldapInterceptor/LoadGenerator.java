@@ -0,0 +1,296 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchScope;
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a load generator that replays the login sequence
+ * Solace uses against a running interceptor: a simple bind as the
+ * client's user DN, followed by a search for the user's memberOf
+ * attribute for authorization.
+ *
+ * Logins are started at a fixed arrival rate over a pool of concurrent
+ * connections (an open model). Each login's latency is measured from
+ * the time it was scheduled to start, not from when a connection became
+ * free, so a slow server shows up as queueing delay in the results
+ * instead of silently lowering the request rate (coordinated omission).
+ *
+ * Usage:
+ *
+ *     java -cp ldap-interceptor.jar com.solace.srajgopalan.ldapInterceptor.LoadGenerator host port [name=value ...]
+ *
+ * Settings:
+ *
+ *   - connections: the number of concurrent LDAP connections (default 16)
+ *   - rate: the number of logins started per second (default 1000)
+ *   - duration: how long to run, in seconds (default 30)
+ *   - warmup: how long to run before recording latencies, in seconds (default 5)
+ *   - userFile: the users to log in as, in the format of UserEntries.json
+ *     (default the bundled UserEntries.json)
+ *   - baseDN: the base DN of the authorization search (default dc=solace,dc=com)
+ *   - filter: the authorization search filter, with {user} replaced by the
+ *     value of the leading RDN of the user DN (default (cn={user}))
+ *   - maxP99Millis: exit with status 1 if the p99 login latency exceeds this
+ */
+public final class LoadGenerator {
+
+    // A user to log in as
+    private static final class User {
+        final String dn;
+        final String password;
+        final String filter;
+
+        User(String dn, String password, String filter) {
+            this.dn = dn;
+            this.password = password;
+            this.filter = filter;
+        }
+    }
+
+    private final LatencyHistogram bindLatency = new LatencyHistogram();
+    private final LatencyHistogram searchLatency = new LatencyHistogram();
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    private final ConcurrentHashMap<String, LongAdder> results = new ConcurrentHashMap<String, LongAdder>();
+    private final LongAdder completed = new LongAdder();
+
+    private final String host;
+    private final int port;
+    private final InterceptorConfig config;
+    private final List<User> users;
+
+    private volatile boolean recording;
+
+    LoadGenerator(String host, int port, InterceptorConfig config) throws Exception {
+        this.host = host;
+        this.port = port;
+        this.config = config;
+        this.users = loadUsers(config);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if (args == null || args.length < 2) {
+            System.out.println("Usage: LoadGenerator [host] [port] [name=value ...]");
+            System.out.println();
+            System.out.println("Settings:");
+            System.out.println("  connections=n     The number of concurrent LDAP connections (default 16)");
+            System.out.println("  rate=n            The number of logins started per second (default 1000)");
+            System.out.println("  duration=n        How long to run, in seconds (default 30)");
+            System.out.println("  warmup=n          How long to run before recording, in seconds (default 5)");
+            System.out.println("  userFile=path     The users to log in as (default the bundled UserEntries.json)");
+            System.out.println("  baseDN=dn         The base DN of the authorization search (default dc=solace,dc=com)");
+            System.out.println("  filter=filter     The authorization search filter (default (cn={user}))");
+            System.out.println("  maxP99Millis=n    Exit with status 1 if the p99 login latency exceeds this");
+            System.out.println();
+            System.exit(-1);
+        }
+
+        LoadGenerator generator = new LoadGenerator(args[0], Integer.parseInt(args[1]),
+                InterceptorConfig.fromArgs(args, 2));
+        boolean passed = generator.run(System.out);
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Run the load and print the results
+     *
+     * @param out The stream to print progress and results to
+     *
+     * @return false if the p99 login latency exceeded maxP99Millis
+     */
+    boolean run(PrintStream out) throws Exception {
+
+        int connections = config.getInt("connections", 16);
+        double rate = Double.parseDouble(config.getString("rate", "1000"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(config.getLong("warmup", 5));
+        long durationNanos = TimeUnit.SECONDS.toNanos(config.getLong("duration", 30));
+
+        BlockingQueue<LDAPConnection> pool = new ArrayBlockingQueue<LDAPConnection>(connections);
+        for (int i = 0; i < connections; i++) {
+            pool.add(new LDAPConnection(host, port));
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(connections);
+        out.printf("Replaying logins for %d users at %.0f/s over %d connections to %s:%d%n",
+                users.size(), rate, connections, host, port);
+
+        long intervalNanos = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long recordFrom = start + warmupNanos;
+        long end = recordFrom + durationNanos;
+        long nextReport = recordFrom + TimeUnit.SECONDS.toNanos(5);
+        long reportedCompleted = 0;
+
+        for (long i = 0; ; i++) {
+            final long intended = start + i * intervalNanos;
+            if (intended >= end) {
+                break;
+            }
+
+            long now;
+            while ((now = System.nanoTime()) < intended) {
+                LockSupport.parkNanos(intended - now);
+            }
+
+            if (!recording && intended >= recordFrom) {
+                recording = true;
+                out.println("Warmup complete, recording");
+            }
+
+            final User user = users.get((int) (i % users.size()));
+            workers.execute(() -> login(pool, user, intended));
+
+            if (now >= nextReport) {
+                long done = completed.sum();
+                out.printf("  %,d logins completed (%,.0f/s), p99 login %.3f ms%n", done,
+                        (done - reportedCompleted) / 5.0, loginLatency.getValueAtPercentile(99.0) / 1e6);
+                reportedCompleted = done;
+                nextReport += TimeUnit.SECONDS.toNanos(5);
+            }
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        for (LDAPConnection c : pool) {
+            c.close();
+        }
+
+        printResults(out, durationNanos);
+
+        String maxP99 = config.getString("maxP99Millis", null);
+        return maxP99 == null || loginLatency.getValueAtPercentile(99.0) / 1e6 <= Double.parseDouble(maxP99);
+    }
+
+    /*
+     * Bind and search as a user on a free connection. Latencies are
+     * measured from the intended start of the login.
+     */
+    private void login(BlockingQueue<LDAPConnection> pool, User user, long intended) {
+        LDAPConnection connection;
+        try {
+            connection = pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        try {
+            ResultCode bindResult;
+            try {
+                bindResult = connection.bind(user.dn, user.password).getResultCode();
+            } catch (LDAPException e) {
+                bindResult = e.getResultCode();
+            }
+            long bound = System.nanoTime();
+            count("bind", bindResult);
+
+            ResultCode searchResult;
+            try {
+                SearchResult result = connection.search(new SearchRequest(
+                        config.getString("baseDN", "dc=solace,dc=com"), SearchScope.SUB, user.filter, "memberOf"));
+                searchResult = result.getEntryCount() > 0 ? result.getResultCode() : ResultCode.NO_SUCH_OBJECT;
+            } catch (LDAPException e) {
+                searchResult = e.getResultCode();
+            }
+            long searched = System.nanoTime();
+            count("search", searchResult);
+
+            if (recording) {
+                bindLatency.record(bound - intended);
+                searchLatency.record(searched - bound);
+                loginLatency.record(searched - intended);
+            }
+            completed.increment();
+        } finally {
+            pool.add(connection);
+        }
+    }
+
+    private void count(String operation, ResultCode resultCode) {
+        String key = operation + " " + resultCode.getName();
+        LongAdder counter = results.get(key);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = results.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.increment();
+    }
+
+    private void printResults(PrintStream out, long durationNanos) {
+        out.println();
+        out.printf("Recorded %,d logins in %d s (%,.0f/s)%n", loginLatency.getCount(),
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), loginLatency.getCount() * 1e9 / durationNanos);
+        out.println();
+        out.println("Results (including warmup):");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(results).entrySet()) {
+            out.printf("  %-40s %,d%n", e.getKey(), e.getValue().sum());
+        }
+
+        printHistogram(out, "Bind latency (ms), from scheduled start", bindLatency);
+        printHistogram(out, "Search latency (ms)", searchLatency);
+        printHistogram(out, "Login latency (ms), from scheduled start", loginLatency);
+    }
+
+    private static void printHistogram(PrintStream out, String title, LatencyHistogram histogram) {
+        out.println();
+        out.println(title);
+        histogram.outputPercentileDistribution(out, 1e6);
+    }
+
+    /*
+     * Read the DNs and passwords of the users to log in as
+     */
+    private static List<User> loadUsers(InterceptorConfig config) throws Exception {
+        String userFile = config.getString("userFile", null);
+        String filter = config.getString("filter", "(cn={user})");
+
+        InputStream is = userFile == null
+                ? LoadGenerator.class.getResourceAsStream("/UserEntries.json")
+                : new FileInputStream(userFile);
+
+        List<User> users = new ArrayList<User>();
+        try (InputStreamReader reader = new InputStreamReader(is, "UTF-8")) {
+            for (Object o : (JSONArray) new JSONParser().parse(reader)) {
+                Map<?, ?> m = (Map<?, ?>) o;
+                String dn = (String) m.get("dn");
+                String password = (String) m.get("password");
+                if (dn == null || password == null) {
+                    continue;
+                }
+                String user = new DN(dn).getRDN().getAttributeValues()[0];
+                users.add(new User(dn, password, filter.replace("{user}", user)));
+            }
+        }
+        if (users.isEmpty()) {
+            throw new IllegalArgumentException("No users with a dn and password found");
+        }
+        return users;
+    }
+}
@@ -0,0 +1,410 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link Directory} read from a snapshot compiled by
+ * {@link DirectorySnapshot}, mapped into memory read-only.
+ *
+ * Lookups probe the tables of the snapshot and compare keys with its
+ * bytes in place, so opening a snapshot takes the same time whatever
+ * its size, and only the pages that lookups touch are read. A record is
+ * built from the snapshot when a lookup returns it, and two records are
+ * equal when they are the same user.
+ *
+ * The operating system shares the pages of a snapshot between every
+ * process that maps it, and a mapping stays valid if the snapshot is
+ * replaced, as {@link DirectorySnapshot#compile} moves a new file into
+ * place rather than writing over the old one.
+ */
+final class MappedDirectory extends Directory {
+
+    // The most normalized group DNs kept, however many groups are searched for
+    private static final int MAX_CACHED_GROUPS = 65536;
+
+    private final int size;
+    private final ByteBuffer records;
+    private final ByteBuffer groups;
+    private final ByteBuffer members;
+    private final ByteBuffer groupLists;
+    private final ByteBuffer dnTable;
+    private final ByteBuffer cnTable;
+    private final ByteBuffer cnOrder;
+    private final ByteBuffer groupTable;
+    private final ByteBuffer strings;
+
+    /*
+       The groups of the records keyed on their position in the group lists,
+       so the records with the same groups share them
+     */
+    private final ConcurrentMap<Integer, String[]> groupArrays = new ConcurrentHashMap<Integer, String[]>();
+
+    /*
+       The normalized DN of each group, keyed on the group DN as held by the records
+     */
+    private final ConcurrentMap<String, String> normalizedGroups = new ConcurrentHashMap<String, String>();
+
+    private final List<MockAuthSystemEntry> recordList = new RecordList();
+
+    private MappedDirectory(int size, ByteBuffer[] sections) {
+        this.size = size;
+        this.records = sections[0];
+        this.groups = sections[1];
+        this.members = sections[2];
+        this.groupLists = sections[3];
+        this.dnTable = sections[4];
+        this.cnTable = sections[5];
+        this.cnOrder = sections[6];
+        this.groupTable = sections[7];
+        this.strings = sections[8];
+    }
+
+    /**
+     * Map a snapshot into memory
+     *
+     * @param snapshot The path of the snapshot
+     * @param verify Whether to check the checksum of the snapshot, which
+     *               reads all of it
+     *
+     * @return The directory
+     *
+     * @throws IOException If the snapshot cannot be read, is not a snapshot
+     *         of this version, is truncated, or fails its checksum
+     */
+    static MappedDirectory open(Path snapshot, boolean verify) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+
+            ByteBuffer header = ByteBuffer.allocate(DirectorySnapshot.HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Read the whole header
+            }
+            if (header.hasRemaining()
+                    || header.getInt(DirectorySnapshot.HEADER_MAGIC) != DirectorySnapshot.MAGIC) {
+                throw new IOException(snapshot + " is not a directory snapshot");
+            }
+            int version = header.getInt(DirectorySnapshot.HEADER_VERSION);
+            if (version != DirectorySnapshot.VERSION) {
+                throw new IOException(snapshot + " is a version " + version
+                        + " directory snapshot, expected version " + DirectorySnapshot.VERSION);
+            }
+
+            int size = header.getInt(DirectorySnapshot.HEADER_RECORDS);
+            long[] lengths = {
+                    (long) size * DirectorySnapshot.RECORD_FIELDS * 4,
+                    (long) header.getInt(DirectorySnapshot.HEADER_GROUPS) * DirectorySnapshot.GROUP_FIELDS * 4,
+                    (long) header.getInt(DirectorySnapshot.HEADER_MEMBERS) * 4,
+                    (long) header.getInt(DirectorySnapshot.HEADER_GROUP_LISTS) * 4,
+                    (long) tableSlots(snapshot, header.getInt(DirectorySnapshot.HEADER_DN_SLOTS)) * 4,
+                    (long) tableSlots(snapshot, header.getInt(DirectorySnapshot.HEADER_CN_SLOTS)) * 4,
+                    (long) header.getInt(DirectorySnapshot.HEADER_CN_KEYS) * 4,
+                    (long) tableSlots(snapshot, header.getInt(DirectorySnapshot.HEADER_GROUP_SLOTS)) * 4,
+                    header.getInt(DirectorySnapshot.HEADER_STRINGS_LENGTH)
+            };
+
+            long end = DirectorySnapshot.HEADER_SIZE;
+            for (long length : lengths) {
+                if (length < 0 || length > Integer.MAX_VALUE) {
+                    throw new IOException(snapshot + " is corrupt");
+                }
+                end += length;
+            }
+            if (end != channel.size()) {
+                throw new IOException(snapshot + " is " + channel.size() + " bytes, expected " + end);
+            }
+
+            // The mappings stay valid once the channel is closed
+            ByteBuffer[] sections = new ByteBuffer[lengths.length];
+            CRC32 checksum = new CRC32();
+            long position = DirectorySnapshot.HEADER_SIZE;
+            for (int i = 0; i < lengths.length; i++) {
+                sections[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, lengths[i]);
+                position += lengths[i];
+                if (verify) {
+                    checksum.update(sections[i].duplicate());
+                }
+            }
+            if (verify && checksum.getValue() != header.getLong(DirectorySnapshot.HEADER_CHECKSUM)) {
+                throw new IOException(snapshot + " failed its checksum");
+            }
+
+            return new MappedDirectory(size, sections);
+        }
+    }
+
+    private static int tableSlots(Path snapshot, int slots) throws IOException {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IOException(snapshot + " is corrupt");
+        }
+        return slots;
+    }
+
+    @Override
+    List<MockAuthSystemEntry> records() {
+        return recordList;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    Iterable<String> normalizedDns() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int id) {
+                return string(recordField(id, DirectorySnapshot.RECORD_NORMALIZED_DN));
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    MockAuthSystemEntry byDn(String normalizedDN) {
+        int id = probe(dnTable, normalizedDN, records,
+                DirectorySnapshot.RECORD_FIELDS, DirectorySnapshot.RECORD_NORMALIZED_DN);
+        return id < 0 ? null : record(id);
+    }
+
+    @Override
+    MockAuthSystemEntry[] byCn(String cn) {
+        int head = probe(cnTable, cn, records, DirectorySnapshot.RECORD_FIELDS, DirectorySnapshot.RECORD_CN);
+        if (head < 0) {
+            return null;
+        }
+        MockAuthSystemEntry[] entries = new MockAuthSystemEntry[chainLength(head)];
+        int id = head;
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = record(id);
+            id = recordField(id, DirectorySnapshot.RECORD_NEXT_CN);
+        }
+        return entries;
+    }
+
+    @Override
+    int countCn(String cn) {
+        int head = probe(cnTable, cn, records, DirectorySnapshot.RECORD_FIELDS, DirectorySnapshot.RECORD_CN);
+        return head < 0 ? 0 : chainLength(head);
+    }
+
+    @Override
+    MockAuthSystemEntry[] directMembers(String normalizedGroup) {
+        int group = probe(groupTable, normalizedGroup, groups,
+                DirectorySnapshot.GROUP_FIELDS, DirectorySnapshot.GROUP_NORMALIZED_DN);
+        if (group < 0) {
+            return null;
+        }
+        int first = groupField(group, DirectorySnapshot.GROUP_FIRST_MEMBER);
+        MockAuthSystemEntry[] entries =
+                new MockAuthSystemEntry[groupField(group, DirectorySnapshot.GROUP_MEMBER_COUNT)];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = record(members.getInt((first + i) * 4));
+        }
+        return entries;
+    }
+
+    @Override
+    int countDirectMembers(String normalizedGroup) {
+        int group = probe(groupTable, normalizedGroup, groups,
+                DirectorySnapshot.GROUP_FIELDS, DirectorySnapshot.GROUP_NORMALIZED_DN);
+        return group < 0 ? 0 : groupField(group, DirectorySnapshot.GROUP_MEMBER_COUNT);
+    }
+
+    @Override
+    int countCnPrefix(String prefix) {
+        return prefixEnd(prefix) - prefixStart(prefix);
+    }
+
+    @Override
+    List<MockAuthSystemEntry> byCnPrefix(String prefix) {
+        int end = prefixEnd(prefix);
+        List<MockAuthSystemEntry> entries = new ArrayList<MockAuthSystemEntry>();
+        for (int i = prefixStart(prefix); i < end; i++) {
+            int id = cnOrder.getInt(i * 4);
+            for (; id != DirectorySnapshot.NONE; id = recordField(id, DirectorySnapshot.RECORD_NEXT_CN)) {
+                entries.add(record(id));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    String normalizedGroup(String group) {
+        String normalized = normalizedGroups.get(group);
+        if (normalized == null) {
+            normalized = DirectoryNames.normalize(group);
+            // Only the group DNs of the records are looked up often
+            if (normalizedGroups.size() < MAX_CACHED_GROUPS) {
+                normalizedGroups.putIfAbsent(group, normalized);
+            }
+        }
+        return normalized;
+    }
+
+    /*
+     * Build the record of a user from the snapshot
+     */
+    private MockAuthSystemEntry record(int id) {
+        int list = recordField(id, DirectorySnapshot.RECORD_GROUPS);
+        String[] groups = MockAuthSystemEntry.NO_GROUPS;
+        if (list != DirectorySnapshot.NONE) {
+            groups = groupArrays.get(list);
+            if (groups == null) {
+                groups = new String[groupLists.getInt(list * 4)];
+                for (int i = 0; i < groups.length; i++) {
+                    groups[i] = string(groupLists.getInt((list + 1 + i) * 4));
+                }
+                String[] shared = groupArrays.putIfAbsent(list, groups);
+                if (shared != null) {
+                    groups = shared;
+                }
+            }
+        }
+        return new Record(id, bytes(recordField(id, DirectorySnapshot.RECORD_DN)),
+                bytes(recordField(id, DirectorySnapshot.RECORD_PASSWORD)), groups);
+    }
+
+    /*
+     * Find a key in a table
+     *
+     * @return The number held for the key, or DirectorySnapshot.NONE
+     */
+    private int probe(ByteBuffer table, String key, ByteBuffer rows, int fields, int keyField) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int mask = table.capacity() / 4 - 1;
+        int i = DirectorySnapshot.hash(bytes) & mask;
+        for (int slot = table.getInt(i * 4); slot != 0; slot = table.getInt(i * 4)) {
+            int n = slot - 1;
+            if (stringEquals(rows.getInt((n * fields + keyField) * 4), bytes)) {
+                return n;
+            }
+            i = (i + 1) & mask;
+        }
+        return DirectorySnapshot.NONE;
+    }
+
+    private int chainLength(int head) {
+        int length = 0;
+        for (int id = head; id != DirectorySnapshot.NONE; id = recordField(id, DirectorySnapshot.RECORD_NEXT_CN)) {
+            length++;
+        }
+        return length;
+    }
+
+    /*
+     * The position in the RDN order of the first value that is not less than the key
+     */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = cnOrder.capacity() / 4;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (string(recordField(cnOrder.getInt(middle * 4), DirectorySnapshot.RECORD_CN)).compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int prefixStart(String prefix) {
+        return lowerBound(prefix);
+    }
+
+    private int prefixEnd(String prefix) {
+        // Every value starting with the prefix sorts before the prefix
+        // followed by the highest character
+        return lowerBound(prefix + Character.MAX_VALUE);
+    }
+
+    private int recordField(int id, int field) {
+        return records.getInt((id * DirectorySnapshot.RECORD_FIELDS + field) * 4);
+    }
+
+    private int groupField(int group, int field) {
+        return groups.getInt((group * DirectorySnapshot.GROUP_FIELDS + field) * 4);
+    }
+
+    private boolean stringEquals(int offset, byte[] bytes) {
+        if (offset == DirectorySnapshot.NONE || strings.getInt(offset) != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (strings.get(offset + 4 + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] bytes(int offset) {
+        byte[] bytes = new byte[strings.getInt(offset)];
+        ByteBuffer string = strings.duplicate();
+        string.position(offset + 4);
+        string.get(bytes);
+        return bytes;
+    }
+
+    private String string(int offset) {
+        return new String(bytes(offset), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * The user records, built as they are read
+     */
+    private final class RecordList extends AbstractList<MockAuthSystemEntry> implements RandomAccess {
+        @Override
+        public MockAuthSystemEntry get(int id) {
+            if (id < 0 || id >= size) {
+                throw new IndexOutOfBoundsException("No user " + id);
+            }
+            return record(id);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /*
+     * A user record of the snapshot, equal to the other records built
+     * for the same user
+     */
+    private static final class Record extends MockAuthSystemEntry {
+        private final int id;
+
+        Record(int id, byte[] dn, byte[] userPassword, String[] groups) {
+            super(dn, userPassword, groups);
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Record && ((Record) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class wraps an {@link AuthBackend} and records the latency and
+ * failures of every call made to it in the {@link InterceptorMetrics}.
+ * It wraps the backend itself, inside any caches, so only real backend
+ * calls are measured.
+ */
+public final class MeteredAuthBackend implements AuthBackend {
+
+    private final AuthBackend backend;
+    private final InterceptorMetrics metrics;
+
+    /**
+     * @param backend The backend to measure
+     * @param metrics The metrics to record into
+     */
+    public MeteredAuthBackend(AuthBackend backend, InterceptorMetrics metrics) {
+        this.backend = backend;
+        this.metrics = metrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> authenticate(String dn, String password) {
+        final long start = System.nanoTime();
+        CompletableFuture<Boolean> result = backend.authenticate(dn, password);
+        if (result.isDone()) {
+            metrics.recordBackendAuthenticate(start, result.isCompletedExceptionally());
+        } else {
+            result.whenComplete((valid, failure) -> metrics.recordBackendAuthenticate(start, failure != null));
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+        return search(baseDN, filter, 0, 0L);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(String baseDN, Filter filter, int maxEntries, long timeLimitMillis) {
+        final long start = System.nanoTime();
+        CompletableFuture<List<Entry>> result = backend.search(baseDN, filter, maxEntries, timeLimitMillis);
+        if (result.isDone()) {
+            metrics.recordBackendSearch(start, result.isCompletedExceptionally());
+        } else {
+            result.whenComplete((entries, failure) -> metrics.recordBackendSearch(start, failure != null));
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only opening the cursor is timed, not walking it.
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(String baseDN, Filter filter, long timeLimitMillis) {
+        return stream(baseDN, SearchScope.SUB, filter, timeLimitMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only opening the cursor is timed, not walking it.
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(String baseDN, SearchScope scope, Filter filter,
+                                                  long timeLimitMillis) {
+        final long start = System.nanoTime();
+        CompletableFuture<SearchCursor> result = backend.stream(baseDN, scope, filter, timeLimitMillis);
+        if (result.isDone()) {
+            metrics.recordBackendSearch(start, result.isCompletedExceptionally());
+        } else {
+            result.whenComplete((cursor, failure) -> metrics.recordBackendSearch(start, failure != null));
+        }
+        return result;
+    }
+
+    /**
+     * Close the wrapped backend
+     */
+    @Override
+    public void close() {
+        backend.close();
+    }
+
+    /**
+     * @return The wrapped backend
+     */
+    public AuthBackend getBackend() {
+        return backend;
+    }
+}
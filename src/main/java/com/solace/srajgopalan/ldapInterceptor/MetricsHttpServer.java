@@ -0,0 +1,81 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * This class serves the {@link InterceptorMetrics} in the Prometheus text
+ * exposition format at /metrics, using the HTTP server built into the JDK.
+ * It runs on a single background thread, separate from LDAP processing.
+ */
+public final class MetricsHttpServer implements Closeable {
+
+    private final HttpServer server;
+
+    /**
+     * Creates and starts the metrics endpoint
+     *
+     * @param address The address to listen on, e.g. 127.0.0.1
+     * @param port The port to listen on
+     * @param metrics The metrics to serve
+     *
+     * @throws IOException If the port cannot be bound
+     */
+    public MetricsHttpServer(String address, int port, final InterceptorMetrics metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/metrics", exchange -> serve(exchange, metrics));
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "MetricsHttpServer");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+    }
+
+    /**
+     * @return The port the endpoint is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private static void serve(HttpExchange exchange, InterceptorMetrics metrics) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+            metrics.writePrometheus(out);
+            out.flush();
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.size());
+            try (OutputStream os = exchange.getResponseBody()) {
+                body.writeTo(os);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Stop the endpoint
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -1,18 +1,29 @@
 package com.solace.srajgopalan.ldapInterceptor;
 
 import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldif.LDIFException;
-import org.json.simple.JSONArray;
+import com.unboundid.util.StaticUtils;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class stores a list of entries
@@ -24,22 +35,438 @@ import java.util.Map;
  * validate the password for a user in the
  * authentication system
  *
+ * Records are indexed by normalized DN for binds and by
+ * the value of the leading RDN (the CN), by group and by
+ * RDN prefix for searches, see {@link Directory}. Search
+ * filters are compiled and planned against these indexes
+ * by {@link CompiledFilter}, so common searches take
+ * constant time regardless of the size of the directory.
+ *
+ * As an {@link AuthBackend} it answers from memory, so the
+ * returned futures are already complete, except for binds of users
+ * with hashed passwords, which are verified by a {@link CredentialVerifier}.
+ *
+ * The records may also be read from a binary snapshot compiled by
+ * {@link DirectorySnapshot}, which is mapped into memory rather than
+ * loaded, see {@link #fromSnapshot}.
+ *
+ * The records and indexes form an immutable snapshot. A reload
+ * builds a complete new snapshot and swaps it in with a single
+ * volatile write, so binds and searches never block and never
+ * see a partially loaded directory. Registered
+ * {@link DirectoryChangeListener}s are then told which DNs changed.
+ *
+ * Users may be in several groups, and groups may be nested in other
+ * groups as defined by a group file, see {@link GroupIndex} and
+ * {@link #reloadGroups}. Searches return the effective memberOf of each
+ * user and match memberOf filters against it. The group file is reloaded
+ * on its own, and the users whose effective groups changed are reported
+ * to the listeners like changed users.
+ *
  */
 
-public class MockAuthSystem {
+public class MockAuthSystem implements AuthBackend {
+
+    /**
+     * How a search token is matched against the user records
+     */
+    public enum MatchMode {
+        /**
+         * The search filter is evaluated against the records,
+         * using the indexes where it can
+         */
+        EXACT,
+
+        /**
+         * The token may appear anywhere in the user DN. This walks
+         * every record and should only be used for small directories
+         */
+        SUBSTRING
+    }
+
+    private static final Logger LOG = Logger.getLogger(MockAuthSystem.class.getPackage().getName());
 
     /*
-       The list of user records
+       The user records and their indexes, replaced as a whole on reload
      */
-	private List<MockAuthSystemEntry> userList;
-	
+    private volatile Directory directory;
+
+    /*
+       How search tokens are matched
+     */
+    private final MatchMode matchMode;
+
+    /*
+       Notified of the DNs that changed on each reload
+     */
+    private final List<DirectoryChangeListener> changeListeners =
+            new CopyOnWriteArrayList<DirectoryChangeListener>();
+
+    /*
+       The user file the records were read from, or null if they were
+       read from the classpath or a reader
+     */
+    private final Path userFile;
+
+    /*
+       Verifies hashed passwords off the calling thread
+     */
+    private volatile CredentialVerifier credentialVerifier;
+
+    /*
+       Whether searches that cannot use an index walk the records on
+       several threads
+     */
+    private volatile boolean parallelScan;
+
+    /*
+       Reloads the user file when it changes, once watching has started
+     */
+    private UserFileWatcher watcher;
+
+    /*
+       Reloads the group file when it changes, once watching has started
+     */
+    private UserFileWatcher groupWatcher;
+
+    /*
+       Serializes reloads, so each one is compared against the snapshot it replaces
+     */
+    private final Object reloadLock = new Object();
+
 	public MockAuthSystem() throws LDIFException, IOException, ParseException {
+
+        this(MatchMode.EXACT);
+    }
+
+	public MockAuthSystem(MatchMode matchMode) throws LDIFException, IOException, ParseException {
+
+        this(matchMode, new InputStreamReader(
+                MockAuthSystem.class.getResourceAsStream("/UserEntries.json"), "UTF-8"));
+    }
+
+    /**
+     * Creates the mock authentication system from user entries in the
+     * format of UserEntries.json, e.g. a generated directory
+     *
+     * @param matchMode How search tokens are matched
+     * @param userEntries The JSON array of user entries
+     */
+	public MockAuthSystem(MatchMode matchMode, Reader userEntries) throws LDIFException, IOException, ParseException {
 	
+		this(matchMode, userEntries, null);
+	}
+
+	private MockAuthSystem(MatchMode matchMode, Reader userEntries, Path userFile) throws LDIFException, IOException, ParseException {
+
 		//Compose the list of users here
-		userList = new ArrayList<MockAuthSystemEntry>();
-		composeMockAuthSystem();
+        this(matchMode, load(userEntries), userFile);
+	}
+
+	private MockAuthSystem(MatchMode matchMode, Directory directory, Path userFile) {
 
+        this.matchMode = matchMode;
+        this.userFile = userFile;
+        credentialVerifier = new CredentialVerifier(Runtime.getRuntime().availableProcessors(), 1024);
+        this.directory = directory;
 	}
+
+    /**
+     * Creates the mock authentication system from a snapshot compiled by
+     * {@link DirectorySnapshot}. The snapshot is mapped into memory
+     * read-only, so startup does not depend on the number of users. It
+     * is not watched; a new snapshot takes effect on restart.
+     *
+     * @param matchMode How search tokens are matched
+     * @param snapshot The path of the snapshot
+     * @param verify Whether to check the checksum of the snapshot first,
+     *               which reads all of it
+     *
+     * @throws IOException If the snapshot cannot be mapped or is corrupt
+     */
+    public static MockAuthSystem fromSnapshot(MatchMode matchMode, Path snapshot, boolean verify) throws IOException {
+
+        long start = System.nanoTime();
+        MappedDirectory d = MappedDirectory.open(snapshot, verify);
+
+        if (LOG.isLoggable(Level.INFO)) {
+            LOG.info("Mapped " + d.size() + " users from " + snapshot + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+        return new MockAuthSystem(matchMode, d, null);
+    }
+
+    /**
+     * Creates the mock authentication system from a user file in the
+     * format of UserEntries.json
+     *
+     * @param matchMode How search tokens are matched
+     * @param userFile The path of the user file
+     */
+	public MockAuthSystem(MatchMode matchMode, Path userFile) throws LDIFException, IOException, ParseException {
+
+        this(matchMode, Files.newBufferedReader(userFile, StandardCharsets.UTF_8), userFile);
+    }
+
+    /**
+     * Reload the user file in the background whenever it changes
+     *
+     * @param settleMillis How long the file must be unchanged before it is reloaded
+     *
+     * @throws IOException If the user file cannot be watched
+     * @throws IllegalStateException If the records were not read from a user file
+     */
+    public synchronized void startWatching(long settleMillis) throws IOException {
+
+        if (userFile == null) {
+            throw new IllegalStateException("The users were not read from a file");
+        }
+        if (watcher == null) {
+            watcher = new UserFileWatcher(userFile, this, settleMillis);
+        }
+    }
+
+    /**
+     * Reload the group file in the background whenever it changes
+     *
+     * @param groupFile The group file, as read by {@link #reloadGroups(Path)}
+     * @param settleMillis How long the file must be unchanged before it is reloaded
+     *
+     * @throws IOException If the group file cannot be watched
+     */
+    public synchronized void startWatchingGroups(Path groupFile, long settleMillis) throws IOException {
+
+        if (groupWatcher == null) {
+            groupWatcher = new UserFileWatcher(groupFile, this::reloadGroups, settleMillis);
+        }
+    }
+
+    /**
+     * Replace the pool that verifies hashed passwords, closing the current one
+     *
+     * @param credentialVerifier The new verification pool
+     */
+    public void setCredentialVerifier(CredentialVerifier credentialVerifier) {
+        CredentialVerifier old = this.credentialVerifier;
+        this.credentialVerifier = credentialVerifier;
+        old.close();
+    }
+
+    /**
+     * @return The pool that verifies hashed passwords
+     */
+    public CredentialVerifier getCredentialVerifier() {
+        return credentialVerifier;
+    }
+
+    /**
+     * Stop watching the user file and stop the password verification pool
+     */
+    @Override
+    public synchronized void close() {
+
+        credentialVerifier.close();
+
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Unable to stop watching " + userFile, e);
+            }
+            watcher = null;
+        }
+
+        if (groupWatcher != null) {
+            try {
+                groupWatcher.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Unable to stop watching the group file", e);
+            }
+            groupWatcher = null;
+        }
+    }
+
+    /**
+     * Replace the user records with those of the user file, e.g. after
+     * it has been edited. If the file cannot be read or parsed the current
+     * records are kept.
+     *
+     * @param userFile The path of the user file
+     *
+     * @return The normalized DNs of the users that were added, removed or modified
+     */
+    public Set<String> reload(Path userFile) throws LDIFException, IOException, ParseException {
+
+        return reload(Files.newBufferedReader(userFile, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replace the user records with the given user entries. The new
+     * records are indexed before they are swapped in, so concurrent
+     * binds and searches see either the old or the new directory.
+     *
+     * @param userEntries The JSON array of user entries
+     *
+     * @return The normalized DNs of the users that were added, removed or modified
+     */
+    public Set<String> reload(Reader userEntries) throws LDIFException, IOException, ParseException {
+
+        HeapDirectory loaded = load(userEntries);
+        Set<String> changed;
+
+        synchronized (reloadLock) {
+            // The users keep the nesting of the current group file
+            Directory d = loaded.withGroups(directory.groups());
+            changed = changedDNs(directory, d);
+            directory = d;
+        }
+
+        if (LOG.isLoggable(Level.INFO)) {
+            LOG.info("Reloaded " + loaded.size() + " users, " + changed.size() + " changed");
+        }
+
+        if (!changed.isEmpty()) {
+            notifyChanged(changed);
+        }
+        return changed;
+    }
+
+    /**
+     * Replace the nesting of groups with that of the group file. If the
+     * file cannot be read or parsed the current nesting is kept.
+     *
+     * @param groupFile The path of the group file
+     *
+     * @return The normalized DNs of the users whose effective groups changed
+     */
+    public Set<String> reloadGroups(Path groupFile) throws IOException, ParseException {
+
+        return reloadGroups(Files.newBufferedReader(groupFile, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replace the nesting of groups with the given group entries, in the
+     * format of UserEntries.json: the DN of each group and, as its group,
+     * the groups it is directly nested in. Only the closures of the groups
+     * whose nesting changed are recomputed.
+     *
+     * @param groupEntries The JSON array of group entries, closed on return
+     *
+     * @return The normalized DNs of the users whose effective groups changed
+     */
+    public Set<String> reloadGroups(Reader groupEntries) throws IOException, ParseException {
+
+        long start = System.nanoTime();
+        final List<MockAuthSystemEntry> definitions = new ArrayList<MockAuthSystemEntry>();
+        try {
+            new JSONParser().parse(groupEntries, new UserEntriesHandler(definitions::add));
+        } finally {
+            groupEntries.close();
+        }
+
+        Set<String> changed = new HashSet<String>();
+        GroupIndex groups;
+
+        synchronized (reloadLock) {
+            Directory d = directory;
+            groups = d.groups().update(definitions);
+            d = d.withGroups(groups);
+            for (String group : groups.changed()) {
+                MockAuthSystemEntry[] members = d.directMembers(group);
+                if (members != null) {
+                    for (MockAuthSystemEntry m : members) {
+                        changed.add(DirectoryNames.normalize(m.getDn()));
+                    }
+                }
+            }
+            directory = d;
+        }
+
+        if (LOG.isLoggable(Level.INFO)) {
+            LOG.info("Loaded " + groups.size() + " groups in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, "
+                    + changed.size() + " users changed");
+        }
+
+        changed = Collections.unmodifiableSet(changed);
+        // Listeners are told of any change of nesting, even one that
+        // changed no user's groups, as it changes the members of the
+        // groups above, which cached memberOf searches depend on
+        if (!groups.changed().isEmpty()) {
+            notifyChanged(changed);
+        }
+        return changed;
+    }
+
+    private void notifyChanged(Set<String> changed) {
+        for (DirectoryChangeListener listener : changeListeners) {
+            try {
+                listener.directoryChanged(changed);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Unable to notify a directory change listener", e);
+            }
+        }
+    }
+
+    /**
+     * Register a listener to be told which DNs changed on each reload
+     *
+     * @param listener The listener, e.g. to invalidate cached binds
+     */
+    public void addChangeListener(DirectoryChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Read and index the user entries into a new directory snapshot
+     *
+     * @param userEntries The JSON array of user entries, closed on return
+     *
+     * @return The fully indexed snapshot
+     */
+    private static HeapDirectory load(Reader userEntries) throws IOException, ParseException {
+
+        long start = System.nanoTime();
+        HeapDirectory d = new HeapDirectory();
+        try {
+            composeMockAuthSystem(d, userEntries);
+        } finally {
+            userEntries.close();
+        }
+
+        if (LOG.isLoggable(Level.INFO)) {
+            LOG.info("Loaded " + d.size() + " users in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+        return d;
+    }
+
+    /**
+     * Compare two snapshots
+     *
+     * @return The normalized DNs present in only one of them, or whose
+     *         password or entry differ between them
+     */
+    private static Set<String> changedDNs(Directory before, Directory after) {
+
+        Set<String> changed = new HashSet<String>();
+
+        for (String dn : after.normalizedDns()) {
+            MockAuthSystemEntry old = before.byDn(dn);
+            if (old == null || !old.sameRecord(after.byDn(dn))) {
+                changed.add(dn);
+            }
+        }
+
+        for (String dn : before.normalizedDns()) {
+            if (after.byDn(dn) == null) {
+                changed.add(dn);
+            }
+        }
+
+        return Collections.unmodifiableSet(changed);
+    }
+
     /**
      * Populate the mock file based authentication system
      * by reading entries from the JSON config file
@@ -49,56 +476,23 @@ public class MockAuthSystem {
      *
      *     {
      * 		"dn": "cn=alice,dc=solace,dc=com",
-     * 		"memberOf": "publishers,ou=groups,dc=solace,dc=com",
+     * 		"group": "cn=publishers,ou=groups,dc=solace,dc=com",
      * 		"password": "alice"
      *     }
      *
+     * where "group" may also be an array of group DNs
+     *
+     * The entries are streamed and indexed one at a time
      */
-	private void composeMockAuthSystem() throws LDIFException, IOException, ParseException {
+	private static void composeMockAuthSystem(final HeapDirectory d, Reader userEntries) throws IOException, ParseException {
 		
 		/*
 		 * Here compose the entries in our Mock Authentication
 		 * System entries to test against
 		 */
 
-        InputStream is = MockAuthSystem.class.getResourceAsStream("/UserEntries.json");
-
-        Object obj = new JSONParser().parse(new InputStreamReader(is,"UTF-8"));
-
-        JSONArray jsonArray = (JSONArray) obj;
-
-        Iterator iterator = jsonArray.iterator();
-
-
-        while (iterator.hasNext())
-        {
-            Iterator<Map.Entry> iterator2 = ((Map) iterator.next()).entrySet().iterator();
-
-            String dn = "";
-            String password = "";
-            String group = "";
-
-            while (iterator2.hasNext()) {
-                Map.Entry pair = iterator2.next();
-                if (pair.getKey().equals("dn")) {
-                    dn = (String) pair.getValue();
-                }
-                else if (pair.getKey().equals("password")) {
-                    password = (String) pair.getValue();
-                }
-                else if (pair.getKey().equals("group")) {
-                    group = (String) pair.getValue();
-                }
-            }
-
-            MockAuthSystemEntry m = new MockAuthSystemEntry();
-            Entry entry = new Entry("dn:"+dn,"memberOf:"+group);
-            m.setDn(dn);
-            m.setUserPassword(password);
-            m.setEntry(entry);
-
-            userList.add(m);
-        }
+        new JSONParser().parse(userEntries, new UserEntriesHandler(d::add));
+        d.finish();
 	}
 
     /**
@@ -112,15 +506,37 @@ public class MockAuthSystem {
      */
 
 	public List<Entry> searchMockAuthSystem(String user) {
-		
-		List<Entry> searchEntries = new ArrayList<Entry>();
-		
-		for (MockAuthSystemEntry m : userList) {
-			if (m.getDn().contains(user)) {
-				searchEntries.add(m.getEntry());
-			}
-		}
 
+        if (user == null) {
+            return Collections.emptyList();
+        }
+
+        Directory d = directory;
+
+        if (matchMode == MatchMode.SUBSTRING) {
+            List<Entry> searchEntries = new ArrayList<Entry>();
+
+            for (MockAuthSystemEntry m : d.records()) {
+                if (m.getDn().contains(user)) {
+                    searchEntries.add(d.entry(m));
+                }
+            }
+
+            return searchEntries;
+        }
+
+        MockAuthSystemEntry[] matches = d.byCn(StaticUtils.toLowerCase(user));
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        if (matches.length == 1) {
+            return Collections.singletonList(d.entry(matches[0]));
+        }
+
+        List<Entry> searchEntries = new ArrayList<Entry>(matches.length);
+        for (MockAuthSystemEntry m : matches) {
+            searchEntries.add(d.entry(m));
+        }
 		return searchEntries;
 	}
 
@@ -135,14 +551,133 @@ public class MockAuthSystem {
      */
 
 	public Boolean validateUser(String user,String password) {
-		
-		for (MockAuthSystemEntry m : userList) {
-			if (m.getDn().equals(user) && m.getUserPassword().equals(password)  ) {
-				return true;
-			}
-		}
-		
-		return false;
+
+        if (user == null || password == null) {
+            return false;
+        }
+
+        MockAuthSystemEntry m = directory.byDn(DirectoryNames.normalize(user));
+
+		return m != null && m.passwordMatches(password);
 	}
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> authenticate(String dn, String password) {
+
+        if (dn == null || password == null) {
+            return CompletedFutures.of(false);
+        }
+
+        MockAuthSystemEntry m = directory.byDn(DirectoryNames.normalize(dn));
+        if (m == null) {
+            return CompletedFutures.of(false);
+        }
+
+        if (m.isPasswordHashed()) {
+            return credentialVerifier.verify(m.getUserPassword(), password);
+        }
+
+        return CompletedFutures.of(m.passwordMatches(password));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The filter is compiled and answered from the indexes where it can
+     * be, see {@link CompiledFilter}. With {@link MatchMode#SUBSTRING}
+     * the assertion value of the filter is used as the user token.
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+        return search(baseDN, filter, 0, 0L);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The search stops once it has found maxEntries entries, and fails
+     * if it is still walking the records when the time limit runs out.
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(String baseDN, Filter filter, int maxEntries, long timeLimitMillis) {
+
+        if (matchMode == MatchMode.SUBSTRING) {
+            return CompletableFuture.completedFuture(searchMockAuthSystem(filter.getAssertionValue()));
+        }
+
+        try {
+            CompiledFilter compiled = CompiledFilter.compile(filter);
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Search " + filter + " planned as " + compiled);
+            }
+            return CompletableFuture.completedFuture(
+                    compiled.select(directory, parallelScan, maxEntries, timeLimitMillis));
+        } catch (LDAPException e) {
+            CompletableFuture<List<Entry>> failed = new CompletableFuture<List<Entry>>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The cursor matches the records of the current snapshot as it is
+     * read, so no entry is built before the client asks for it. A filter
+     * that cannot use an index is scanned in parallel before the cursor
+     * is returned if parallel scans are on.
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(String baseDN, Filter filter, long timeLimitMillis) {
+
+        if (matchMode == MatchMode.SUBSTRING) {
+            return CompletableFuture.completedFuture(
+                    SearchCursor.of(searchMockAuthSystem(filter.getAssertionValue())));
+        }
+
+        try {
+            CompiledFilter compiled = CompiledFilter.compile(filter);
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Search " + filter + " planned as " + compiled);
+            }
+            return CompletableFuture.completedFuture(compiled.cursor(directory, parallelScan, timeLimitMillis));
+        } catch (LDAPException e) {
+            CompletableFuture<SearchCursor> failed = new CompletableFuture<SearchCursor>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * @param parallelScan Whether searches that cannot use an index walk
+     *                     the records on several threads
+     */
+    public void setParallelScan(boolean parallelScan) {
+        this.parallelScan = parallelScan;
+    }
+
+    /**
+     * @return The number of user records
+     */
+    public int size() {
+        return directory.size();
+    }
+
+    /**
+     * @return The current snapshot of the user records
+     */
+    Directory directory() {
+        return directory;
+    }
+
+    /**
+     * @return How search tokens are matched against the user records
+     */
+    public MatchMode getMatchMode() {
+        return matchMode;
+    }
+
 }
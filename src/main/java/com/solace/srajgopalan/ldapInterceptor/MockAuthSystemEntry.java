@@ -1,46 +1,176 @@
 package com.solace.srajgopalan.ldapInterceptor;
 
+import com.unboundid.ldap.sdk.Attribute;
 import com.unboundid.ldap.sdk.Entry;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
 /**
  * This class describes a simple Entry record in our
  * file based authentication system.
  * An Entry consists of three parts:
  *   - CN (username)
- *   - Password
- *   - Group membership attribute
+ *   - Password, in plaintext or hashed as described in {@link PasswordHash}
+ *   - Group membership attribute, with any number of groups
+ *
+ * The groups of a record are those it is a direct member of. The
+ * groups they are nested in are added by the {@link GroupIndex} of the
+ * directory when the record is returned to a search.
+ *
+ * Directories may hold millions of records, so the DN and password
+ * are kept as UTF-8 bytes, the groups are shared between all records
+ * with the same groups, and the LDAP Entry returned by searches is built when
+ * it is asked for rather than kept with the record. Repeated searches
+ * are answered from the {@link SearchResponseCache}.
  */
 
 public class MockAuthSystemEntry {
-	private String dn;
-	private String userPassword;
-	private Entry entry;
+
+	/*
+	 * The groups of a record that is not in any group
+	 */
+	static final String[] NO_GROUPS = new String[0];
+
+	private byte[] dn;
+	private byte[] userPassword;
+	private String[] groups = NO_GROUPS;
+
+	public MockAuthSystemEntry() {
+	}
+
+	/**
+	 * @param dn The user DN
+	 * @param userPassword The user password
+	 * @param group The group DN, shared with the other members of the group
+	 */
+	MockAuthSystemEntry(String dn, String userPassword, String group) {
+		this(dn, userPassword, group == null || group.isEmpty() ? NO_GROUPS : new String[] {group});
+	}
+
+	/**
+	 * @param dn The user DN
+	 * @param userPassword The user password
+	 * @param groups The group DNs, shared with the other records in the same groups
+	 */
+	MockAuthSystemEntry(String dn, String userPassword, String[] groups) {
+		this(dn.getBytes(StandardCharsets.UTF_8), userPassword.getBytes(StandardCharsets.UTF_8), groups);
+	}
+
+	/**
+	 * @param dn The user DN as UTF-8 bytes, which the record takes over
+	 * @param userPassword The user password as UTF-8 bytes, which the record takes over
+	 * @param groups The group DNs, shared with the other records in the same groups
+	 */
+	MockAuthSystemEntry(byte[] dn, byte[] userPassword, String[] groups) {
+		this.dn = dn;
+		this.userPassword = userPassword;
+		this.groups = groups;
+	}
 
 	public String getDn() {
-		return dn;
+		return new String(dn, StandardCharsets.UTF_8);
 	}
 	public void setDn(String dn) {
-		this.dn = dn;
+		this.dn = dn.getBytes(StandardCharsets.UTF_8);
 	}
 	public String getUserPassword() {
-		return userPassword;
+		return new String(userPassword, StandardCharsets.UTF_8);
 	}
 	public void setUserPassword(String userPassword) {
-		this.userPassword = userPassword;
+		this.userPassword = userPassword.getBytes(StandardCharsets.UTF_8);
+	}
+	/**
+	 * @return The first group DN, or an empty string if the record is not in a group
+	 */
+	public String getGroup() {
+		return groups.length == 0 ? "" : groups[0];
+	}
+	public void setGroup(String group) {
+		this.groups = group == null || group.isEmpty() ? NO_GROUPS : new String[] {group};
+	}
+	/**
+	 * @return The group DNs the record is a direct member of, which must
+	 *         not be modified
+	 */
+	public String[] getGroups() {
+		return groups;
 	}
+	public void setGroups(String[] groups) {
+		this.groups = groups.length == 0 ? NO_GROUPS : groups.clone();
+	}
+
+	/**
+	 * @return A new LDAP entry for the user with its object classes,
+	 *         the attribute of its leading RDN and its memberOf attribute
+	 *         holding its direct groups
+	 */
 	public Entry getEntry() {
+		return getEntry(groups);
+	}
+
+	/**
+	 * @param memberOf The values of the memberOf attribute, e.g. the
+	 *                 effective groups of the record
+	 *
+	 * @return A new LDAP entry for the user
+	 */
+	Entry getEntry(String[] memberOf) {
+		String dn = getDn();
+		Entry entry = new Entry(dn);
+		entry.addAttribute("objectClass", CompiledFilter.OBJECT_CLASSES);
+		String[] rdn = DirectoryNames.leadingRdn(dn);
+		if (rdn != null) {
+			entry.addAttribute(rdn[0], rdn[1]);
+		}
+		if (memberOf.length == 0) {
+			entry.addAttribute(new Attribute("memberOf", ""));
+		} else {
+			entry.addAttribute(new Attribute("memberOf", memberOf));
+		}
 		return entry;
 	}
-	public void setEntry(Entry entry) {
-		this.entry = entry;
+
+	/**
+	 * @return true if the user password is hashed rather than plaintext,
+	 *         so checking it is slow
+	 */
+	public boolean isPasswordHashed() {
+		return userPassword.length > 0 && userPassword[0] == '$'
+				&& PasswordHash.isHashed(getUserPassword());
+	}
+
+	/**
+	 * Compare a password with the user password in time that does not
+	 * depend on where they differ. A hashed user password is verified on
+	 * the calling thread.
+	 *
+	 * @param password The password to check
+	 *
+	 * @return true if the password matches
+	 */
+	public boolean passwordMatches(String password) {
+		if (isPasswordHashed()) {
+			return PasswordHash.matches(getUserPassword(), password);
+		}
+		return MessageDigest.isEqual(userPassword, password.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return true if the other record has the same DN, password and groups
+	 */
+	boolean sameRecord(MockAuthSystemEntry other) {
+		return Arrays.equals(dn, other.dn)
+				&& Arrays.equals(userPassword, other.userPassword)
+				&& Arrays.equals(groups, other.groups);
 	}
 
     @Override
     public String toString() {
         return "MockAuthSystemEntry{" +
-                "dn='" + dn + '\'' +
-                ", userPassword='" + userPassword + '\'' +
-                ", entry=" + entry +
+                "dn='" + getDn() + '\'' +
+                ", groups=" + Arrays.toString(groups) +
                 '}';
     }
 }
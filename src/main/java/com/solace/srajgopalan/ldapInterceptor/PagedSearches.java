@@ -0,0 +1,172 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.util.StaticUtils;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps the cursors of paged searches between their pages,
+ * for the Simple Paged Results control of RFC 2696. Each page returns a
+ * random cookie that the client sends with its request for the next
+ * page, on the same connection and with the same search.
+ *
+ * A cursor holds no entries, only its place in the directory snapshot
+ * it is walking, so the memory of a paged search is bounded by its page
+ * size. Cursors that are not asked for their next page within the idle
+ * timeout expire, and at most a maximum number are kept open at once;
+ * further paged searches are refused until some complete or expire.
+ * The cursors of a connection are closed when it closes.
+ */
+public final class PagedSearches {
+
+    /*
+     * A paged search between two of its pages
+     */
+    static final class PagedSearch {
+        final long connectionID;
+        final String searchKey;
+        final SearchCursor cursor;
+        int remaining;
+        long expiresAtNanos;
+
+        /**
+         * @param connectionID The connection the search was requested on
+         * @param searchKey What identifies the search, to check the
+         *                  request for each page is for the same search
+         * @param cursor The cursor over the entries of the search
+         * @param remaining The number of entries the size limit still
+         *                  allows, or Integer.MAX_VALUE for no limit
+         */
+        PagedSearch(long connectionID, String searchKey, SearchCursor cursor, int remaining) {
+            this.connectionID = connectionID;
+            this.searchKey = searchKey;
+            this.cursor = cursor;
+            this.remaining = remaining;
+        }
+    }
+
+    private final ConcurrentHashMap<String, PagedSearch> searches = new ConcurrentHashMap<String, PagedSearch>();
+    private final SecureRandom random = new SecureRandom();
+    private final int maxOpen;
+    private final long idleTimeoutNanos;
+
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * @param maxOpen The most paged searches kept open at once
+     * @param idleTimeoutMillis How long a paged search is kept open
+     *                          waiting for the request for its next page
+     */
+    public PagedSearches(int maxOpen, long idleTimeoutMillis) {
+        this.maxOpen = maxOpen;
+        this.idleTimeoutNanos = idleTimeoutMillis * 1000000L;
+    }
+
+    /**
+     * Keep a paged search open until its next page is requested
+     *
+     * @param search The paged search
+     *
+     * @return The cookie of the next page, or null if too many paged
+     *         searches are open, in which case the cursor is closed
+     */
+    ASN1OctetString park(PagedSearch search) {
+
+        if (searches.size() >= maxOpen) {
+            expire();
+            if (searches.size() >= maxOpen) {
+                refused.increment();
+                search.cursor.close();
+                return null;
+            }
+        }
+
+        search.cursor.park();
+        byte[] cookie = new byte[16];
+        random.nextBytes(cookie);
+        search.expiresAtNanos = System.nanoTime() + idleTimeoutNanos;
+        searches.put(StaticUtils.toHex(cookie), search);
+        return new ASN1OctetString(cookie);
+    }
+
+    /**
+     * Take the paged search a cookie was returned for, so that its next
+     * page can be sent. The search is no longer open until it is parked
+     * again.
+     *
+     * @param cookie The cookie sent by the client
+     * @param connectionID The connection the next page is requested on
+     *
+     * @return The paged search, or null if the cookie is unknown, has
+     *         expired or belongs to another connection
+     */
+    PagedSearch take(ASN1OctetString cookie, long connectionID) {
+        String key = StaticUtils.toHex(cookie.getValue());
+        PagedSearch search = searches.get(key);
+        if (search == null || search.connectionID != connectionID || !searches.remove(key, search)) {
+            return null;
+        }
+        if (System.nanoTime() - search.expiresAtNanos >= 0) {
+            expired.increment();
+            search.cursor.close();
+            return null;
+        }
+        return search;
+    }
+
+    /**
+     * Close the paged searches of a connection, e.g. when it closes
+     *
+     * @param connectionID The connection
+     */
+    void closeAll(long connectionID) {
+        for (Map.Entry<String, PagedSearch> e : searches.entrySet()) {
+            PagedSearch search = e.getValue();
+            // A search taken for its next page meanwhile is left to its taker
+            if (search.connectionID == connectionID && searches.remove(e.getKey(), search)) {
+                search.cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Close the paged searches whose next page has not been requested
+     * within the idle timeout
+     */
+    public void expire() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, PagedSearch> e : searches.entrySet()) {
+            PagedSearch search = e.getValue();
+            if (now - search.expiresAtNanos >= 0 && searches.remove(e.getKey(), search)) {
+                expired.increment();
+                search.cursor.close();
+            }
+        }
+    }
+
+    /**
+     * @return The number of paged searches waiting for their next page
+     */
+    public int getOpenCount() {
+        return searches.size();
+    }
+
+    /**
+     * @return The number of paged searches closed by the idle timeout
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * @return The number of paged searches refused because too many were open
+     */
+    public long getRefusedCount() {
+        return refused.sum();
+    }
+}
@@ -0,0 +1,342 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * This class creates and verifies the hashed passwords that may be stored
+ * in the user file in place of plaintext passwords. The scheme is taken
+ * from the prefix of the stored value:
+ *
+ *   - $pbkdf2-sha256$rounds$salt$hash and $pbkdf2-sha512$..., PBKDF2 in
+ *     the modular crypt format used by passlib, salt and hash in base64
+ *     with '.' for '+' and no padding
+ *   - $6$[rounds=n$]salt$hash, SHA-512-crypt as used by glibc crypt(3)
+ *   - $2a$, $2b$ or $2y$, bcrypt
+ *
+ * Any other value is a plaintext password. All of the schemes are slow by
+ * design, so verification is run by a {@link CredentialVerifier}.
+ *
+ * Hashes for the user file can be created with
+ *
+ *     java -cp ldap-interceptor.jar com.solace.srajgopalan.ldapInterceptor.PasswordHash pbkdf2-sha256|sha512-crypt|bcrypt password
+ */
+public final class PasswordHash {
+
+    /**
+     * The supported hashing schemes
+     */
+    public enum Scheme {
+        PBKDF2_SHA256, PBKDF2_SHA512, SHA512_CRYPT, BCRYPT
+    }
+
+    private static final String PBKDF2_SHA256_PREFIX = "$pbkdf2-sha256$";
+    private static final String PBKDF2_SHA512_PREFIX = "$pbkdf2-sha512$";
+    private static final String SHA512_CRYPT_PREFIX = "$6$";
+
+    private static final int PBKDF2_SHA256_ROUNDS = 29000;
+    private static final int PBKDF2_SHA512_ROUNDS = 25000;
+    private static final int BCRYPT_LOG_ROUNDS = 12;
+
+    private static final int SHA512_CRYPT_ROUNDS = 5000;
+    private static final int SHA512_CRYPT_MIN_ROUNDS = 1000;
+    private static final int SHA512_CRYPT_MAX_ROUNDS = 999999999;
+    private static final int SHA512_CRYPT_MAX_SALT = 16;
+    private static final String ROUNDS_PREFIX = "rounds=";
+
+    private static final String CRYPT_ALPHABET =
+            "./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PasswordHash() {
+    }
+
+    /**
+     * @param stored The stored credential
+     *
+     * @return true if the credential is hashed with one of the supported schemes
+     */
+    public static boolean isHashed(String stored) {
+        return stored.startsWith(PBKDF2_SHA256_PREFIX)
+                || stored.startsWith(PBKDF2_SHA512_PREFIX)
+                || stored.startsWith(SHA512_CRYPT_PREFIX)
+                || isBCrypt(stored);
+    }
+
+    /**
+     * Check a password against a stored credential, which may be hashed
+     * or plaintext
+     *
+     * @param stored The stored credential
+     * @param password The password to check
+     *
+     * @return true if the password matches; false if it does not or the
+     *         stored hash is malformed
+     */
+    public static boolean matches(String stored, String password) {
+        try {
+            if (stored.startsWith(PBKDF2_SHA256_PREFIX)) {
+                return matchesPBKDF2(stored, PBKDF2_SHA256_PREFIX, "PBKDF2WithHmacSHA256", password);
+            }
+            if (stored.startsWith(PBKDF2_SHA512_PREFIX)) {
+                return matchesPBKDF2(stored, PBKDF2_SHA512_PREFIX, "PBKDF2WithHmacSHA512", password);
+            }
+            if (stored.startsWith(SHA512_CRYPT_PREFIX)) {
+                return constantTimeEquals(stored, sha512Crypt(password, stored));
+            }
+            if (isBCrypt(stored)) {
+                // jBCrypt only accepts the $2a$ prefix; $2b$ and $2y$
+                // differ only in how other implementations handled bugs
+                String hash = "$2a$" + stored.substring(4);
+                return constantTimeEquals(hash, BCrypt.hashpw(password, hash));
+            }
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            return false;
+        }
+        return constantTimeEquals(stored, password);
+    }
+
+    /**
+     * Hash a password with a random salt
+     *
+     * @param scheme The hashing scheme
+     * @param password The password to hash
+     *
+     * @return The hash to store in the user file
+     */
+    public static String hash(Scheme scheme, String password) {
+        try {
+            switch (scheme) {
+                case PBKDF2_SHA256:
+                    return hashPBKDF2(PBKDF2_SHA256_PREFIX, "PBKDF2WithHmacSHA256", PBKDF2_SHA256_ROUNDS, 32, password);
+                case PBKDF2_SHA512:
+                    return hashPBKDF2(PBKDF2_SHA512_PREFIX, "PBKDF2WithHmacSHA512", PBKDF2_SHA512_ROUNDS, 64, password);
+                case SHA512_CRYPT:
+                    StringBuilder salt = new StringBuilder(SHA512_CRYPT_MAX_SALT);
+                    for (int i = 0; i < SHA512_CRYPT_MAX_SALT; i++) {
+                        salt.append(CRYPT_ALPHABET.charAt(RANDOM.nextInt(CRYPT_ALPHABET.length())));
+                    }
+                    return sha512Crypt(password, SHA512_CRYPT_PREFIX + salt);
+                case BCRYPT:
+                default:
+                    return BCrypt.hashpw(password, BCrypt.gensalt(BCRYPT_LOG_ROUNDS, RANDOM));
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to hash the password", e);
+        }
+    }
+
+    private static boolean isBCrypt(String stored) {
+        return stored.length() > 4 && stored.startsWith("$2") && stored.charAt(3) == '$'
+                && (stored.charAt(2) == 'a' || stored.charAt(2) == 'b' || stored.charAt(2) == 'y');
+    }
+
+    /*
+     * PBKDF2
+     */
+
+    private static boolean matchesPBKDF2(String stored, String prefix, String algorithm, String password)
+            throws GeneralSecurityException {
+
+        String[] parts = stored.substring(prefix.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+
+        int rounds = Integer.parseInt(parts[0]);
+        byte[] salt = decodeAdaptedBase64(parts[1]);
+        byte[] expected = decodeAdaptedBase64(parts[2]);
+
+        byte[] actual = pbkdf2(algorithm, password, salt, rounds, expected.length);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    private static String hashPBKDF2(String prefix, String algorithm, int rounds, int length, String password)
+            throws GeneralSecurityException {
+
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        return prefix + rounds + '$' + encodeAdaptedBase64(salt) + '$'
+                + encodeAdaptedBase64(pbkdf2(algorithm, password, salt, rounds, length));
+    }
+
+    private static byte[] pbkdf2(String algorithm, String password, byte[] salt, int rounds, int length)
+            throws GeneralSecurityException {
+
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, rounds, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static byte[] decodeAdaptedBase64(String s) {
+        return Base64.getDecoder().decode(s.replace('.', '+'));
+    }
+
+    private static String encodeAdaptedBase64(byte[] b) {
+        return Base64.getEncoder().withoutPadding().encodeToString(b).replace('+', '.');
+    }
+
+    /*
+     * SHA-512-crypt, following "Unix crypt using SHA-256 and SHA-512" by
+     * Ulrich Drepper
+     */
+
+    /**
+     * Hash a password with SHA-512-crypt
+     *
+     * @param password The password
+     * @param setting The $6$[rounds=n$]salt prefix, or a complete hash
+     *                whose salt and rounds should be reused
+     *
+     * @return The complete hash
+     */
+    static String sha512Crypt(String password, String setting) throws NoSuchAlgorithmException {
+
+        String s = setting.substring(SHA512_CRYPT_PREFIX.length());
+
+        int rounds = SHA512_CRYPT_ROUNDS;
+        boolean customRounds = false;
+        if (s.startsWith(ROUNDS_PREFIX)) {
+            int end = s.indexOf('$');
+            if (end < 0) {
+                throw new IllegalArgumentException("Malformed rounds");
+            }
+            long requested = Long.parseLong(s.substring(ROUNDS_PREFIX.length(), end));
+            rounds = (int) Math.max(SHA512_CRYPT_MIN_ROUNDS, Math.min(SHA512_CRYPT_MAX_ROUNDS, requested));
+            customRounds = true;
+            s = s.substring(end + 1);
+        }
+
+        int saltEnd = s.indexOf('$');
+        String saltString = saltEnd < 0 ? s : s.substring(0, saltEnd);
+        if (saltString.length() > SHA512_CRYPT_MAX_SALT) {
+            saltString = saltString.substring(0, SHA512_CRYPT_MAX_SALT);
+        }
+
+        byte[] p = password.getBytes(StandardCharsets.UTF_8);
+        byte[] salt = saltString.getBytes(StandardCharsets.UTF_8);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-512");
+
+        // Digest B
+        digest.update(p);
+        digest.update(salt);
+        digest.update(p);
+        byte[] b = digest.digest();
+
+        // Digest A
+        digest.update(p);
+        digest.update(salt);
+        int cnt;
+        for (cnt = p.length; cnt > 64; cnt -= 64) {
+            digest.update(b, 0, 64);
+        }
+        digest.update(b, 0, cnt);
+        for (cnt = p.length; cnt > 0; cnt >>= 1) {
+            if ((cnt & 1) != 0) {
+                digest.update(b, 0, 64);
+            } else {
+                digest.update(p);
+            }
+        }
+        byte[] a = digest.digest();
+
+        // Sequence P
+        for (int i = 0; i < p.length; i++) {
+            digest.update(p);
+        }
+        byte[] dp = digest.digest();
+        byte[] pSeq = new byte[p.length];
+        for (int i = 0; i < pSeq.length; i += 64) {
+            System.arraycopy(dp, 0, pSeq, i, Math.min(64, pSeq.length - i));
+        }
+
+        // Sequence S
+        for (int i = 0; i < 16 + (a[0] & 0xff); i++) {
+            digest.update(salt);
+        }
+        byte[] ds = digest.digest();
+        byte[] sSeq = new byte[salt.length];
+        for (int i = 0; i < sSeq.length; i += 64) {
+            System.arraycopy(ds, 0, sSeq, i, Math.min(64, sSeq.length - i));
+        }
+
+        // The rounds
+        for (int i = 0; i < rounds; i++) {
+            if ((i & 1) != 0) {
+                digest.update(pSeq);
+            } else {
+                digest.update(a, 0, 64);
+            }
+            if (i % 3 != 0) {
+                digest.update(sSeq);
+            }
+            if (i % 7 != 0) {
+                digest.update(pSeq);
+            }
+            if ((i & 1) != 0) {
+                digest.update(a, 0, 64);
+            } else {
+                digest.update(pSeq);
+            }
+            a = digest.digest();
+        }
+
+        StringBuilder out = new StringBuilder(123);
+        out.append(SHA512_CRYPT_PREFIX);
+        if (customRounds) {
+            out.append(ROUNDS_PREFIX).append(rounds).append('$');
+        }
+        out.append(saltString).append('$');
+
+        int[][] order = {
+                {0, 21, 42}, {22, 43, 1}, {44, 2, 23}, {3, 24, 45}, {25, 46, 4},
+                {47, 5, 26}, {6, 27, 48}, {28, 49, 7}, {50, 8, 29}, {9, 30, 51},
+                {31, 52, 10}, {53, 11, 32}, {12, 33, 54}, {34, 55, 13}, {56, 14, 35},
+                {15, 36, 57}, {37, 58, 16}, {59, 17, 38}, {18, 39, 60}, {40, 61, 19},
+                {62, 20, 41}
+        };
+        for (int[] o : order) {
+            encode24(out, a[o[0]], a[o[1]], a[o[2]], 4);
+        }
+        encode24(out, (byte) 0, (byte) 0, a[63], 2);
+
+        return out.toString();
+    }
+
+    private static void encode24(StringBuilder out, byte b2, byte b1, byte b0, int n) {
+        int w = ((b2 & 0xff) << 16) | ((b1 & 0xff) << 8) | (b0 & 0xff);
+        for (int i = 0; i < n; i++) {
+            out.append(CRYPT_ALPHABET.charAt(w & 0x3f));
+            w >>>= 6;
+        }
+    }
+
+    private static boolean constantTimeEquals(String a, String b) {
+        return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length != 2) {
+            System.out.println("Usage: PasswordHash pbkdf2-sha256|pbkdf2-sha512|sha512-crypt|bcrypt password");
+            System.exit(-1);
+        }
+
+        Scheme scheme = Scheme.valueOf(args[0].toUpperCase(Locale.ROOT).replace('-', '_'));
+        System.out.println(hash(scheme, args[1]));
+    }
+}
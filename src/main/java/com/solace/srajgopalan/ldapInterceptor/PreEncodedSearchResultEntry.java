@@ -0,0 +1,85 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.asn1.ASN1Buffer;
+import com.unboundid.asn1.ASN1Element;
+import com.unboundid.ldap.protocol.LDAPMessage;
+import com.unboundid.ldap.protocol.ProtocolOp;
+import com.unboundid.ldap.protocol.SearchResultEntryProtocolOp;
+import com.unboundid.ldap.sdk.Entry;
+
+/**
+ * This class holds a search result entry protocol op whose BER
+ * encoding was computed once, so that sending it again for a
+ * different request only copies the encoded bytes into the
+ * response buffer.
+ */
+final class PreEncodedSearchResultEntry implements ProtocolOp {
+
+    /**
+     * The serial version UID for this serializable class.
+     */
+    private static final long serialVersionUID = -3511985437632604921L;
+
+    // The normalized DN of the entry
+    private final String normalizedDN;
+
+    // The encoded protocol op
+    private final ASN1Element encoded;
+
+    /**
+     * Encode an entry as a search result entry protocol op
+     *
+     * @param entry The entry to encode
+     */
+    PreEncodedSearchResultEntry(final Entry entry) {
+        this.normalizedDN = DirectoryNames.normalize(entry.getDN());
+        this.encoded = new SearchResultEntryProtocolOp(entry).encodeProtocolOp();
+    }
+
+    /**
+     * @return The normalized DN of the entry
+     */
+    String getNormalizedDN() {
+        return normalizedDN;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte getProtocolOpType() {
+        return LDAPMessage.PROTOCOL_OP_TYPE_SEARCH_RESULT_ENTRY;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ASN1Element encodeProtocolOp() {
+        return encoded;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo(final ASN1Buffer buffer) {
+        buffer.addElement(encoded);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void toString(final StringBuilder buffer) {
+        buffer.append("PreEncodedSearchResultEntry(dn='").append(normalizedDN)
+              .append("', length=").append(encoded.getValueLength()).append(')');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        toString(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,142 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class limits how often each key, such as a client address, may do
+ * something. Every key has a token bucket that holds up to burst tokens
+ * and refills at a steady rate; a request takes a token or is refused.
+ *
+ * The bucket is kept as a single timestamp, the time at which it would be
+ * full again (the generic cell rate algorithm), and updated with a
+ * compare-and-set, so no lock is taken. A key whose bucket has refilled
+ * holds no state that a fresh bucket would not, so such keys are dropped
+ * when the limiter grows past its maximum size. If that is not enough,
+ * arbitrary keys are dropped, which only ever grants them a full bucket.
+ *
+ * @param <K> The type of the keys
+ */
+public final class RateLimiter<K> {
+
+    private final ConcurrentHashMap<K, AtomicLong> fullAtNanos = new ConcurrentHashMap<K, AtomicLong>();
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int maxKeys;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * Creates a new rate limiter
+     *
+     * @param ratePerSecond The rate at which each key's bucket refills
+     * @param burst The number of tokens a full bucket holds
+     * @param maxKeys The maximum number of keys to keep state for
+     */
+    public RateLimiter(double ratePerSecond, int burst, int maxKeys) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("The rate and burst must be positive");
+        }
+        this.intervalNanos = Math.max(1L, (long) (1e9 / ratePerSecond));
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Take a token from a key's bucket
+     *
+     * @param key The key
+     *
+     * @return true if a token was taken, false if the bucket is empty
+     */
+    public boolean tryAcquire(K key) {
+        long now = System.nanoTime();
+        AtomicLong state = fullAtNanos.get(key);
+        if (state == null) {
+            AtomicLong created = new AtomicLong(now);
+            state = fullAtNanos.putIfAbsent(key, created);
+            if (state == null) {
+                state = created;
+                if (fullAtNanos.size() > maxKeys) {
+                    evict();
+                }
+            }
+        }
+
+        while (true) {
+            long fullAt = state.get();
+            long start = fullAt - now > 0 ? fullAt : now;
+            if (start - now > toleranceNanos) {
+                refused.increment();
+                return false;
+            }
+            if (state.compareAndSet(fullAt, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a token taken from a key's bucket, for a request that was
+     * refused for another reason after all. A bucket never holds more than
+     * burst tokens, however many are given back.
+     *
+     * @param key The key
+     */
+    public void release(K key) {
+        AtomicLong state = fullAtNanos.get(key);
+        if (state != null) {
+            state.addAndGet(-intervalNanos);
+        }
+    }
+
+    /**
+     * @return The number of keys state is kept for
+     */
+    public int size() {
+        return fullAtNanos.size();
+    }
+
+    /**
+     * @return The number of requests refused
+     */
+    public long getRefusedCount() {
+        return refused.sum();
+    }
+
+    /*
+     * Bring the limiter back under its maximum size, removing the keys
+     * whose buckets are full first. Only one thread evicts at a time.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            fullAtNanos.values().removeIf(s -> s.get() - now <= 0);
+
+            int target = maxKeys - maxKeys / 10;
+            Iterator<Map.Entry<K, AtomicLong>> it = fullAtNanos.entrySet().iterator();
+            while (fullAtNanos.size() > target && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter{keys=" + size() + ", refused=" + getRefusedCount() +
+                ", ratePerSecond=" + 1e9 / intervalNanos +
+                ", burst=" + (toleranceNanos / intervalNanos + 1) +
+                ", maxKeys=" + maxKeys + '}';
+    }
+}
@@ -0,0 +1,422 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.ResultCode;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * This class records a JDK Flight Recorder event for each bind and search
+ * handled by {@link CustomAuthRequestHandler}, with the time the request
+ * spent in each phase:
+ *
+ *   - admission: the bind rate limits and waiting for a permit of the
+ *     connection's operations in flight
+ *   - backend: from the backend call until it answered, including any
+ *     wait for an execution thread and, for binds, password hashing
+ *   - cursor (searches): reading, projecting and encoding the entries
+ *     from the backend's cursor
+ *   - write: writing the entries and deferred responses to the client.
+ *     Responses returned to the listener are written after the handler
+ *     returns, so are not timed
+ *
+ * with the result code, the number of entries returned and a salted hash
+ * of the bind DN, or of the base DN and filter of a search, so recordings
+ * hold no user names. Hashed password verifications are recorded as
+ * separate events with the time they queued and hashed.
+ *
+ * A request is only timed when its event type is enabled in a running
+ * recording and it is sampled, so the cost is a volatile read per
+ * request otherwise. Events shorter than the thresholds are dropped, so
+ * production recordings can hold only the slow requests, e.g.
+ *
+ *     jcmd <pid> JFR.start name=ldap duration=10m filename=ldap.jfr
+ *
+ * The jdk.jfr API is in Java 11 and later and in OpenJDK 8u262 and later.
+ * On other JVMs no events are recorded.
+ */
+public final class RequestEvents {
+
+    private static final Logger LOG = Logger.getLogger(RequestEvents.class.getPackage().getName());
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /*
+       Whether the JVM has the flight recorder API, checked before any
+       event class is loaded
+     */
+    private static final boolean SUPPORTED = isSupported();
+
+    private final EventType bindType;
+    private final EventType searchType;
+    private final double sampleRate;
+    private final long bindThresholdNanos;
+    private final long searchThresholdNanos;
+    private final byte[] dnSalt;
+
+    private RequestEvents(double sampleRate, long bindThresholdNanos, long searchThresholdNanos, byte[] dnSalt) {
+        this.bindType = EventType.getEventType(BindEvent.class);
+        this.searchType = EventType.getEventType(SearchEvent.class);
+        this.sampleRate = sampleRate;
+        this.bindThresholdNanos = bindThresholdNanos;
+        this.searchThresholdNanos = searchThresholdNanos;
+        this.dnSalt = dnSalt;
+    }
+
+    /**
+     * Create the request events described by the jfr.* settings
+     *
+     * @param config The interceptor configuration
+     *
+     * @return The request events, or null if they are disabled or the JVM
+     *         has no flight recorder
+     */
+    public static RequestEvents create(InterceptorConfig config) {
+
+        if (!config.getBoolean("jfr.enabled", true)) {
+            return null;
+        }
+        if (!SUPPORTED) {
+            LOG.info("This JVM has no flight recorder API, so no request events are recorded");
+            return null;
+        }
+
+        String salt = config.getString("jfr.dnSalt", null);
+        return new RequestEvents(
+                Math.max(0.0, Math.min(1.0, config.getDouble("jfr.sampleRate", 1.0))),
+                TimeUnit.MILLISECONDS.toNanos(config.getLong("jfr.bind.thresholdMillis", 0L)),
+                TimeUnit.MILLISECONDS.toNanos(config.getLong("jfr.search.thresholdMillis", 0L)),
+                salt == null ? CredentialKey.newSalt() : salt.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Start timing a bind
+     *
+     * @param start The System.nanoTime() at which the request was received
+     * @param dn The bind DN
+     *
+     * @return The trace of the bind, or null if it is not recorded
+     */
+    Trace startBind(long start, String dn) {
+        if (!bindType.isEnabled() || !sampled()) {
+            return null;
+        }
+        BindEvent event = new BindEvent();
+        event.begin();
+        return new Trace(this, start, event, dn, null);
+    }
+
+    /**
+     * Start timing a search
+     *
+     * @param start The System.nanoTime() at which the request was received
+     * @param baseDN The base DN of the search
+     * @param filter The filter of the search
+     *
+     * @return The trace of the search, or null if it is not recorded
+     */
+    Trace startSearch(long start, String baseDN, Filter filter) {
+        if (!searchType.isEnabled() || !sampled()) {
+            return null;
+        }
+        SearchEvent event = new SearchEvent();
+        event.begin();
+        return new Trace(this, start, event, baseDN, filter);
+    }
+
+    private boolean sampled() {
+        return sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Start timing a hashed password verification
+     *
+     * @param queued The System.nanoTime() at which the verification was queued
+     *
+     * @return The event, to be passed to {@link #passwordVerified}, or
+     *         null if it is not recorded
+     */
+    static Object startPasswordVerify(long queued) {
+        if (!SUPPORTED) {
+            return null;
+        }
+        PasswordVerifyEvent event = new PasswordVerifyEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.queueNanos = System.nanoTime() - queued;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Record a hashed password verification
+     *
+     * @param event The event returned by {@link #startPasswordVerify}, or null
+     * @param matches Whether the password matched
+     */
+    static void passwordVerified(Object event, boolean matches) {
+        if (event != null) {
+            PasswordVerifyEvent verify = (PasswordVerifyEvent) event;
+            verify.end();
+            if (verify.shouldCommit()) {
+                verify.matches = matches;
+                verify.commit();
+            }
+        }
+    }
+
+    /*
+     * The first 8 bytes of the salted SHA-256 of a normalized value, in hex
+     */
+    private String hash(String value) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update(dnSalt);
+        byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+        char[] hex = new char[16];
+        for (int i = 0; i < 8; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static boolean isSupported() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * The phase timings of one bind or search, stamped by the request
+     * handler as the request progresses and committed as an event once
+     * its result is known. A trace is used by one thread at a time.
+     */
+    static final class Trace {
+        private final RequestEvents events;
+        private final long start;
+        private final Event event;
+        private final String dn;
+        private final Filter filter;
+
+        private long admitted;
+        private long answered;
+        private long writeNanos;
+        private boolean cached;
+
+        private Trace(RequestEvents events, long start, Event event, String dn, Filter filter) {
+            this.events = events;
+            this.start = start;
+            this.event = event;
+            this.dn = dn;
+            this.filter = filter;
+        }
+
+        /**
+         * The request has passed the rate limits and holds an in-flight permit
+         */
+        void admitted() {
+            admitted = System.nanoTime();
+        }
+
+        /**
+         * The backend has answered
+         */
+        void answered() {
+            answered = System.nanoTime();
+        }
+
+        /**
+         * The search was answered from the search response cache
+         */
+        void cached() {
+            cached = true;
+        }
+
+        /**
+         * @param writeStart The System.nanoTime() at which a write to the client started
+         */
+        void wrote(long writeStart) {
+            writeNanos += System.nanoTime() - writeStart;
+        }
+
+        /**
+         * Record the event of the request, unless it was quicker than the threshold
+         *
+         * @param resultCode The result of the request
+         * @param entries The number of entries returned
+         */
+        void commit(ResultCode resultCode, int entries) {
+            long end = System.nanoTime();
+            long duration = end - start;
+            long admission = admitted == 0 ? 0 : admitted - start;
+            long backend = answered == 0 ? 0 : answered - (admitted == 0 ? start : admitted);
+
+            if (event instanceof BindEvent) {
+                BindEvent bind = (BindEvent) event;
+                bind.end();
+                if (duration < events.bindThresholdNanos || !bind.shouldCommit()) {
+                    return;
+                }
+                bind.resultCode = resultCode.intValue();
+                bind.result = resultCode.getName();
+                bind.dnHash = events.hash(DirectoryNames.normalize(dn == null ? "" : dn));
+                bind.totalNanos = duration;
+                bind.admissionNanos = admission;
+                bind.backendNanos = backend;
+                bind.writeNanos = writeNanos;
+                bind.commit();
+            } else {
+                SearchEvent search = (SearchEvent) event;
+                search.end();
+                if (duration < events.searchThresholdNanos || !search.shouldCommit()) {
+                    return;
+                }
+                search.resultCode = resultCode.intValue();
+                search.result = resultCode.getName();
+                search.entries = entries;
+                search.cached = cached;
+                search.dnHash = events.hash(DirectoryNames.normalize(dn == null ? "" : dn));
+                search.filterHash = filter == null ? "" : events.hash(filter.toNormalizedString());
+                search.totalNanos = duration;
+                search.admissionNanos = admission;
+                search.backendNanos = backend;
+                search.cursorNanos = answered == 0 ? 0 : Math.max(0L, end - answered - writeNanos);
+                search.writeNanos = writeNanos;
+                search.commit();
+            }
+        }
+    }
+
+    @Name("com.solace.ldapInterceptor.Bind")
+    @Label("LDAP Bind")
+    @Category({"LDAP Interceptor"})
+    @Description("A simple bind handled by the interceptor, with the time spent in each phase")
+    @StackTrace(false)
+    static final class BindEvent extends Event {
+        @Label("Result Code")
+        int resultCode;
+
+        @Label("Result")
+        String result;
+
+        @Label("DN Hash")
+        @Description("A salted hash of the normalized bind DN")
+        String dnHash;
+
+        @Label("Total")
+        @Description("From receiving the request until its result was known")
+        @Timespan(Timespan.NANOSECONDS)
+        long totalNanos;
+
+        @Label("Admission")
+        @Description("Rate limits and waiting for an in-flight permit")
+        @Timespan(Timespan.NANOSECONDS)
+        long admissionNanos;
+
+        @Label("Backend")
+        @Description("Waiting for the backend, including password hashing")
+        @Timespan(Timespan.NANOSECONDS)
+        long backendNanos;
+
+        @Label("Write")
+        @Description("Writing a deferred response to the client")
+        @Timespan(Timespan.NANOSECONDS)
+        long writeNanos;
+    }
+
+    @Name("com.solace.ldapInterceptor.Search")
+    @Label("LDAP Search")
+    @Category({"LDAP Interceptor"})
+    @Description("A search handled by the interceptor, with the time spent in each phase")
+    @StackTrace(false)
+    static final class SearchEvent extends Event {
+        @Label("Result Code")
+        int resultCode;
+
+        @Label("Result")
+        String result;
+
+        @Label("Entries")
+        int entries;
+
+        @Label("Cached")
+        @Description("Whether the search was answered from the search response cache")
+        boolean cached;
+
+        @Label("Base DN Hash")
+        @Description("A salted hash of the normalized base DN")
+        String dnHash;
+
+        @Label("Filter Hash")
+        @Description("A salted hash of the normalized filter")
+        String filterHash;
+
+        @Label("Total")
+        @Description("From receiving the request until its result was known")
+        @Timespan(Timespan.NANOSECONDS)
+        long totalNanos;
+
+        @Label("Admission")
+        @Description("Waiting for an in-flight permit")
+        @Timespan(Timespan.NANOSECONDS)
+        long admissionNanos;
+
+        @Label("Backend")
+        @Description("Waiting for the backend to open its cursor")
+        @Timespan(Timespan.NANOSECONDS)
+        long backendNanos;
+
+        @Label("Cursor")
+        @Description("Reading, projecting and encoding entries from the cursor")
+        @Timespan(Timespan.NANOSECONDS)
+        long cursorNanos;
+
+        @Label("Write")
+        @Description("Writing entries and deferred responses to the client")
+        @Timespan(Timespan.NANOSECONDS)
+        long writeNanos;
+    }
+
+    @Name("com.solace.ldapInterceptor.PasswordVerify")
+    @Label("Password Verification")
+    @Category({"LDAP Interceptor"})
+    @Description("A hashed password verified on the credential verifier pool")
+    @StackTrace(false)
+    static final class PasswordVerifyEvent extends Event {
+        @Label("Queue")
+        @Description("Waiting for a verification thread")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueNanos;
+
+        @Label("Matches")
+        boolean matches;
+    }
+}
@@ -0,0 +1,118 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.asn1.ASN1Buffer;
+import com.unboundid.asn1.ASN1BufferSequence;
+import com.unboundid.ldap.listener.LDAPListenerClientConnection;
+import com.unboundid.ldap.protocol.LDAPMessage;
+import com.unboundid.ldap.protocol.ProtocolOp;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+
+import java.io.IOException;
+
+/**
+ * This class writes an LDAP response message to a client connection
+ * outside of the connection's own request processing, e.g. from the
+ * completion callback of an asynchronous backend call.
+ *
+ * The listener only sends the message returned by a request handler
+ * method, so a response that completes later is encoded here and
+ * written to the connection's socket while holding the connection's
+ * monitor, which is the same lock the connection uses when it sends
+ * its own responses and search result entries.
+ */
+final class ResponseWriter {
+
+    // A reusable encoding buffer per writing thread
+    private static final ThreadLocal<ASN1Buffer> BUFFERS = new ThreadLocal<ASN1Buffer>() {
+        @Override
+        protected ASN1Buffer initialValue() {
+            return new ASN1Buffer();
+        }
+    };
+
+    private ResponseWriter() {
+    }
+
+    /**
+     * Write a response message to the client
+     *
+     * @param connection The connection to write the message to
+     * @param message The response message
+     *
+     * @throws LDAPException If the message could not be written
+     */
+    static void send(final LDAPListenerClientConnection connection,
+                     final LDAPMessage message) throws LDAPException {
+
+        ASN1Buffer buffer = BUFFERS.get();
+        buffer.clear();
+        message.writeTo(buffer);
+
+        write(connection, buffer);
+    }
+
+    /**
+     * Write a batch of protocol ops for the same request to the client
+     * with a single socket write, e.g. the pre-encoded entries of a
+     * search, without building an LDAPMessage for each of them
+     *
+     * @param connection The connection to write the messages to
+     * @param messageID The message ID of the request
+     * @param ops The protocol ops to send, in order
+     *
+     * @throws LDAPException If the messages could not be written
+     */
+    static void send(final LDAPListenerClientConnection connection,
+                     final int messageID,
+                     final ProtocolOp[] ops) throws LDAPException {
+        send(connection, messageID, ops, ops.length);
+    }
+
+    /**
+     * Write the first protocol ops of a batch for the same request to the
+     * client with a single socket write, e.g. a page of search entries
+     *
+     * @param connection The connection to write the messages to
+     * @param messageID The message ID of the request
+     * @param ops The protocol ops to send, in order
+     * @param count The number of protocol ops to send
+     *
+     * @throws LDAPException If the messages could not be written
+     */
+    static void send(final LDAPListenerClientConnection connection,
+                     final int messageID,
+                     final ProtocolOp[] ops,
+                     final int count) throws LDAPException {
+
+        if (count == 0) {
+            return;
+        }
+
+        ASN1Buffer buffer = BUFFERS.get();
+        buffer.clear();
+        for (int i = 0; i < count; i++) {
+            ASN1BufferSequence message = buffer.beginSequence();
+            buffer.addInteger(messageID);
+            ops[i].writeTo(buffer);
+            message.end();
+        }
+
+        write(connection, buffer);
+    }
+
+    private static void write(final LDAPListenerClientConnection connection,
+                              final ASN1Buffer buffer) throws LDAPException {
+
+        synchronized (connection) {
+            try {
+                buffer.writeTo(connection.getSocket().getOutputStream());
+            } catch (IOException e) {
+                throw new LDAPException(ResultCode.SERVER_DOWN,
+                        "Unable to write the response to the client: " + e.getMessage(), e);
+            } finally {
+                buffer.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchScope;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * This interface walks the entries matching a search one at a time, so
+ * they can be sent to the client as they are found instead of being
+ * collected first. A cursor may be kept open between the pages of a
+ * paged search, and is closed once the search is done or abandoned.
+ *
+ * hasNext and next may throw a CompletionException wrapping an
+ * LDAPException, e.g. TIME_LIMIT_EXCEEDED when the cursor runs out of
+ * time while looking for the next entry.
+ */
+public interface SearchCursor extends Iterator<Entry>, Closeable {
+
+    /**
+     * Limit how long the cursor may look for further entries from now,
+     * e.g. at the start of each page of a paged search. The default
+     * implementation does nothing.
+     *
+     * @param timeLimitMillis How long the cursor may look, or 0 for no limit
+     */
+    default void setTimeLimit(long timeLimitMillis) {
+    }
+
+    /**
+     * Called when the cursor is kept open between the pages of a paged
+     * search, which may not ask for its next page for a long time. A
+     * cursor that other searches wait on lets them go their own way. The
+     * default implementation does nothing.
+     */
+    default void park() {
+    }
+
+    /**
+     * Release anything the cursor holds. The default implementation
+     * does nothing.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * @param cursor The cursor over the entries of a search
+     * @param baseDN The base DN of the search
+     * @param scope The scope of the search
+     *
+     * @return A cursor over the entries of the cursor within the base
+     *         and scope of the search, which closes the cursor when closed
+     */
+    static SearchCursor within(final SearchCursor cursor, final String baseDN, final SearchScope scope) {
+        return new SearchCursor() {
+            private Entry next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && cursor.hasNext()) {
+                    Entry entry = cursor.next();
+                    try {
+                        if (entry.matchesBaseAndScope(baseDN, scope)) {
+                            next = entry;
+                        }
+                    } catch (LDAPException e) {
+                        // A DN that cannot be parsed is in no scope
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry entry = next;
+                next = null;
+                return entry;
+            }
+
+            @Override
+            public void setTimeLimit(long timeLimitMillis) {
+                cursor.setTimeLimit(timeLimitMillis);
+            }
+
+            @Override
+            public void park() {
+                cursor.park();
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    /**
+     * @param entries The entries of a completed search
+     *
+     * @return A cursor over the entries
+     */
+    static SearchCursor of(List<Entry> entries) {
+        final Iterator<Entry> iterator = entries.iterator();
+        return new SearchCursor() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Entry next() {
+                return iterator.next();
+            }
+        };
+    }
+}
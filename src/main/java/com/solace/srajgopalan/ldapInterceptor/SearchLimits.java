@@ -0,0 +1,56 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+/**
+ * This class holds the server's limits on the size and duration of a
+ * search. A search request is held to its own limits or the server's,
+ * whichever is lower, where 0 means no limit.
+ */
+public final class SearchLimits {
+
+    /**
+     * No server limits; searches are only held to their own
+     */
+    public static final SearchLimits NONE = new SearchLimits(0, 0);
+
+    private final int sizeLimit;
+    private final int timeLimitSeconds;
+
+    /**
+     * @param sizeLimit The most entries a search may return, or 0 for no limit
+     * @param timeLimitSeconds The longest a search may take, or 0 for no limit
+     */
+    public SearchLimits(int sizeLimit, int timeLimitSeconds) {
+        this.sizeLimit = sizeLimit;
+        this.timeLimitSeconds = timeLimitSeconds;
+    }
+
+    /**
+     * @param requested The size limit of the search request
+     *
+     * @return The size limit to apply, or 0 for no limit
+     */
+    int sizeLimit(int requested) {
+        return lower(requested, sizeLimit);
+    }
+
+    /**
+     * @param requested The time limit in seconds of the search request
+     *
+     * @return The time limit in seconds to apply, or 0 for no limit
+     */
+    int timeLimitSeconds(int requested) {
+        return lower(requested, timeLimitSeconds);
+    }
+
+    private static int lower(int requested, int server) {
+        if (requested <= 0) {
+            return Math.max(server, 0);
+        }
+        return server <= 0 ? requested : Math.min(requested, server);
+    }
+
+    @Override
+    public String toString() {
+        return "SearchLimits{sizeLimit=" + sizeLimit + ", timeLimitSeconds=" + timeLimitSeconds + '}';
+    }
+}
@@ -0,0 +1,135 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.util.StaticUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class describes which attributes of an entry a search returns,
+ * from the attribute list and typesOnly flag of the request, following
+ * RFC 4511: no attributes or "*" ask for every user attribute, "1.1"
+ * for none, and "+" for operational attributes, of which the interceptor
+ * has none. With typesOnly the attribute names are returned without
+ * their values.
+ *
+ * Projections with the same effect have the same key, so the search
+ * response cache keeps one pre-encoded copy per distinct attribute set.
+ */
+final class SearchProjection {
+
+    /**
+     * Every user attribute with its values, as returned by default
+     */
+    static final SearchProjection ALL = new SearchProjection(true, null, false, "*");
+
+    // The most distinct attribute lists whose projections are kept
+    private static final int MAX_KNOWN = 1024;
+
+    private static final ConcurrentHashMap<List<String>, SearchProjection> KNOWN =
+            new ConcurrentHashMap<List<String>, SearchProjection>();
+    private static final ConcurrentHashMap<List<String>, SearchProjection> KNOWN_TYPES_ONLY =
+            new ConcurrentHashMap<List<String>, SearchProjection>();
+
+    private final boolean allUserAttributes;
+    private final TreeSet<String> attributes;
+    private final boolean typesOnly;
+    private final String key;
+
+    private SearchProjection(boolean allUserAttributes, TreeSet<String> attributes, boolean typesOnly, String key) {
+        this.allUserAttributes = allUserAttributes;
+        this.attributes = attributes;
+        this.typesOnly = typesOnly;
+        this.key = key;
+    }
+
+    /**
+     * @param requested The attributes of the search request
+     * @param typesOnly Whether only attribute names are returned
+     *
+     * @return The projection of the request
+     */
+    static SearchProjection of(List<String> requested, boolean typesOnly) {
+
+        if (requested == null) {
+            requested = Collections.emptyList();
+        }
+        if (!typesOnly && requested.isEmpty()) {
+            return ALL;
+        }
+
+        // Clients send the same few attribute lists, so their projections
+        // are kept rather than parsed again for every request
+        Map<List<String>, SearchProjection> known = typesOnly ? KNOWN_TYPES_ONLY : KNOWN;
+        SearchProjection projection = known.get(requested);
+        if (projection == null) {
+            projection = parse(requested, typesOnly);
+            if (known.size() < MAX_KNOWN) {
+                known.put(new ArrayList<String>(requested), projection);
+            }
+        }
+        return projection;
+    }
+
+    private static SearchProjection parse(List<String> requested, boolean typesOnly) {
+
+        boolean all = requested.isEmpty();
+        TreeSet<String> attributes = new TreeSet<String>();
+        for (String name : requested) {
+            String attribute = StaticUtils.toLowerCase(name.trim());
+            int semicolon = attribute.indexOf(';');
+            if (semicolon >= 0) {
+                attribute = attribute.substring(0, semicolon);
+            }
+            if (attribute.equals("*")) {
+                all = true;
+            } else if (!attribute.equals("1.1") && !attribute.equals("+") && !attribute.isEmpty()) {
+                attributes.add(attribute);
+            }
+        }
+
+        if (all && !typesOnly) {
+            return ALL;
+        }
+        String key = (all ? "*" : String.join(",", attributes)) + (typesOnly ? ";typesOnly" : "");
+        return new SearchProjection(all, all ? null : attributes, typesOnly, key);
+    }
+
+    /**
+     * @param entry An entry found by the search
+     *
+     * @return The entry with only the requested attributes, or the same
+     *         entry if every attribute was requested
+     */
+    Entry apply(Entry entry) {
+        if (this == ALL) {
+            return entry;
+        }
+
+        Entry projected = new Entry(entry.getDN());
+        for (Attribute attribute : entry.getAttributes()) {
+            if (allUserAttributes || attributes.contains(StaticUtils.toLowerCase(attribute.getBaseName()))) {
+                projected.addAttribute(typesOnly ? new Attribute(attribute.getName()) : attribute);
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * @return A key that is equal for projections with the same effect
+     */
+    String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
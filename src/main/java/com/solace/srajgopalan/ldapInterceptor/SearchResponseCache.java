@@ -0,0 +1,248 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Filter;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps the pre-encoded result entries of recent searches,
+ * so that a repeated authorization search for a user costs a map
+ * lookup and a socket write instead of a backend call and a fresh
+ * encoding of the same entries.
+ *
+ * Searches are keyed on the normalized base DN, scope, filter and the
+ * requested attributes, so each common attribute set keeps its own
+ * pre-projected encoding. Only searches that returned entries, no more
+ * than a maximum per search, and were not cut short by a size limit,
+ * are cached, so large results are streamed rather than kept. A cached search is
+ * dropped when its time-to-live expires, or arbitrarily once the cache grows
+ * past its maximum size.
+ *
+ * Every cached search is dropped when the directory changes. A new or
+ * changed user may match a cached filter it did not match before, e.g. a
+ * second user with the same CN or a new member of a group, and such a
+ * search cannot be found from the DNs of the entries it returned.
+ * A search still walking the old directory when it changes must not be
+ * cached after the cache was cleared, so each change starts a new
+ * generation and a search is only cached if it began in the current one.
+ */
+public final class SearchResponseCache implements DirectoryChangeListener {
+
+    // The pre-encoded entries of a search and when they stop being valid
+    private static final class CachedSearch {
+        final PreEncodedSearchResultEntry[] entries;
+        final long expiresAtNanos;
+
+        CachedSearch(PreEncodedSearchResultEntry[] entries, long expiresAtNanos) {
+            this.entries = entries;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private static final ThreadLocal<StringBuilder> KEY_BUFFERS = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private final ConcurrentHashMap<String, CachedSearch> searches = new ConcurrentHashMap<String, CachedSearch>();
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final int maxSearchEntries;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new search response cache
+     *
+     * @param ttlMillis How long the entries of a search are cached
+     * @param maxEntries The maximum number of cached searches
+     */
+    public SearchResponseCache(long ttlMillis, int maxEntries) {
+        this(ttlMillis, maxEntries, 1000);
+    }
+
+    /**
+     * Creates a new search response cache
+     *
+     * @param ttlMillis How long the entries of a search are cached
+     * @param maxEntries The maximum number of cached searches
+     * @param maxSearchEntries The most entries a search may return and
+     *                         still be cached
+     */
+    public SearchResponseCache(long ttlMillis, int maxEntries, int maxSearchEntries) {
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.maxEntries = maxEntries;
+        this.maxSearchEntries = maxSearchEntries;
+    }
+
+    /**
+     * Look up the pre-encoded entries of a search
+     *
+     * @param baseDN The base DN of the search
+     * @param scope The scope of the search
+     * @param filter The filter of the search
+     * @param projection The attributes the search returns
+     *
+     * @return The pre-encoded entries, or null if the search is not cached
+     */
+    PreEncodedSearchResultEntry[] get(String baseDN, int scope, Filter filter, SearchProjection projection) {
+        String key = key(baseDN, scope, filter, projection);
+        CachedSearch cached = searches.get(key);
+        if (cached != null) {
+            if (System.nanoTime() - cached.expiresAtNanos < 0) {
+                hits.increment();
+                return cached.entries;
+            }
+            searches.remove(key, cached);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Cache the pre-encoded entries of a search that returned every
+     * entry it matched
+     *
+     * @param baseDN The base DN of the search
+     * @param scope The scope of the search
+     * @param filter The filter of the search
+     * @param projection The attributes the search returns
+     * @param entries The pre-encoded, projected entries
+     */
+    void put(String baseDN, int scope, Filter filter, SearchProjection projection,
+             PreEncodedSearchResultEntry[] entries) {
+        put(baseDN, scope, filter, projection, entries, generation.get());
+    }
+
+    /**
+     * Cache the pre-encoded entries of a search that returned every
+     * entry it matched, unless the directory has changed since the
+     * search began, in which case they may be those of the old directory
+     *
+     * @param baseDN The base DN of the search
+     * @param scope The scope of the search
+     * @param filter The filter of the search
+     * @param projection The attributes the search returns
+     * @param entries The pre-encoded, projected entries
+     * @param generation The {@link #generation()} read before the search
+     *                   was sent to the backend
+     */
+    void put(String baseDN, int scope, Filter filter, SearchProjection projection,
+             PreEncodedSearchResultEntry[] entries, long generation) {
+        if (entries.length > 0 && entries.length <= maxSearchEntries && ttlNanos > 0
+                && generation == this.generation.get()) {
+            String key = key(baseDN, scope, filter, projection);
+            CachedSearch cached = new CachedSearch(entries, System.nanoTime() + ttlNanos);
+            searches.put(key, cached);
+            // A change between the check above and the put may have
+            // missed this search; it bumps the generation before it clears
+            if (generation != this.generation.get()) {
+                searches.remove(key, cached);
+                return;
+            }
+            if (searches.size() > maxEntries) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * @return The current generation, to be read before a search is sent
+     *         to the backend and passed to
+     *         {@link #put(String, int, Filter, SearchProjection, PreEncodedSearchResultEntry[], long)}
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * @return The most entries a search may return and still be cached
+     */
+    int getMaxSearchEntries() {
+        return maxSearchEntries;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Drops every cached search, not only those that returned one of the
+     * changed users, as the changed users may now match other searches.
+     */
+    @Override
+    public void directoryChanged(Collection<String> normalizedDNs) {
+        invalidateAll();
+    }
+
+    /**
+     * Drop every cached search
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        searches.clear();
+    }
+
+    /**
+     * @return The number of cached searches
+     */
+    public int size() {
+        return searches.size();
+    }
+
+    /**
+     * @return The number of searches answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of searches not answered from the cache
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /*
+     * Bring the cache back under its maximum size, removing expired
+     * searches first. Only one thread evicts at a time; others carry on.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            searches.values().removeIf(c -> now - c.expiresAtNanos >= 0);
+
+            int target = maxEntries - maxEntries / 10;
+            Iterator<Map.Entry<String, CachedSearch>> it = searches.entrySet().iterator();
+            while (searches.size() > target && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static String key(String baseDN, int scope, Filter filter, SearchProjection projection) {
+        // Built in a reused buffer, so only the key itself is allocated
+        StringBuilder key = KEY_BUFFERS.get();
+        key.setLength(0);
+        key.append(scope).append(':').append(DirectoryNames.normalize(baseDN)).append(':');
+        filter.toNormalizedString(key);
+        key.append(':').append(projection.getKey());
+        return key.toString();
+    }
+}
@@ -0,0 +1,313 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.BindRequest;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.FewestConnectionsServerSet;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.GetEntryLDAPConnectionPoolHealthCheck;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RoundRobinServerSet;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.ServerSet;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.util.ssl.SSLUtil;
+
+import javax.net.SocketFactory;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class proxies binds and searches to one or more upstream LDAP
+ * servers, e.g. a corporate directory or Active Directory, so the
+ * interceptor can apply its caches, rate limits and circuit breaker in
+ * front of an existing directory.
+ *
+ * Two connection pools are kept to the upstream servers:
+ *
+ *   - the search pool, whose connections are bound as upstream.bindDN
+ *     (or anonymous), so every search runs with the same identity
+ *   - the bind pool, on which user binds are checked. A bind changes the
+ *     identity of its connection, so these connections are never used
+ *     for searches and need not be re-bound after each user bind
+ *
+ * Connections are spread over the servers in turn or to the server with
+ * the fewest open connections, see {@link ServerSelection}. A background
+ * health check reads the root DSE (or upstream.healthCheck.entryDN) of
+ * each pooled connection every upstream.healthCheck.intervalMillis, and
+ * on any connection that fails, and replaces the connections that do not
+ * answer in time.
+ *
+ * The pools block while they wait for the upstream, so the factory runs
+ * this backend with execution=pool unless told otherwise. A failed bind
+ * answers false; an upstream that cannot be reached fails the call with
+ * UNAVAILABLE, which the circuit breaker counts.
+ */
+public final class UpstreamAuthBackend implements AuthBackend {
+
+    /**
+     * How connections are spread over the upstream servers
+     */
+    public enum ServerSelection {
+        /**
+         * Each new connection goes to the next server in turn
+         */
+        ROUND_ROBIN,
+
+        /**
+         * Each new connection goes to the server with the fewest
+         * connections open from this backend
+         */
+        FEWEST_CONNECTIONS
+    }
+
+    private static final Logger LOG = Logger.getLogger(UpstreamAuthBackend.class.getPackage().getName());
+
+    private final LDAPConnectionPool searchPool;
+    private final LDAPConnectionPool bindPool;
+
+    /*
+       The base DN of every subtree search, or null to use that of the request
+     */
+    private final String baseDN;
+
+    /*
+       The attributes asked of the upstream for each entry
+     */
+    private final String[] attributes;
+
+    /**
+     * Creates the backend from the upstream.* settings and opens the
+     * initial connections of both pools
+     *
+     * @param config The interceptor configuration
+     *
+     * @throws LDAPException If no upstream server is configured, or the
+     *         initial connections cannot be opened
+     */
+    public UpstreamAuthBackend(InterceptorConfig config) throws LDAPException {
+
+        String servers = config.getString("upstream.servers", null);
+        if (servers == null || servers.trim().isEmpty()) {
+            throw new LDAPException(ResultCode.PARAM_ERROR, "upstream.servers is not set");
+        }
+        String[] hosts = servers.split(",");
+        int[] ports = new int[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            String server = hosts[i].trim();
+            int colon = server.lastIndexOf(':');
+            if (colon < 0) {
+                hosts[i] = server;
+                ports[i] = 389;
+            } else {
+                hosts[i] = server.substring(0, colon);
+                ports[i] = Integer.parseInt(server.substring(colon + 1));
+            }
+        }
+
+        LDAPConnectionOptions options = new LDAPConnectionOptions();
+        options.setConnectTimeoutMillis(config.getInt("upstream.connectTimeoutMillis", 5000));
+        options.setResponseTimeoutMillis(config.getLong("upstream.responseTimeoutMillis", 5000L));
+
+        SocketFactory socketFactory = SocketFactory.getDefault();
+        if (config.getBoolean("upstream.ssl", false)) {
+            try {
+                // Trusts the certificates the JVM's trust store trusts
+                socketFactory = new SSLUtil().createSSLSocketFactory();
+            } catch (GeneralSecurityException e) {
+                throw new LDAPException(ResultCode.LOCAL_ERROR, "Unable to create an SSL socket factory", e);
+            }
+        }
+
+        ServerSet serverSet;
+        switch (config.getEnum("upstream.serverSelection", ServerSelection.class, ServerSelection.ROUND_ROBIN)) {
+            case FEWEST_CONNECTIONS:
+                serverSet = new FewestConnectionsServerSet(hosts, ports, socketFactory, options);
+                break;
+            default:
+                serverSet = new RoundRobinServerSet(hosts, ports, socketFactory, options);
+                break;
+        }
+
+        String bindDN = config.getString("upstream.bindDN", null);
+        BindRequest serviceBind = bindDN == null ? null
+                : new SimpleBindRequest(bindDN, config.getString("upstream.bindPassword", ""));
+
+        GetEntryLDAPConnectionPoolHealthCheck healthCheck = new GetEntryLDAPConnectionPoolHealthCheck(
+                config.getString("upstream.healthCheck.entryDN", ""),
+                config.getLong("upstream.healthCheck.maxResponseMillis", 2000L),
+                true, false, false, true, true);
+        long healthCheckInterval = config.getLong("upstream.healthCheck.intervalMillis", 10000L);
+        long maxWait = config.getLong("upstream.pool.maxWaitMillis", 1000L);
+
+        searchPool = newPool(serverSet, serviceBind, "search",
+                config.getInt("upstream.searchPool.initialConnections", 1),
+                config.getInt("upstream.searchPool.maxConnections", 10),
+                healthCheck, healthCheckInterval, maxWait);
+        try {
+            bindPool = newPool(serverSet, null, "bind",
+                    config.getInt("upstream.bindPool.initialConnections", 1),
+                    config.getInt("upstream.bindPool.maxConnections", 10),
+                    healthCheck, healthCheckInterval, maxWait);
+        } catch (LDAPException e) {
+            searchPool.close();
+            throw e;
+        }
+
+        baseDN = config.getString("upstream.baseDN", null);
+        String[] requested = config.getString("upstream.attributes", "*,memberOf").split(",");
+        attributes = new String[requested.length];
+        for (int i = 0; i < requested.length; i++) {
+            attributes[i] = requested[i].trim();
+        }
+
+        if (LOG.isLoggable(Level.INFO)) {
+            LOG.info("Proxying to " + serverSet + " with " + searchPool.getCurrentAvailableConnections()
+                    + " search and " + bindPool.getCurrentAvailableConnections() + " bind connections");
+        }
+    }
+
+    private static LDAPConnectionPool newPool(ServerSet serverSet, BindRequest bindRequest, String name,
+                                              int initialConnections, int maxConnections,
+                                              GetEntryLDAPConnectionPoolHealthCheck healthCheck,
+                                              long healthCheckInterval, long maxWait) throws LDAPException {
+        LDAPConnectionPool pool = new LDAPConnectionPool(serverSet, bindRequest,
+                initialConnections, maxConnections);
+        pool.setConnectionPoolName("upstream-" + name);
+        pool.setHealthCheck(healthCheck);
+        pool.setHealthCheckIntervalMillis(healthCheckInterval);
+        // A full pool makes callers wait rather than open more connections
+        pool.setCreateIfNecessary(false);
+        pool.setMaxWaitTimeMillis(maxWait);
+        // A connection that fails an operation is replaced rather than reused
+        pool.setRetryFailedOperationsDueToInvalidConnections(true);
+        return pool;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The bind is made on a connection of the bind pool, which keeps the
+     * identity of the user until its next bind.
+     */
+    @Override
+    public CompletableFuture<Boolean> authenticate(String dn, String password) {
+
+        // An LDAP simple bind without a password succeeds as anonymous
+        if (dn == null || dn.isEmpty() || password == null || password.isEmpty()) {
+            return CompletedFutures.of(false);
+        }
+
+        try {
+            bindPool.bind(dn, password);
+            return CompletedFutures.of(true);
+        } catch (LDAPException e) {
+            if (isUpstreamFailure(e.getResultCode())) {
+                return failed(unavailable("bind", e));
+            }
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Upstream bind of " + dn + " failed with " + e.getResultCode());
+            }
+            return CompletedFutures.of(false);
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+        return search(baseDN, filter, 0, 0L);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The size and time limits are passed to the upstream with the
+     * search. The entries found before the upstream's size limit was
+     * reached are returned.
+     */
+    @Override
+    public CompletableFuture<List<Entry>> search(String baseDN, Filter filter, int maxEntries, long timeLimitMillis) {
+        return search(baseDN, SearchScope.SUB, filter, maxEntries, timeLimitMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The search is made with the scope of the request. upstream.baseDN
+     * only replaces the base DN of subtree searches; base and one-level
+     * searches name the entries they ask for.
+     */
+    @Override
+    public CompletableFuture<SearchCursor> stream(String baseDN, SearchScope scope, Filter filter,
+                                                  long timeLimitMillis) {
+        return search(baseDN, scope, filter, 0, timeLimitMillis).thenApply(SearchCursor::of);
+    }
+
+    private CompletableFuture<List<Entry>> search(String baseDN, SearchScope scope, Filter filter,
+                                                  int maxEntries, long timeLimitMillis) {
+
+        SearchRequest request = new SearchRequest(this.baseDN != null && scope == SearchScope.SUB ? this.baseDN : baseDN,
+                scope, filter, attributes);
+        request.setSizeLimit(maxEntries);
+        if (timeLimitMillis > 0) {
+            request.setTimeLimitSeconds((int) Math.max(1L, TimeUnit.MILLISECONDS.toSeconds(timeLimitMillis)));
+            request.setResponseTimeoutMillis(timeLimitMillis);
+        }
+
+        try {
+            return CompletableFuture.completedFuture(entries(searchPool.search(request)));
+        } catch (LDAPSearchException e) {
+            if (e.getResultCode() == ResultCode.SIZE_LIMIT_EXCEEDED) {
+                return CompletableFuture.completedFuture(entries(e.getSearchResult()));
+            }
+            return failed(isUpstreamFailure(e.getResultCode()) ? unavailable("search", e) : e);
+        }
+    }
+
+    /**
+     * Close both pools and their connections
+     */
+    @Override
+    public void close() {
+        searchPool.close();
+        bindPool.close();
+    }
+
+    private static List<Entry> entries(SearchResult result) {
+        List<SearchResultEntry> found = result.getSearchEntries();
+        return found == null ? new ArrayList<Entry>() : new ArrayList<Entry>(found);
+    }
+
+    /*
+     * Whether a result code means the upstream could not answer, rather
+     * than that it answered no
+     */
+    private static boolean isUpstreamFailure(ResultCode resultCode) {
+        return !ResultCode.isConnectionUsable(resultCode)
+                || resultCode == ResultCode.BUSY
+                || resultCode == ResultCode.UNAVAILABLE
+                || resultCode == ResultCode.OTHER;
+    }
+
+    private static LDAPException unavailable(String operation, LDAPException e) {
+        LOG.log(Level.FINE, "Upstream " + operation + " failed", e);
+        return new LDAPException(ResultCode.UNAVAILABLE,
+                "The upstream directory could not complete the " + operation + ": " + e.getResultCode(), e);
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> f = new CompletableFuture<T>();
+        f.completeExceptionally(t);
+        return f;
+    }
+}
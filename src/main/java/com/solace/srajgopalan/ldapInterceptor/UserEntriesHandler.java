@@ -0,0 +1,151 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.ParseException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class streams the user records of a file in the format of
+ * UserEntries.json, a JSON array of objects with "dn", "password" and
+ * "group" members, handing each record to a consumer as soon as it has
+ * been read, so the file is never held in memory as a whole. The
+ * "group" member is either a group DN or an array of group DNs.
+ *
+ * Group DNs, and the arrays of the groups of a record, are shared between
+ * the records of the same groups.
+ */
+final class UserEntriesHandler implements ContentHandler {
+
+    /**
+     * Receives each user record as it is read
+     */
+    interface RecordConsumer {
+        void accept(MockAuthSystemEntry record);
+    }
+
+    private final RecordConsumer consumer;
+    private final Map<String, String> groupNames = new HashMap<String, String>();
+    private final Map<List<String>, String[]> groupSets = new HashMap<List<String>, String[]>();
+
+    private int depth;
+    private String key;
+    private String dn;
+    private String password;
+    private final List<String> groups = new ArrayList<String>();
+
+    UserEntriesHandler(RecordConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void startJSON() {
+        depth = 0;
+    }
+
+    @Override
+    public void endJSON() {
+    }
+
+    @Override
+    public boolean startArray() throws ParseException {
+        if (depth == 0) {
+            depth++;
+            return true;
+        }
+        if (depth == 1) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, "Expected a user entry object");
+        }
+        depth++;
+        return true;
+    }
+
+    @Override
+    public boolean endArray() {
+        depth--;
+        return true;
+    }
+
+    @Override
+    public boolean startObject() throws ParseException {
+        if (depth == 0) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, "Expected an array of user entries");
+        }
+        if (depth == 1) {
+            dn = "";
+            password = "";
+            groups.clear();
+        }
+        depth++;
+        return true;
+    }
+
+    @Override
+    public boolean endObject() {
+        depth--;
+        if (depth == 1) {
+            consumer.accept(new MockAuthSystemEntry(dn, password, groupSet()));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) {
+        this.key = depth == 2 ? key : null;
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        key = null;
+        return true;
+    }
+
+    @Override
+    public boolean primitive(Object value) {
+        if (key == null || value == null) {
+            return true;
+        }
+        if (key.equals("dn")) {
+            dn = value.toString();
+        }
+        else if (key.equals("password")) {
+            password = value.toString();
+        }
+        else if (key.equals("group")) {
+            String group = value.toString();
+            if (!group.isEmpty() && !groups.contains(group)) {
+                groups.add(intern(group));
+            }
+        }
+        return true;
+    }
+
+    private String intern(String value) {
+        String shared = groupNames.get(value);
+        if (shared == null) {
+            groupNames.put(value, value);
+            shared = value;
+        }
+        return shared;
+    }
+
+    /*
+     * The groups of the record just read, shared with the records read
+     * before it in the same groups
+     */
+    private String[] groupSet() {
+        if (groups.isEmpty()) {
+            return MockAuthSystemEntry.NO_GROUPS;
+        }
+        String[] shared = groupSets.get(groups);
+        if (shared == null) {
+            shared = groups.toArray(new String[0]);
+            groupSets.put(new ArrayList<String>(groups), shared);
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,136 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class watches the user file of a {@link MockAuthSystem}, or its
+ * group file, and reloads it on a background thread whenever it is
+ * modified or replaced.
+ *
+ * Editors and deployment tools often write a file in several steps, so
+ * a reload waits until no further change has been seen for the settle
+ * period. A file that cannot be parsed is reported and the current
+ * records are kept until the next change.
+ */
+public final class UserFileWatcher implements Closeable {
+
+    /**
+     * Reads a watched file once it has settled
+     */
+    interface Reload {
+        void reload(Path file) throws Exception;
+    }
+
+    private static final Logger LOG = Logger.getLogger(UserFileWatcher.class.getPackage().getName());
+
+    private final Path userFile;
+    private final Reload reload;
+    private final long settleMillis;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Creates and starts the watcher
+     *
+     * @param userFile The user file to watch
+     * @param authSystem The mock authentication system to reload
+     * @param settleMillis How long the file must be unchanged before it is reloaded
+     *
+     * @throws IOException If the directory of the file cannot be watched
+     */
+    public UserFileWatcher(Path userFile, MockAuthSystem authSystem, long settleMillis) throws IOException {
+
+        this(userFile, authSystem::reload, settleMillis);
+    }
+
+    /**
+     * Creates and starts the watcher
+     *
+     * @param file The file to watch
+     * @param reload Reads the file when it changes
+     * @param settleMillis How long the file must be unchanged before it is reloaded
+     *
+     * @throws IOException If the directory of the file cannot be watched
+     */
+    UserFileWatcher(Path file, Reload reload, long settleMillis) throws IOException {
+
+        this.userFile = file.toAbsolutePath();
+        this.reload = reload;
+        this.settleMillis = settleMillis;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        this.userFile.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(this::watch, "UserFileWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = isUserFileEvent(key);
+
+                // Wait for the writes to settle before reading the file
+                while (changed) {
+                    key = watchService.poll(settleMillis, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        reload();
+                        break;
+                    }
+                    isUserFileEvent(key);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    /*
+     * Drain the events of a key and reset it
+     *
+     * @return Whether any event was for the user file
+     */
+    private boolean isUserFileEvent(WatchKey key) {
+        boolean found = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || userFile.getFileName().equals(event.context())) {
+                found = true;
+            }
+        }
+        key.reset();
+        return found;
+    }
+
+    private void reload() {
+        try {
+            reload.reload(userFile);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Unable to reload " + userFile + ", keeping the current entries", e);
+        }
+    }
+
+    /**
+     * Stop watching the file
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,88 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BindCacheTest {
+
+    private static final String ALICE = "cn=alice,dc=solace,dc=com";
+
+    @Test
+    public void successfulBindsAreCachedUntilTheyExpire() throws Exception {
+        BindCache cache = new BindCache(100L, 0L, 100);
+        cache.put(ALICE, "alice", true);
+
+        assertTrue(cache.get(ALICE, "alice"));
+        assertTrue(cache.get("CN=Alice, DC=solace, DC=com", "alice"));
+        assertNull(cache.get(ALICE, "Alice"));
+
+        Thread.sleep(150L);
+        assertNull(cache.get(ALICE, "alice"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void failedBindsAreOnlyCachedWithANegativeTtl() {
+        BindCache positiveOnly = new BindCache(60000L, 0L, 100);
+        positiveOnly.put(ALICE, "wrong", false);
+        assertNull(positiveOnly.get(ALICE, "wrong"));
+
+        BindCache cache = new BindCache(60000L, 60000L, 100);
+        cache.put(ALICE, "wrong", false);
+        assertFalse(cache.get(ALICE, "wrong"));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void expiredBindsAreAnsweredAsStaleOnlyWithinTheStalePeriod() throws Exception {
+        BindCache cache = new BindCache(50L, 0L, 60000L, 100);
+        cache.put(ALICE, "alice", true);
+        Thread.sleep(100L);
+
+        assertNull(cache.get(ALICE, "alice"));
+        assertTrue(cache.getStale(ALICE, "alice"));
+        assertEquals(1, cache.getStaleHits());
+    }
+
+    @Test
+    public void theCacheStaysWithinItsMaximumSize() {
+        BindCache cache = new BindCache(60000L, 60000L, 100);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("cn=user" + i + ",dc=solace,dc=com", "p", i % 2 == 0);
+            assertTrue(cache.size() <= 100);
+        }
+        // The latest bind survives eviction
+        assertTrue(cache.get("cn=user998,dc=solace,dc=com", "p"));
+    }
+
+    @Test
+    public void invalidationDropsTheBindsOfChangedDNs() {
+        BindCache cache = new BindCache(60000L, 60000L, 100);
+        cache.put(ALICE, "alice", true);
+        cache.put("cn=bob,dc=solace,dc=com", "bob", true);
+
+        cache.invalidateAll(Collections.singleton(DirectoryNames.normalize(ALICE)));
+
+        assertNull(cache.get(ALICE, "alice"));
+        assertTrue(cache.get("cn=bob,dc=solace,dc=com", "bob"));
+    }
+
+    @Test
+    public void outcomesOfCallsThatBeganBeforeAnInvalidationAreNotCached() {
+        BindCache cache = new BindCache(60000L, 60000L, 100);
+        long generation = cache.generation();
+
+        cache.invalidateAll(Collections.singleton(DirectoryNames.normalize(ALICE)));
+        cache.put(ALICE, "alice", true, generation);
+        assertNull(cache.get(ALICE, "alice"));
+
+        cache.put(ALICE, "alice", true, cache.generation());
+        assertTrue(cache.get(ALICE, "alice"));
+    }
+}
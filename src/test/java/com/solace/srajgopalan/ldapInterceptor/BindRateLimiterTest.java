@@ -0,0 +1,74 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.ResultCode;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BindRateLimiterTest {
+
+    private static final String ALICE = "cn=alice,dc=solace,dc=com";
+    private static final String BOB = "cn=bob,dc=solace,dc=com";
+
+    private final InetAddress client = InetAddress.getLoopbackAddress();
+
+    @Test
+    public void clientsOverTheirLimitAreBusy() {
+        BindRateLimiter limiter = new BindRateLimiter(new RateLimiter<InetAddress>(1, 2, 100), null);
+
+        assertNull(limiter.tryAcquire(client, ALICE));
+        assertNull(limiter.tryAcquire(client, BOB));
+        assertEquals(ResultCode.BUSY, limiter.tryAcquire(client, ALICE));
+        assertEquals(1, limiter.getClientRefusedCount());
+
+        // An unknown client is not limited
+        assertNull(limiter.tryAcquire(null, ALICE));
+    }
+
+    @Test
+    public void dnsOverTheirLimitAreRefused() {
+        BindRateLimiter limiter = new BindRateLimiter(null, new RateLimiter<String>(1, 2, 100));
+
+        assertNull(limiter.tryAcquire(client, ALICE));
+        // DNs are compared normalized
+        assertNull(limiter.tryAcquire(client, "CN=Alice, DC=solace, DC=com"));
+        assertEquals(ResultCode.UNWILLING_TO_PERFORM, limiter.tryAcquire(client, ALICE));
+        assertNull(limiter.tryAcquire(client, BOB));
+        assertEquals(1, limiter.getDnRefusedCount());
+
+        // Anonymous binds have no DN to limit
+        for (int i = 0; i < 5; i++) {
+            assertNull(limiter.tryAcquire(client, ""));
+        }
+    }
+
+    @Test
+    public void bindsRefusedForTheirDnDoNotCostTheClient() {
+        BindRateLimiter limiter = new BindRateLimiter(new RateLimiter<InetAddress>(1, 3, 100),
+                new RateLimiter<String>(1, 1, 100));
+
+        assertNull(limiter.tryAcquire(client, ALICE));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(ResultCode.UNWILLING_TO_PERFORM, limiter.tryAcquire(client, ALICE));
+        }
+        assertNull(limiter.tryAcquire(client, BOB));
+        assertEquals(0, limiter.getClientRefusedCount());
+    }
+
+    @Test
+    public void bindsRefusedForTheirClientDoNotCostTheDn() throws Exception {
+        InetAddress other = InetAddress.getByAddress(new byte[] {10, 0, 0, 1});
+        BindRateLimiter limiter = new BindRateLimiter(new RateLimiter<InetAddress>(1, 1, 100),
+                new RateLimiter<String>(1, 2, 100));
+
+        assertNull(limiter.tryAcquire(client, ALICE));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(ResultCode.BUSY, limiter.tryAcquire(client, ALICE));
+        }
+        assertNull(limiter.tryAcquire(other, ALICE));
+        assertEquals(0, limiter.getDnRefusedCount());
+    }
+}
@@ -0,0 +1,108 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachingAuthBackendTest {
+
+    private static final String ALICE = "cn=alice,dc=solace,dc=com";
+
+    /*
+     * Answers binds from a mock directory, but only once the test
+     * releases them, like a slow password verification that has already
+     * read the user's record
+     */
+    private static final class SlowBackend implements AuthBackend {
+        final MockAuthSystem directory;
+        final AtomicInteger authentications = new AtomicInteger();
+        final List<CompletableFuture<Void>> gates = new ArrayList<CompletableFuture<Void>>();
+
+        SlowBackend(MockAuthSystem directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public synchronized CompletableFuture<Boolean> authenticate(String dn, String password) {
+            authentications.incrementAndGet();
+            CompletableFuture<Boolean> verified = directory.authenticate(dn, password);
+            CompletableFuture<Void> gate = new CompletableFuture<Void>();
+            gates.add(gate);
+            return gate.thenCombine(verified, (released, valid) -> valid);
+        }
+
+        synchronized void release() {
+            for (CompletableFuture<Void> gate : gates) {
+                gate.complete(null);
+            }
+        }
+
+        @Override
+        public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+            return directory.search(baseDN, filter);
+        }
+    }
+
+    private MockAuthSystem mockAuthSystem;
+    private SlowBackend slow;
+    private BindCache bindCache;
+    private CachingAuthBackend caching;
+
+    @Before
+    public void setUp() throws Exception {
+        mockAuthSystem = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, users("alice"));
+        slow = new SlowBackend(mockAuthSystem);
+        CoalescingAuthBackend coalescing = new CoalescingAuthBackend(slow);
+        bindCache = new BindCache(60000L, 60000L, 100);
+        mockAuthSystem.addChangeListener(coalescing);
+        mockAuthSystem.addChangeListener(bindCache::invalidateAll);
+        caching = new CachingAuthBackend(coalescing, bindCache);
+    }
+
+    @Test
+    public void repeatedBindsAreAnsweredFromTheCache() throws Exception {
+        CompletableFuture<Boolean> first = caching.authenticate(ALICE, "alice");
+        slow.release();
+        assertTrue(first.get());
+
+        assertTrue(caching.authenticate(ALICE, "alice").get());
+        assertEquals(1, slow.authentications.get());
+    }
+
+    @Test
+    public void bindsInFlightDuringAReloadAreNotCached() throws Exception {
+        CompletableFuture<Boolean> before = caching.authenticate(ALICE, "alice");
+
+        // Alice's password changes while her old one is being verified
+        mockAuthSystem.reload(users("changed"));
+        CompletableFuture<Boolean> after = caching.authenticate(ALICE, "alice");
+        assertEquals(2, slow.authentications.get());
+
+        slow.release();
+        // The bind that began first answers from the old record...
+        assertTrue(before.get());
+        // ...but neither it nor a later bind keeps the old password valid
+        assertFalse(after.get());
+        CompletableFuture<Boolean> old = caching.authenticate(ALICE, "alice");
+        CompletableFuture<Boolean> changed = caching.authenticate(ALICE, "changed");
+        slow.release();
+        assertFalse(old.get());
+        assertTrue(changed.get());
+    }
+
+    private static StringReader users(String alicePassword) {
+        return new StringReader("[{\"dn\": \"" + ALICE + "\", \"group\": \"cn=publishers,ou=groups,dc=solace,dc=com\", "
+                + "\"password\": \"" + alicePassword + "\"}]");
+    }
+}
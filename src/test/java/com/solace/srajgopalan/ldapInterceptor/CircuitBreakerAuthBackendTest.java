@@ -0,0 +1,207 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerAuthBackendTest {
+
+    private static final String ALICE = "cn=alice,dc=solace,dc=com";
+
+    /*
+     * Answers every call with whatever the test set last
+     */
+    private static final class ScriptedBackend implements AuthBackend {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile CompletableFuture<Boolean> answer = CompletableFuture.completedFuture(true);
+        volatile CompletableFuture<SearchCursor> cursor = new CompletableFuture<SearchCursor>();
+
+        void fail(ResultCode resultCode) {
+            CompletableFuture<Boolean> failed = new CompletableFuture<Boolean>();
+            failed.completeExceptionally(new LDAPException(resultCode, "scripted"));
+            answer = failed;
+        }
+
+        @Override
+        public CompletableFuture<Boolean> authenticate(String dn, String password) {
+            calls.incrementAndGet();
+            return answer;
+        }
+
+        @Override
+        public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(Collections.<Entry>emptyList());
+        }
+
+        @Override
+        public CompletableFuture<SearchCursor> stream(String baseDN, Filter filter, long timeLimitMillis) {
+            calls.incrementAndGet();
+            return cursor;
+        }
+    }
+
+    private final ScriptedBackend backend = new ScriptedBackend();
+    private CircuitBreakerAuthBackend breaker;
+
+    @After
+    public void tearDown() {
+        if (breaker != null) {
+            breaker.close();
+        }
+    }
+
+    @Test
+    public void opensAfterFailureThresholdFailures() throws Exception {
+        breaker = new CircuitBreakerAuthBackend(backend, 1000L, 3, 60000L);
+        backend.fail(ResultCode.UNAVAILABLE);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(CircuitBreakerAuthBackend.Phase.CLOSED, breaker.getPhase());
+            assertFailsWith(ResultCode.UNAVAILABLE);
+        }
+        assertEquals(CircuitBreakerAuthBackend.Phase.OPEN, breaker.getPhase());
+
+        // Fails at once without reaching the backend
+        assertFailsWith(ResultCode.UNAVAILABLE);
+        assertEquals(3, backend.calls.get());
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void successesResetTheFailureCount() throws Exception {
+        breaker = new CircuitBreakerAuthBackend(backend, 1000L, 2, 60000L);
+
+        backend.fail(ResultCode.UNAVAILABLE);
+        assertFailsWith(ResultCode.UNAVAILABLE);
+        backend.answer = CompletableFuture.completedFuture(true);
+        assertTrue(breaker.authenticate(ALICE, "alice").get());
+        backend.fail(ResultCode.UNAVAILABLE);
+        assertFailsWith(ResultCode.UNAVAILABLE);
+
+        assertEquals(CircuitBreakerAuthBackend.Phase.CLOSED, breaker.getPhase());
+    }
+
+    @Test
+    public void aSuccessfulProbeClosesTheBreaker() throws Exception {
+        breaker = new CircuitBreakerAuthBackend(backend, 1000L, 1, 50L);
+        backend.fail(ResultCode.UNAVAILABLE);
+        assertFailsWith(ResultCode.UNAVAILABLE);
+        assertEquals(CircuitBreakerAuthBackend.Phase.OPEN, breaker.getPhase());
+        Thread.sleep(100L);
+
+        // Only the probe reaches the backend while it is in flight
+        CompletableFuture<Boolean> answer = new CompletableFuture<Boolean>();
+        backend.answer = answer;
+        CompletableFuture<Boolean> probe = breaker.authenticate(ALICE, "alice");
+        assertEquals(CircuitBreakerAuthBackend.Phase.HALF_OPEN, breaker.getPhase());
+        assertFailsWith(ResultCode.UNAVAILABLE);
+        assertEquals(2, backend.calls.get());
+
+        answer.complete(true);
+        assertTrue(probe.get());
+        assertEquals(CircuitBreakerAuthBackend.Phase.CLOSED, breaker.getPhase());
+        assertTrue(breaker.authenticate(ALICE, "alice").get());
+    }
+
+    @Test
+    public void aFailedProbeOpensTheBreakerAgain() throws Exception {
+        breaker = new CircuitBreakerAuthBackend(backend, 1000L, 1, 50L);
+        backend.fail(ResultCode.UNAVAILABLE);
+        assertFailsWith(ResultCode.UNAVAILABLE);
+        Thread.sleep(100L);
+
+        assertFailsWith(ResultCode.UNAVAILABLE);
+        assertEquals(2, backend.calls.get());
+        assertEquals(CircuitBreakerAuthBackend.Phase.OPEN, breaker.getPhase());
+
+        // The open period starts over
+        assertFailsWith(ResultCode.UNAVAILABLE);
+        assertEquals(2, backend.calls.get());
+    }
+
+    @Test
+    public void timeoutsCountAsFailures() throws Exception {
+        breaker = new CircuitBreakerAuthBackend(backend, 50L, 2, 60000L);
+        backend.answer = new CompletableFuture<Boolean>();
+
+        assertFailsWith(ResultCode.UNAVAILABLE);
+        assertEquals(1, breaker.getTimeoutCount());
+        assertEquals(CircuitBreakerAuthBackend.Phase.CLOSED, breaker.getPhase());
+        assertFailsWith(ResultCode.UNAVAILABLE);
+        assertEquals(2, breaker.getTimeoutCount());
+        assertEquals(CircuitBreakerAuthBackend.Phase.OPEN, breaker.getPhase());
+    }
+
+    @Test
+    public void cursorsOpenedAfterATimeoutAreClosed() throws Exception {
+        breaker = new CircuitBreakerAuthBackend(backend, 50L, 10, 60000L);
+        CompletableFuture<SearchCursor> late = new CompletableFuture<SearchCursor>();
+        backend.cursor = late;
+
+        try {
+            breaker.stream("dc=solace,dc=com", Filter.create("(cn=alice)"), 0L).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(ResultCode.UNAVAILABLE, ((LDAPException) e.getCause()).getResultCode());
+        }
+
+        final AtomicBoolean closed = new AtomicBoolean();
+        late.complete(new SearchCursor() {
+            @Override
+            public boolean hasNext() {
+                return false;
+            }
+
+            @Override
+            public Entry next() {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        });
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void declinedRequestsAreNotFailures() throws Exception {
+        breaker = new CircuitBreakerAuthBackend(backend, 1000L, 1, 60000L);
+
+        backend.fail(ResultCode.UNWILLING_TO_PERFORM);
+        assertFailsWith(ResultCode.UNWILLING_TO_PERFORM);
+        backend.fail(ResultCode.BUSY);
+        assertFailsWith(ResultCode.BUSY);
+        backend.fail(ResultCode.INVALID_CREDENTIALS);
+        assertFailsWith(ResultCode.INVALID_CREDENTIALS);
+
+        assertEquals(CircuitBreakerAuthBackend.Phase.CLOSED, breaker.getPhase());
+        assertFalse(breaker.isOpen());
+    }
+
+    private void assertFailsWith(ResultCode resultCode) throws InterruptedException {
+        try {
+            breaker.authenticate(ALICE, "alice").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(resultCode, ((LDAPException) e.getCause()).getResultCode());
+        }
+    }
+}
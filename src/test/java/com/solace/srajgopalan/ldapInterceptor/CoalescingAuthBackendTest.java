@@ -0,0 +1,185 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingAuthBackendTest {
+
+    private static final String BASE = "dc=solace,dc=com";
+
+    /*
+     * A backend whose calls complete only when the test says so
+     */
+    private static final class PendingBackend implements AuthBackend {
+        final AtomicInteger authentications = new AtomicInteger();
+        final AtomicInteger searches = new AtomicInteger();
+        final AtomicInteger streams = new AtomicInteger();
+        final List<CompletableFuture<Boolean>> pendingAuthentications = new ArrayList<CompletableFuture<Boolean>>();
+        final List<CompletableFuture<List<Entry>>> pendingSearches = new ArrayList<CompletableFuture<List<Entry>>>();
+
+        @Override
+        public CompletableFuture<Boolean> authenticate(String dn, String password) {
+            authentications.incrementAndGet();
+            CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+            pendingAuthentications.add(result);
+            return result;
+        }
+
+        @Override
+        public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+            searches.incrementAndGet();
+            CompletableFuture<List<Entry>> result = new CompletableFuture<List<Entry>>();
+            pendingSearches.add(result);
+            return result;
+        }
+
+        @Override
+        public CompletableFuture<SearchCursor> stream(String baseDN, Filter filter, long timeLimitMillis) {
+            streams.incrementAndGet();
+            return CompletableFuture.completedFuture(SearchCursor.of(entries()));
+        }
+    }
+
+    private PendingBackend backend;
+    private CoalescingAuthBackend coalescing;
+
+    @Before
+    public void setUp() {
+        backend = new PendingBackend();
+        coalescing = new CoalescingAuthBackend(backend);
+    }
+
+    @Test
+    public void identicalAuthenticationsShareOneCall() throws Exception {
+        CompletableFuture<Boolean> first = coalescing.authenticate("cn=alice,dc=solace,dc=com", "alice");
+        CompletableFuture<Boolean> second = coalescing.authenticate("CN=Alice,DC=solace,DC=com", "alice");
+        CompletableFuture<Boolean> other = coalescing.authenticate("cn=alice,dc=solace,dc=com", "wrong");
+
+        assertEquals(2, backend.authentications.get());
+        assertSame(first, second);
+        assertFalse(other == first);
+
+        backend.pendingAuthentications.get(0).complete(true);
+        assertTrue(second.get());
+        assertEquals(1, coalescing.getCoalescedAuthentications());
+
+        // Once answered, the next call goes to the backend again
+        coalescing.authenticate("cn=alice,dc=solace,dc=com", "alice");
+        assertEquals(3, backend.authentications.get());
+    }
+
+    @Test
+    public void identicalSearchesShareOneCall() throws Exception {
+        Filter filter = Filter.create("(cn=alice)");
+        CompletableFuture<List<Entry>> first = coalescing.search(BASE, filter);
+        CompletableFuture<List<Entry>> second = coalescing.search(BASE, Filter.create("(CN=alice)"));
+
+        assertEquals(1, backend.searches.get());
+        backend.pendingSearches.get(0).complete(entries());
+        assertEquals(first.get(), second.get());
+        assertEquals(1, coalescing.getCoalescedSearches());
+    }
+
+    @Test
+    public void streamsMadeWhileOneIsOpenShareOneSearch() throws Exception {
+        Filter filter = Filter.create("(cn=alice)");
+        SearchCursor streaming = coalescing.stream(BASE, filter, 0L).get();
+        assertEquals(1, backend.streams.get());
+
+        CompletableFuture<SearchCursor> second = coalescing.stream(BASE, filter, 0L);
+        CompletableFuture<SearchCursor> third = coalescing.stream(BASE, filter, 0L);
+        assertEquals(1, backend.streams.get());
+        assertEquals(1, backend.searches.get());
+
+        backend.pendingSearches.get(0).complete(entries());
+        // Each caller walks the shared entries with a cursor of its own
+        SearchCursor secondCursor = second.get();
+        SearchCursor thirdCursor = third.get();
+        assertEquals(2, count(secondCursor));
+        assertEquals(2, count(thirdCursor));
+        assertEquals(2, count(streaming));
+
+        streaming.close();
+        coalescing.stream(BASE, filter, 0L).get().close();
+        assertEquals(2, backend.streams.get());
+        assertEquals(1, backend.searches.get());
+    }
+
+    @Test
+    public void differentStreamsAreNotCoalesced() throws Exception {
+        coalescing.stream(BASE, Filter.create("(cn=alice)"), 0L).get();
+        coalescing.stream(BASE, Filter.create("(cn=bob)"), 0L).get();
+
+        assertEquals(2, backend.streams.get());
+        assertEquals(0, backend.searches.get());
+    }
+
+    @Test
+    public void parkedCursorsAreNotCoalescedBehind() throws Exception {
+        Filter filter = Filter.create("(cn=alice)");
+        SearchCursor paged = coalescing.stream(BASE, filter, 0L).get();
+        paged.park();
+
+        coalescing.stream(BASE, filter, 0L).get().close();
+        assertEquals(2, backend.streams.get());
+        assertEquals(0, backend.searches.get());
+        paged.close();
+    }
+
+    @Test
+    public void searchesWithTooManyEntriesToShareStreamOnTheirOwn() throws Exception {
+        coalescing = new CoalescingAuthBackend(backend, 1);
+        Filter filter = Filter.create("(cn=alice)");
+        SearchCursor streaming = coalescing.stream(BASE, filter, 0L).get();
+
+        CompletableFuture<SearchCursor> second = coalescing.stream(BASE, filter, 0L);
+        assertEquals(1, backend.searches.get());
+        // Two entries, one more than may be shared
+        backend.pendingSearches.get(0).complete(entries());
+
+        assertEquals(2, count(second.get()));
+        assertEquals(2, backend.streams.get());
+        streaming.close();
+    }
+
+    @Test
+    public void closingACursorTwiceKeepsANewerStreamCoalesced() throws Exception {
+        Filter filter = Filter.create("(cn=alice)");
+        SearchCursor first = coalescing.stream(BASE, filter, 0L).get();
+        first.close();
+        SearchCursor newer = coalescing.stream(BASE, filter, 0L).get();
+
+        // e.g. closed again when its paged search expires
+        first.close();
+        coalescing.stream(BASE, filter, 0L);
+        assertEquals(2, backend.streams.get());
+        assertEquals(1, backend.searches.get());
+        newer.close();
+    }
+
+    private static int count(SearchCursor cursor) {
+        int n = 0;
+        while (cursor.hasNext()) {
+            cursor.next();
+            n++;
+        }
+        return n;
+    }
+
+    private static List<Entry> entries() {
+        return Arrays.asList(new Entry("cn=alice,dc=solace,dc=com"), new Entry("cn=alice,ou=eu,dc=solace,dc=com"));
+    }
+}
@@ -0,0 +1,193 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the compiled filters, with and without indexes and parallel
+ * scans, against the LDAP SDK's own matching of every entry in turn
+ */
+public class CompiledFilterTest {
+
+    private static final String BASE = "dc=solace,dc=com";
+    private static final String[] NAMES = {"alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi"};
+    private static final String[] GROUPS = {
+            "cn=admin,ou=groups,dc=solace,dc=com",
+            "cn=publishers,ou=groups,dc=solace,dc=com",
+            "cn=subscribers,ou=groups,dc=solace,dc=com",
+            "cn=clients,ou=groups,dc=solace,dc=com",
+            "cn=auditors,ou=groups,dc=solace,dc=com"};
+
+    // Enough users for searches that cannot use an index to scan in parallel
+    private static final int USERS = 12000;
+
+    private static MockAuthSystem mockAuthSystem;
+    private static List<Entry> all;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Random random = new Random(17);
+        StringBuilder users = new StringBuilder("[");
+        for (int i = 0; i < USERS; i++) {
+            String name = NAMES[random.nextInt(NAMES.length)] + (i % 50);
+            String dn = (i % 7 == 0 ? "uid=" : "cn=") + name + ",ou=u" + i + "," + BASE;
+            String group = "\"" + GROUPS[random.nextInt(GROUPS.length)] + "\"";
+            if (random.nextBoolean()) {
+                group = "[" + group + ", \"" + GROUPS[random.nextInt(GROUPS.length)] + "\"]";
+            }
+            users.append(i == 0 ? "" : ",").append("{\"dn\": \"").append(dn)
+                    .append("\", \"group\": ").append(group).append(", \"password\": \"p\"}");
+        }
+        mockAuthSystem = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, new StringReader(users.append("]").toString()));
+        // publishers and subscribers are clients
+        mockAuthSystem.reloadGroups(new StringReader("["
+                + "{\"dn\": \"" + GROUPS[1] + "\", \"group\": \"" + GROUPS[3] + "\"},"
+                + "{\"dn\": \"" + GROUPS[2] + "\", \"group\": \"" + GROUPS[3] + "\"}]"));
+
+        all = mockAuthSystem.search(BASE, Filter.create("(objectClass=*)")).get();
+        assertEquals(USERS, all.size());
+    }
+
+    @Test
+    public void indexedFiltersMatchLinearScan() throws Exception {
+        String[] filters = {
+                "(cn=bob7)", "(CN=Bob7)", "(uid=alice0)", "(cn=nobody)",
+                "(memberOf=" + GROUPS[3] + ")",
+                "(cn=gr*)", "(uid=he*1)", "(cn=a*)",
+                "(&(cn=carol1)(memberOf=" + GROUPS[0] + "))",
+                "(&(objectClass=inetOrgPerson)(cn=dave*))",
+                "(|(cn=erin2)(uid=frank3)(memberOf=" + GROUPS[4] + "))",
+                "(|(cn=erin2)(cn=erin2))"};
+        for (String filter : filters) {
+            assertTrue(filter, CompiledFilter.compile(Filter.create(filter)).isIndexed());
+            check(Filter.create(filter));
+        }
+    }
+
+    @Test
+    public void memberOfIsMatchedAsDN() throws Exception {
+        // The LDAP SDK matches memberOf as a plain string without a schema
+        Directory d = directory();
+        assertEquals(dns(CompiledFilter.compile(Filter.create("(memberOf=" + GROUPS[0] + ")")).select(d, false, 0, 0L)),
+                dns(CompiledFilter.compile(Filter.create("(memberOf=CN=Admin, OU=groups, DC=solace, DC=com)"))
+                        .select(d, false, 0, 0L)));
+    }
+
+    @Test
+    public void scannedFiltersMatchLinearScan() throws Exception {
+        String[] filters = {
+                "(cn=*)", "(uid=*)", "(cn=*ce1*)", "(cn=*7)", "(cn>=g)", "(uid<=b)",
+                "(!(cn=bob7))", "(!(memberOf=" + GROUPS[3] + "))",
+                "(|(cn=bob7)(!(uid=*)))", "(memberOf=*subscribers*)"};
+        for (String filter : filters) {
+            assertFalse(filter, CompiledFilter.compile(Filter.create(filter)).isIndexed());
+            check(Filter.create(filter));
+        }
+    }
+
+    @Test
+    public void randomFiltersMatchLinearScan() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 60; i++) {
+            check(randomFilter(random, 3));
+        }
+    }
+
+    @Test
+    public void sizeLimitStopsEarly() throws Exception {
+        List<Entry> found = CompiledFilter.compile(Filter.create("(cn=*)"))
+                .select(directory(), false, 10, 0L);
+        assertEquals(10, found.size());
+    }
+
+    @Test
+    public void extensibleMatchIsRefused() throws Exception {
+        try {
+            CompiledFilter.compile(Filter.create("(cn:caseExactMatch:=bob7)"));
+            fail();
+        } catch (LDAPException e) {
+            assertEquals(ResultCode.UNWILLING_TO_PERFORM, e.getResultCode());
+        }
+    }
+
+    private static void check(Filter filter) throws Exception {
+        Set<String> expected = new TreeSet<String>();
+        for (Entry entry : all) {
+            if (filter.matchesEntry(entry)) {
+                expected.add(entry.getDN());
+            }
+        }
+
+        CompiledFilter compiled = CompiledFilter.compile(filter);
+        Directory d = directory();
+        assertEquals(filter.toString(), expected, dns(compiled.select(d, false, 0, 0L)));
+        assertEquals(filter.toString(), expected, dns(compiled.select(d, true, 0, 0L)));
+
+        assertEquals(filter.toString(), expected, dns(walk(compiled.cursor(d, false, 0L))));
+        assertEquals(filter.toString(), expected, dns(walk(compiled.cursor(d, true, 0L))));
+    }
+
+    private static List<Entry> walk(SearchCursor cursor) {
+        List<Entry> entries = new ArrayList<Entry>();
+        while (cursor.hasNext()) {
+            entries.add(cursor.next());
+        }
+        cursor.close();
+        return entries;
+    }
+
+    private static Directory directory() throws Exception {
+        return mockAuthSystem.directory();
+    }
+
+    private static Set<String> dns(List<Entry> entries) {
+        Set<String> dns = new TreeSet<String>();
+        for (Entry entry : entries) {
+            assertTrue("returned twice: " + entry.getDN(), dns.add(entry.getDN()));
+        }
+        return dns;
+    }
+
+    private static Filter randomFilter(Random random, int depth) {
+        int kind = random.nextInt(depth > 0 ? 10 : 7);
+        String name = NAMES[random.nextInt(NAMES.length)];
+        switch (kind) {
+            case 0:
+                return Filter.createEqualityFilter("cn", name + random.nextInt(50));
+            case 1:
+                return Filter.createEqualityFilter("uid", name + random.nextInt(50));
+            case 2:
+                return Filter.createEqualityFilter("memberOf", GROUPS[random.nextInt(GROUPS.length)]);
+            case 3:
+                return Filter.createSubInitialFilter(random.nextBoolean() ? "cn" : "uid", name.substring(0, 1 + random.nextInt(3)));
+            case 4:
+                return Filter.createSubAnyFilter("cn", name.substring(1, 3));
+            case 5:
+                return Filter.createPresenceFilter(random.nextBoolean() ? "cn" : "uid");
+            case 6:
+                return Filter.createGreaterOrEqualFilter("cn", name);
+            case 7:
+                return Filter.createNOTFilter(randomFilter(random, depth - 1));
+            case 8:
+                return Filter.createANDFilter(randomFilter(random, depth - 1), randomFilter(random, depth - 1));
+            default:
+                return Filter.createORFilter(randomFilter(random, depth - 1), randomFilter(random, depth - 1));
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.listener.LDAPDebuggerRequestHandler;
+import com.unboundid.ldap.listener.LDAPListener;
+import com.unboundid.ldap.listener.LDAPListenerConfig;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class CustomAuthRequestHandlerTest {
+
+    private static final String USERS = "["
+            + "{\"dn\": \"cn=alice,dc=solace,dc=com\", \"group\": \"cn=publishers,ou=groups,dc=solace,dc=com\", \"password\": \"alice\"},"
+            + "{\"dn\": \"cn=bob,dc=solace,dc=com\", \"group\": \"cn=subscribers,ou=groups,dc=solace,dc=com\", \"password\": \"bob\"}"
+            + "]";
+
+    /*
+     * Keeps the messages LDAPDebuggerRequestHandler logs
+     */
+    private static final class RecordingHandler extends Handler {
+        final List<String> messages = new ArrayList<String>();
+
+        @Override
+        public synchronized void publish(LogRecord record) {
+            messages.add(record.getMessage());
+        }
+
+        synchronized int logged(String text) {
+            int n = 0;
+            for (String message : messages) {
+                if (message.contains(text)) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private LDAPListener listener;
+
+    @After
+    public void tearDown() {
+        if (listener != null) {
+            listener.shutDown(true);
+        }
+    }
+
+    @Test
+    public void debuggerLogsTransformedSearchEntries() throws Exception {
+        RecordingHandler log = search(true);
+
+        // The entry of the search and of its cached response
+        assertEquals(2, log.logged("Search Result Entry Protocol Op"));
+    }
+
+    @Test
+    public void batchedSearchEntriesBypassTheDebugger() throws Exception {
+        RecordingHandler log = search(false);
+
+        // Only the search request and its result are logged
+        assertEquals(2, log.logged("Search Request Protocol Op"));
+        assertEquals(0, log.logged("Search Result Entry Protocol Op"));
+    }
+
+    @Test
+    public void requestsWaitingTooLongForAnInFlightSlotAreBusy() throws Exception {
+        // A backend whose searches never answer
+        AuthBackend stalled = new AuthBackend() {
+            @Override
+            public CompletableFuture<Boolean> authenticate(String dn, String password) {
+                return new CompletableFuture<Boolean>();
+            }
+
+            @Override
+            public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+                return new CompletableFuture<List<Entry>>();
+            }
+
+            @Override
+            public CompletableFuture<SearchCursor> stream(String baseDN, Filter filter, long timeLimitMillis) {
+                return new CompletableFuture<SearchCursor>();
+            }
+        };
+        CustomAuthRequestHandler handler = new CustomAuthRequestHandler(stalled,
+                new CustomAuthRequestHandler.Options()
+                        .setMaxInFlight(1)
+                        .setMaxInFlightWaitMillis(100L)
+                        .setDeferResponses(true));
+        listener = new LDAPListener(new LDAPListenerConfig(0, handler));
+        listener.startListening();
+
+        LDAPConnection connection = new LDAPConnection("127.0.0.1", listener.getListenPort());
+        try {
+            // Takes the connection's only slot
+            AsyncRequestID first = connection.asyncSearch(new SearchRequest(new AsyncSearchResultListener() {
+                @Override
+                public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult) {
+                }
+
+                @Override
+                public void searchEntryReturned(SearchResultEntry searchEntry) {
+                }
+
+                @Override
+                public void searchReferenceReturned(SearchResultReference searchReference) {
+                }
+            }, "dc=solace,dc=com", SearchScope.SUB, "(cn=alice)"));
+            try {
+                connection.search("dc=solace,dc=com", SearchScope.SUB, "(cn=bob)");
+                fail();
+            } catch (LDAPSearchException e) {
+                assertEquals(ResultCode.BUSY, e.getResultCode());
+            }
+            assertFalse(first.isDone());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void searchesWalkingTheDirectoryDuringAReloadAreNotCached() throws Exception {
+        final MockAuthSystem mockAuthSystem = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, new StringReader(USERS));
+        SearchResponseCache cache = new SearchResponseCache(60000L, 100);
+        mockAuthSystem.addChangeListener(cache);
+        // Bob is removed once the cursor over his entry has been opened
+        AuthBackend reloading = new AuthBackend() {
+            @Override
+            public CompletableFuture<Boolean> authenticate(String dn, String password) {
+                return mockAuthSystem.authenticate(dn, password);
+            }
+
+            @Override
+            public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+                return mockAuthSystem.search(baseDN, filter);
+            }
+
+            @Override
+            public CompletableFuture<SearchCursor> stream(String baseDN, Filter filter, long timeLimitMillis) {
+                CompletableFuture<SearchCursor> cursor = mockAuthSystem.stream(baseDN, filter, timeLimitMillis);
+                try {
+                    mockAuthSystem.reload(new StringReader(USERS.substring(0, USERS.indexOf("},") + 1) + "]"));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return cursor;
+            }
+        };
+        listener = new LDAPListener(new LDAPListenerConfig(0, new CustomAuthRequestHandler(reloading,
+                new CustomAuthRequestHandler.Options().setSearchResponseCache(cache))));
+        listener.startListening();
+
+        LDAPConnection connection = new LDAPConnection("127.0.0.1", listener.getListenPort());
+        try {
+            // The search opened on the old directory still finds Bob...
+            assertEquals(1, connection.search("dc=solace,dc=com", SearchScope.SUB, "(cn=bob)").getEntryCount());
+            assertEquals(0, cache.size());
+            // ...but the next one does not
+            assertEquals(0, connection.search("dc=solace,dc=com", SearchScope.SUB, "(cn=bob)").getEntryCount());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void searchesAreLimitedToTheirScope() throws Exception {
+        MockAuthSystem mockAuthSystem = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, new StringReader(USERS));
+        listener = new LDAPListener(new LDAPListenerConfig(0, new CustomAuthRequestHandler(mockAuthSystem,
+                new CustomAuthRequestHandler.Options())));
+        listener.startListening();
+
+        LDAPConnection connection = new LDAPConnection("127.0.0.1", listener.getListenPort());
+        try {
+            assertEquals(1, connection.search("cn=bob,dc=solace,dc=com", SearchScope.BASE, "(cn=bob)").getEntryCount());
+            assertEquals(0, connection.search("cn=alice,dc=solace,dc=com", SearchScope.BASE, "(cn=bob)").getEntryCount());
+            assertEquals(1, connection.search("dc=solace,dc=com", SearchScope.ONE, "(cn=bob)").getEntryCount());
+            assertEquals(0, connection.search("dc=com", SearchScope.ONE, "(cn=bob)").getEntryCount());
+            assertEquals(1, connection.search("dc=com", SearchScope.SUB, "(cn=bob)").getEntryCount());
+        } finally {
+            connection.close();
+        }
+    }
+
+    /*
+     * Search twice through a debugged listener, the second time from the
+     * search response cache
+     */
+    private RecordingHandler search(boolean transformEntries) throws Exception {
+        MockAuthSystem mockAuthSystem = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, new StringReader(USERS));
+        CustomAuthRequestHandler handler = new CustomAuthRequestHandler(mockAuthSystem,
+                new CustomAuthRequestHandler.Options()
+                        .setSearchResponseCache(new SearchResponseCache(60000L, 100))
+                        .setTransformEntries(transformEntries));
+        RecordingHandler log = new RecordingHandler();
+        listener = new LDAPListener(new LDAPListenerConfig(0, new LDAPDebuggerRequestHandler(log, handler)));
+        listener.startListening();
+
+        LDAPConnection connection = new LDAPConnection("127.0.0.1", listener.getListenPort());
+        try {
+            for (int i = 0; i < 2; i++) {
+                SearchResult result = connection.search("dc=solace,dc=com", SearchScope.SUB, "(cn=bob)");
+                assertEquals(1, result.getEntryCount());
+                assertEquals("cn=bob,dc=solace,dc=com", result.getSearchEntries().get(0).getDN());
+            }
+        } finally {
+            connection.close();
+        }
+        return log;
+    }
+}
@@ -0,0 +1,129 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GroupIndexTest {
+
+    private static final String A = "cn=a,ou=groups,dc=solace,dc=com";
+    private static final String B = "cn=b,ou=groups,dc=solace,dc=com";
+    private static final String C = "cn=c,ou=groups,dc=solace,dc=com";
+    private static final String D = "cn=d,ou=groups,dc=solace,dc=com";
+
+    @Test
+    public void memberOfFollowsNestingTransitively() {
+        // c in b in a
+        GroupIndex index = GroupIndex.EMPTY.update(Arrays.asList(group(C, B), group(B, A)));
+
+        assertArrayEquals(new String[] {C, B, A}, index.memberOf(new String[] {C}));
+        assertArrayEquals(new String[] {B, A}, index.memberOf(new String[] {B}));
+        assertEquals(set(A, B, C), set(index.descendants(A)));
+        assertEquals(set(B, C), set(index.descendants(B)));
+        assertNull(index.descendants(C));
+    }
+
+    @Test
+    public void directGroupsWithoutNestingAreReturnedAsIs() {
+        GroupIndex index = GroupIndex.EMPTY.update(Arrays.asList(group(C, B)));
+        String[] direct = {D};
+
+        assertSame(direct, index.memberOf(direct));
+    }
+
+    @Test
+    public void cyclesNestEachGroupInTheOthers() {
+        // a in b in c in a
+        GroupIndex index = GroupIndex.EMPTY.update(Arrays.asList(group(A, B), group(B, C), group(C, A)));
+
+        assertEquals(set(A, B, C), set(index.memberOf(new String[] {A})));
+        assertEquals(set(A, B, C), set(index.memberOf(new String[] {C})));
+        assertEquals(set(A, B, C), set(index.descendants(A)));
+        assertEquals(set(A, B, C), set(index.descendants(B)));
+    }
+
+    @Test
+    public void reparentingRecomputesOnlyTheMovedGroups() {
+        // c in b in a, and d on its own under a
+        GroupIndex before = GroupIndex.EMPTY.update(Arrays.asList(group(C, B), group(B, A), group(D, A)));
+        // c moves from b to d
+        GroupIndex after = before.update(Arrays.asList(group(C, D), group(B, A), group(D, A)));
+
+        assertArrayEquals(new String[] {C, D, A}, after.memberOf(new String[] {C}));
+        assertEquals(set(C), after.changed());
+        assertNull(after.descendants(B));
+        assertEquals(set(C, D), set(after.descendants(D)));
+        assertEquals(set(A, B, C, D), set(after.descendants(A)));
+    }
+
+    @Test
+    public void removingNestingChangesTheNestedGroups() {
+        GroupIndex before = GroupIndex.EMPTY.update(Arrays.asList(group(C, B), group(B, A)));
+        GroupIndex after = before.update(Arrays.asList(group(C, B)));
+
+        assertArrayEquals(new String[] {C, B}, after.memberOf(new String[] {C}));
+        assertEquals(set(B, C), after.changed());
+        assertNull(after.descendants(A));
+    }
+
+    @Test
+    public void unchangedDefinitionsChangeNothing() {
+        GroupIndex before = GroupIndex.EMPTY.update(Arrays.asList(group(C, B), group(B, A)));
+        GroupIndex after = before.update(Arrays.asList(group(C, B), group(B, A)));
+
+        assertTrue(after.changed().isEmpty());
+    }
+
+    @Test
+    public void nestingAGroupWithoutUsersDropsCachedSearches() throws Exception {
+        // Bob is in c; nesting c in a makes him a member of a
+        MockAuthSystem mockAuthSystem = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, new StringReader(
+                "[{\"dn\": \"cn=bob,dc=solace,dc=com\", \"group\": \"" + C + "\", \"password\": \"bob\"},"
+                        + "{\"dn\": \"cn=alice,dc=solace,dc=com\", \"group\": \"" + A + "\", \"password\": \"alice\"}]"));
+        SearchResponseCache cache = new SearchResponseCache(60000L, 100);
+        mockAuthSystem.addChangeListener(cache);
+        mockAuthSystem.reloadGroups(new StringReader("[{\"dn\": \"" + C + "\", \"group\": \"" + B + "\"}]"));
+
+        Filter inA = Filter.create("(memberOf=" + A + ")");
+        assertEquals(1, mockAuthSystem.search("dc=solace,dc=com", inA).get().size());
+        cache.put("dc=solace,dc=com", SearchScope.SUB.intValue(), inA, SearchProjection.ALL,
+                new PreEncodedSearchResultEntry[] {new PreEncodedSearchResultEntry(
+                        mockAuthSystem.search("dc=solace,dc=com", inA).get().get(0))});
+        assertNotNull(cache.get("dc=solace,dc=com", SearchScope.SUB.intValue(), inA, SearchProjection.ALL));
+
+        // b, which has no users of its own, is nested in a
+        mockAuthSystem.reloadGroups(new StringReader("[{\"dn\": \"" + C + "\", \"group\": \"" + B + "\"},"
+                + "{\"dn\": \"" + B + "\", \"group\": \"" + A + "\"}]"));
+
+        assertNull(cache.get("dc=solace,dc=com", SearchScope.SUB.intValue(), inA, SearchProjection.ALL));
+        assertEquals(2, mockAuthSystem.search("dc=solace,dc=com", inA).get().size());
+    }
+
+    private static MockAuthSystemEntry group(String dn, String parent) {
+        return new MockAuthSystemEntry(dn, "", parent);
+    }
+
+    private static Set<String> set(String... groups) {
+        Set<String> normalized = new HashSet<String>();
+        for (String group : groups) {
+            normalized.add(DirectoryNames.normalize(group));
+        }
+        return normalized;
+    }
+
+    private static Set<String> set(Set<String> groups) {
+        return set(groups.toArray(new String[0]));
+    }
+}
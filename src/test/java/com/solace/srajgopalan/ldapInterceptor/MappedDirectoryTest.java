@@ -0,0 +1,139 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a user file compiled into a snapshot and mapped answers
+ * binds and searches as the same file parsed onto the heap does
+ */
+public class MappedDirectoryTest {
+
+    private static final String BASE = "dc=solace,dc=com";
+    private static final String ADMIN = "cn=admin,ou=groups,dc=solace,dc=com";
+    private static final String PUBLISHERS = "cn=publishers,ou=groups,dc=solace,dc=com";
+
+    private static final String USERS = "["
+            + "{\"dn\": \"cn=alice,dc=solace,dc=com\", \"group\": \"" + ADMIN + "\", \"password\": \"alice\"},"
+            + "{\"dn\": \"CN=Bob, OU=EU, DC=solace, DC=com\", \"group\": [\"" + ADMIN + "\", \"" + PUBLISHERS + "\"], \"password\": \"bob\"},"
+            + "{\"dn\": \"cn=bob,dc=solace,dc=com\", \"group\": \"CN=Publishers,OU=groups,DC=solace,DC=com\", \"password\": \"bob2\"},"
+            + "{\"dn\": \"uid=bobby,dc=solace,dc=com\", \"group\": \"" + PUBLISHERS + "\", \"password\": \"bobby\"},"
+            + "{\"dn\": \"cn=zo\u00eb,dc=solace,dc=com\", \"group\": [], \"password\": \"zo\u00eb\"},"
+            + "{\"dn\": \"cn=carol,dc=solace,dc=com\", \"group\": \"" + PUBLISHERS + "\", \"password\": \""
+            + PasswordHash.hash(PasswordHash.Scheme.PBKDF2_SHA256, "carol") + "\"}"
+            + "]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path snapshot;
+    private MockAuthSystem heap;
+    private MockAuthSystem mapped;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshot = folder.getRoot().toPath().resolve("users.snapshot");
+        assertEquals(6, DirectorySnapshot.compile(new StringReader(USERS), snapshot));
+        heap = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, new StringReader(USERS));
+        mapped = MockAuthSystem.fromSnapshot(MockAuthSystem.MatchMode.EXACT, snapshot, true);
+    }
+
+    @Test
+    public void bindsMatchTheHeapDirectory() throws Exception {
+        String[][] binds = {
+                {"cn=alice,dc=solace,dc=com", "alice"}, {"CN=ALICE,DC=solace,DC=com", "alice"},
+                {"cn=alice,dc=solace,dc=com", "bob"}, {"cn=bob,ou=eu,dc=solace,dc=com", "bob"},
+                {"cn=bob,dc=solace,dc=com", "bob"}, {"cn=bob,dc=solace,dc=com", "bob2"},
+                {"cn=zo\u00eb,dc=solace,dc=com", "zo\u00eb"}, {"cn=carol,dc=solace,dc=com", "carol"},
+                {"cn=carol,dc=solace,dc=com", "Carol"}, {"cn=nobody,dc=solace,dc=com", "nobody"}};
+        for (String[] bind : binds) {
+            boolean expected = heap.authenticate(bind[0], bind[1]).get();
+            assertEquals(bind[0] + " " + bind[1], expected, mapped.authenticate(bind[0], bind[1]).get());
+        }
+        assertTrue(mapped.authenticate("cn=carol,dc=solace,dc=com", "carol").get());
+    }
+
+    @Test
+    public void searchesMatchTheHeapDirectory() throws Exception {
+        String[] filters = {
+                "(cn=bob)", "(CN=BOB)", "(uid=bobby)", "(cn=zo\u00eb)", "(cn=nobody)",
+                "(cn=b*)", "(cn=*o*)", "(cn=*)",
+                "(memberOf=" + ADMIN + ")", "(memberOf=" + PUBLISHERS + ")",
+                "(&(cn=bob)(memberOf=" + ADMIN + "))", "(|(cn=alice)(uid=bobby))", "(!(cn=bob))"};
+        for (String filter : filters) {
+            assertEquals(filter, dns(heap.search(BASE, Filter.create(filter)).get()),
+                    dns(mapped.search(BASE, Filter.create(filter)).get()));
+        }
+        assertEquals(4, mapped.search(BASE, Filter.create("(memberOf=" + PUBLISHERS + ")")).get().size());
+    }
+
+    @Test
+    public void entriesMatchTheHeapDirectory() throws Exception {
+        List<Entry> expected = heap.search(BASE, Filter.create("(cn=*)")).get();
+        List<Entry> actual = mapped.search(BASE, Filter.create("(cn=*)")).get();
+        assertEquals(expected.size(), actual.size());
+        for (Entry entry : expected) {
+            assertTrue(entry.getDN(), actual.contains(entry));
+        }
+    }
+
+    @Test
+    public void corruptSnapshotsAreRefused() throws Exception {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            long position = channel.size() - 1;
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 1));
+            b.rewind();
+            channel.write(b, position);
+        }
+
+        try {
+            MockAuthSystem.fromSnapshot(MockAuthSystem.MatchMode.EXACT, snapshot, true);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+        }
+    }
+
+    @Test
+    public void otherFilesAreNotSnapshots() throws Exception {
+        Path other = folder.newFile("users.json").toPath();
+        Files.write(other, USERS.getBytes("UTF-8"));
+        try {
+            MockAuthSystem.fromSnapshot(MockAuthSystem.MatchMode.EXACT, other, false);
+            fail();
+        } catch (IOException e) {
+            assertFalse(e.getMessage().isEmpty());
+        }
+    }
+
+    private static List<String> dns(List<Entry> entries) {
+        List<String> dns = new ArrayList<String>();
+        for (Entry entry : entries) {
+            dns.add(entry.getDN());
+        }
+        Collections.sort(dns);
+        return dns;
+    }
+}
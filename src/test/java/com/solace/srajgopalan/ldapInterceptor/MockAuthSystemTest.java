@@ -0,0 +1,56 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MockAuthSystemTest {
+
+    private static final String USERS = "["
+            + "{\"dn\": \"cn=alice,dc=solace,dc=com\", \"group\": \"cn=publishers,ou=groups,dc=solace,dc=com\", \"password\": \"alice\"},"
+            + "{\"dn\": \"cn=bob,dc=solace,dc=com\", \"group\": \"cn=subscribers,ou=groups,dc=solace,dc=com\", \"password\": \"bob\"},"
+            + "{\"dn\": \"cn=bob,ou=eu,dc=solace,dc=com\", \"group\": \"cn=subscribers,ou=groups,dc=solace,dc=com\", \"password\": \"bob-eu\"}"
+            + "]";
+
+    private MockAuthSystem mockAuthSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        mockAuthSystem = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, new StringReader(USERS));
+    }
+
+    @Test
+    public void bindsMatchEquivalentDNs() throws Exception {
+        assertTrue(mockAuthSystem.authenticate("cn=alice,dc=solace,dc=com", "alice").get());
+        assertTrue(mockAuthSystem.authenticate("CN=Alice, DC=solace, DC=com", "alice").get());
+        assertTrue(mockAuthSystem.validateUser("cn=ALICE,dc=SOLACE,dc=com", "alice"));
+    }
+
+    @Test
+    public void bindsRejectWrongPasswordsAndUnknownUsers() throws Exception {
+        assertFalse(mockAuthSystem.authenticate("cn=alice,dc=solace,dc=com", "bob").get());
+        assertFalse(mockAuthSystem.authenticate("cn=carol,dc=solace,dc=com", "carol").get());
+        assertFalse(mockAuthSystem.authenticate(null, "alice").get());
+    }
+
+    @Test
+    public void searchesByCnReturnEveryUserWithThatCn() throws Exception {
+        List<Entry> found = mockAuthSystem.search("dc=solace,dc=com", Filter.create("(cn=BOB)")).get();
+        assertEquals(2, found.size());
+        assertEquals("cn=bob,dc=solace,dc=com", found.get(0).getDN());
+        assertEquals("cn=bob,ou=eu,dc=solace,dc=com", found.get(1).getDN());
+    }
+
+    @Test
+    public void searchesForUnknownCnReturnNothing() throws Exception {
+        assertTrue(mockAuthSystem.search("dc=solace,dc=com", Filter.create("(cn=carol)")).get().isEmpty());
+    }
+}
@@ -0,0 +1,70 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PasswordHashTest {
+
+    /*
+     * The test vectors of Ulrich Drepper's "Unix crypt using SHA-256 and
+     * SHA-512": setting, password and the expected hash
+     */
+    private static final String[][] SHA512_CRYPT_VECTORS = {
+            // The default 5000 rounds, which the hash does not state
+            {"$6$saltstring", "Hello world!",
+                    "$6$saltstring$svn8UoSVapNtMuq1ukKS4tPQd8iKwSMHWjl/O817G3uBnIFNjnQJuesI68u4OTLiBFdcbYEdFCoEOfaS35inz1"},
+            // Explicit rounds, and a salt cut to 16 characters
+            {"$6$rounds=10000$saltstringsaltstring", "Hello world!",
+                    "$6$rounds=10000$saltstringsaltst$OW1/O6BYHV6BcXZu8QVeXbDWra3Oeqh0sbHbbMCVNSnCM/UrjmM0Dp8vOuZeHBy/YTBmSK6H9qs/y3RnOaw5v."},
+            {"$6$rounds=5000$toolongsaltstring", "This is just a test",
+                    "$6$rounds=5000$toolongsaltstrin$lQ8jolhgVRVhY4b5pZKaysCLi0QBxGoNeKQzQ3glMhwllF7oGDZxUhx1yxdYcz/e1JSbq3y6JMxxl8audkUEm0"},
+            // Too few rounds are raised to the minimum of 1000
+            {"$6$rounds=10$roundstoolow", "the minimum number is still observed",
+                    "$6$rounds=1000$roundstoolow$kUMsbe306n21p9R.FRkW3IGn.S9NPN0x50YhH1xhLsPuWGsUSklZt58jaTfF4ZEQpyUNGc0dqbpBYYBaHHrsX."}};
+
+    @Test
+    public void sha512CryptMatchesTheReferenceVectors() throws Exception {
+        for (String[] vector : SHA512_CRYPT_VECTORS) {
+            assertEquals(vector[0], vector[2], PasswordHash.sha512Crypt(vector[1], vector[0]));
+            assertTrue(vector[0], PasswordHash.isHashed(vector[2]));
+            assertTrue(vector[0], PasswordHash.matches(vector[2], vector[1]));
+            assertFalse(vector[0], PasswordHash.matches(vector[2], vector[1] + " "));
+        }
+    }
+
+    @Test
+    public void hashesOfEverySchemeRoundTrip() {
+        for (PasswordHash.Scheme scheme : PasswordHash.Scheme.values()) {
+            String hash = PasswordHash.hash(scheme, "s3cret");
+            assertTrue(hash, PasswordHash.isHashed(hash));
+            assertTrue(hash, PasswordHash.matches(hash, "s3cret"));
+            assertFalse(hash, PasswordHash.matches(hash, "S3cret"));
+            // Each hash has a salt of its own
+            assertFalse(hash, hash.equals(PasswordHash.hash(scheme, "s3cret")));
+        }
+    }
+
+    @Test
+    public void pbkdf2HashesStateTheirRounds() {
+        String sha256 = PasswordHash.hash(PasswordHash.Scheme.PBKDF2_SHA256, "s3cret");
+        assertTrue(sha256, sha256.startsWith("$pbkdf2-sha256$29000$"));
+        String sha512 = PasswordHash.hash(PasswordHash.Scheme.PBKDF2_SHA512, "s3cret");
+        assertTrue(sha512, sha512.startsWith("$pbkdf2-sha512$25000$"));
+
+        // The rounds of the stored hash are used, not the current default
+        String fewer = sha256.replace("$29000$", "$1000$");
+        assertFalse(PasswordHash.matches(fewer, "s3cret"));
+    }
+
+    @Test
+    public void plaintextAndMalformedCredentials() {
+        assertFalse(PasswordHash.isHashed("alice"));
+        assertTrue(PasswordHash.matches("alice", "alice"));
+        assertFalse(PasswordHash.matches("alice", "bob"));
+        assertFalse(PasswordHash.matches("$pbkdf2-sha256$x$y", "alice"));
+        assertFalse(PasswordHash.matches("$6$rounds=x$salt$hash", "alice"));
+    }
+}
@@ -0,0 +1,72 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void aFullBucketAllowsABurst() {
+        RateLimiter<String> limiter = new RateLimiter<String>(1, 5, 100);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire("alice"));
+        }
+        assertFalse(limiter.tryAcquire("alice"));
+        assertEquals(1, limiter.getRefusedCount());
+
+        // Every key has its own bucket
+        assertTrue(limiter.tryAcquire("bob"));
+    }
+
+    @Test
+    public void anEmptyBucketRefillsAtTheRate() throws Exception {
+        // A token every 100 ms
+        RateLimiter<String> limiter = new RateLimiter<String>(10, 2, 100);
+        assertTrue(limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice"));
+        assertFalse(limiter.tryAcquire("alice"));
+
+        Thread.sleep(150L);
+        assertTrue(limiter.tryAcquire("alice"));
+        assertFalse(limiter.tryAcquire("alice"));
+    }
+
+    @Test
+    public void releasedTokensCanBeTakenAgain() {
+        RateLimiter<String> limiter = new RateLimiter<String>(1, 2, 100);
+        assertTrue(limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice"));
+        limiter.release("alice");
+        assertTrue(limiter.tryAcquire("alice"));
+        assertFalse(limiter.tryAcquire("alice"));
+
+        // Giving back more than was taken does not overfill the bucket
+        for (int i = 0; i < 10; i++) {
+            limiter.release("bob");
+        }
+        assertTrue(limiter.tryAcquire("bob"));
+        for (int i = 0; i < 10; i++) {
+            limiter.release("bob");
+        }
+        assertTrue(limiter.tryAcquire("bob"));
+        assertTrue(limiter.tryAcquire("bob"));
+        assertFalse(limiter.tryAcquire("bob"));
+    }
+
+    @Test
+    public void memoryStaysBoundedUnderKeyChurn() {
+        RateLimiter<Integer> limiter = new RateLimiter<Integer>(1, 2, 100);
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(limiter.tryAcquire(i));
+            assertTrue(limiter.size() <= 100);
+        }
+        // Recent keys keep their buckets
+        assertTrue(limiter.tryAcquire(9999));
+        assertFalse(limiter.tryAcquire(9999));
+    }
+}
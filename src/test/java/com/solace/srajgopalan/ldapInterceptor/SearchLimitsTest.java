@@ -0,0 +1,179 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.listener.LDAPListener;
+import com.unboundid.ldap.listener.LDAPListenerConfig;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchScope;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Searches through a listener held to the lower of their own limits and
+ * the server's
+ */
+public class SearchLimitsTest {
+
+    private static final String USERS = "["
+            + "{\"dn\": \"cn=alice,dc=solace,dc=com\", \"group\": \"cn=publishers,ou=groups,dc=solace,dc=com\", \"password\": \"alice\"},"
+            + "{\"dn\": \"cn=bob,dc=solace,dc=com\", \"group\": \"cn=subscribers,ou=groups,dc=solace,dc=com\", \"password\": \"bob\"},"
+            + "{\"dn\": \"cn=carol,dc=solace,dc=com\", \"group\": \"cn=subscribers,ou=groups,dc=solace,dc=com\", \"password\": \"carol\"}"
+            + "]";
+
+    /*
+     * Streams from a mock directory, keeping the time limit of each search
+     */
+    private static final class RecordingBackend implements AuthBackend {
+        final MockAuthSystem directory;
+        final AtomicInteger streams = new AtomicInteger();
+        final AtomicLong timeLimitMillis = new AtomicLong(-1L);
+
+        RecordingBackend() throws Exception {
+            directory = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, new StringReader(USERS));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> authenticate(String dn, String password) {
+            return directory.authenticate(dn, password);
+        }
+
+        @Override
+        public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+            return directory.search(baseDN, filter);
+        }
+
+        @Override
+        public CompletableFuture<SearchCursor> stream(String baseDN, Filter filter, long timeLimitMillis) {
+            streams.incrementAndGet();
+            this.timeLimitMillis.set(timeLimitMillis);
+            return directory.stream(baseDN, filter, timeLimitMillis);
+        }
+    }
+
+    private LDAPListener listener;
+    private LDAPConnection connection;
+
+    @After
+    public void tearDown() {
+        if (connection != null) {
+            connection.close();
+        }
+        listener.shutDown(true);
+    }
+
+    @Test
+    public void theLowerSizeLimitApplies() throws Exception {
+        connect(new RecordingBackend(), new SearchLimits(2, 0), null);
+
+        assertSizeLimitExceeded(0, 2);
+        assertSizeLimitExceeded(1, 1);
+        assertSizeLimitExceeded(5, 2);
+    }
+
+    @Test
+    public void searchesWithinTheSizeLimitSucceed() throws Exception {
+        connect(new RecordingBackend(), new SearchLimits(3, 0), null);
+
+        assertEquals(3, connection.search(request(0, 0)).getEntryCount());
+        assertEquals(3, connection.search(request(3, 0)).getEntryCount());
+    }
+
+    @Test
+    public void cachedSearchesAreHeldToTheSizeLimit() throws Exception {
+        RecordingBackend backend = new RecordingBackend();
+        connect(backend, new SearchLimits(5, 0), new SearchResponseCache(60000L, 100));
+
+        assertEquals(3, connection.search(request(0, 0)).getEntryCount());
+        assertSizeLimitExceeded(2, 2);
+        assertSizeLimitExceeded(1, 1);
+        assertEquals(3, connection.search(request(0, 0)).getEntryCount());
+        assertEquals(1, backend.streams.get());
+    }
+
+    @Test
+    public void theLowerTimeLimitApplies() throws Exception {
+        RecordingBackend backend = new RecordingBackend();
+        connect(backend, new SearchLimits(0, 5), null);
+
+        connection.search(request(0, 0));
+        assertEquals(5000L, backend.timeLimitMillis.get());
+        connection.search(request(0, 2));
+        assertEquals(2000L, backend.timeLimitMillis.get());
+        connection.search(request(0, 10));
+        assertEquals(5000L, backend.timeLimitMillis.get());
+    }
+
+    @Test
+    public void searchesWithoutLimitsAreNotLimited() throws Exception {
+        RecordingBackend backend = new RecordingBackend();
+        connect(backend, SearchLimits.NONE, null);
+
+        assertEquals(3, connection.search(request(0, 0)).getEntryCount());
+        assertEquals(0L, backend.timeLimitMillis.get());
+    }
+
+    @Test
+    public void searchesOverTheTimeLimitFail() throws Exception {
+        // A backend whose cursors never open
+        connect(new AuthBackend() {
+            @Override
+            public CompletableFuture<Boolean> authenticate(String dn, String password) {
+                return new CompletableFuture<Boolean>();
+            }
+
+            @Override
+            public CompletableFuture<List<Entry>> search(String baseDN, Filter filter) {
+                return new CompletableFuture<List<Entry>>();
+            }
+
+            @Override
+            public CompletableFuture<SearchCursor> stream(String baseDN, Filter filter, long timeLimitMillis) {
+                return new CompletableFuture<SearchCursor>();
+            }
+        }, new SearchLimits(0, 1), null);
+
+        try {
+            connection.search(request(0, 10));
+            fail();
+        } catch (LDAPSearchException e) {
+            assertEquals(ResultCode.TIME_LIMIT_EXCEEDED, e.getResultCode());
+        }
+    }
+
+    private void connect(AuthBackend backend, SearchLimits limits, SearchResponseCache cache) throws Exception {
+        listener = new LDAPListener(new LDAPListenerConfig(0, new CustomAuthRequestHandler(backend,
+                new CustomAuthRequestHandler.Options().setSearchLimits(limits).setSearchResponseCache(cache))));
+        listener.startListening();
+        connection = new LDAPConnection("127.0.0.1", listener.getListenPort());
+    }
+
+    private static SearchRequest request(int sizeLimit, int timeLimitSeconds) throws Exception {
+        SearchRequest request = new SearchRequest("dc=solace,dc=com", SearchScope.SUB, "(objectClass=*)");
+        request.setSizeLimit(sizeLimit);
+        request.setTimeLimitSeconds(timeLimitSeconds);
+        return request;
+    }
+
+    private void assertSizeLimitExceeded(int sizeLimit, int entries) throws Exception {
+        try {
+            connection.search(request(sizeLimit, 0));
+            fail();
+        } catch (LDAPSearchException e) {
+            assertEquals(ResultCode.SIZE_LIMIT_EXCEEDED, e.getResultCode());
+            assertEquals(entries, e.getEntryCount());
+        }
+    }
+}
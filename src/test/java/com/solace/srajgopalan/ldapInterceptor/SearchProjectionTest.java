@@ -0,0 +1,120 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.listener.LDAPListener;
+import com.unboundid.ldap.listener.LDAPListenerConfig;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Searches through a listener for the attributes a request asks for,
+ * the second time from the search response cache
+ */
+public class SearchProjectionTest {
+
+    private static final String USERS = "["
+            + "{\"dn\": \"cn=alice,dc=solace,dc=com\", \"group\": \"cn=publishers,ou=groups,dc=solace,dc=com\", \"password\": \"alice\"}"
+            + "]";
+
+    private LDAPListener listener;
+    private LDAPConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        MockAuthSystem mockAuthSystem = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT, new StringReader(USERS));
+        listener = new LDAPListener(new LDAPListenerConfig(0, new CustomAuthRequestHandler(mockAuthSystem,
+                new CustomAuthRequestHandler.Options().setSearchResponseCache(new SearchResponseCache(60000L, 100)))));
+        listener.startListening();
+        connection = new LDAPConnection("127.0.0.1", listener.getListenPort());
+    }
+
+    @After
+    public void tearDown() {
+        connection.close();
+        listener.shutDown(true);
+    }
+
+    @Test
+    public void noAttributesOrStarReturnEveryUserAttribute() throws Exception {
+        for (String[] attributes : new String[][] {{}, {"*"}, {"*", "memberOf"}, {"1.1", "*"}}) {
+            for (SearchResultEntry entry : search(false, attributes)) {
+                assertTrue(entry.hasAttribute("objectClass"));
+                assertTrue(entry.hasAttribute("cn"));
+                assertTrue(entry.hasAttributeValue("memberOf", "cn=publishers,ou=groups,dc=solace,dc=com"));
+            }
+        }
+    }
+
+    @Test
+    public void onlyTheRequestedAttributesAreReturned() throws Exception {
+        for (SearchResultEntry entry : search(false, "memberOf", "CN", "description")) {
+            assertEquals(2, entry.getAttributes().size());
+            assertEquals("alice", entry.getAttributeValue("cn"));
+            assertTrue(entry.hasAttributeValue("memberOf", "cn=publishers,ou=groups,dc=solace,dc=com"));
+        }
+    }
+
+    @Test
+    public void attributeOptionsAreIgnored() throws Exception {
+        for (SearchResultEntry entry : search(false, "memberOf;binary")) {
+            assertEquals(1, entry.getAttributes().size());
+            assertTrue(entry.hasAttributeValue("memberOf", "cn=publishers,ou=groups,dc=solace,dc=com"));
+        }
+    }
+
+    @Test
+    public void noUserAttributesAreReturnedFor11OrPlus() throws Exception {
+        for (String attribute : new String[] {"1.1", "+"}) {
+            for (SearchResultEntry entry : search(false, attribute)) {
+                assertEquals("cn=alice,dc=solace,dc=com", entry.getDN());
+                assertTrue(entry.getAttributes().isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void typesOnlyReturnsNamesWithoutValues() throws Exception {
+        for (SearchResultEntry entry : search(true, "cn")) {
+            assertEquals(1, entry.getAttributes().size());
+            assertNotNull(entry.getAttribute("cn"));
+            assertFalse(entry.getAttribute("cn").hasValue());
+        }
+        for (SearchResultEntry entry : search(true)) {
+            assertEquals(3, entry.getAttributes().size());
+            assertFalse(entry.getAttribute("memberOf").hasValue());
+        }
+        // Values for the same attributes are still returned in full
+        for (SearchResultEntry entry : search(false, "cn")) {
+            assertEquals("alice", entry.getAttributeValue("cn"));
+        }
+    }
+
+    /*
+     * Search for Alice twice, and return her entry as found each time
+     */
+    private SearchResultEntry[] search(boolean typesOnly, String... attributes) throws Exception {
+        SearchResultEntry[] found = new SearchResultEntry[2];
+        for (int i = 0; i < found.length; i++) {
+            SearchRequest request = new SearchRequest("dc=solace,dc=com", SearchScope.SUB, "(cn=alice)", attributes);
+            request.setTypesOnly(typesOnly);
+            SearchResult result = connection.search(request);
+            assertEquals(ResultCode.SUCCESS, result.getResultCode());
+            assertEquals(1, result.getEntryCount());
+            found[i] = result.getSearchEntries().get(0);
+        }
+        return found;
+    }
+}
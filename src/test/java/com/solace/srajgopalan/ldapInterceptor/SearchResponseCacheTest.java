@@ -0,0 +1,94 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.SearchScope;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SearchResponseCacheTest {
+
+    private static final String BASE = "dc=solace,dc=com";
+
+    private static final String ALICE =
+            "{\"dn\": \"cn=alice,dc=solace,dc=com\", \"group\": \"cn=publishers,ou=groups,dc=solace,dc=com\", \"password\": \"alice\"}";
+    private static final String BOB =
+            "{\"dn\": \"cn=bob,dc=solace,dc=com\", \"group\": \"cn=subscribers,ou=groups,dc=solace,dc=com\", \"password\": \"bob\"}";
+
+    private MockAuthSystem mockAuthSystem;
+    private SearchResponseCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        mockAuthSystem = new MockAuthSystem(MockAuthSystem.MatchMode.EXACT,
+                new StringReader("[" + ALICE + "," + BOB + "]"));
+        cache = new SearchResponseCache(60000L, 100);
+        mockAuthSystem.addChangeListener(cache);
+    }
+
+    @Test
+    public void reloadAddingAnotherMatchDropsCachedSearch() throws Exception {
+        Filter bob = Filter.create("(cn=bob)");
+        cacheSearch(bob);
+
+        mockAuthSystem.reload(new StringReader("[" + ALICE + "," + BOB + ","
+                + "{\"dn\": \"cn=bob,ou=eu,dc=solace,dc=com\", \"group\": \"cn=subscribers,ou=groups,dc=solace,dc=com\", \"password\": \"bob\"}]"));
+
+        assertNull(cache.get(BASE, SearchScope.SUB.intValue(), bob, SearchProjection.ALL));
+        assertEquals(2, mockAuthSystem.search(BASE, bob).get().size());
+    }
+
+    @Test
+    public void reloadAddingNewGroupMemberDropsCachedSearch() throws Exception {
+        Filter subscribers = Filter.create("(memberOf=cn=subscribers,ou=groups,dc=solace,dc=com)");
+        cacheSearch(subscribers);
+
+        // Alice joins the group; she was not returned by the cached search
+        mockAuthSystem.reload(new StringReader("["
+                + "{\"dn\": \"cn=alice,dc=solace,dc=com\", \"group\": \"cn=subscribers,ou=groups,dc=solace,dc=com\", \"password\": \"alice\"},"
+                + BOB + "]"));
+
+        assertNull(cache.get(BASE, SearchScope.SUB.intValue(), subscribers, SearchProjection.ALL));
+    }
+
+    @Test
+    public void unchangedReloadKeepsCachedSearches() throws Exception {
+        Filter bob = Filter.create("(cn=bob)");
+        cacheSearch(bob);
+
+        mockAuthSystem.reload(new StringReader("[" + ALICE + "," + BOB + "]"));
+
+        assertNotNull(cache.get(BASE, SearchScope.SUB.intValue(), bob, SearchProjection.ALL));
+    }
+
+    @Test
+    public void searchesThatBeganBeforeAReloadAreNotCached() throws Exception {
+        Filter bob = Filter.create("(cn=bob)");
+        long generation = cache.generation();
+        List<Entry> found = mockAuthSystem.search(BASE, bob).get();
+
+        // Bob is removed while the search is still sending his entry
+        mockAuthSystem.reload(new StringReader("[" + ALICE + "]"));
+        cache.put(BASE, SearchScope.SUB.intValue(), bob, SearchProjection.ALL,
+                new PreEncodedSearchResultEntry[] {new PreEncodedSearchResultEntry(found.get(0))}, generation);
+
+        assertNull(cache.get(BASE, SearchScope.SUB.intValue(), bob, SearchProjection.ALL));
+    }
+
+    private void cacheSearch(Filter filter) throws Exception {
+        List<Entry> found = mockAuthSystem.search(BASE, filter).get();
+        PreEncodedSearchResultEntry[] entries = new PreEncodedSearchResultEntry[found.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new PreEncodedSearchResultEntry(found.get(i));
+        }
+        cache.put(BASE, SearchScope.SUB.intValue(), filter, SearchProjection.ALL, entries);
+        assertNotNull(cache.get(BASE, SearchScope.SUB.intValue(), filter, SearchProjection.ALL));
+    }
+}
@@ -0,0 +1,143 @@
+package com.solace.srajgopalan.ldapInterceptor;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchScope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Proxies binds and searches to an in-memory directory server
+ */
+public class UpstreamAuthBackendTest {
+
+    private static final String BASE = "dc=solace,dc=com";
+
+    private InMemoryDirectoryServer upstream;
+    private UpstreamAuthBackend backend;
+
+    @Before
+    public void setUp() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE);
+        config.addAdditionalBindCredentials("cn=service", "service");
+        config.setSchema(null);
+        upstream = new InMemoryDirectoryServer(config);
+        upstream.add("dn: " + BASE, "objectClass: top", "objectClass: domain", "dc: solace");
+        upstream.add("dn: cn=alice," + BASE, "objectClass: inetOrgPerson", "cn: alice", "sn: alice",
+                "userPassword: alice", "memberOf: cn=publishers,ou=groups," + BASE);
+        upstream.add("dn: cn=bob," + BASE, "objectClass: inetOrgPerson", "cn: bob", "sn: bob",
+                "userPassword: bob", "memberOf: cn=subscribers,ou=groups," + BASE);
+        upstream.add("dn: cn=bob2," + BASE, "objectClass: inetOrgPerson", "cn: bob", "sn: bob2",
+                "userPassword: bob2");
+        upstream.startListening();
+
+        Properties p = new Properties();
+        p.setProperty("upstream.servers", "127.0.0.1:" + upstream.getListenPort());
+        p.setProperty("upstream.bindDN", "cn=service");
+        p.setProperty("upstream.bindPassword", "service");
+        backend = new UpstreamAuthBackend(new InterceptorConfig(p));
+    }
+
+    @After
+    public void tearDown() {
+        if (backend != null) {
+            backend.close();
+        }
+        upstream.shutDown(true);
+    }
+
+    @Test
+    public void bindsAreCheckedByTheUpstream() throws Exception {
+        assertTrue(backend.authenticate("cn=alice," + BASE, "alice").get());
+        assertFalse(backend.authenticate("cn=alice," + BASE, "bob").get());
+        assertFalse(backend.authenticate("cn=carol," + BASE, "carol").get());
+        // Would be an anonymous bind upstream
+        assertFalse(backend.authenticate("cn=alice," + BASE, "").get());
+    }
+
+    @Test
+    public void searchesReturnTheUpstreamEntries() throws Exception {
+        List<Entry> found = backend.search(BASE, Filter.create("(cn=bob)")).get();
+        assertEquals(2, found.size());
+
+        found = backend.search(BASE, Filter.create("(memberOf=cn=publishers,ou=groups," + BASE + ")")).get();
+        assertEquals(1, found.size());
+        assertEquals("cn=alice," + BASE, found.get(0).getDN());
+        assertTrue(found.get(0).hasAttribute("memberOf"));
+    }
+
+    @Test
+    public void searchesOverTheSizeLimitReturnTheEntriesFound() throws Exception {
+        assertEquals(1, backend.search(BASE, Filter.create("(cn=bob)"), 1, 0L).get().size());
+    }
+
+    @Test
+    public void baseSearchesReturnOnlyTheBaseEntry() throws Exception {
+        List<String> found = stream("cn=alice," + BASE, SearchScope.BASE, "(objectClass=*)");
+        assertEquals(1, found.size());
+        assertEquals("cn=alice," + BASE, found.get(0));
+
+        assertTrue(stream("cn=alice," + BASE, SearchScope.BASE, "(cn=bob)").isEmpty());
+    }
+
+    @Test
+    public void oneLevelSearchesReturnOnlyTheChildrenOfTheBase() throws Exception {
+        List<String> found = stream(BASE, SearchScope.ONE, "(objectClass=*)");
+        assertEquals(3, found.size());
+        assertFalse(found.contains(BASE));
+
+        assertTrue(stream("cn=alice," + BASE, SearchScope.ONE, "(objectClass=*)").isEmpty());
+    }
+
+    @Test
+    public void subtreeSearchesIncludeTheBase() throws Exception {
+        List<String> found = stream(BASE, SearchScope.SUB, "(objectClass=*)");
+        assertEquals(4, found.size());
+        assertTrue(found.contains(BASE));
+    }
+
+    @Test
+    public void anUnreachableUpstreamIsUnavailable() throws Exception {
+        upstream.shutDown(true);
+        try {
+            backend.search(BASE, Filter.create("(cn=bob)")).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(ResultCode.UNAVAILABLE, ((LDAPException) e.getCause()).getResultCode());
+        }
+        try {
+            backend.authenticate("cn=alice," + BASE, "alice").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(ResultCode.UNAVAILABLE, ((LDAPException) e.getCause()).getResultCode());
+        }
+    }
+
+    private List<String> stream(String baseDN, SearchScope scope, String filter) throws Exception {
+        List<String> dns = new ArrayList<String>();
+        SearchCursor cursor = backend.stream(baseDN, scope, Filter.create(filter), 0L).get();
+        try {
+            while (cursor.hasNext()) {
+                dns.add(cursor.next().getDN());
+            }
+        } finally {
+            cursor.close();
+        }
+        return dns;
+    }
+}